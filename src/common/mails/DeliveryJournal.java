@@ -0,0 +1,1206 @@
+package common.mails;
+
+import common.mails.exceptions.FailedMailBoxUpdateException;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.UnknownMailBoxException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Journals deliveries before they are appended to the recipients' mailboxes.
+ *
+ * An accepted mail is appended to a sequential file, and the entries written
+ * by concurrent deliveries are forced to the disk together: the first of them
+ * to commit forces everything written so far, the others then find their
+ * entries already durable. A delivery can be acknowledged once committed, the
+ * mail being appended to the mailboxes by a background thread which doesn't
+ * force them one by one. Instead, the mailboxes written since the last
+ * checkpoint are forced when the thread is idle, and only then are the
+ * entries they came from dropped.
+ *
+ * The journal is made of segments, a new one being started once the current
+ * one is full so that old entries can be dropped while deliveries go on.
+ * Every entry starts with its length and a CRC32 checksum, followed by the
+ * recipients and the mail written as a binary mailbox record, whose length
+ * tells where it ends since its body may hold the end of data marker once the
+ * client's dot-stuffing has been removed. When the journal is
+ * opened, the deliveries still in it are applied again: a mail is never lost
+ * after a crash, and one already applied since the last checkpoint is
+ * recognized by its identifier in the recipient's mailbox so that it isn't
+ * delivered twice. An entry which is truncated or doesn't match its checksum
+ * has been torn by the crash before being acknowledged, it is dropped. An
+ * entry whose commit has failed is voided, since its sender has been told it
+ * wasn't accepted.
+ *
+ * A mail which couldn't be appended to a mailbox, because the disk is full
+ * for instance, is tried again later for the recipients it failed for, its
+ * entry being kept meanwhile. A mail whose recipient has no mailbox is set
+ * aside in a dead letter mailbox inside the journal's directory instead, so
+ * that it is never dropped.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class DeliveryJournal extends Thread
+{
+    /**
+     * The name of the journal's directory inside the mailboxes' directory.
+     */
+    public static final String DIRECTORY_NAME = ".journal";
+
+    /**
+     * The default length from which a new segment is started, in bytes.
+     */
+    public static final long DEFAULT_SEGMENT_LENGTH = 16L * 1024 * 1024;
+
+    /**
+     * The default time the background thread waits for a delivery before
+     * checkpointing, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 200;
+
+    /**
+     * The extension of the segments' files.
+     */
+    protected static final String EXTENSION = ".log";
+
+    /**
+     * The length of an entry's length and checksum.
+     */
+    protected static final int ENTRY_HEADER_LENGTH = 8;
+
+    /**
+     * The number of recipients marking a voided entry.
+     */
+    protected static final int VOID_MARKER = -1;
+
+    /**
+     * The name of the directory holding the dead letter mailboxes, inside
+     * the journal's directory.
+     */
+    public static final String DEAD_LETTERS_DIRECTORY_NAME = "dead";
+
+    /**
+     * The time waited before trying a failed delivery again, in
+     * milliseconds.
+     */
+    public static final long RETRY_INTERVAL = 5000;
+
+    /**
+     * A file of the journal.
+     */
+    protected static class Segment
+    {
+        /**
+         * The segment's number, increasing with each new segment.
+         */
+        protected final long number;
+
+        /**
+         * The segment's file.
+         */
+        protected final File path;
+
+        /**
+         * The channel entries are written through, <code>null</code> once
+         * the segment is full.
+         */
+        protected FileChannel channel;
+
+        /**
+         * The number of entries which haven't been applied yet.
+         */
+        protected int pendingNumber;
+
+        /**
+         * Creates a new segment.
+         *
+         * @param number The segment's number.
+         * @param path The segment's file.
+         */
+        protected Segment(long number, File path)
+        {
+            this.number = number;
+            this.path = path;
+            this.channel = null;
+            this.pendingNumber = 0;
+        }
+    }
+
+    /**
+     * A delivery waiting to be applied.
+     */
+    protected static class Delivery
+    {
+        /**
+         * The mail to deliver.
+         */
+        protected final Mail mail;
+
+        /**
+         * The usernames of the recipients.
+         */
+        protected final List<String> recipients;
+
+        /**
+         * The segment holding the delivery's entry.
+         */
+        protected final Segment segment;
+
+        /**
+         * Whether the delivery has been read from the journal when it was
+         * opened, in which case it may have been applied already.
+         */
+        protected final boolean recovered;
+
+        /**
+         * The time from which a failed delivery is tried again, in
+         * milliseconds.
+         */
+        protected long retryTime;
+
+        /**
+         * Creates a new delivery.
+         *
+         * @param mail The mail to deliver.
+         * @param recipients The usernames of the recipients.
+         * @param segment The segment holding the delivery's entry.
+         * @param recovered Whether the delivery has been read from the
+         * journal when it was opened.
+         */
+        protected Delivery(Mail mail, List<String> recipients, Segment segment, boolean recovered)
+        {
+            this.mail = mail;
+            this.recipients = recipients;
+            this.segment = segment;
+            this.recovered = recovered;
+            this.retryTime = 0;
+        }
+    }
+
+    /**
+     * The journal's directory.
+     */
+    protected final File directory;
+
+    /**
+     * The locator opening the recipients' mailboxes.
+     */
+    protected final MailBoxLocator locator;
+
+    /**
+     * The segments still holding entries, from the oldest to the current one.
+     */
+    protected final LinkedList<Segment> segments;
+
+    /**
+     * The length from which a new segment is started, in bytes.
+     */
+    protected long segmentLength;
+
+    /**
+     * The lock held while committing, so that only one thread forces the
+     * journal at a time.
+     */
+    protected final Object commitLock;
+
+    /**
+     * The number of entries written since the journal has been opened.
+     */
+    protected long writtenNumber;
+
+    /**
+     * The number of entries known to be durable.
+     */
+    protected long committedNumber;
+
+    /**
+     * The deliveries waiting to be applied.
+     */
+    protected final BlockingQueue<Delivery> pendingDeliveries;
+
+    /**
+     * The paths written by the background thread since the last checkpoint,
+     * which haven't been forced yet.
+     */
+    protected final Set<Path> dirtyPaths;
+
+    /**
+     * The identifiers of the mails in the mailboxes recovered deliveries have
+     * been applied to, read once per mailbox while recovering.
+     */
+    protected final Map<File, Set<String>> recoveredIdentifiers;
+
+    /**
+     * The deliveries waiting to be tried again, only used by the background
+     * thread.
+     */
+    protected final List<Delivery> failedDeliveries;
+
+    /**
+     * Creates a new journal, which must be opened before being used.
+     *
+     * @param directory The journal's directory.
+     * @param locator The locator opening the recipients' mailboxes.
+     */
+    public DeliveryJournal(File directory, MailBoxLocator locator)
+    {
+        super("DeliveryJournal");
+
+        // Initialize properties
+        this.directory = directory;
+        this.locator = locator;
+        this.segments = new LinkedList<>();
+        this.segmentLength = DeliveryJournal.DEFAULT_SEGMENT_LENGTH;
+        this.commitLock = new Object();
+        this.writtenNumber = 0;
+        this.committedNumber = 0;
+        this.pendingDeliveries = new LinkedBlockingQueue<>();
+        this.dirtyPaths = new LinkedHashSet<>();
+        this.recoveredIdentifiers = new HashMap<>();
+        this.failedDeliveries = new ArrayList<>();
+        this.setDaemon(true);
+    }
+
+    /**
+     * Opens the journal, queuing the deliveries left in it to be applied
+     * again once the background thread is started.
+     *
+     * @return The number of deliveries left in the journal.
+     * @throws java.io.IOException If the journal couldn't be read or a new
+     * segment couldn't be started.
+     */
+    public synchronized int open()
+    throws IOException
+    {
+        // Initialize vars
+        File[] files;
+        long lastNumber = 0;
+        int recoveredNumber = 0;
+
+        Files.createDirectories(this.directory.toPath());
+        files = this.directory.listFiles((dir, name) -> name.endsWith(DeliveryJournal.EXTENSION));
+
+        if(null == files)
+        {
+            throw new IOException(String.format(
+                "Journal \"%s\" can't be listed.",
+                this.directory.getAbsolutePath()
+            ));
+        }
+
+        // Read the segments in the order they have been written
+        Arrays.sort(files, (first, second) -> Long.compare(DeliveryJournal.getNumber(first), DeliveryJournal.getNumber(second)));
+
+        for(File file : files)
+        {
+            Segment segment = new Segment(DeliveryJournal.getNumber(file), file);
+            lastNumber = Math.max(lastNumber, segment.number);
+            recoveredNumber += this.recover(segment);
+
+            if(segment.pendingNumber > 0)
+            {
+                this.segments.add(segment);
+            }
+            else
+            {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        // Then, write into a new segment
+        this.segments.add(this.createSegment(lastNumber + 1));
+
+        return recoveredNumber;
+    }
+
+    /**
+     * Gets a segment's number from its file's name.
+     *
+     * @param file The segment's file.
+     * @return The segment's number, <code>0</code> if it isn't a number.
+     */
+    protected static long getNumber(File file)
+    {
+        // Initialize vars
+        String name = file.getName();
+
+        try
+        {
+            return Long.parseLong(name.substring(0, name.length() - DeliveryJournal.EXTENSION.length()));
+        }
+        catch(NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads the entries of a segment left by a previous run, queuing their
+     * deliveries and dropping a torn entry at its end.
+     *
+     * @param segment The segment.
+     * @return The number of deliveries queued.
+     * @throws java.io.IOException If the segment couldn't be read.
+     */
+    protected int recover(Segment segment)
+    throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(segment.path.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // Initialize vars
+            DataInputStream segmentReader = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            long segmentSize = channel.size(), validLength = 0;
+            CRC32 crc = new CRC32();
+            int entryLength, checksum;
+            byte[] entry;
+            Delivery delivery;
+
+            while(validLength + DeliveryJournal.ENTRY_HEADER_LENGTH <= segmentSize)
+            {
+                entryLength = segmentReader.readInt();
+                checksum = segmentReader.readInt();
+
+                if(entryLength < 0 || validLength + DeliveryJournal.ENTRY_HEADER_LENGTH + entryLength > segmentSize)
+                {
+                    break;
+                }
+
+                entry = new byte[entryLength];
+                segmentReader.readFully(entry);
+                crc.reset();
+                crc.update(entry);
+
+                if(checksum != (int) crc.getValue())
+                {
+                    break;
+                }
+
+                validLength += DeliveryJournal.ENTRY_HEADER_LENGTH + entryLength;
+
+                try
+                {
+                    // A voided entry is only skipped
+                    if(null != (delivery = this.readDelivery(entry, segment)))
+                    {
+                        this.pendingDeliveries.add(delivery);
+                        segment.pendingNumber++;
+                    }
+                }
+                catch(InvalidMailBoxFileException ex)
+                {
+                    Logger.getLogger(DeliveryJournal.class.getName()).log(
+                        Level.SEVERE,
+                        String.format(
+                            "Couldn't read delivery from journal \"%s\".",
+                            segment.path.getAbsolutePath()
+                        ),
+                        ex
+                    );
+                }
+            }
+
+            // Drop what the crash has torn
+            if(validLength < segmentSize)
+            {
+                Logger.getLogger(DeliveryJournal.class.getName()).log(
+                    Level.WARNING,
+                    String.format(
+                        "Dropping %d bytes torn from journal \"%s\".",
+                        segmentSize - validLength,
+                        segment.path.getAbsolutePath()
+                    )
+                );
+
+                channel.truncate(validLength);
+                channel.force(true);
+            }
+        }
+        catch(EOFException ex)
+        {
+            // The size has been checked before reading
+            throw new IOException(ex);
+        }
+
+        return segment.pendingNumber;
+    }
+
+    /**
+     * Builds a delivery from an entry.
+     *
+     * @param entry The entry, without its length and checksum.
+     * @param segment The segment holding the entry.
+     * @return The delivery, <code>null</code> if the entry has been voided.
+     * @throws java.io.IOException If the entry couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * mail's record isn't built correctly.
+     */
+    protected Delivery readDelivery(byte[] entry, Segment segment)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        ByteArrayInputStream entryStream = new ByteArrayInputStream(entry);
+        DataInputStream entryReader = new DataInputStream(entryStream);
+        List<String> recipients = new ArrayList<>();
+        MailBoxParser parser;
+        int recipientsNumber = entryReader.readInt();
+
+        if(DeliveryJournal.VOID_MARKER == recipientsNumber)
+        {
+            return null;
+        }
+
+        for(int i = recipientsNumber; i > 0; i--)
+        {
+            recipients.add(entryReader.readUTF());
+        }
+
+        // The rest is the mail's record
+        parser = new MailBoxParser(
+            entryStream,
+            segment.path.getAbsolutePath(),
+            Math.max(64, entryStream.available()),
+            MailBoxFormat.BINARY
+        );
+
+        if(!parser.next())
+        {
+            throw new InvalidMailBoxFileException(String.format(
+                "Journal \"%s\" has an entry without a mail.",
+                segment.path.getAbsolutePath()
+            ));
+        }
+
+        return new Delivery(
+            MailBox.resolve(
+                parser.getMail(StandardCharsets.UTF_8),
+                parser.getBodyStart(),
+                parser.getFlags(),
+                StandardCharsets.UTF_8
+            ),
+            recipients,
+            segment,
+            true
+        );
+    }
+
+    /**
+     * Starts a new segment.
+     *
+     * @param number The segment's number.
+     * @return The segment.
+     * @throws java.io.IOException If the segment couldn't be created.
+     */
+    protected Segment createSegment(long number)
+    throws IOException
+    {
+        // Initialize vars
+        Segment segment = new Segment(
+            number,
+            new File(this.directory, String.format("%016d%s", number, DeliveryJournal.EXTENSION))
+        );
+
+        segment.channel = FileChannel.open(segment.path.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        segment.channel.position(segment.channel.size());
+
+        // Entries mustn't be acknowledged in a file which may disappear
+        if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+        {
+            MailBoxSyncer.force(this.directory.toPath());
+        }
+
+        return segment;
+    }
+
+    /**
+     * Journals a mail, returning once its entry is durable.
+     *
+     * @param mail The mail to deliver.
+     * @param recipients The usernames of the recipients.
+     * @throws java.io.IOException If the mail couldn't be journaled, in which
+     * case it won't be delivered.
+     */
+    public void deliver(Mail mail, Collection<String> recipients)
+    throws IOException
+    {
+        // Initialize vars
+        ByteArrayOutputStream entryStream = new ByteArrayOutputStream();
+        DataOutputStream entryWriter = new DataOutputStream(entryStream);
+        CRC32 crc = new CRC32();
+        ByteBuffer entry;
+        Segment segment;
+        long sequence, entryStart;
+
+        // Build the whole entry first, its length and checksum coming last
+        entryWriter.writeInt(0);
+        entryWriter.writeInt(0);
+        entryWriter.writeInt(recipients.size());
+
+        for(String recipient : recipients)
+        {
+            entryWriter.writeUTF(recipient);
+        }
+
+        MailBox.write(entryWriter, mail, MailBoxFormat.BINARY);
+        entry = ByteBuffer.wrap(entryStream.toByteArray());
+        crc.update(entry.array(), DeliveryJournal.ENTRY_HEADER_LENGTH, entry.limit() - DeliveryJournal.ENTRY_HEADER_LENGTH);
+        entry.putInt(0, entry.limit() - DeliveryJournal.ENTRY_HEADER_LENGTH);
+        entry.putInt(4, (int) crc.getValue());
+
+        // Then, write it at the end of the current segment
+        synchronized(this)
+        {
+            segment = this.segments.getLast();
+            entryStart = segment.channel.position();
+
+            try
+            {
+                while(entry.hasRemaining())
+                {
+                    segment.channel.write(entry);
+                }
+            }
+            catch(IOException ex)
+            {
+                // A partial entry would hide the ones written after it
+                segment.channel.truncate(entryStart);
+
+                throw ex;
+            }
+
+            segment.pendingNumber++;
+            sequence = ++this.writtenNumber;
+
+            if(segment.channel.position() >= this.segmentLength)
+            {
+                try
+                {
+                    this.rotate();
+                }
+                catch(IOException ex)
+                {
+                    // The sender will be told the mail hasn't been accepted, it mustn't be delivered after a restart
+                    this.voidEntry(segment, entryStart, entry.array());
+                    segment.pendingNumber--;
+
+                    throw ex;
+                }
+            }
+        }
+
+        // Wait for it to be durable along with the others written meanwhile
+        try
+        {
+            this.commit(sequence);
+        }
+        catch(IOException ex)
+        {
+            // The sender will be told the mail hasn't been accepted, it mustn't be delivered after a restart
+            this.voidEntry(segment, entryStart, entry.array());
+
+            synchronized(this)
+            {
+                segment.pendingNumber--;
+            }
+
+            throw ex;
+        }
+
+        this.pendingDeliveries.add(new Delivery(mail, new ArrayList<>(recipients), segment, false));
+    }
+
+    /**
+     * Voids an entry whose delivery has been given up, by replacing its
+     * number of recipients with a marker, so that it is skipped when the
+     * journal is opened rather than hiding the entries after it.
+     *
+     * Failures are only logged: the journal may be failing already, in
+     * which case the entry will be delivered after a restart anyway.
+     *
+     * @param segment The segment holding the entry.
+     * @param entryStart The entry's position in the segment.
+     * @param entry The entry, including its length and checksum.
+     */
+    protected void voidEntry(Segment segment, long entryStart, byte[] entry)
+    {
+        // Initialize vars
+        ByteBuffer voidedEntry = ByteBuffer.wrap(Arrays.copyOf(entry, entry.length));
+        CRC32 crc = new CRC32();
+
+        voidedEntry.putInt(DeliveryJournal.ENTRY_HEADER_LENGTH, DeliveryJournal.VOID_MARKER);
+        crc.update(voidedEntry.array(), DeliveryJournal.ENTRY_HEADER_LENGTH, entry.length - DeliveryJournal.ENTRY_HEADER_LENGTH);
+        voidedEntry.putInt(4, (int) crc.getValue());
+
+        // Only its checksum and number of recipients are rewritten
+        voidedEntry.limit(DeliveryJournal.ENTRY_HEADER_LENGTH + 4);
+
+        // The segment may have been closed since it is full
+        try(FileChannel channel = FileChannel.open(segment.path.toPath(), StandardOpenOption.WRITE))
+        {
+            while(voidedEntry.hasRemaining())
+            {
+                channel.write(voidedEntry, entryStart + voidedEntry.position());
+            }
+
+            if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+            {
+                channel.force(false);
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(DeliveryJournal.class.getName()).log(
+                Level.SEVERE,
+                String.format(
+                    "Couldn't void entry of journal \"%s\".",
+                    segment.path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Makes an entry durable, forcing every entry written so far unless
+     * another thread already has.
+     *
+     * @param sequence The entry's sequence number.
+     * @throws java.io.IOException If the journal couldn't be forced.
+     */
+    protected void commit(long sequence)
+    throws IOException
+    {
+        synchronized(this.commitLock)
+        {
+            // Initialize vars
+            long target;
+            FileChannel channel;
+
+            if(this.committedNumber >= sequence)
+            {
+                return;
+            }
+
+            synchronized(this)
+            {
+                target = this.writtenNumber;
+                channel = this.segments.getLast().channel;
+            }
+
+            if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+            {
+                try
+                {
+                    channel.force(false);
+                }
+                catch(ClosedChannelException ex)
+                {
+                    // The segment was full and has been forced before being closed
+                }
+            }
+
+            this.committedNumber = target;
+        }
+    }
+
+    /**
+     * Closes the current segment, which is full, and starts a new one.
+     *
+     * The new segment is started before the current one is closed, which
+     * stays the current one if it couldn't be.
+     *
+     * The lock on the journal must be held.
+     *
+     * @throws java.io.IOException If the segment couldn't be forced or a new
+     * one couldn't be started.
+     */
+    protected void rotate()
+    throws IOException
+    {
+        // Initialize vars
+        Segment segment = this.segments.getLast();
+
+        // Its entries may not have been committed yet
+        if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+        {
+            segment.channel.force(false);
+        }
+
+        this.segments.add(this.createSegment(segment.number + 1));
+
+        try
+        {
+            segment.channel.close();
+        }
+        catch(IOException ex)
+        {
+            // Its entries have been forced already
+            Logger.getLogger(DeliveryJournal.class.getName()).log(
+                Level.WARNING,
+                String.format(
+                    "Couldn't close journal \"%s\".",
+                    segment.path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+
+        segment.channel = null;
+    }
+
+    /**
+     * The background thread's main loop: applying the deliveries as they are
+     * committed, and checkpointing when there are none.
+     */
+    @Override
+    public void run()
+    {
+        // Initialize vars
+        Delivery delivery;
+
+        // Mailboxes are only forced at checkpoints
+        MailBoxSyncer.defer(this.dirtyPaths);
+
+        try
+        {
+            while(true)
+            {
+                this.retryFailedDeliveries();
+
+                try
+                {
+                    delivery = this.pendingDeliveries.poll(DeliveryJournal.DEFAULT_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException ex)
+                {
+                    return;
+                }
+
+                if(null != delivery)
+                {
+                    this.apply(delivery);
+                }
+                else
+                {
+                    // The recovered deliveries are queued first, they have all been applied
+                    this.recoveredIdentifiers.clear();
+                }
+
+                // A full segment may be dropped as soon as its last delivery is applied
+                if(null == delivery || this.isFull(delivery.segment))
+                {
+                    this.checkpoint();
+                }
+            }
+        }
+        finally
+        {
+            MailBoxSyncer.defer(null);
+        }
+    }
+
+    /**
+     * Tests if a segment is full, no more entries being written into it.
+     *
+     * @param segment The segment.
+     * @return <code>true</code> if it is, <code>false</code> otherwise.
+     */
+    protected synchronized boolean isFull(Segment segment)
+    {
+        return null == segment.channel;
+    }
+
+    /**
+     * Appends a mail to the mailbox of each of its recipients.
+     *
+     * A recovered delivery is skipped for the recipients whose mailbox
+     * already holds a mail with the same identifier, it has been applied to
+     * them before the crash.
+     *
+     * The recipients whose mailbox couldn't be written are tried again
+     * later, the delivery's entry being kept until then, whereas the mail is
+     * set aside as a dead letter for those who have no mailbox.
+     *
+     * @param delivery The delivery.
+     */
+    protected void apply(Delivery delivery)
+    {
+        // Initialize vars
+        String identifier = delivery.recovered ? delivery.mail.getHeader(MailIdentifier.HEADER) : null;
+        List<String> failedRecipients = new ArrayList<>();
+        Set<String> identifiers = null;
+        Delivery failedDelivery;
+        MailBox mailBox;
+
+        for(String recipient : delivery.recipients)
+        {
+            try
+            {
+                try
+                {
+                    mailBox = this.locator.open(recipient);
+
+                    if(null != identifier && (identifiers = this.getRecoveredIdentifiers(mailBox)).contains(identifier))
+                    {
+                        continue;
+                    }
+
+                    this.append(mailBox, recipient, delivery.mail);
+                }
+                catch(IllegalArgumentException | FileNotFoundException ex)
+                {
+                    Logger.getLogger(DeliveryJournal.class.getName()).log(
+                        Level.SEVERE,
+                        String.format(
+                            "Couldn't append mail to mailbox of \"%s\", keeping it as a dead letter.",
+                            recipient
+                        ),
+                        ex
+                    );
+
+                    this.deadLetter(recipient, delivery.mail);
+                }
+
+                if(null != identifiers)
+                {
+                    identifiers.add(identifier);
+                }
+            }
+            catch(FailedMailBoxUpdateException | IllegalArgumentException | FileNotFoundException ex)
+            {
+                Logger.getLogger(DeliveryJournal.class.getName()).log(
+                    Level.SEVERE,
+                    String.format(
+                        "Couldn't append mail to mailbox of \"%s\", trying again later.",
+                        recipient
+                    ),
+                    ex
+                );
+
+                failedRecipients.add(recipient);
+            }
+        }
+
+        if(!failedRecipients.isEmpty())
+        {
+            // The failed append may have written the mail before failing to force it
+            failedDelivery = new Delivery(delivery.mail, failedRecipients, delivery.segment, true);
+            failedDelivery.retryTime = System.currentTimeMillis() + DeliveryJournal.RETRY_INTERVAL;
+            this.failedDeliveries.add(failedDelivery);
+
+            return;
+        }
+
+        synchronized(this)
+        {
+            delivery.segment.pendingNumber--;
+        }
+    }
+
+    /**
+     * Queues the failed deliveries whose time has come to be tried again.
+     */
+    protected void retryFailedDeliveries()
+    {
+        // Initialize vars
+        long now = System.currentTimeMillis();
+        Iterator<Delivery> deliveriesIterator = this.failedDeliveries.iterator();
+        Delivery delivery;
+
+        while(deliveriesIterator.hasNext())
+        {
+            delivery = deliveriesIterator.next();
+
+            if(delivery.retryTime <= now)
+            {
+                deliveriesIterator.remove();
+                this.pendingDeliveries.add(delivery);
+            }
+        }
+    }
+
+    /**
+     * Sets a mail aside in the dead letter mailbox of a recipient who has no
+     * mailbox, so that it can be delivered by hand.
+     *
+     * @param recipient The recipient.
+     * @param mail The mail.
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the mail
+     * couldn't be set aside.
+     * @throws java.io.FileNotFoundException If the dead letter mailbox
+     * couldn't be created.
+     */
+    protected void deadLetter(String recipient, Mail mail)
+    throws FailedMailBoxUpdateException, FileNotFoundException
+    {
+        // Initialize vars
+        File path = new File(
+            new File(this.directory, DeliveryJournal.DEAD_LETTERS_DIRECTORY_NAME),
+            recipient + MailBoxLocator.EXTENSION
+        );
+
+        try
+        {
+            Files.createDirectories(path.getParentFile().toPath());
+            path.createNewFile();
+        }
+        catch(IOException ex)
+        {
+            throw new FailedMailBoxUpdateException(
+                String.format(
+                    "Dead letter mailbox \"%s\" couldn't be created.",
+                    path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+
+        // A shared body keeps the reference taken for this recipient
+        new MailBox(path).append(mail);
+    }
+
+    /**
+     * Appends a mail to a recipient's mailbox, locating it once again if the
+     * migrator has moved it into its subdirectory since it was located.
+     *
+     * @param mailBox The located mailbox.
+     * @param recipient The recipient.
+     * @param mail The mail to append.
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the mail
+     * couldn't be appended.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     */
+    protected void append(MailBox mailBox, String recipient, Mail mail)
+    throws FailedMailBoxUpdateException, FileNotFoundException
+    {
+        // Initialize vars
+        MailBox movedMailBox;
+
+        try
+        {
+            mailBox.append(mail);
+        }
+        catch(FailedMailBoxUpdateException | FileNotFoundException ex)
+        {
+            // The mailbox is moved while locked, so it is found missing once the lock is acquired
+            if(mailBox.getPath().exists())
+            {
+                throw ex;
+            }
+
+            movedMailBox = this.locator.open(recipient);
+
+            if(movedMailBox.getPath().equals(mailBox.getPath()))
+            {
+                throw ex;
+            }
+
+            movedMailBox.append(mail);
+        }
+    }
+
+    /**
+     * Gets the identifiers of the mails in a mailbox, reading its headers the
+     * first time a recovered delivery is applied to it.
+     *
+     * A mailbox which couldn't be read is considered empty, a duplicate
+     * being better than a lost mail.
+     *
+     * @param mailBox The mailbox, which hasn't been loaded.
+     * @return The identifiers.
+     */
+    protected Set<String> getRecoveredIdentifiers(MailBox mailBox)
+    {
+        // Initialize vars
+        Set<String> identifiers = this.recoveredIdentifiers.get(mailBox.getPath());
+        String identifier;
+
+        if(null == identifiers)
+        {
+            identifiers = new HashSet<>();
+            this.recoveredIdentifiers.put(mailBox.getPath(), identifiers);
+
+            try
+            {
+                mailBox.loadLazily();
+
+                for(Mail mail : mailBox.getAll())
+                {
+                    if(null != (identifier = mail.getHeader(MailIdentifier.HEADER)))
+                    {
+                        identifiers.add(identifier);
+                    }
+                }
+            }
+            catch(IOException | UnknownMailBoxException | InvalidMailBoxFileException | IllegalArgumentException ex)
+            {
+                Logger.getLogger(DeliveryJournal.class.getName()).log(
+                    Level.WARNING,
+                    String.format(
+                        "Couldn't read mailbox \"%s\", recovered mails may be delivered twice.",
+                        mailBox.getPath().getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+        }
+
+        return identifiers;
+    }
+
+    /**
+     * Forces the mailboxes written since the last checkpoint, then drops the
+     * segments whose deliveries have all been applied.
+     */
+    protected void checkpoint()
+    {
+        // Initialize vars
+        List<Segment> drainedSegments = new ArrayList<>();
+        Set<Path> drainedPaths = new LinkedHashSet<>();
+
+        synchronized(this)
+        {
+            for(Segment segment : this.segments)
+            {
+                if(0 == segment.pendingNumber && (null == segment.channel || segment.path.length() > 0))
+                {
+                    drainedSegments.add(segment);
+                }
+            }
+        }
+
+        if(drainedSegments.isEmpty())
+        {
+            return;
+        }
+
+        try
+        {
+            // The mailboxes must be durable before the entries are dropped
+            for(Path path : this.dirtyPaths)
+            {
+                MailBoxSyncer.force(path);
+            }
+
+            this.dirtyPaths.clear();
+
+            synchronized(this)
+            {
+                for(Segment segment : drainedSegments)
+                {
+                    if(null != segment.channel)
+                    {
+                        // Deliveries may have been journaled meanwhile
+                        if(0 == segment.pendingNumber)
+                        {
+                            segment.channel.truncate(0);
+                            drainedPaths.add(segment.path.toPath());
+                        }
+                    }
+                    else
+                    {
+                        Files.deleteIfExists(segment.path.toPath());
+                        this.segments.remove(segment);
+                        drainedPaths.add(this.directory.toPath());
+                    }
+                }
+            }
+
+            // This thread defers its syncs, so they are forced right away
+            if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+            {
+                for(Path path : drainedPaths)
+                {
+                    MailBoxSyncer.force(path);
+                }
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(DeliveryJournal.class.getName()).log(
+                Level.SEVERE,
+                String.format(
+                    "Couldn't checkpoint journal \"%s\".",
+                    this.directory.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Gets the number of deliveries which haven't been applied yet.
+     *
+     * @return The number of deliveries.
+     */
+    public synchronized int getPendingNumber()
+    {
+        // Initialize vars
+        int pendingNumber = 0;
+
+        for(Segment segment : this.segments)
+        {
+            pendingNumber += segment.pendingNumber;
+        }
+
+        return pendingNumber;
+    }
+
+    /**
+     * Gets the length from which a new segment is started.
+     *
+     * @return The length, in bytes.
+     */
+    public synchronized long getSegmentLength()
+    {
+        return this.segmentLength;
+    }
+
+    /**
+     * Sets the length from which a new segment is started.
+     *
+     * @param segmentLength The length, in bytes.
+     */
+    public synchronized void setSegmentLength(long segmentLength)
+    {
+        if(segmentLength <= 0)
+        {
+            throw new IllegalArgumentException("Segment length must be positive.");
+        }
+
+        this.segmentLength = segmentLength;
+    }
+}
@@ -0,0 +1,592 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A mail whose headers are kept in memory but whose body stays in the mailbox
+ * file until it is asked for.
+ *
+ * Once read, the body is only softly referenced so that the garbage collector
+ * can drop it again under memory pressure, in which case it will simply be
+ * read again the next time it is needed.
+ *
+ * The identity of the mailbox file is remembered too, so that a body isn't
+ * read at a stale offset once the file has been replaced by a compaction.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class LazyMail extends Mail
+{
+    /**
+     * The path of the mailbox file containing the body.
+     */
+    protected File path;
+
+    /**
+     * The charset to build the body with.
+     */
+    protected Charset charset;
+
+    /**
+     * The offset of the body in the mailbox file.
+     */
+    protected long bodyOffset;
+
+    /**
+     * The length of the body in the mailbox file.
+     */
+    protected int bodyLength;
+
+    /**
+     * The mail's size in octets, as recorded in the mailbox's index.
+     */
+    protected int size;
+
+    /**
+     * The key identifying the mailbox file the offsets are valid for,
+     * <code>null</code> if the file system doesn't provide one.
+     */
+    protected Object fileKey;
+
+    /**
+     * Whether the body is compressed in the mailbox file.
+     */
+    protected boolean compressed;
+
+    /**
+     * The body read from the mailbox file, if it hasn't been collected yet.
+     */
+    protected SoftReference<String> bodyReference;
+
+    /**
+     * The header lines as they are stored, without the empty line ending them
+     * nor those telling how the body is stored, <code>null</code> if they
+     * aren't known or have been modified since.
+     */
+    protected byte[] rawHeaders;
+
+    /**
+     * Creates a new lazy mail.
+     *
+     * @param path The path of the mailbox file containing the body.
+     * @param charset The charset to build the body with.
+     * @param bodyOffset The offset of the body in the mailbox file.
+     * @param bodyLength The length of the body in the mailbox file.
+     * @param size The mail's size in octets.
+     * @param fileKey The key identifying the mailbox file.
+     */
+    public LazyMail(File path, Charset charset, long bodyOffset, int bodyLength, int size, Object fileKey)
+    {
+        this(path, charset, bodyOffset, bodyLength, size, fileKey, false);
+    }
+
+    /**
+     * Creates a new lazy mail whose body may be compressed.
+     *
+     * @param path The path of the mailbox file containing the body.
+     * @param charset The charset to build the body with.
+     * @param bodyOffset The offset of the body in the mailbox file.
+     * @param bodyLength The length of the body in the mailbox file.
+     * @param size The mail's size in octets, uncompressed.
+     * @param fileKey The key identifying the mailbox file.
+     * @param compressed Whether the body is compressed.
+     * @see common.mails.MailCompressor
+     */
+    public LazyMail(
+        File path, Charset charset, long bodyOffset, int bodyLength, int size, Object fileKey, boolean compressed
+    )
+    {
+        super();
+
+        // Initialize properties
+        this.path = path;
+        this.charset = charset;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.size = size;
+        this.fileKey = fileKey;
+        this.compressed = compressed;
+        this.bodyReference = new SoftReference<>(null);
+        this.rawHeaders = null;
+    }
+
+    /**
+     * Creates a new lazy mail pointing to the same body as another one, but
+     * whose headers and location are its own.
+     *
+     * @param mail The lazy mail to copy.
+     */
+    protected LazyMail(LazyMail mail)
+    {
+        super();
+
+        // Initialize properties
+        this.headers.putAll(mail.headers);
+        this.body = mail.body;
+        this.path = mail.path;
+        this.charset = mail.charset;
+        this.bodyOffset = mail.bodyOffset;
+        this.bodyLength = mail.bodyLength;
+        this.size = mail.size;
+        this.fileKey = mail.fileKey;
+        this.compressed = mail.compressed;
+        this.bodyReference = new SoftReference<>(mail.bodyReference.get());
+        this.rawHeaders = mail.rawHeaders;
+    }
+
+    /**
+     * Copies the mail, so that relocating or modifying the copy doesn't
+     * affect it.
+     *
+     * @return The copy.
+     * @see common.mails.MailBox#copy()
+     */
+    public LazyMail copy()
+    {
+        return new LazyMail(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeader(String header)
+    {
+        super.addHeader(header);
+
+        this.rawHeaders = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeader(String name, String value)
+    {
+        super.addHeader(name, value);
+
+        this.rawHeaders = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String removeHeader(String name)
+    {
+        // Initialize vars
+        String value = super.removeHeader(name);
+
+        if(null != value)
+        {
+            this.rawHeaders = null;
+        }
+
+        return value;
+    }
+
+    /**
+     * Sets the header lines as they are stored, once the headers have been
+     * read from them.
+     *
+     * @param rawHeaders The header lines, each one ended by a CRLF.
+     */
+    protected void setRawHeaders(byte[] rawHeaders)
+    {
+        this.rawHeaders = rawHeaders;
+    }
+
+    /**
+     * Tests if the header lines can still be written as they are stored.
+     *
+     * @return <code>true</code> if the headers are known and haven't been
+     * modified, <code>false</code> otherwise.
+     */
+    public boolean hasRawHeaders()
+    {
+        return null != this.rawHeaders;
+    }
+
+    /**
+     * Gets the length of the header lines as they are stored.
+     *
+     * @return The length of the header lines, without the empty line ending
+     * them.
+     */
+    public int getRawHeadersLength()
+    {
+        return this.rawHeaders.length;
+    }
+
+    /**
+     * Writes the header lines as they are stored, without the empty line
+     * ending them.
+     *
+     * @param stream The stream to write into.
+     * @throws java.io.IOException If the headers couldn't be written.
+     */
+    public void writeRawHeaders(OutputStream stream)
+    throws IOException
+    {
+        stream.write(this.rawHeaders);
+    }
+
+    /**
+     * Gets the mail's body, reading it from the mailbox file if it isn't in
+     * memory.
+     *
+     * @return The mail's body.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the body
+     * couldn't be read.
+     */
+    @Override
+    public String getBody()
+    throws InvalidMailBoxFileException
+    {
+        // Has the body been replaced?
+        if(null != this.body)
+        {
+            return this.body;
+        }
+
+        // Is the body still in memory?
+        String loadedBody = this.bodyReference.get();
+
+        if(null == loadedBody)
+        {
+            // Read the body from the mailbox file, which mustn't be written meanwhile
+            byte[] rawBody = new byte[this.bodyLength];
+            Lock lock = this.getLockManager().lockRead(this.path);
+
+            try(RandomAccessFile mailBoxFile = new RandomAccessFile(this.path, "r"))
+            {
+                // Has the file been replaced since?
+                if(null != this.fileKey && !this.fileKey.equals(MailBox.getFileKey(this.path)))
+                {
+                    throw new InvalidMailBoxFileException(String.format(
+                        "Mailbox \"%s\" has been rewritten since it was loaded.",
+                        this.path.getAbsolutePath()
+                    ));
+                }
+
+                mailBoxFile.seek(this.bodyOffset);
+                mailBoxFile.readFully(rawBody);
+            }
+            catch(IOException ex)
+            {
+                throw new InvalidMailBoxFileException(
+                    String.format(
+                        "Body couldn't be read from mailbox \"%s\".",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            if(this.compressed)
+            {
+                rawBody = MailCompressor.decompress(rawBody);
+            }
+
+            loadedBody = new String(rawBody, this.charset).trim();
+            this.bodyReference = new SoftReference<>(loadedBody);
+        }
+
+        return loadedBody;
+    }
+
+    /**
+     * Sets the mail's body, which is then kept in memory.
+     *
+     * @param body The mail's body.
+     */
+    @Override
+    public void setBody(String body)
+    {
+        super.setBody(body);
+
+        this.bodyReference = new SoftReference<>(null);
+    }
+
+    /**
+     * Opens a stream over the body's bytes in the mailbox file, decompressing
+     * them as they are read, so it can be sent without being loaded as a
+     * whole.
+     *
+     * The stream keeps reading the file it has been opened on even if the
+     * mailbox is replaced meanwhile.
+     *
+     * @return The stream, which must be closed.
+     * @throws java.io.IOException If the body couldn't be opened.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * mailbox file has been rewritten since it was loaded.
+     */
+    @Override
+    public InputStream openBody()
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Has the body been replaced?
+        if(null != this.body)
+        {
+            return super.openBody();
+        }
+
+        return this.compressed ? MailCompressor.decompress(this.openStoredBody()) : this.openStoredBody();
+    }
+
+    /**
+     * Opens a stream over the body's bytes as they are stored, compressed or
+     * not.
+     *
+     * @return The stream, which must be closed.
+     * @throws java.io.IOException If the body couldn't be opened.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * mailbox file has been rewritten since it was loaded.
+     */
+    protected InputStream openStoredBody()
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        InputStream bodyStream;
+        Lock lock = this.getLockManager().lockRead(this.path);
+        FileInputStream mailBoxStream = new FileInputStream(this.path);
+
+        try
+        {
+            // Has the file been replaced since?
+            if(null != this.fileKey && !this.fileKey.equals(MailBox.getFileKey(this.path)))
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mailbox \"%s\" has been rewritten since it was loaded.",
+                    this.path.getAbsolutePath()
+                ));
+            }
+
+            mailBoxStream.getChannel().position(this.bodyOffset);
+            bodyStream = new BodyInputStream(mailBoxStream, this.bodyLength);
+        }
+        catch(IOException | InvalidMailBoxFileException ex)
+        {
+            mailBoxStream.close();
+
+            throw ex;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        return bodyStream;
+    }
+
+    /**
+     * Gets the lock manager guarding the file containing the body.
+     *
+     * @return The lock manager.
+     */
+    protected MailBoxLockManager getLockManager()
+    {
+        return MailBoxLockManager.getInstance();
+    }
+
+    /**
+     * Tells if the body has to be read from the file the next time it is
+     * asked for.
+     *
+     * @return <code>true</code> if it has, <code>false</code> if it is in
+     * memory.
+     */
+    public boolean isBodyStored()
+    {
+        return null == this.body && null == this.bodyReference.get();
+    }
+
+    /**
+     * Updates where the body is after the mailbox file has been rewritten.
+     *
+     * @param bodyOffset The new offset of the body in the mailbox file.
+     * @param bodyLength The new length of the body in the mailbox file.
+     * @param size The mail's new size in octets.
+     * @param fileKey The key identifying the new mailbox file.
+     */
+    public void relocate(long bodyOffset, int bodyLength, int size, Object fileKey)
+    {
+        this.relocate(bodyOffset, bodyLength, size, fileKey, false);
+    }
+
+    /**
+     * Updates where the body is after the mailbox file has been rewritten,
+     * possibly compressing it or not anymore.
+     *
+     * @param bodyOffset The new offset of the body in the mailbox file.
+     * @param bodyLength The new length of the body in the mailbox file.
+     * @param size The mail's new size in octets.
+     * @param fileKey The key identifying the new mailbox file.
+     * @param compressed Whether the body is now compressed.
+     */
+    public void relocate(long bodyOffset, int bodyLength, int size, Object fileKey, boolean compressed)
+    {
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.size = size;
+        this.fileKey = fileKey;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Tests if the body is currently held in memory.
+     *
+     * @return <code>true</code> if the body is in memory, <code>false</code>
+     * otherwise.
+     */
+    public boolean isBodyLoaded()
+    {
+        return null != this.body || null != this.bodyReference.get();
+    }
+
+    /**
+     * Tests if the body is compressed in the mailbox file.
+     *
+     * @return <code>true</code> if it is compressed, <code>false</code>
+     * otherwise.
+     */
+    public boolean isCompressed()
+    {
+        return this.compressed;
+    }
+
+    /**
+     * Gets the mail' size, using the size recorded in the mailbox's index when
+     * possible so the body doesn't have to be read.
+     *
+     * @param charset The charset to use.
+     * @return The mail' size.
+     */
+    @Override
+    public int getSize(Charset charset)
+    {
+        return null == this.body && StandardCharsets.UTF_8.equals(charset)
+            ? this.size
+            : super.getSize(charset);
+    }
+
+    /**
+     * A stream reading no more than a body's bytes from a mailbox file.
+     */
+    protected static class BodyInputStream extends FilterInputStream
+    {
+        /**
+         * The number of bytes left to read.
+         */
+        protected long remaining;
+
+        /**
+         * Creates a new stream.
+         *
+         * @param stream The mailbox file's stream, positioned at the body.
+         * @param length The body's length.
+         */
+        protected BodyInputStream(InputStream stream, long length)
+        {
+            super(stream);
+
+            // Initialize properties
+            this.remaining = length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read()
+        throws IOException
+        {
+            if(this.remaining <= 0)
+            {
+                return -1;
+            }
+
+            int b = super.read();
+
+            if(-1 != b)
+            {
+                this.remaining--;
+            }
+
+            return b;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+        throws IOException
+        {
+            if(this.remaining <= 0)
+            {
+                return -1;
+            }
+
+            int readLength = super.read(buffer, offset, (int) Math.min(length, this.remaining));
+
+            if(readLength > 0)
+            {
+                this.remaining -= readLength;
+            }
+
+            return readLength;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long skip(long length)
+        throws IOException
+        {
+            long skippedLength = super.skip(Math.min(length, this.remaining));
+            this.remaining -= skippedLength;
+
+            return skippedLength;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int available()
+        throws IOException
+        {
+            return (int) Math.min(super.available(), this.remaining);
+        }
+
+        /**
+         * Marks aren't supported.
+         *
+         * @return <code>false</code>.
+         */
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+    }
+}
@@ -1,12 +1,12 @@
 package common.mails;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import smtp.SmtpProtocol;
 
 /**
  * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
@@ -15,14 +15,6 @@ import smtp.SmtpProtocol;
  */
 public class Mail
 {
-    /**
-     * The pattern to parse a string.
-     */
-    protected static final Pattern PATTERN_MAIL = Pattern.compile(
-        "^((?:(?:[^:\\r\\n]+):(?:[^\\r\\n]+)\\r\\n)+)\\r\\n(.+)\\r\\n\\.\\r\\n",
-        Pattern.DOTALL
-    );
-
     /**
      * The mail's headers list.
      */
@@ -49,34 +41,20 @@ public class Mail
     /**
      * Parses a string to build a mail.
      *
-     * @param data The data to parse.
+     * @param data The data to parse, ended by the end of data marker.
      * @return The newly built mail.
-     * @todo Find a way to get rid of the unwanted line breaks in the body.
+     * @see common.mails.MailParser
      */
     public static Mail parse(String data)
     {
         // Initialize vars
+        byte[] rawData = data.getBytes(StandardCharsets.UTF_8);
+        RawMail rawMail = MailParser.parse(rawData, rawData.length, StandardCharsets.UTF_8);
         Mail mail = new Mail();
-        Matcher matcher = Mail.PATTERN_MAIL.matcher(data);
-
-        if(matcher.matches())
-        {
-            // There are headers and a body
-            String[] headersLines = matcher.group(1).split("\r\n");
-
-            for(String headerLine : headersLines)
-            {
-                mail.addHeader(headerLine);
-            }
 
-            // Add body
-            mail.setBody(matcher.group(2));
-        }
-        else
-        {
-            // There is only the body
-            mail.setBody(data.substring(0, data.lastIndexOf(SmtpProtocol.END_OF_DATA)));
-        }
+        // The mail is copied so that its headers can be modified directly
+        mail.getHeaders().putAll(rawMail.getHeaders());
+        mail.setBody(rawMail.getBody());
 
         return mail;
     }
@@ -109,12 +87,24 @@ public class Mail
      * value.
      */
     public void addHeader(String header)
+    {
+        Mail.putHeader(this.headers, header);
+    }
+
+    /**
+     * Adds an header line to a map of headers.
+     *
+     * @param headers The headers.
+     * @param header A string containing both the header's name and the header's
+     * value.
+     */
+    protected static void putHeader(Map<String, String> headers, String header)
     {
         int colonPos = header.indexOf(":");
 
         if(-1 != colonPos)
         {
-            this.headers.put(header.substring(0, colonPos), header.substring(colonPos + 2));
+            headers.put(header.substring(0, colonPos), header.substring(colonPos + 2));
         }
         else
         {
@@ -136,6 +126,17 @@ public class Mail
         this.headers.put(name, value);
     }
 
+    /**
+     * Removes an header from the mail.
+     *
+     * @param name The header's name.
+     * @return The header's value if it existed, <code>null</code> otherwise.
+     */
+    public String removeHeader(String name)
+    {
+        return this.headers.remove(name);
+    }
+
     /**
      * Gets the mail's body.
      *
@@ -156,6 +157,19 @@ public class Mail
         this.body = body;
     }
 
+    /**
+     * Opens a stream over the body's bytes, as they are written in a record,
+     * so that part of it can be sent without building a string of it.
+     *
+     * @return The stream, which must be closed.
+     * @throws java.io.IOException If the body couldn't be opened.
+     */
+    public InputStream openBody()
+    throws IOException
+    {
+        return new ByteArrayInputStream(MailBox.getBytes(null != this.getBody() ? this.getBody() : ""));
+    }
+
     /**
      * Gets the mail' size using UTF-8 by default.
      *
@@ -188,7 +202,7 @@ public class Mail
         size += 2; // "<CRLF>"
 
         // Add the body's length
-        size += this.body.getBytes(charset).length;
+        size += this.getBody().getBytes(charset).length;
 
         return size;
     }
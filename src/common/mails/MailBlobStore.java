@@ -0,0 +1,402 @@
+package common.mails;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the bodies of mails delivered to several recipients once, rather
+ * than once per recipient's mailbox.
+ *
+ * Bodies are addressed by their SHA-256 hash and spread over subdirectories
+ * named after its first digits. Each of them comes with a count of the
+ * mailbox records pointing to it, and is deleted once the last of them has
+ * been removed from its mailbox's file. A body is always stored before the
+ * records pointing to it are written, and released only after they are gone,
+ * so that after a crash counts can only be too high: a body may leak but is
+ * never deleted while it is still needed.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.SharedMail
+ */
+public class MailBlobStore
+{
+    /**
+     * The name of the store's directory inside the mailboxes' directory.
+     */
+    public static final String DIRECTORY_NAME = ".blobs";
+
+    /**
+     * The header pointing a record to its body in the store.
+     */
+    public static final String HEADER = "X-Blob-Reference";
+
+    /**
+     * The extension of the files holding the references counts.
+     */
+    protected static final String REFERENCES_EXTENSION = ".ref";
+
+    /**
+     * The number of hexadecimal digits naming a subdirectory.
+     */
+    protected static final int SHARD_WIDTH = 2;
+
+    /**
+     * The store used by the process, <code>null</code> if bodies aren't
+     * shared.
+     */
+    protected static volatile MailBlobStore instance = null;
+
+    /**
+     * The store's directory.
+     */
+    protected File root;
+
+    /**
+     * The locks guarding the bodies, which are apart from the mailboxes' ones
+     * since a body is locked while its mailbox is.
+     */
+    protected final MailBoxLockManager lockManager;
+
+    /**
+     * Creates a new store.
+     *
+     * @param root The store's directory.
+     */
+    public MailBlobStore(File root)
+    {
+        // Initialize properties
+        this.root = root;
+        this.lockManager = new MailBoxLockManager(MailBoxLockManager.DEFAULT_STRIPES_NUMBER);
+    }
+
+    /**
+     * Gets the store used by the process.
+     *
+     * @return The store, <code>null</code> if bodies aren't shared.
+     */
+    public static MailBlobStore getInstance()
+    {
+        return MailBlobStore.instance;
+    }
+
+    /**
+     * Sets the store used by the process.
+     *
+     * @param store The store, <code>null</code> to stop sharing bodies.
+     */
+    public static void setInstance(MailBlobStore store)
+    {
+        MailBlobStore.instance = store;
+    }
+
+    /**
+     * Gets the store's directory.
+     *
+     * @return The store's directory.
+     */
+    public File getRoot()
+    {
+        return this.root;
+    }
+
+    /**
+     * Gets the locks guarding the bodies.
+     *
+     * @return The store's lock manager.
+     */
+    public MailBoxLockManager getLockManager()
+    {
+        return this.lockManager;
+    }
+
+    /**
+     * Gets the path of a body's file, whether it exists or not.
+     *
+     * @param hash The body's hash.
+     * @return The body's path.
+     */
+    public File getBlobFile(String hash)
+    {
+        return new File(new File(this.root, hash.substring(0, MailBlobStore.SHARD_WIDTH)), hash);
+    }
+
+    /**
+     * Gets the path of the file counting the references to a body.
+     *
+     * @param hash The body's hash.
+     * @return The count's path.
+     */
+    protected File getReferencesFile(String hash)
+    {
+        return new File(
+            this.getBlobFile(hash).getParentFile(),
+            hash + MailBlobStore.REFERENCES_EXTENSION
+        );
+    }
+
+    /**
+     * Computes the hash addressing a body.
+     *
+     * @param body The body's bytes.
+     * @return The hexadecimal SHA-256 hash.
+     */
+    public static String hash(byte[] body)
+    {
+        try
+        {
+            // Initialize vars
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder hashBuilder = new StringBuilder(digest.length * 2);
+
+            for(byte b : digest)
+            {
+                hashBuilder.append(String.format("%02x", b));
+            }
+
+            return hashBuilder.toString();
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            // Every platform must support SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Stores a body, or adds references to it if it is already stored.
+     *
+     * @param body The body's bytes, as they would be written in a record.
+     * @param referencesNumber The number of records which will point to it.
+     * @return The body's hash.
+     * @throws java.io.IOException If the body couldn't be stored.
+     */
+    public String store(byte[] body, int referencesNumber)
+    throws IOException
+    {
+        // Initialize vars
+        String hash = MailBlobStore.hash(body);
+        File blobFile = this.getBlobFile(hash);
+        File directory = blobFile.getParentFile();
+        Lock lock = this.lockManager.lockWrite(blobFile);
+
+        try
+        {
+            if(!blobFile.isFile())
+            {
+                // Write the body into a temporary file first
+                Files.createDirectories(directory.toPath());
+                File temporaryFile = File.createTempFile(hash.substring(0, 8) + ".", ".tmp", directory);
+
+                try
+                {
+                    try(FileOutputStream blobStream = new FileOutputStream(temporaryFile))
+                    {
+                        blobStream.write(body);
+
+                        // It must be complete on the disk before records point to it
+                        if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+                        {
+                            blobStream.getChannel().force(true);
+                        }
+                    }
+
+                    // A count left over by a crash is meaningless without its body
+                    this.writeReferencesNumber(hash, 0);
+                    Files.move(temporaryFile.toPath(), blobFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                finally
+                {
+                    if(temporaryFile.exists() && !temporaryFile.delete())
+                    {
+                        Logger.getLogger(MailBlobStore.class.getName()).log(
+                            Level.WARNING,
+                            "Couldn't delete temporary file \"{0}\".",
+                            temporaryFile.getAbsolutePath()
+                        );
+                    }
+                }
+            }
+
+            // Then, count the new references
+            this.writeReferencesNumber(hash, this.readReferencesNumber(hash) + referencesNumber);
+            MailBoxSyncer.sync(directory.toPath());
+
+            return hash;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores the body of a mail about to be delivered to several recipients.
+     *
+     * @param mail The mail.
+     * @param referencesNumber The number of recipients.
+     * @return A mail with the same headers, whose records will point to the
+     * stored body.
+     * @throws java.io.IOException If the body couldn't be stored.
+     */
+    public SharedMail share(Mail mail, int referencesNumber)
+    throws IOException
+    {
+        // Initialize vars
+        ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
+        byte[] body;
+        String hash;
+        int size;
+        SharedMail sharedMail;
+
+        // The body is stored as it would have been written in a record
+        if(mail instanceof RawMail && ((RawMail) mail).hasRawBody())
+        {
+            body = Arrays.copyOfRange(
+                ((RawMail) mail).getData(),
+                ((RawMail) mail).getBodyOffset(),
+                ((RawMail) mail).getBodyOffset() + ((RawMail) mail).getBodyLength()
+            );
+        }
+        else
+        {
+            new DataOutputStream(bodyStream).writeBytes(mail.getBody());
+            body = bodyStream.toByteArray();
+        }
+        hash = this.store(body, referencesNumber);
+
+        // The mail's size is the one it would have had in a record
+        size = 2 + body.length; // "<CRLF>"
+
+        for(Map.Entry<String, String> header : mail.getHeaders().entrySet())
+        {
+            size += header.getKey().length() + 2 + header.getValue().length() + 2;
+        }
+
+        sharedMail = new SharedMail(this, StandardCharsets.UTF_8, hash, body.length, size);
+        sharedMail.getHeaders().putAll(mail.getHeaders());
+
+        return sharedMail;
+    }
+
+    /**
+     * Removes a reference to a body, deleting it if it was the last one.
+     *
+     * @param hash The body's hash.
+     * @return <code>true</code> if the body has been deleted,
+     * <code>false</code> otherwise.
+     * @throws java.io.IOException If the references couldn't be counted.
+     */
+    public boolean release(String hash)
+    throws IOException
+    {
+        // Initialize vars
+        File blobFile = this.getBlobFile(hash);
+        Lock lock = this.lockManager.lockWrite(blobFile);
+
+        try
+        {
+            int referencesNumber = this.readReferencesNumber(hash) - 1;
+
+            if(referencesNumber > 0)
+            {
+                this.writeReferencesNumber(hash, referencesNumber);
+
+                return false;
+            }
+
+            // The body goes first so that a count is never missing for it
+            Files.deleteIfExists(blobFile.toPath());
+            Files.deleteIfExists(this.getReferencesFile(hash).toPath());
+            MailBoxSyncer.sync(blobFile.getParentFile().toPath());
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of records pointing to a body.
+     *
+     * @param hash The body's hash.
+     * @return The number of references, <code>0</code> if the body isn't
+     * stored.
+     * @throws java.io.IOException If the references couldn't be counted.
+     */
+    public int getReferencesNumber(String hash)
+    throws IOException
+    {
+        Lock lock = this.lockManager.lockRead(this.getBlobFile(hash));
+
+        try
+        {
+            return this.readReferencesNumber(hash);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the number of references to a body.
+     *
+     * @param hash The body's hash.
+     * @return The number of references, <code>0</code> if it isn't counted.
+     * @throws java.io.IOException If the count couldn't be read.
+     */
+    protected int readReferencesNumber(String hash)
+    throws IOException
+    {
+        File referencesFile = this.getReferencesFile(hash);
+
+        if(referencesFile.length() < 4)
+        {
+            return 0;
+        }
+
+        try(RandomAccessFile referencesStream = new RandomAccessFile(referencesFile, "r"))
+        {
+            return referencesStream.readInt();
+        }
+    }
+
+    /**
+     * Writes the number of references to a body.
+     *
+     * @param hash The body's hash.
+     * @param referencesNumber The number of references.
+     * @throws java.io.IOException If the count couldn't be written.
+     */
+    protected void writeReferencesNumber(String hash, int referencesNumber)
+    throws IOException
+    {
+        try(RandomAccessFile referencesStream = new RandomAccessFile(this.getReferencesFile(hash), "rw"))
+        {
+            referencesStream.writeInt(referencesNumber);
+
+            if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+            {
+                referencesStream.getChannel().force(false);
+            }
+        }
+    }
+}
@@ -6,8 +6,6 @@ import common.mails.exceptions.InvalidMailBoxFileException;
 import common.mails.exceptions.MarkedForDeletionException;
 import common.mails.exceptions.NonExistentMailException;
 import common.mails.exceptions.UnknownMailBoxException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -15,11 +13,21 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Predicate;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import smtp.SmtpProtocol;
@@ -42,9 +50,97 @@ public class MailBox
     protected List<Mail> mailsList;
 
     /**
-     * The list of mails marked for deletion.
+     * The marks for deletion, one bit per mail, at the mail's index in the
+     * list.
      */
-    protected List<Mail> mailsToDeleteList;
+    protected BitSet deletionMarks;
+
+    /**
+     * The number of mails marked for deletion.
+     */
+    protected int markedNumber;
+
+    /**
+     * The total size of the mails marked for deletion.
+     */
+    protected long markedSize;
+
+    /**
+     * The total size of every mail, <code>-1</code> if it hasn't been
+     * computed since the mails were loaded.
+     */
+    protected long mailsSize;
+
+    /**
+     * The records the mails have been read from or written to, used to mark
+     * them as deleted in the index.
+     */
+    protected Map<Mail, MailBoxIndex.Entry> recordsMap;
+
+    /**
+     * The key identifying the file the records are in, <code>null</code> if
+     * the file system doesn't provide one.
+     */
+    protected Object fileKey;
+
+    /**
+     * The length of the part of the file the mails have been read from,
+     * <code>-1</code> if it is unknown.
+     */
+    protected long loadedLength;
+
+    /**
+     * The number of deleted records in the part of the file the mails have
+     * been read from.
+     */
+    protected int deletedNumber;
+
+    /**
+     * Whether the mails have been loaded lazily.
+     */
+    protected boolean lazy;
+
+    /**
+     * How a mail has been written as a record.
+     */
+    protected static class Record
+    {
+        /**
+         * The length of the record's headers, that is to say the body's
+         * offset in the record.
+         */
+        protected final int headersLength;
+
+        /**
+         * The mail's size in octets.
+         */
+        protected final int size;
+
+        /**
+         * The record's flags, as written in a binary record's header.
+         */
+        protected final int flags;
+
+        /**
+         * Whether the body has been compressed.
+         */
+        protected final boolean compressed;
+
+        /**
+         * Creates a new record description.
+         *
+         * @param headersLength The length of the record's headers.
+         * @param size The mail's size in octets.
+         * @param flags The record's flags.
+         */
+        protected Record(int headersLength, int size, int flags)
+        {
+            this.headersLength = headersLength;
+            this.size = size;
+            this.flags = flags;
+            this.compressed = 0 != (flags & MailBoxFormat.FLAG_COMPRESSED);
+        }
+    }
 
     /**
      * Creates a new mailbox associated with a given file.
@@ -56,7 +152,67 @@ public class MailBox
         // Initialize parameters
         this.path = path;
         this.mailsList = new ArrayList<>();
-        this.mailsToDeleteList = new ArrayList<>();
+        this.deletionMarks = new BitSet();
+        this.markedNumber = 0;
+        this.markedSize = 0;
+        this.mailsSize = -1;
+        this.recordsMap = new IdentityHashMap<>();
+        this.fileKey = null;
+        this.loadedLength = -1;
+        this.deletedNumber = 0;
+        this.lazy = false;
+    }
+
+    /**
+     * Creates a new mailbox holding the same mails as another one, but whose
+     * marks for deletion are its own.
+     *
+     * Lazy mails are copied, since they are relocated when the mailbox's file
+     * is rewritten and a copy's mails must keep pointing to the file it has
+     * been loaded from.
+     *
+     * @param mailBox The mailbox to copy.
+     */
+    protected MailBox(MailBox mailBox)
+    {
+        // Initialize parameters
+        this.path = mailBox.path;
+        this.mailsList = new ArrayList<>(mailBox.mailsList.size());
+        this.deletionMarks = (BitSet) mailBox.deletionMarks.clone();
+        this.markedNumber = mailBox.markedNumber;
+        this.markedSize = mailBox.markedSize;
+        this.mailsSize = mailBox.mailsSize;
+        this.recordsMap = new IdentityHashMap<>(mailBox.recordsMap.size());
+
+        for(Mail mail : mailBox.mailsList)
+        {
+            // Initialize vars
+            Mail copiedMail = mail instanceof LazyMail ? ((LazyMail) mail).copy() : mail;
+            MailBoxIndex.Entry entry = mailBox.recordsMap.get(mail);
+
+            this.mailsList.add(copiedMail);
+
+            if(null != entry)
+            {
+                this.recordsMap.put(copiedMail, entry);
+            }
+        }
+
+        this.fileKey = mailBox.fileKey;
+        this.loadedLength = mailBox.loadedLength;
+        this.deletedNumber = mailBox.deletedNumber;
+        this.lazy = mailBox.lazy;
+    }
+
+    /**
+     * Copies the mailbox, sharing its mails except lazy ones.
+     *
+     * @return The copy.
+     * @see common.mails.MailBoxCache
+     */
+    public MailBox copy()
+    {
+        return new MailBox(this);
     }
 
     /**
@@ -83,7 +239,12 @@ public class MailBox
 
     /**
      * Saves the contents of the mailbox in its associated file, overwriting
-     * everything.
+     * everything in the binary format.
+     *
+     * The contents are written in a temporary file in the same directory
+     * which then atomically replaces the mailbox, so a crash never leaves a
+     * partially written mailbox. Whether and when they are forced to the disk
+     * depends on the {@link MailBoxSyncer}'s policy.
      *
      * @throws common.mails.exceptions.FailedMailBoxUpdateException If the
      * mailbox couldn't be saved.
@@ -94,397 +255,1420 @@ public class MailBox
     public void save()
     throws FailedMailBoxUpdateException, FileNotFoundException, IllegalArgumentException
     {
-        // If the mailbox exists, is it a file?
-        if(this.path.exists() && !this.path.isFile())
-        {
-            throw new IllegalArgumentException(String.format(
-                "Mailbox \"%s\" isn't a file.",
-                this.path.getAbsolutePath()
-            ));
-        }
-        // Can it be written?
-        else if(this.path.exists() && this.path.isFile() && !this.path.canWrite())
-        {
-            throw new IllegalArgumentException(String.format(
-                "Mailbox \"%s\" can't be written.",
-                this.path.getAbsolutePath()
-            ));
-        }
-
-        // Remove the emails marked for deletion but clone it first in case of a bug
-        List<Mail> clonedMailsList = new ArrayList<>(this.mailsList);
-        this.mailsList.removeAll(this.mailsToDeleteList);
-
-        // Initialize vars
-        BufferedOutputStream mailBoxStream = null;
-        ByteArrayOutputStream dataStream;
-        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
-        Map<String, String> headers;
+        // Nothing else may read or write the mailbox meanwhile
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(this.path);
 
         try
         {
-            // Try opening the mailbox
-            mailBoxStream = new BufferedOutputStream(new FileOutputStream(this.path));
+            // If the mailbox exists, is it a file?
+            if(this.path.exists() && !this.path.isFile())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "Mailbox \"%s\" isn't a file.",
+                    this.path.getAbsolutePath()
+                ));
+            }
+            // Can it be written?
+            else if(this.path.exists() && this.path.isFile() && !this.path.canWrite())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "Mailbox \"%s\" can't be written.",
+                    this.path.getAbsolutePath()
+                ));
+            }
 
-            for(Mail mail : this.mailsList)
+            // The emails marked for deletion are only removed once they have been saved
+            List<Mail> keptMailsList = this.getUnmarkedMails();
+
+            // Initialize vars
+            FileOutputStream mailBoxStream = null;
+            File directory = this.path.getAbsoluteFile().getParentFile();
+            File temporaryFile = null;
+            ByteArrayOutputStream dataStream;
+            DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
+            MailBoxIndex index = new MailBoxIndex(this.path), previousIndex = new MailBoxIndex(this.path);
+            MailBoxFormat format = MailBoxFormat.BINARY;
+            List<String> releasedHashes;
+            int recordStart, recordLength;
+            Record[] records = new Record[keptMailsList.size()];
+
+            try
             {
-                // Write headers
-                headers = mail.getHeaders();
-                
-                if(!headers.isEmpty())
+                // The shared bodies of the records about to be dropped will be released
+                releasedHashes = this.path.isFile() && (previousIndex.load() || previousIndex.update())
+                    ? MailBox.getSharedBodies(this.path, previousIndex.getDeletedEntries())
+                    : new ArrayList<>();
+
+                for(Mail mail : this.getMarkedMails())
                 {
-                    for(Map.Entry<String, String> entry : headers.entrySet())
+                    if(mail instanceof SharedMail && this.recordsMap.containsKey(mail))
                     {
-                        dataWriter.writeBytes(entry.getKey());
-                        dataWriter.writeBytes(": ");
-                        dataWriter.writeBytes(entry.getValue());
-                        dataWriter.writeBytes("\r\n");
+                        releasedHashes.add(((SharedMail) mail).getHash());
                     }
+                }
 
-                    // Write separator
-                    dataWriter.writeBytes("\r\n");
+                // Build the records first, lazy mails' bodies are still in the file
+                MailBoxFormat.writeFileHeader(dataWriter);
+
+                for(int i = 0, j = keptMailsList.size(); i < j; i++)
+                {
+                    recordStart = dataStream.size() + format.getRecordHeaderLength();
+                    records[i] = MailBox.write(dataWriter, keptMailsList.get(i), format);
+                    recordLength = dataStream.size() - recordStart;
+
+                    // Remember where the record is for the index
+                    index.getEntries().add(new MailBoxIndex.Entry(recordStart, recordLength, records[i].size));
                 }
 
-                // Write body, first split it every 76 characters
-                /*
-                List<String> bodyFragments = new ArrayList<>();
-                int currentIndex = 0, bodyLength = mail.getBody().length();
+                // Write the emails into a temporary file next to the mailbox
+                temporaryFile = File.createTempFile(this.path.getName() + ".", ".tmp", directory);
+                mailBoxStream = new FileOutputStream(temporaryFile);
+                mailBoxStream.write(dataStream.toByteArray());
 
-                while(currentIndex < bodyLength)
+                // It must be complete on the disk before it replaces the mailbox
+                if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
                 {
-                    if(bodyLength - currentIndex >= 76)
-                    {
-                        bodyFragments.add(
-                            mail.getBody().substring(
-                                currentIndex, currentIndex + 76
-                            )
-                        );
+                    mailBoxStream.getChannel().force(true);
+                }
+
+                mailBoxStream.close();
+                mailBoxStream = null;
+
+                // Then, replace the mailbox and make the replacement durable
+                MailBox.replace(temporaryFile, this.path);
+                temporaryFile = null;
+                MailBoxSyncer.sync(directory.toPath());
+            }
+            catch(IOException ex)
+            {
+                // Throw another exception
+                FailedMailBoxUpdateException exception = new FailedMailBoxUpdateException(
+                    String.format(
+                        "Mailbox \"%s\" couldn't be saved.",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
 
-                        currentIndex += 76;
+                throw exception;
+            }
+            finally
+            {
+                if(mailBoxStream != null)
+                {
+                    try
+                    {
+                        mailBoxStream.close();
                     }
-                    else
+                    catch(IOException ex)
                     {
-                        bodyFragments.add(
-                            mail.getBody().substring(
-                                currentIndex
-                            )
-                        );
-                        currentIndex = mail.getBody().length();
+                        Logger.getLogger(MailBox.class.getName()).log(Level.SEVERE, null, ex);
                     }
                 }
 
-                dataWriter.writeBytes(
-                    String.join(
-                        "\r\n",
-                        bodyFragments
-                    )
-                );
+                // The temporary file is left over if something went wrong
+                if(null != temporaryFile && temporaryFile.exists() && !temporaryFile.delete())
+                {
+                    Logger.getLogger(MailBox.class.getName()).log(
+                        Level.WARNING,
+                        "Couldn't delete temporary file \"{0}\".",
+                        temporaryFile.getAbsolutePath()
+                    );
+                }
+            }
+
+            // Lazy mails' bodies have moved
+            this.removeMarkedMails((mail) -> false);
+            this.fileKey = MailBox.getFileKey(this.path);
+            this.loadedLength = -1;
+            this.recordsMap.clear();
 
-                // End the body
-                dataWriter.writeBytes("\r\n.\r\n");
-                */
-                dataWriter.writeBytes(mail.getBody());
-                dataWriter.writeBytes(SmtpProtocol.END_OF_DATA);
+            for(int i = 0, j = index.getSize(); i < j; i++)
+            {
+                MailBoxIndex.Entry entry = index.get(i);
+                this.recordsMap.put(this.mailsList.get(i), entry);
+
+                if(this.mailsList.get(i) instanceof LazyMail)
+                {
+                    ((LazyMail) this.mailsList.get(i)).relocate(
+                        entry.getOffset() + records[i].headersLength,
+                        entry.getLength() - SmtpProtocol.END_OF_DATA.length() - records[i].headersLength,
+                        entry.getSize(),
+                        this.fileKey,
+                        records[i].compressed
+                    );
+                }
+            }
+
+            // Finally, update the index
+            try
+            {
+                index.save();
+            }
+            catch(IOException ex)
+            {
+                index.invalidate();
+
+                Logger.getLogger(MailBox.class.getName()).log(
+                    Level.WARNING,
+                    String.format(
+                        "Couldn't update index of mailbox \"%s\".",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
             }
 
-            // Write the emails into the file
-            mailBoxStream.write(dataStream.toByteArray());
+            MailBoxCache.getInstance().invalidate(this.path);
+            MailBox.releaseSharedBodies(releasedHashes);
         }
-        catch(FileNotFoundException ex)
+        finally
         {
-            // This error shouldn't happen because if the file doesn't exist, it'll be created
-            throw ex;
+            lock.unlock();
         }
-        catch(IOException ex)
-        {
-            // Reset the mails list
-            this.mailsList = clonedMailsList;
+    }
+
+    /**
+     * Appends a single mail at the end of the mailbox's associated file without
+     * reading or rewriting the mails already stored in it.
+     *
+     * The mail is also added to the in-memory list, so this method can be used
+     * on a mailbox which hasn't been loaded.
+     *
+     * @param mail The mail to append.
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the mail
+     * couldn't be appended.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be written.
+     */
+    public void append(Mail mail)
+    throws FailedMailBoxUpdateException, FileNotFoundException, IllegalArgumentException
+    {
+        // Deliveries to the same mailbox are serialized with its compaction, in every process sharing the locks
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(this.path);
 
-            // Throw another exception
-            FailedMailBoxUpdateException exception = new FailedMailBoxUpdateException(
-                String.format(
-                    "Mailbox \"%s\" couldn't be saved.",
+        try
+        {
+            // Does the mailbox exist?
+            if(!this.path.exists())
+            {
+                throw new FileNotFoundException(String.format(
+                    "Mailbox \"%s\" doesn't exist.",
+                    this.path.getAbsolutePath()
+                ));
+            }
+            // Is it an actual file?
+            else if(!this.path.isFile())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "Mailbox \"%s\" isn't a file.",
+                    this.path.getAbsolutePath()
+                ));
+            }
+            // Can it be written?
+            else if(!this.path.canWrite())
+            {
+                throw new IllegalArgumentException(String.format(
+                    "Mailbox \"%s\" can't be written.",
                     this.path.getAbsolutePath()
-                ),
-                ex
+                ));
+            }
+
+            // Initialize vars
+            FileOutputStream mailBoxStream = null;
+            ByteArrayOutputStream dataStream;
+            DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
+            MailBoxIndex index = new MailBoxIndex(this.path);
+            boolean indexUpToDate = index.isUpToDate();
+            long recordStart = this.path.length();
+            int contentStart;
+            MailBoxFormat format;
+            Record record;
+
+            try
+            {
+                // A new mailbox is written in the binary format, otherwise the mailbox's own is kept
+                if(0 == recordStart)
+                {
+                    format = MailBoxFormat.BINARY;
+                    MailBoxFormat.writeFileHeader(dataWriter);
+                }
+                else
+                {
+                    format = MailBoxFormat.detect(this.path);
+                }
+
+                // Build the whole record first so it is appended with a single write
+                contentStart = dataWriter.size() + format.getRecordHeaderLength();
+                record = MailBox.write(dataWriter, mail, format);
+
+                // Then, open the mailbox in append mode and write it
+                mailBoxStream = new FileOutputStream(this.path, true);
+                mailBoxStream.write(dataStream.toByteArray());
+                mailBoxStream.close();
+                mailBoxStream = null;
+
+                // Make it durable according to the policy
+                MailBoxSyncer.sync(this.path.toPath());
+
+                this.add(mail);
+            }
+            catch(FileNotFoundException ex)
+            {
+                // This error shouldn't happen because the mailbox's existence is tested
+                throw ex;
+            }
+            catch(IOException ex)
+            {
+                throw new FailedMailBoxUpdateException(
+                    String.format(
+                        "Mail couldn't be appended to mailbox \"%s\".",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+            finally
+            {
+                if(mailBoxStream != null)
+                {
+                    try
+                    {
+                        mailBoxStream.close();
+                    }
+                    catch(IOException ex)
+                    {
+                        Logger.getLogger(MailBox.class.getName()).log(
+                            Level.SEVERE,
+                            String.format(
+                                "Couldn't close mailbox \"%s\" correctly.",
+                                this.path.getAbsolutePath()
+                            ),
+                            ex
+                        );
+                    }
+                }
+            }
+
+            // Finally, add the record to the index if it was up-to-date, otherwise
+            // it will be updated the next time it is needed, keeping its tombstones
+            MailBoxIndex.Entry entry = new MailBoxIndex.Entry(
+                recordStart + contentStart,
+                dataStream.size() - contentStart,
+                record.size
             );
+            this.recordsMap.put(mail, entry);
 
-            throw exception;
-        }
-        finally
-        {
-            if(mailBoxStream != null)
+            // The mails read from the file are followed by this one, unless others have been appended meanwhile
+            this.loadedLength = this.loadedLength == recordStart ? recordStart + dataStream.size() : -1;
+
+            if(indexUpToDate)
             {
                 try
                 {
-                    mailBoxStream.close();
+                    index.append(entry);
                 }
                 catch(IOException ex)
                 {
-                    // Reset the mails list
-                    this.mailsList = clonedMailsList;
-
-                    Logger.getLogger(MailBox.class.getName()).log(Level.SEVERE, null, ex);
+                    index.invalidate();
                 }
             }
+
+            MailBoxCache.getInstance().grow(this.path);
+        }
+        finally
+        {
+            lock.unlock();
         }
     }
 
     /**
-     * Loads the content of the mailbox from its associated file using UTF-8 by
-     * default.
+     * Replaces a file by another one, atomically if the file system allows it.
      *
-     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
-     * doesn't exist.
-     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
-     * isn't built correctly.
-     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
-     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
-     * can't be read.
-     * @throws java.lang.UnsupportedOperationException If the marks system isn't
-     * supported.
+     * @param source The new file.
+     * @param target The file to replace.
+     * @throws java.io.IOException If the file couldn't be replaced.
      */
-    public void load()
-    throws UnknownMailBoxException, FileNotFoundException, IOException
+    protected static void replace(File source, File target)
+    throws IOException
     {
-        this.load(StandardCharsets.UTF_8);
+        try
+        {
+            Files.move(
+                source.toPath(),
+                target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING
+            );
+        }
+        catch(AtomicMoveNotSupportedException ex)
+        {
+            Files.move(
+                source.toPath(),
+                target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING
+            );
+        }
     }
 
     /**
-     * Loads the content of the mailbox from its associated file.
+     * Writes a mail as a mailbox record in a given format.
      *
-     * @param charset The charset to build the strings with.
-     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
-     * doesn't exist.
-     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
-     * isn't built correctly.
-     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
-     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
-     * can't be read.
-     * @throws java.lang.UnsupportedOperationException If the marks system isn't
-     * supported.
+     * @param dataWriter The stream to write the record into.
+     * @param mail The mail to write.
+     * @param format The format of the mailbox file.
+     * @return How the mail has been written, the record's headers length
+     * excluding a binary record's header.
+     * @throws java.io.IOException If the record couldn't be written, or if
+     * its body holds the end of data marker and it should be a text record.
      */
-    public void load(Charset charset)
-    throws UnknownMailBoxException, FileNotFoundException, IOException,
-        UnsupportedOperationException, InvalidMailBoxFileException
+    protected static Record write(DataOutputStream dataWriter, Mail mail, MailBoxFormat format)
+    throws IOException
     {
-        // Does the mailbox exist?
-        if(!this.path.exists())
-        {
-            throw new UnknownMailBoxException(String.format(
-                "Mailbox \"%s\" doesn't exist.",
-                this.path.getAbsolutePath()
-            ));
-        }
-        // Is it an actual file?
-        else if(!this.path.isFile())
+        // Initialize vars
+        ByteArrayOutputStream contentStream;
+        DataOutputStream contentWriter;
+        byte[] content;
+        Record record;
+
+        contentWriter = new DataOutputStream(contentStream = new ByteArrayOutputStream());
+        record = MailBox.write(contentWriter, mail);
+        content = contentStream.toByteArray();
+
+        if(MailBoxFormat.TEXT == format)
         {
-            throw new IllegalArgumentException(String.format(
-                "Mailbox \"%s\" isn't an actual file.",
-                this.path.getAbsolutePath()
-            ));
+            // The record would end at the first marker, the rest of the body being taken as another record
+            if(MailBox.indexOfEndOfData(content, content.length) < content.length - SmtpProtocol.END_OF_DATA.length())
+            {
+                throw new IOException("Mail holds the end of data marker, it can't be written as a text record.");
+            }
         }
-        // Can it be read?
-        else if(!this.path.canRead())
+        else
         {
-            throw new IllegalArgumentException(String.format(
-                "Mailbox \"%s\" can't be read.",
-                this.path.getAbsolutePath()
-            ));
+            // The content's length and checksum come before it
+            MailBoxFormat.writeRecordHeader(dataWriter, content, 0, content.length, record.headersLength, record.flags);
         }
 
+        dataWriter.write(content);
+
+        return record;
+    }
+
+    /**
+     * Writes a mail as a text mailbox record: its headers, an empty line, its
+     * body then the end of data marker.
+     *
+     * The body is compressed if the {@link MailCompressor} accepts it and
+     * compressing it saves space, or left out if it is in the
+     * {@link MailBlobStore}. Either way, a header tells so.
+     *
+     * @param dataWriter The stream to write the record into.
+     * @param mail The mail to write.
+     * @return How the mail has been written.
+     * @throws java.io.IOException If the record couldn't be written.
+     */
+    protected static Record write(DataOutputStream dataWriter, Mail mail)
+    throws IOException
+    {
+        // Initialize vars
+        int recordStart = dataWriter.size(), headersLength, bodyLength = 0;
+        String extraHeader = null, extraValue = null;
+        byte[] body = null, compressedBody;
+
+        // Received, read or stored bytes are written back as is if they haven't changed
+        RawMail rawMail = mail instanceof RawMail ? (RawMail) mail : null;
+        boolean hasRawHeaders = null != rawMail && rawMail.hasRawHeaders();
+        boolean hasRawBody = null != rawMail && rawMail.hasRawBody();
+        LazyMail lazyMail = mail instanceof LazyMail ? (LazyMail) mail : null;
+        boolean hasStoredHeaders = null != lazyMail && lazyMail.hasRawHeaders();
+
+        // Is the body elsewhere or worth compressing?
+        if(mail instanceof SharedMail)
+        {
+            extraHeader = MailBlobStore.HEADER;
+            extraValue = ((SharedMail) mail).getReference();
+            bodyLength = ((SharedMail) mail).bodyLength;
+        }
+        else if(MailCompressor.accepts(hasRawBody ? rawMail.getBodyLength() : mail.getBody().length()))
+        {
+            if(hasRawBody)
+            {
+                bodyLength = rawMail.getBodyLength();
+                compressedBody = MailCompressor.compress(rawMail.getData(), rawMail.getBodyOffset(), bodyLength);
+            }
+            else
+            {
+                body = MailBox.getBytes(mail.getBody());
+                bodyLength = body.length;
+                compressedBody = MailCompressor.compress(body, 0, bodyLength);
+            }
+
+            if(compressedBody.length < bodyLength)
+            {
+                extraHeader = MailCompressor.HEADER;
+                extraValue = MailCompressor.getHeaderValue(bodyLength);
+                body = compressedBody;
+            }
+        }
+
+        // Write headers
+        boolean hasHeaders = hasRawHeaders
+            ? rawMail.getHeadersLength() > 0
+            : hasStoredHeaders ? lazyMail.getRawHeadersLength() > 0 : !mail.getHeaders().isEmpty();
+
+        if(hasHeaders || null != extraHeader)
+        {
+            if(hasRawHeaders)
+            {
+                rawMail.writeRawHeaders(dataWriter);
+            }
+            else if(hasStoredHeaders)
+            {
+                lazyMail.writeRawHeaders(dataWriter);
+            }
+            else
+            {
+                for(Map.Entry<String, String> entry : mail.getHeaders().entrySet())
+                {
+                    dataWriter.writeBytes(entry.getKey());
+                    dataWriter.writeBytes(": ");
+                    dataWriter.writeBytes(entry.getValue());
+                    dataWriter.writeBytes("\r\n");
+                }
+            }
+
+            if(null != extraHeader)
+            {
+                dataWriter.writeBytes(extraHeader);
+                dataWriter.writeBytes(": ");
+                dataWriter.writeBytes(extraValue);
+                dataWriter.writeBytes("\r\n");
+            }
+
+            // Write separator
+            dataWriter.writeBytes("\r\n");
+        }
+
+        // Write body, first split it every 76 characters
+        /*
+        List<String> bodyFragments = new ArrayList<>();
+        int currentIndex = 0, bodyLength = mail.getBody().length();
+
+        while(currentIndex < bodyLength)
+        {
+            if(bodyLength - currentIndex >= 76)
+            {
+                bodyFragments.add(
+                    mail.getBody().substring(
+                        currentIndex, currentIndex + 76
+                    )
+                );
+
+                currentIndex += 76;
+            }
+            else
+            {
+                bodyFragments.add(
+                    mail.getBody().substring(
+                        currentIndex
+                    )
+                );
+                currentIndex = mail.getBody().length();
+            }
+        }
+
+        dataWriter.writeBytes(
+            String.join(
+                "\r\n",
+                bodyFragments
+            )
+        );
+
+        // End the body
+        dataWriter.writeBytes("\r\n.\r\n");
+        */
+        headersLength = dataWriter.size() - recordStart;
+
+        if(MailCompressor.HEADER.equals(extraHeader))
+        {
+            dataWriter.write(body);
+        }
+        else if(hasRawBody)
+        {
+            rawMail.writeRawBody(dataWriter);
+        }
+        else if(!(mail instanceof SharedMail))
+        {
+            dataWriter.writeBytes(mail.getBody());
+        }
+
+        dataWriter.writeBytes(SmtpProtocol.END_OF_DATA);
+
+        return new Record(
+            headersLength,
+            null == extraHeader
+                ? dataWriter.size() - recordStart - SmtpProtocol.END_OF_DATA.length()
+                : MailBox.getSize(headersLength, extraHeader, extraValue, bodyLength),
+            MailCompressor.HEADER.equals(extraHeader)
+                ? MailBoxFormat.FLAG_COMPRESSED
+                : MailBlobStore.HEADER.equals(extraHeader) ? MailBoxFormat.FLAG_SHARED : 0
+        );
+    }
+
+    /**
+     * Gets the bytes of a string the way they are written in a record, that
+     * is to say the low byte of each character.
+     *
+     * @param data The string.
+     * @return The bytes.
+     */
+    protected static byte[] getBytes(String data)
+    {
+        // Initialize vars
+        byte[] bytes = new byte[data.length()];
+
+        for(int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = (byte) data.charAt(i);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Computes the size in octets of a mail whose record holds a header
+     * instead of its actual body.
+     *
+     * @param headersLength The length of the record's headers, including the
+     * empty line ending them.
+     * @param headerName The name of the header replacing the body.
+     * @param headerValue The value of the header replacing the body.
+     * @param bodyLength The actual body's length.
+     * @return The mail's size, as if the actual body was in the record.
+     */
+    protected static int getSize(int headersLength, String headerName, String headerValue, int bodyLength)
+    {
+        return headersLength
+            - headerName.length() - 2 // ": "
+            - headerValue.length() - 2 // "<CRLF>"
+            + bodyLength;
+    }
+
+    /**
+     * Builds the mail stored in a text record read as a whole, decompressing
+     * its body or pointing it to the {@link MailBlobStore} if its headers
+     * tell so.
+     *
+     * @param mail The mail read from the record.
+     * @param headersLength The length of the record's headers, including the
+     * empty line ending them.
+     * @param charset The charset to build the strings with.
+     * @return The stored mail.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * record isn't built correctly.
+     */
+    protected static Mail resolve(Mail mail, int headersLength, Charset charset)
+    throws InvalidMailBoxFileException
+    {
+        return MailBox.resolve(
+            mail,
+            headersLength,
+            MailBoxFormat.FLAG_COMPRESSED | MailBoxFormat.FLAG_SHARED,
+            charset
+        );
+    }
+
+    /**
+     * Builds the mail stored in a record read as a whole, decompressing its
+     * body or pointing it to the {@link MailBlobStore}.
+     *
+     * Only the headers the record's flags allow replace the body, the others
+     * are left as any other header.
+     *
+     * @param mail The mail read from the record.
+     * @param headersLength The length of the record's headers, including the
+     * empty line ending them.
+     * @param flags The record's flags, those of a text record being read
+     * from its headers.
+     * @param charset The charset to build the strings with.
+     * @return The stored mail.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * record isn't built correctly.
+     */
+    protected static Mail resolve(Mail mail, int headersLength, int flags, Charset charset)
+    throws InvalidMailBoxFileException
+    {
+        if(0 != (flags & MailBoxFormat.FLAG_COMPRESSED))
+        {
+            mail = MailCompressor.resolve(mail, charset);
+        }
+
+        return 0 != (flags & MailBoxFormat.FLAG_SHARED)
+            ? SharedMail.resolve(mail, headersLength, charset)
+            : mail;
+    }
+
+    /**
+     * Loads the content of the mailbox from its associated file using UTF-8 by
+     * default.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     */
+    public void load()
+    throws UnknownMailBoxException, FileNotFoundException, IOException
+    {
+        this.load(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Loads the content of the mailbox from its associated file.
+     *
+     * @param charset The charset to build the strings with.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     */
+    public void load(Charset charset)
+    throws UnknownMailBoxException, FileNotFoundException, IOException,
+        InvalidMailBoxFileException
+    {
+        // Writers must wait for the mailbox to be read
+        Lock lock = MailBoxLockManager.getInstance().lockRead(this.path);
+
+        try
+        {
+            // Can the mailbox be read?
+            this.checkReadable();
+
+            // Initialize vars
+            FileInputStream mailBoxStream = null;
+            MailBoxParser parser;
+            MailBoxIndex index = new MailBoxIndex(this.path);
+            boolean indexUpToDate = index.load(), indexUpdated = !indexUpToDate && index.update();
+            Iterator<MailBoxIndex.Entry> entriesIterator = index.getEntries().iterator();
+            MailBoxIndex.Entry entry;
+            Mail mail;
+            int deletedNumber = 0;
+
+            try
+            {
+                // Try opening the mailbox, the parser does its own buffering
+                mailBoxStream = new FileInputStream(this.path);
+                parser = new MailBoxParser(mailBoxStream, this.path.getAbsolutePath());
+                this.fileKey = MailBox.getFileKey(this.path);
+
+                // Read every record
+                while(parser.next())
+                {
+                    if(indexUpToDate || indexUpdated)
+                    {
+                        // The index describes the records in the same order
+                        entry = entriesIterator.hasNext() ? entriesIterator.next() : null;
+
+                        if(null == entry || entry.getOffset() != parser.getRecordOffset())
+                        {
+                            // It will be rebuilt the next time it is needed
+                            index.invalidate();
+
+                            throw new InvalidMailBoxFileException(String.format(
+                                "Index of mailbox \"%s\" doesn't match its records.",
+                                this.path.getAbsolutePath()
+                            ));
+                        }
+                        else if(entry.isDeleted())
+                        {
+                            deletedNumber++;
+
+                            continue;
+                        }
+                    }
+                    else
+                    {
+                        // Remember where the record is since the index must be rebuilt
+                        entry = new MailBoxIndex.Entry(
+                            parser.getRecordOffset(),
+                            parser.getRecordLength(),
+                            parser.getSize()
+                        );
+                        index.getEntries().add(entry);
+                    }
+
+                    mail = MailBox.resolve(parser.getMail(charset), parser.getBodyStart(), parser.getFlags(), charset);
+                    this.add(mail);
+                    this.recordsMap.put(mail, entry);
+                }
+
+                // New records will be read from there
+                this.loadedLength = parser.getRecordOffset();
+                this.deletedNumber = deletedNumber;
+                this.lazy = false;
+
+                // Make sure the index matches what has just been read
+                if(!indexUpToDate)
+                {
+                    try
+                    {
+                        index.save();
+                    }
+                    catch(IOException ex)
+                    {
+                        index.invalidate();
+                    }
+                }
+            }
+            catch(FileNotFoundException ex)
+            {
+                // This error shouldn't happen because the mailbox's existence is tested
+                throw ex;
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(MailBox.class.getName()).log(
+                    Level.SEVERE,
+                    String.format(
+                        "Couldn't read mailbox \"%s\" correctly.",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
+
+                throw ex;
+            }
+            finally
+            {
+                if(mailBoxStream != null)
+                {
+                    try
+                    {
+                        mailBoxStream.close();
+                    }
+                    catch(IOException ex)
+                    {
+                        Logger.getLogger(MailBox.class.getName()).log(
+                            Level.SEVERE,
+                            String.format(
+                                "Couldn't close mailbox \"%s\" correctly.",
+                                this.path.getAbsolutePath()
+                            ),
+                            ex
+                        );
+                    }
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the mails appended to the mailbox's associated file since it was
+     * loaded using UTF-8 by default.
+     *
+     * @return <code>true</code> if only the new mails have been read,
+     * <code>false</code> if the mailbox had to be loaded again.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     */
+    public boolean refresh()
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        return this.refresh(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the mails appended to the mailbox's associated file since it was
+     * loaded, the same way as the others, without reading the others again.
+     *
+     * The mailbox is loaded again if its file has been rewritten, if it
+     * hasn't been loaded, or if a mail read from it has been deleted by
+     * another session meanwhile, in which case the marks for deletion are
+     * lost.
+     *
+     * @param charset The charset to build the strings with.
+     * @return <code>true</code> if only the new mails have been read,
+     * <code>false</code> if the mailbox had to be loaded again.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     */
+    public boolean refresh(Charset charset)
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        // Writers must wait for the new mails to be read
+        Lock lock = MailBoxLockManager.getInstance().lockRead(this.path);
+        boolean reload;
+
+        try
+        {
+            // Can the mailbox be read?
+            this.checkReadable();
+
+            // Initialize vars
+            MailBoxIndex index = new MailBoxIndex(this.path);
+            int loadedEntriesNumber = this.recordsMap.size() + this.deletedNumber, deletedNumber = -1;
+            MailBoxFormat format;
+
+            // Only the new entries are read, the others must not have been deleted meanwhile
+            if(this.loadedLength >= 0 && -1 == (deletedNumber = index.loadFrom(loadedEntriesNumber)))
+            {
+                // A stale index is brought up-to-date by scanning the new records first
+                MailBoxIndex.open(this.path);
+                deletedNumber = index.loadFrom(loadedEntriesNumber);
+            }
+
+            // The file must only have grown, from the end of the last record read
+            format = MailBoxFormat.detect(this.path);
+            reload = deletedNumber != this.deletedNumber
+                || (index.getEntries().isEmpty()
+                    ? index.getIndexedLength() != this.loadedLength
+                    : index.getEntries().get(0).getOffset() != this.loadedLength + format.getRecordHeaderLength())
+                || (null != this.fileKey && !this.fileKey.equals(MailBox.getFileKey(this.path)));
+
+            if(!reload)
+            {
+                this.readNewRecords(index, format, charset);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if(reload)
+        {
+            this.clear();
+            this.recordsMap.clear();
+
+            if(this.lazy)
+            {
+                this.loadLazily(charset);
+            }
+            else
+            {
+                this.load(charset);
+            }
+        }
+
+        return !reload;
+    }
+
+    /**
+     * Reads the records appended after the part of the file the mails have
+     * been read from, as lazy mails if the others are.
+     *
+     * @param index The index holding the entries of the new records only.
+     * @param format The mailbox file's format.
+     * @param charset The charset to build the strings with.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a record
+     * isn't built correctly.
+     * @throws java.io.IOException If the records couldn't be read.
+     */
+    protected void readNewRecords(MailBoxIndex index, MailBoxFormat format, Charset charset)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        List<MailBoxIndex.Entry> newEntries = index.getEntries();
+        List<Mail> newMails = new ArrayList<>();
+        List<MailBoxIndex.Entry> newLiveEntries = new ArrayList<>();
+        Iterator<MailBoxIndex.Entry> entriesIterator = newEntries.iterator();
+        MailBoxIndex.Entry entry;
+        MailBoxParser parser;
+        int deletedNumber = 0;
+
+        if(this.lazy)
+        {
+            // Only the headers are read
+            try(RandomAccessFile mailBoxFile = new RandomAccessFile(this.path, "r"))
+            {
+                for(MailBoxIndex.Entry newEntry : newEntries)
+                {
+                    if(newEntry.isDeleted())
+                    {
+                        deletedNumber++;
+                    }
+                    else
+                    {
+                        newMails.add(MailBox.readLazily(mailBoxFile, this.path, this.fileKey, newEntry, format, charset));
+                        newLiveEntries.add(newEntry);
+                    }
+                }
+            }
+        }
+        else if(!newEntries.isEmpty())
+        {
+            // The records are parsed from the end of the last one read
+            try(FileInputStream mailBoxStream = new FileInputStream(this.path))
+            {
+                mailBoxStream.getChannel().position(this.loadedLength);
+                parser = new MailBoxParser(
+                    mailBoxStream,
+                    this.path.getAbsolutePath(),
+                    MailBoxParser.DEFAULT_BUFFER_SIZE,
+                    format
+                );
+
+                while(parser.next())
+                {
+                    entry = entriesIterator.hasNext() ? entriesIterator.next() : null;
+
+                    if(null == entry || entry.getOffset() != this.loadedLength + parser.getRecordOffset())
+                    {
+                        index.invalidate();
+
+                        throw new InvalidMailBoxFileException(String.format(
+                            "Index of mailbox \"%s\" doesn't match its records.",
+                            this.path.getAbsolutePath()
+                        ));
+                    }
+                    else if(entry.isDeleted())
+                    {
+                        deletedNumber++;
+                    }
+                    else
+                    {
+                        newMails.add(MailBox.resolve(
+                            parser.getMail(charset),
+                            parser.getBodyStart(),
+                            parser.getFlags(),
+                            charset
+                        ));
+                        newLiveEntries.add(entry);
+                    }
+                }
+            }
+        }
+
+        // Nothing is added unless every new record has been read
+        for(int i = 0; i < newMails.size(); i++)
+        {
+            this.add(newMails.get(i));
+            this.recordsMap.put(newMails.get(i), newLiveEntries.get(i));
+        }
+
+        this.loadedLength = index.getIndexedLength();
+        this.deletedNumber += deletedNumber;
+    }
+
+    /**
+     * Opens a memory-mapped, read-only view of the mailbox's associated file,
+     * which must be closed once it isn't needed anymore.
+     *
+     * @return The mapped mailbox.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be mapped.
+     */
+    public MappedMailBox map()
+    throws UnknownMailBoxException, InvalidMailBoxFileException, IOException
+    {
+        MappedMailBox mappedMailBox = new MappedMailBox(this.path);
+        mappedMailBox.open();
+
+        return mappedMailBox;
+    }
+
+    /**
+     * Checks that the mailbox's associated file can be read.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     */
+    protected void checkReadable()
+    throws UnknownMailBoxException, IllegalArgumentException
+    {
+        // Does the mailbox exist?
+        if(!this.path.exists())
+        {
+            throw new UnknownMailBoxException(String.format(
+                "Mailbox \"%s\" doesn't exist.",
+                this.path.getAbsolutePath()
+            ));
+        }
+        // Is it an actual file?
+        else if(!this.path.isFile())
+        {
+            throw new IllegalArgumentException(String.format(
+                "Mailbox \"%s\" isn't an actual file.",
+                this.path.getAbsolutePath()
+            ));
+        }
+        // Can it be read?
+        else if(!this.path.canRead())
+        {
+            throw new IllegalArgumentException(String.format(
+                "Mailbox \"%s\" can't be read.",
+                this.path.getAbsolutePath()
+            ));
+        }
+    }
+
+    /**
+     * Loads the headers of the mails from the mailbox's associated file using
+     * UTF-8 by default, leaving their bodies on disk until they are needed.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     * @see common.mails.LazyMail
+     */
+    public void loadLazily()
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        this.loadLazily(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Loads the headers of the mails from the mailbox's associated file,
+     * leaving their bodies on disk until they are needed.
+     *
+     * The mails' boundaries and sizes come from the mailbox's index, so only
+     * the headers are read.
+     *
+     * @param charset The charset to build the strings with.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a file or
+     * can't be read.
+     * @see common.mails.LazyMail
+     */
+    public void loadLazily(Charset charset)
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        // Writers must wait for the mailbox to be read
+        Lock lock = MailBoxLockManager.getInstance().lockRead(this.path);
+
+        try
+        {
+            // Can the mailbox be read?
+            this.checkReadable();
+
+            // Initialize vars
+            MailBoxIndex index = MailBoxIndex.open(this.path);
+            MailBoxFormat format = MailBoxFormat.detect(this.path);
+            LazyMail mail;
+
+            try(RandomAccessFile mailBoxFile = new RandomAccessFile(this.path, "r"))
+            {
+                this.fileKey = MailBox.getFileKey(this.path);
+
+                for(MailBoxIndex.Entry entry : index.getLiveEntries())
+                {
+                    mail = MailBox.readLazily(mailBoxFile, this.path, this.fileKey, entry, format, charset);
+                    this.add(mail);
+                    this.recordsMap.put(mail, entry);
+                }
+
+                // New records will be read from there
+                this.loadedLength = index.getIndexedLength();
+                this.deletedNumber = index.getDeletedEntries().size();
+                this.lazy = true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Builds a lazy mail from the headers of a record, reading more of the
+     * record only if they are longer than expected.
+     *
+     * A binary record's header tells where the headers end and which of them
+     * replaces the body, a text record's headers tell it themselves.
+     *
+     * @param mailBoxFile The opened file containing the record.
+     * @param path The file's path.
+     * @param fileKey The key identifying the file.
+     * @param entry The record's entry.
+     * @param format The file's format.
+     * @param charset The charset to build the strings with.
+     * @return The lazy mail.
+     * @throws java.io.IOException If the record couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the record
+     * isn't built correctly.
+     */
+    protected static LazyMail readLazily(
+        RandomAccessFile mailBoxFile, File path, Object fileKey, MailBoxIndex.Entry entry, MailBoxFormat format,
+        Charset charset
+    )
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        byte[] buffer;
+        int readLength = 0, headersLength = -1, flags;
+        String compression;
+        Mail headers;
+        LazyMail mail;
+
+        if(MailBoxFormat.BINARY == format)
+        {
+            // The record's header comes right before its content
+            buffer = new byte[format.getRecordHeaderLength()];
+            mailBoxFile.seek(entry.getOffset() - buffer.length);
+            mailBoxFile.readFully(buffer);
+            headersLength = MailBoxFormat.readInt(buffer, 4);
+            flags = MailBoxFormat.readInt(buffer, 8);
+
+            if(headersLength < 0 || headersLength > entry.getLength() - SmtpProtocol.END_OF_DATA.length())
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mailbox \"%s\" isn't built correctly.",
+                    path.getAbsolutePath()
+                ));
+            }
+
+            buffer = new byte[headersLength];
+            mailBoxFile.seek(entry.getOffset());
+            mailBoxFile.readFully(buffer);
+        }
+        else
+        {
+            buffer = new byte[Math.min(4096, entry.getLength())];
+            flags = MailBoxFormat.FLAG_COMPRESSED | MailBoxFormat.FLAG_SHARED;
+
+            do
+            {
+                // Read the beginning of the record, more of it if the headers are longer
+                if(readLength == buffer.length)
+                {
+                    buffer = new byte[buffer.length * 2];
+                }
+
+                readLength = Math.min(buffer.length, entry.getLength());
+                mailBoxFile.seek(entry.getOffset());
+                mailBoxFile.readFully(buffer, 0, readLength);
+                headersLength = MailBox.indexOfEmptyLine(buffer, readLength);
+            }
+            while(-1 == headersLength && readLength < entry.getLength());
+
+            if(-1 == headersLength)
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mailbox \"%s\" isn't built correctly.",
+                    path.getAbsolutePath()
+                ));
+            }
+
+            headersLength += 4;
+        }
+
+        // Build the mail from its headers, unfolding them like when it is read as a whole
+        headers = new Mail();
+        MailParser.readHeaders(buffer, headersLength, charset, headers.getHeaders());
+
+        compression = 0 != (flags & MailBoxFormat.FLAG_COMPRESSED) ? headers.removeHeader(MailCompressor.HEADER) : null;
+        mail = new LazyMail(
+            path,
+            charset,
+            entry.getOffset() + headersLength,
+            Math.max(0, entry.getLength() - SmtpProtocol.END_OF_DATA.length() - headersLength),
+            null == compression
+                ? entry.getSize()
+                : MailBox.getSize(headersLength, MailCompressor.HEADER, compression, MailCompressor.getLength(compression)),
+            fileKey,
+            null != compression
+        );
+        mail.getHeaders().putAll(headers.getHeaders());
+
+        // Its body may be in the store rather than in the record
+        if(0 != (flags & MailBoxFormat.FLAG_SHARED))
+        {
+            mail = (LazyMail) SharedMail.resolve(mail, headersLength, charset);
+        }
+
+        // Keep the header lines so they can be sent as they are stored
+        mail.setRawHeaders(MailBox.getRawHeaders(buffer, headersLength, flags));
+
+        return mail;
+    }
+
+    /**
+     * Copies the header lines of a record, leaving out those telling how its
+     * body is stored so that they match the mail's size.
+     *
+     * @param data The beginning of the record.
+     * @param headersLength The length of the record's headers, including the
+     * empty line ending them.
+     * @param flags The record's flags, those of a text record being read
+     * from its headers.
+     * @return The header lines, each one ended by a CRLF, without the empty
+     * line.
+     */
+    protected static byte[] getRawHeaders(byte[] data, int headersLength, int flags)
+    {
         // Initialize vars
-        BufferedInputStream mailBoxStream = null;
-        ByteArrayOutputStream dataStream;
-        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
-        int currentCharacter = -1, previousCharacter = -1;
-        Mail mail;
-        boolean endOfHeaders, endOfBody, endOfFile = false;
-        final int ASCII_LF = (int) '\n';
-        final int ASCII_CR = (int) '\r';
-        final int ASCII_DOT = (int) '.';
-        boolean fileEmpty = false;
-        
-        try
+        ByteArrayOutputStream headersStream = new ByteArrayOutputStream(headersLength);
+        int headersEnd = Math.max(0, headersLength - 2);
+        boolean skipped = false;
+
+        for(int lineStart = 0, lineEnd; lineStart < headersEnd; lineStart = lineEnd)
         {
-            // Try opening the mailbox
-            mailBoxStream = new BufferedInputStream(new FileInputStream(this.path));
-            
-            // Are marks supported?
-            if(!mailBoxStream.markSupported())
-            {
-                throw new UnsupportedOperationException(
-                    "Mailbox can't be read because the technology used isn't available."
-                );
-            }
-            
-            // Is the file empty?
-            mailBoxStream.mark(2);
-                
-            try
+            // Find the end of the line
+            lineEnd = lineStart;
+
+            while(lineEnd < headersEnd && '\n' != data[lineEnd])
             {
-                if(-1 == mailBoxStream.read())
-                {
-                    fileEmpty = true;
-                }
+                lineEnd++;
             }
-            catch(IOException ex)
+
+            lineEnd = Math.min(lineEnd + 1, headersEnd);
+
+            // A folded line belongs to the header above it
+            if(' ' != data[lineStart] && '\t' != data[lineStart])
             {
-                fileEmpty = true;
+                skipped =
+                    0 != (flags & MailBoxFormat.FLAG_COMPRESSED)
+                    && MailBox.isHeaderLine(data, lineStart, lineEnd, MailCompressor.HEADER)
+                    || 0 != (flags & MailBoxFormat.FLAG_SHARED)
+                    && MailBox.isHeaderLine(data, lineStart, lineEnd, MailBlobStore.HEADER);
             }
 
-            mailBoxStream.reset();
-            
-            // Read only if the file isn't empty
-            if(!fileEmpty)
+            if(!skipped)
             {
-                do
-                {
-                    // Create a new mail
-                    mail = new Mail();
-                    endOfHeaders = endOfBody = false;
-                    
-                    // Read the headers
-                    do
-                    {
-                        // Read the next character
-                        previousCharacter = currentCharacter;
-                        currentCharacter = mailBoxStream.read();
+                headersStream.write(data, lineStart, lineEnd - lineStart);
+            }
+        }
 
-                        // Have we reached the end of a line?
-                        if(currentCharacter == ASCII_LF && previousCharacter == ASCII_CR)
-                        {
-                            // Write the header
-                            mail.addHeader(new String(dataStream.toByteArray(), charset).trim());
+        return headersStream.toByteArray();
+    }
 
-                            // And clear the output stream to start a new header
-                            dataStream.reset();
-                        }
-                        // Ignore this character, we are going to reach the end of a line
-                        else if(currentCharacter == ASCII_CR && previousCharacter != ASCII_LF)
-                        {
-                        }
-                        // Have we reached the headers limit?
-                        else if(currentCharacter == ASCII_CR && previousCharacter == ASCII_LF)
-                        {
-                            // Get rid of the next character, it must be an LF
-                            mailBoxStream.read();
+    /**
+     * Tests if a header line holds a given header.
+     *
+     * @param data The bytes containing the line.
+     * @param lineStart The offset of the line.
+     * @param lineEnd The offset following the line.
+     * @param name The header's name.
+     * @return <code>true</code> if the line holds the header,
+     * <code>false</code> otherwise.
+     */
+    protected static boolean isHeaderLine(byte[] data, int lineStart, int lineEnd, String name)
+    {
+        if(lineEnd - lineStart <= name.length() || ':' != data[lineStart + name.length()])
+        {
+            return false;
+        }
 
-                            // Stop this loop
-                            endOfHeaders = true;
-                        }
-                        // Mailbox file isn't build correctly
-                        else if(-1 == currentCharacter)
-                        {
-                            throw new InvalidMailBoxFileException(String.format(
-                                "Mailbox \"%s\" isn't built correctly.",
-                                this.path.getAbsolutePath()
-                            ));
-                        }
-                        // Otherwise, simply add the current character to the output stream
-                        else
-                        {
-                            dataWriter.writeByte(currentCharacter);
-                        }
-                    }
-                    while(!endOfHeaders);
-                    
-                    // Read the body
-                    do
-                    {
-                        // Read the next character
-                        previousCharacter = currentCharacter;
-                        currentCharacter = mailBoxStream.read();
-                        
-                        // Have we reached the end of the mail?
-                        if(currentCharacter == ASCII_DOT && previousCharacter == ASCII_LF)
-                        {
-                            mailBoxStream.mark(3);
-                            
-                            if(ASCII_CR == mailBoxStream.read() && ASCII_LF == mailBoxStream.read())
-                            {
-                                // Write the contents
-                                mail.setBody(new String(dataStream.toByteArray(), charset).trim());
-
-                                // And clear the output stream to start a new mail
-                                dataStream.reset();
-
-                                // Then, stop this loop
-                                endOfBody = true;
-                            }
-                            else
-                            {
-                                // This wasn't the end of the mail
-                                mailBoxStream.reset();
-                                dataWriter.writeByte(currentCharacter);
-                            }
-                        }
-                        // Mailbox file isn't build correctly
-                        else if(-1 == currentCharacter)
-                        {
-                            throw new InvalidMailBoxFileException(String.format(
-                                "Mailbox \"%s\" isn't built correctly.",
-                                this.path.getAbsolutePath()
-                            ));
-                        }
-                        // Otherwise, simply add the current character to the output stream
-                        else
-                        {
-                            dataWriter.writeByte(currentCharacter);
-                        }
-                    }
-                    while(!endOfBody);
-
-                    // Save the email
-                    this.mailsList.add(mail);
-                    
-                    // Have we reached the end of the file?
-                    mailBoxStream.mark(2);
-                    endOfFile = -1 == mailBoxStream.read();
-                    mailBoxStream.reset();
-                }
-                while(!endOfFile);
+        for(int i = 0; i < name.length(); i++)
+        {
+            if(name.charAt(i) != data[lineStart + i])
+            {
+                return false;
             }
         }
-        catch(FileNotFoundException ex)
+
+        return true;
+    }
+
+    /**
+     * Gets the bodies in the {@link MailBlobStore} which some records point
+     * to.
+     *
+     * @param path The path of the file containing the records.
+     * @param entries The records' entries.
+     * @return The hashes of the bodies, once per record.
+     * @throws java.io.IOException If the records couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a record
+     * isn't built correctly.
+     */
+    protected static List<String> getSharedBodies(File path, List<MailBoxIndex.Entry> entries)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        List<String> hashes = new ArrayList<>();
+        MailBoxFormat format;
+        LazyMail mail;
+
+        // Without a store, no body can be shared
+        if(entries.isEmpty() || null == MailBlobStore.getInstance())
         {
-            // This error shouldn't happen because the mailbox's existence is tested
-            throw ex;
+            return hashes;
         }
-        catch(IOException ex)
-        {
-            Logger.getLogger(MailBox.class.getName()).log(
-                Level.SEVERE,
-                String.format(
-                    "Couldn't read mailbox \"%s\" correctly.",
-                    this.path.getAbsolutePath()
-                ),
-                ex
-            );
 
-            throw ex;
-        }
-        finally
+        format = MailBoxFormat.detect(path);
+
+        try(RandomAccessFile mailBoxFile = new RandomAccessFile(path, "r"))
         {
-            if(mailBoxStream != null)
+            for(MailBoxIndex.Entry entry : entries)
             {
-                try
-                {
-                    mailBoxStream.close();
-                }
-                catch(IOException ex)
+                mail = MailBox.readLazily(mailBoxFile, path, null, entry, format, StandardCharsets.UTF_8);
+
+                if(mail instanceof SharedMail)
                 {
-                    Logger.getLogger(MailBox.class.getName()).log(
-                        Level.SEVERE,
-                        String.format(
-                            "Couldn't close mailbox \"%s\" correctly.",
-                            this.path.getAbsolutePath()
-                        ),
-                        ex
-                    );
+                    hashes.add(((SharedMail) mail).getHash());
                 }
             }
         }
+
+        return hashes;
+    }
+
+    /**
+     * Releases shared bodies once the records pointing to them have been
+     * removed from their mailbox's file.
+     *
+     * A body which couldn't be released is only leaked, so failures are
+     * logged but not thrown.
+     *
+     * @param hashes The hashes of the bodies, once per removed record.
+     */
+    protected static void releaseSharedBodies(List<String> hashes)
+    {
+        // Initialize vars
+        MailBlobStore store = MailBlobStore.getInstance();
+
+        for(String hash : hashes)
+        {
+            try
+            {
+                store.release(hash);
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(MailBox.class.getName()).log(
+                    Level.WARNING,
+                    String.format(
+                        "Couldn't release shared body \"%s\".",
+                        hash
+                    ),
+                    ex
+                );
+            }
+        }
     }
 
     /**
@@ -497,6 +1681,44 @@ public class MailBox
         return this.mailsList.size();
     }
 
+    /**
+     * Gets the number of mails which aren't marked for deletion, without
+     * going through them.
+     *
+     * @return The number of mails.
+     */
+    public int getLiveNumber()
+    {
+        return this.mailsList.size() - this.markedNumber;
+    }
+
+    /**
+     * Gets the total size of the mails which aren't marked for deletion.
+     *
+     * The sizes are only added up the first time after the mails have been
+     * loaded, the total is then kept up to date as mails are added and
+     * marked.
+     *
+     * @return The total size in octets.
+     */
+    public long getLiveSize()
+    {
+        if(-1 == this.mailsSize)
+        {
+            // Initialize vars
+            long mailsSize = 0;
+
+            for(Mail mail : this.mailsList)
+            {
+                mailsSize += mail.getSize();
+            }
+
+            this.mailsSize = mailsSize;
+        }
+
+        return this.mailsSize - this.markedSize;
+    }
+
     /**
      * Adds a mail to the mailbox, which will need to be saved later.
      *
@@ -505,6 +1727,11 @@ public class MailBox
     public void add(Mail mail)
     {
         this.mailsList.add(mail);
+
+        if(-1 != this.mailsSize)
+        {
+            this.mailsSize += mail.getSize();
+        }
     }
 
     /**
@@ -524,7 +1751,7 @@ public class MailBox
         {
             Mail mail = this.mailsList.get(index);
 
-            if(!this.mailsToDeleteList.contains(mail))
+            if(!this.deletionMarks.get(index))
             {
                 return mail;
             }
@@ -569,7 +1796,19 @@ public class MailBox
     {
         if(index < this.mailsList.size())
         {
-            this.delete(this.mailsList.get(index));
+            if(!this.deletionMarks.get(index))
+            {
+                this.deletionMarks.set(index);
+                this.markedNumber++;
+                this.markedSize += this.mailsList.get(index).getSize();
+            }
+            else
+            {
+                throw new AlreadyMarkedForDeletionException(String.format(
+                    "Mail #%d is already marked for deletion.",
+                    index
+                ));
+            }
         }
         else
         {
@@ -584,22 +1823,24 @@ public class MailBox
      * Marks a mail for deletion if it hasn't been already.
      *
      * @param mail The mail to mark.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * isn't in this mailbox.
      * @throws common.mail.exceptions.AlreadyMarkedForDeletionException If the
      * mail is already marked for deletion.
      */
     public void delete(Mail mail)
-    throws AlreadyMarkedForDeletionException
+    throws NonExistentMailException, AlreadyMarkedForDeletionException
     {
-        if(!this.mailsToDeleteList.contains(mail))
+        // Initialize vars
+        int index = this.mailsList.indexOf(mail);
+
+        if(-1 != index)
         {
-            this.mailsToDeleteList.add(mail);
+            this.delete(index);
         }
         else
         {
-            throw new AlreadyMarkedForDeletionException(String.format(
-                "Mail #%d is already marked for deletion.",
-                this.mailsList.indexOf(mail)
-            ));
+            throw new NonExistentMailException("Mail isn't in this mailbox.");
         }
     }
 
@@ -614,7 +1855,7 @@ public class MailBox
     {
         if(index < this.mailsList.size())
         {
-            return this.isDeleted(this.mailsList.get(index));
+            return this.deletionMarks.get(index);
         }
         else
         {
@@ -628,13 +1869,18 @@ public class MailBox
     /**
      * Tests if a mail is marked for deletion.
      *
+     * Prefer {@link #isDeleted(int)}, the mail has to be looked for.
+     *
      * @param mail The mail to test.
      * @return <code>true</code> if it supposed to be deleted,
      * <code>false</code> otherwise.
      */
     public boolean isDeleted(Mail mail)
     {
-        return this.mailsToDeleteList.contains(mail);
+        // Initialize vars
+        int index = this.mailsList.indexOf(mail);
+
+        return -1 != index && this.deletionMarks.get(index);
     }
 
     /**
@@ -642,6 +1888,228 @@ public class MailBox
      */
     public void reset()
     {
-        this.mailsToDeleteList.clear();
+        this.deletionMarks.clear();
+        this.markedNumber = 0;
+        this.markedSize = 0;
+    }
+
+    /**
+     * Gets the mails marked for deletion.
+     *
+     * @return The list of mails, in the mailbox's order.
+     */
+    protected List<Mail> getMarkedMails()
+    {
+        // Initialize vars
+        List<Mail> markedMailsList = new ArrayList<>(this.markedNumber);
+
+        for(int i = this.deletionMarks.nextSetBit(0); i >= 0; i = this.deletionMarks.nextSetBit(i + 1))
+        {
+            markedMailsList.add(this.mailsList.get(i));
+        }
+
+        return markedMailsList;
+    }
+
+    /**
+     * Gets the mails which aren't marked for deletion.
+     *
+     * @return The list of mails, in the mailbox's order.
+     */
+    protected List<Mail> getUnmarkedMails()
+    {
+        // Initialize vars
+        List<Mail> unmarkedMailsList = new ArrayList<>(this.getLiveNumber());
+
+        for(int i = this.deletionMarks.nextClearBit(0), j = this.mailsList.size(); i < j; i = this.deletionMarks.nextClearBit(i + 1))
+        {
+            unmarkedMailsList.add(this.mailsList.get(i));
+        }
+
+        return unmarkedMailsList;
+    }
+
+    /**
+     * Removes the mails marked for deletion from the mailbox, apart from
+     * those a filter keeps, which stay marked.
+     *
+     * @param keptFilter The filter telling which marked mails are kept.
+     */
+    protected void removeMarkedMails(Predicate<Mail> keptFilter)
+    {
+        // Initialize vars
+        List<Mail> keptMailsList = new ArrayList<>(this.getLiveNumber());
+        BitSet keptMarks = new BitSet();
+        int keptNumber = 0;
+        long keptSize = 0;
+        Mail mail;
+
+        for(int i = 0, j = this.mailsList.size(); i < j; i++)
+        {
+            mail = this.mailsList.get(i);
+
+            if(this.deletionMarks.get(i))
+            {
+                if(!keptFilter.test(mail))
+                {
+                    continue;
+                }
+
+                keptMarks.set(keptMailsList.size());
+                keptNumber++;
+                keptSize += mail.getSize();
+            }
+
+            keptMailsList.add(mail);
+        }
+
+        if(-1 != this.mailsSize)
+        {
+            this.mailsSize -= this.markedSize - keptSize;
+        }
+
+        this.mailsList = keptMailsList;
+        this.deletionMarks = keptMarks;
+        this.markedNumber = keptNumber;
+        this.markedSize = keptSize;
+    }
+
+    /**
+     * Removes every mail, before the mailbox is loaded again.
+     */
+    protected void clear()
+    {
+        this.mailsList.clear();
+        this.reset();
+        this.mailsSize = -1;
+    }
+
+    /**
+     * Deletes the mails marked for deletion without rewriting the mailbox's
+     * associated file.
+     *
+     * Their records are only flagged as tombstones in the mailbox's index, the
+     * space they take is reclaimed later by the {@link MailBoxCompactor}. Mails
+     * which have never been stored are simply removed from the mailbox.
+     *
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the
+     * index couldn't be updated, or if the file has been rewritten since the
+     * mails were read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     */
+    public void expunge()
+    throws FailedMailBoxUpdateException, InvalidMailBoxFileException
+    {
+        // Nothing else may read or write the mailbox meanwhile
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(this.path);
+
+        try
+        {
+            // Initialize vars
+            MailBoxIndex index;
+            MailBoxIndex.Entry entry;
+
+            try
+            {
+                // The records' offsets are only valid for the file they were read from
+                if(null != this.fileKey && !this.fileKey.equals(MailBox.getFileKey(this.path)))
+                {
+                    throw new IOException("The mailbox has been rewritten since it was read.");
+                }
+
+                index = MailBoxIndex.open(this.path);
+
+                for(Mail mail : this.getMarkedMails())
+                {
+                    if(null != (entry = this.recordsMap.remove(mail)) && index.markDeleted(entry.getOffset()))
+                    {
+                        this.deletedNumber++;
+                    }
+                }
+            }
+            catch(IOException ex)
+            {
+                throw new FailedMailBoxUpdateException(
+                    String.format(
+                        "Mails couldn't be deleted from mailbox \"%s\".",
+                        this.path.getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+
+            // Forget about the deleted mails
+            this.removeMarkedMails((mail) -> false);
+            MailBoxCache.getInstance().invalidate(this.path);
+
+            // Then, let the space be reclaimed if it is worth it
+            MailBoxCompactor.submit(this.path, index);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the key identifying a file, which changes when it is replaced.
+     *
+     * @param path The file's path.
+     * @return The file's key, <code>null</code> if the file system doesn't
+     * provide one or if it couldn't be read.
+     */
+    protected static Object getFileKey(File path)
+    {
+        try
+        {
+            return Files.readAttributes(path.toPath(), BasicFileAttributes.class).fileKey();
+        }
+        catch(IOException ex)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the end of data marker ending a text record.
+     *
+     * @param data The record.
+     * @param length The number of bytes to look at.
+     * @return The position of the <code>CRLF.CRLF</code> sequence,
+     * <code>-1</code> if it couldn't be found.
+     */
+    protected static int indexOfEndOfData(byte[] data, int length)
+    {
+        for(int i = 0; i + 4 < length; i++)
+        {
+            if(data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '.' && data[i + 3] == '\r' && data[i + 4] == '\n')
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the empty line ending the headers of a record.
+     *
+     * @param data The beginning of the record.
+     * @param length The number of bytes to look at.
+     * @return The position of the <code>CRLFCRLF</code> sequence,
+     * <code>-1</code> if it couldn't be found.
+     */
+    protected static int indexOfEmptyLine(byte[] data, int length)
+    {
+        for(int i = 0; i + 3 < length; i++)
+        {
+            if(data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n')
+            {
+                return i;
+            }
+        }
+
+        return -1;
     }
 }
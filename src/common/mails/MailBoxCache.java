@@ -0,0 +1,574 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.UnknownMailBoxException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the mailboxes loaded by the servers in memory, so that each session
+ * doesn't have to read them again.
+ *
+ * The cache is shared by the whole process and keyed by mailboxes' paths. An
+ * entry is dropped as soon as its mailbox is rewritten by this process, and
+ * becomes stale once the length or modification time of its files no longer
+ * match the ones it was loaded with, which catches appends and writes made by
+ * other processes. A stale mailbox is refreshed rather than loaded again, so
+ * that only the mails delivered since are read. When the estimated memory
+ * taken by the entries exceeds the budget, the least recently used ones are
+ * evicted.
+ *
+ * Callers always get their own copy of a cached mailbox, with their own marks
+ * for deletion and their own lazy mails, so that reading bodies or relocating
+ * them in a session doesn't change the cached mailbox behind the estimate of
+ * its memory. That estimate is computed again whenever the cached mailbox
+ * is refreshed.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxCache
+{
+    /**
+     * The default memory budget, in bytes.
+     */
+    public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+    /**
+     * The estimated memory taken by a mail besides its strings, in bytes.
+     */
+    protected static final int MAIL_OVERHEAD = 128;
+
+    /**
+     * The estimated memory taken by a header besides its strings, in bytes.
+     */
+    protected static final int HEADER_OVERHEAD = 96;
+
+    /**
+     * The number of stripes the mailboxes' generations are spread over.
+     */
+    protected static final int GENERATION_STRIPES_NUMBER = 256;
+
+    /**
+     * The cache shared by the process.
+     */
+    protected static final MailBoxCache instance = new MailBoxCache(MailBoxCache.DEFAULT_BUDGET);
+
+    /**
+     * The cached mailboxes, from the least to the most recently used.
+     */
+    protected final LinkedHashMap<File, CachedMailBox> entries;
+
+    /**
+     * The memory budget, in bytes.
+     */
+    protected long budget;
+
+    /**
+     * The estimated memory taken by the cached mailboxes, in bytes.
+     */
+    protected long memoryUsage;
+
+    /**
+     * The number of invalidations of the mailboxes of each stripe, so that a
+     * mailbox loaded while it was being written isn't cached. They are
+     * striped by a hash of the mailbox's path, so that writing a mailbox
+     * doesn't keep the others from being cached while memory stays bounded.
+     */
+    protected final long[] generations;
+
+    /**
+     * The number of mailboxes found in the cache.
+     */
+    protected final AtomicLong hitsNumber;
+
+    /**
+     * The number of mailboxes which had to be loaded.
+     */
+    protected final AtomicLong missesNumber;
+
+    /**
+     * The number of stale mailboxes which have been refreshed.
+     */
+    protected final AtomicLong refreshesNumber;
+
+    /**
+     * The number of mailboxes evicted to stay within the budget.
+     */
+    protected final AtomicLong evictionsNumber;
+
+    /**
+     * A cached mailbox with what it has been loaded from.
+     */
+    protected static class CachedMailBox
+    {
+        /**
+         * The loaded mailbox, which is never handed out.
+         */
+        protected final MailBox mailBox;
+
+        /**
+         * The state of the mailbox's files when it was loaded.
+         */
+        protected final long[] stamp;
+
+        /**
+         * The estimated memory taken by the mailbox, in bytes.
+         */
+        protected final long footprint;
+
+        /**
+         * Creates a new cached mailbox.
+         *
+         * @param mailBox The loaded mailbox.
+         * @param stamp The state of the mailbox's files when it was loaded.
+         * @param footprint The estimated memory taken by the mailbox.
+         */
+        protected CachedMailBox(MailBox mailBox, long[] stamp, long footprint)
+        {
+            this.mailBox = mailBox;
+            this.stamp = stamp;
+            this.footprint = footprint;
+        }
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param budget The memory budget, in bytes.
+     */
+    public MailBoxCache(long budget)
+    {
+        // Initialize properties
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.budget = budget;
+        this.memoryUsage = 0;
+        this.generations = new long[MailBoxCache.GENERATION_STRIPES_NUMBER];
+        this.hitsNumber = new AtomicLong();
+        this.missesNumber = new AtomicLong();
+        this.refreshesNumber = new AtomicLong();
+        this.evictionsNumber = new AtomicLong();
+    }
+
+    /**
+     * Gets the cache shared by the process.
+     *
+     * @return The cache.
+     */
+    public static MailBoxCache getInstance()
+    {
+        return MailBoxCache.instance;
+    }
+
+    /**
+     * Gets a loaded copy of a mailbox, from the cache if it is there and
+     * still fresh, by refreshing it if it is stale, otherwise by loading the
+     * headers of its mails.
+     *
+     * @param mailBox The mailbox to load, which must be empty.
+     * @return The loaded mailbox, which is the given one if it wasn't cached.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox can't be read.
+     * @see common.mails.MailBox#loadLazily()
+     */
+    public MailBox load(MailBox mailBox)
+    throws UnknownMailBoxException, InvalidMailBoxFileException, IOException
+    {
+        // Initialize vars
+        File path = mailBox.getPath();
+        long[] stamp = MailBoxCache.stamp(path), loadedStamp;
+        long generation, footprint;
+        MailBox cachedMailBox = this.get(path, stamp);
+        CachedMailBox staleEntry;
+
+        if(null != cachedMailBox)
+        {
+            this.hitsNumber.incrementAndGet();
+
+            return cachedMailBox;
+        }
+
+        synchronized(this)
+        {
+            generation = this.generations[MailBoxCache.getStripe(path)];
+            staleEntry = this.take(path);
+        }
+
+        if(null != staleEntry && staleEntry.mailBox.refresh())
+        {
+            // Only the mails appended since it was cached have been read, after the others
+            this.refreshesNumber.incrementAndGet();
+            mailBox = staleEntry.mailBox;
+            footprint = MailBoxCache.estimate(mailBox.getAll());
+        }
+        else if(null != staleEntry)
+        {
+            // It has been rewritten and loaded again
+            this.missesNumber.incrementAndGet();
+            mailBox = staleEntry.mailBox;
+            footprint = MailBoxCache.estimate(mailBox.getAll());
+        }
+        else
+        {
+            this.missesNumber.incrementAndGet();
+            mailBox.loadLazily();
+            footprint = MailBoxCache.estimate(mailBox.getAll());
+        }
+
+        // Loading may have rebuilt the index, but the mailbox itself must not
+        // have changed meanwhile
+        loadedStamp = MailBoxCache.stamp(path);
+
+        if(
+            null != stamp && null != loadedStamp
+            && stamp[0] == loadedStamp[0] && stamp[1] == loadedStamp[1]
+        )
+        {
+            this.put(mailBox.copy(), loadedStamp, generation, footprint);
+        }
+
+        return mailBox;
+    }
+
+    /**
+     * Tests if a mailbox is in the cache and still fresh.
+     *
+     * @param path The mailbox's path.
+     * @return <code>true</code> if it is cached, <code>false</code> otherwise.
+     */
+    public boolean contains(File path)
+    {
+        // Initialize vars
+        long[] stamp = MailBoxCache.stamp(path);
+
+        synchronized(this)
+        {
+            CachedMailBox entry = this.entries.get(path);
+
+            return null != entry && null != stamp && Arrays.equals(stamp, entry.stamp);
+        }
+    }
+
+    /**
+     * Drops a mailbox from the cache after it has been written.
+     *
+     * @param path The mailbox's path.
+     */
+    public synchronized void invalidate(File path)
+    {
+        this.generations[MailBoxCache.getStripe(path)]++;
+        this.remove(path);
+    }
+
+    /**
+     * Tells the cache that mails have been appended to a mailbox, which is
+     * kept so that only them have to be read, its estimated memory being
+     * computed again once they have.
+     *
+     * @param path The mailbox's path.
+     */
+    public synchronized void grow(File path)
+    {
+        this.generations[MailBoxCache.getStripe(path)]++;
+    }
+
+    /**
+     * Gets the stripe of a mailbox's generation.
+     *
+     * @param path The mailbox's path.
+     * @return The stripe's number.
+     */
+    protected static int getStripe(File path)
+    {
+        // Spread the hash's bits since stripes are picked by a modulo
+        int hash = path.hashCode();
+        hash ^= (hash >>> 16);
+
+        return Math.floorMod(hash, MailBoxCache.GENERATION_STRIPES_NUMBER);
+    }
+
+    /**
+     * Drops every mailbox from the cache.
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.memoryUsage = 0;
+    }
+
+    /**
+     * Gets a copy of a cached mailbox if it is still fresh.
+     *
+     * @param path The mailbox's path.
+     * @param stamp The current state of the mailbox's files.
+     * @return The copy, <code>null</code> if it isn't cached or is stale.
+     */
+    protected synchronized MailBox get(File path, long[] stamp)
+    {
+        CachedMailBox entry = this.entries.get(path);
+
+        if(null == entry || null == stamp || !Arrays.equals(stamp, entry.stamp))
+        {
+            return null;
+        }
+
+        return entry.mailBox.copy();
+    }
+
+    /**
+     * Takes a stale mailbox out of the cache.
+     *
+     * @param path The mailbox's path.
+     * @return The cached mailbox, <code>null</code> if it isn't cached.
+     */
+    protected synchronized CachedMailBox take(File path)
+    {
+        CachedMailBox entry = this.entries.get(path);
+
+        if(null != entry)
+        {
+            this.remove(path);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Adds a loaded mailbox to the cache, evicting the least recently used
+     * ones if needed.
+     *
+     * @param mailBox The loaded mailbox.
+     * @param stamp The state of the mailbox's files when it was loaded.
+     * @param generation The number of invalidations of its stripe before it
+     * was loaded.
+     * @param footprint The estimated memory taken by the mailbox.
+     */
+    protected synchronized void put(MailBox mailBox, long[] stamp, long generation, long footprint)
+    {
+        // Initialize vars
+        Iterator<Map.Entry<File, CachedMailBox>> iterator;
+
+        this.remove(mailBox.getPath());
+
+        // A mailbox written while it was loaded may be missing the changes
+        if(generation != this.generations[MailBoxCache.getStripe(mailBox.getPath())] || footprint > this.budget)
+        {
+            return;
+        }
+
+        // Make room for the mailbox
+        iterator = this.entries.entrySet().iterator();
+
+        while(this.memoryUsage + footprint > this.budget && iterator.hasNext())
+        {
+            this.memoryUsage -= iterator.next().getValue().footprint;
+            iterator.remove();
+            this.evictionsNumber.incrementAndGet();
+        }
+
+        // Then, add it
+        this.entries.put(mailBox.getPath(), new CachedMailBox(mailBox, stamp, footprint));
+        this.memoryUsage += footprint;
+    }
+
+    /**
+     * Removes a mailbox from the cache.
+     *
+     * @param path The mailbox's path.
+     */
+    protected void remove(File path)
+    {
+        CachedMailBox entry = this.entries.remove(path);
+
+        if(null != entry)
+        {
+            this.memoryUsage -= entry.footprint;
+        }
+    }
+
+    /**
+     * Gets the state of a mailbox's files: their lengths and modification
+     * times, or the modification times of the subdirectories mails are
+     * delivered in for a mailbox directory.
+     *
+     * @param path The mailbox's path.
+     * @return The state, <code>null</code> if the mailbox doesn't exist.
+     */
+    protected static long[] stamp(File path)
+    {
+        if(path.isDirectory())
+        {
+            return new long[]
+            {
+                new File(path, MailDir.NEW).lastModified(),
+                new File(path, MailDir.CUR).lastModified()
+            };
+        }
+        else if(path.isFile())
+        {
+            File indexPath = MailBoxIndex.getIndexFile(path);
+
+            // Deletions only change the index
+            return new long[]
+            {
+                path.length(), path.lastModified(), indexPath.length(), indexPath.lastModified()
+            };
+        }
+
+        return null;
+    }
+
+    /**
+     * Estimates the memory taken by loaded mails, counting their strings and
+     * the bodies which have been read.
+     *
+     * @param mails The mails.
+     * @return The estimated memory, in bytes.
+     */
+    protected static long estimate(List<Mail> mails)
+    {
+        // Initialize vars
+        long footprint = 0;
+
+        for(Mail mail : mails)
+        {
+            footprint += MailBoxCache.MAIL_OVERHEAD;
+
+            // A raw mail holds its bytes, and only what has been decoded from them
+            if(mail instanceof RawMail)
+            {
+                footprint += ((RawMail) mail).getData().length;
+            }
+            else if(mail instanceof LazyMail && ((LazyMail) mail).hasRawHeaders())
+            {
+                footprint += ((LazyMail) mail).getRawHeadersLength();
+            }
+
+            if(!(mail instanceof RawMail) || ((RawMail) mail).isHeadersParsed())
+            {
+                for(Map.Entry<String, String> header : mail.getHeaders().entrySet())
+                {
+                    footprint += MailBoxCache.HEADER_OVERHEAD
+                        + 2L * (header.getKey().length() + header.getValue().length());
+                }
+            }
+
+            if(
+                mail instanceof RawMail
+                    ? ((RawMail) mail).isBodyDecoded()
+                    : !(mail instanceof LazyMail) || ((LazyMail) mail).isBodyLoaded()
+            )
+            {
+                footprint += 2L * mail.getBody().length();
+            }
+        }
+
+        return footprint;
+    }
+
+    /**
+     * Gets the memory budget.
+     *
+     * @return The budget, in bytes.
+     */
+    public synchronized long getBudget()
+    {
+        return this.budget;
+    }
+
+    /**
+     * Sets the memory budget, evicting mailboxes if it is now exceeded.
+     *
+     * @param budget The budget, in bytes.
+     */
+    public synchronized void setBudget(long budget)
+    {
+        if(budget < 0)
+        {
+            throw new IllegalArgumentException("Budget can't be negative.");
+        }
+
+        // Initialize vars
+        Iterator<Map.Entry<File, CachedMailBox>> iterator = this.entries.entrySet().iterator();
+
+        this.budget = budget;
+
+        while(this.memoryUsage > this.budget && iterator.hasNext())
+        {
+            this.memoryUsage -= iterator.next().getValue().footprint;
+            iterator.remove();
+            this.evictionsNumber.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the estimated memory taken by the cached mailboxes.
+     *
+     * @return The memory usage, in bytes.
+     */
+    public synchronized long getMemoryUsage()
+    {
+        return this.memoryUsage;
+    }
+
+    /**
+     * Gets the number of cached mailboxes.
+     *
+     * @return The number of mailboxes.
+     */
+    public synchronized int getSize()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Gets the number of mailboxes found in the cache.
+     *
+     * @return The number of hits.
+     */
+    public long getHitsNumber()
+    {
+        return this.hitsNumber.get();
+    }
+
+    /**
+     * Gets the number of mailboxes which had to be loaded.
+     *
+     * @return The number of misses.
+     */
+    public long getMissesNumber()
+    {
+        return this.missesNumber.get();
+    }
+
+    /**
+     * Gets the number of stale mailboxes which have been refreshed.
+     *
+     * @return The number of refreshes.
+     */
+    public long getRefreshesNumber()
+    {
+        return this.refreshesNumber.get();
+    }
+
+    /**
+     * Gets the number of mailboxes evicted to stay within the budget.
+     *
+     * @return The number of evictions.
+     */
+    public long getEvictionsNumber()
+    {
+        return this.evictionsNumber.get();
+    }
+}
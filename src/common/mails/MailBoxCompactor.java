@@ -0,0 +1,479 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reclaims the space taken by deleted mails in mailboxes' files.
+ *
+ * Deleting mails only flags their records as tombstones in the mailbox's
+ * index. Once the tombstones take a large enough part of a mailbox, it is
+ * handed over to a single background thread which copies the live records
+ * into a new file, replacing the mailbox atomically.
+ *
+ * A mailbox locked by a POP3 session isn't compacted until the session ends,
+ * since the session reads the bodies at their offsets in the file.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxCompactor extends Thread
+{
+    /**
+     * The default ratio of dead space above which a mailbox is compacted.
+     */
+    public static final double DEFAULT_THRESHOLD = 0.3;
+
+    /**
+     * The ratio of dead space above which a mailbox is compacted.
+     */
+    protected static volatile double threshold = MailBoxCompactor.DEFAULT_THRESHOLD;
+
+    /**
+     * The background thread, started with the first submitted mailbox.
+     */
+    protected static MailBoxCompactor instance = null;
+
+    /**
+     * The number of bytes reclaimed since the server started.
+     */
+    protected static final AtomicLong reclaimedBytes = new AtomicLong();
+
+    /**
+     * The time spent compacting since the server started, in nanoseconds.
+     */
+    protected static final AtomicLong compactionTime = new AtomicLong();
+
+    /**
+     * The number of compactions since the server started.
+     */
+    protected static final AtomicLong compactionsNumber = new AtomicLong();
+
+    /**
+     * The mailboxes waiting to be compacted.
+     */
+    protected final Set<File> pendingPaths;
+
+    /**
+     * The mailboxes whose compaction waits for a session to end.
+     */
+    protected final Set<File> deferredPaths;
+
+    /**
+     * Creates the background thread.
+     */
+    protected MailBoxCompactor()
+    {
+        super("MailBoxCompactor");
+
+        // Initialize properties
+        this.pendingPaths = new LinkedHashSet<>();
+        this.deferredPaths = new HashSet<>();
+        this.setDaemon(true);
+    }
+
+    /**
+     * Gets the ratio of dead space above which a mailbox is compacted.
+     *
+     * @return The threshold.
+     */
+    public static double getThreshold()
+    {
+        return MailBoxCompactor.threshold;
+    }
+
+    /**
+     * Sets the ratio of dead space above which a mailbox is compacted.
+     *
+     * @param threshold The threshold, between 0 and 1.
+     */
+    public static void setThreshold(double threshold)
+    {
+        if(threshold < 0 || threshold > 1)
+        {
+            throw new IllegalArgumentException("Threshold must be between 0 and 1.");
+        }
+
+        MailBoxCompactor.threshold = threshold;
+    }
+
+    /**
+     * Gets the number of bytes reclaimed since the server started.
+     *
+     * @return The reclaimed bytes.
+     */
+    public static long getReclaimedBytes()
+    {
+        return MailBoxCompactor.reclaimedBytes.get();
+    }
+
+    /**
+     * Gets the time spent compacting since the server started.
+     *
+     * @return The time spent, in milliseconds.
+     */
+    public static long getCompactionTime()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(MailBoxCompactor.compactionTime.get());
+    }
+
+    /**
+     * Gets the number of compactions since the server started.
+     *
+     * @return The number of compactions.
+     */
+    public static long getCompactionsNumber()
+    {
+        return MailBoxCompactor.compactionsNumber.get();
+    }
+
+    /**
+     * Schedules the compaction of a mailbox if its tombstones take enough
+     * space.
+     *
+     * @param path The mailbox's path.
+     * @param index The mailbox's up-to-date index.
+     */
+    public static void submit(File path, MailBoxIndex index)
+    {
+        if(index.getDeadSpace() > 0 && index.getDeadSpaceRatio() >= MailBoxCompactor.threshold)
+        {
+            MailBoxCompactor.getInstance().schedule(path);
+        }
+    }
+
+    /**
+     * Compacts a mailbox right away by copying its live records into a new
+     * file which then replaces it.
+     *
+     * The mailbox is locked meanwhile, which also keeps out the deliveries of
+     * the other processes once the locks are shared through the mailboxes'
+     * directory, so that it can't grow between the last check of its length
+     * and its replacement. Records appended by a process which doesn't share
+     * them while the live ones are copied are carried over, but the
+     * compaction is given up if the mailbox is still growing once they have
+     * been, it will be tried again with the next deletion.
+     *
+     * @param path The mailbox's path.
+     * @return The number of bytes reclaimed.
+     * @throws java.io.IOException If the mailbox couldn't be compacted.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     */
+    public static long compact(File path)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Deliveries wait for the compaction to end, in every process sharing the locks
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(path);
+
+        try
+        {
+            // A session's snapshot must stay valid, the mailbox is compacted once it ends
+            if(MailBoxLockManager.getInstance().isSessionLocked(path))
+            {
+                MailBoxCompactor.getInstance().defer(path);
+
+                return 0;
+            }
+
+            // Initialize vars
+            long start = System.nanoTime();
+            MailBoxIndex index = MailBoxIndex.open(path);
+            MailBoxIndex compactedIndex = new MailBoxIndex(path);
+            File directory = path.getAbsoluteFile().getParentFile();
+            File temporaryFile = null;
+            long position, indexedLength = index.getIndexedLength(), length;
+            MailBoxFormat format;
+            int headerLength;
+            List<String> releasedHashes;
+
+            if(0 == index.getDeadSpace())
+            {
+                return 0;
+            }
+
+            // The records are copied in their own format
+            format = MailBoxFormat.detect(path);
+            headerLength = format.getRecordHeaderLength();
+            position = format.getFileHeaderLength();
+
+            // The shared bodies of the dropped records will be released
+            releasedHashes = MailBox.getSharedBodies(path, index.getDeletedEntries());
+
+            try
+            {
+                temporaryFile = File.createTempFile(path.getName() + ".", ".tmp", directory);
+
+                try(
+                    FileChannel source = FileChannel.open(path.toPath(), StandardOpenOption.READ);
+                    FileChannel target = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE)
+                )
+                {
+                    // Copy the file's header, then the live records with theirs
+                    MailBoxCompactor.transfer(source, 0, position, target);
+
+                    for(MailBoxIndex.Entry entry : index.getLiveEntries())
+                    {
+                        MailBoxCompactor.transfer(source, entry.getOffset() - headerLength, headerLength + entry.getLength(), target);
+                        compactedIndex.getEntries().add(new MailBoxIndex.Entry(
+                            position + headerLength,
+                            entry.getLength(),
+                            entry.getSize()
+                        ));
+                        position += headerLength + entry.getLength();
+                    }
+
+                    // Then, the records appended in the meantime
+                    length = source.size();
+
+                    if(length > indexedLength)
+                    {
+                        MailBoxParser parser = new MailBoxParser(
+                            Channels.newInputStream(source.position(indexedLength)),
+                            path.getAbsolutePath(),
+                            MailBoxParser.DEFAULT_BUFFER_SIZE,
+                            format
+                        );
+
+                        try
+                        {
+                            while(parser.next())
+                            {
+                                compactedIndex.getEntries().add(new MailBoxIndex.Entry(
+                                    position + parser.getRecordOffset(),
+                                    parser.getRecordLength(),
+                                    parser.getSize()
+                                ));
+                            }
+                        }
+                        catch(InvalidMailBoxFileException ex)
+                        {
+                            // A record is still being appended
+                            return 0;
+                        }
+
+                        length = indexedLength + parser.getRecordOffset() + parser.getRecordLength();
+                        MailBoxCompactor.transfer(source, indexedLength, length - indexedLength, target);
+                    }
+
+                    if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+                    {
+                        target.force(true);
+                    }
+
+                    // Give up if the mailbox has grown again
+                    if(source.size() != length)
+                    {
+                        return 0;
+                    }
+                }
+
+                // The old index mustn't be mistaken for the new file's
+                index.invalidate();
+                MailBox.replace(temporaryFile, path);
+                temporaryFile = null;
+                MailBoxCache.getInstance().invalidate(path);
+                MailBoxSyncer.sync(directory.toPath());
+            }
+            finally
+            {
+                if(null != temporaryFile && temporaryFile.exists() && !temporaryFile.delete())
+                {
+                    Logger.getLogger(MailBoxCompactor.class.getName()).log(
+                        Level.WARNING,
+                        "Couldn't delete temporary file \"{0}\".",
+                        temporaryFile.getAbsolutePath()
+                    );
+                }
+            }
+
+            // Finally, write the new index
+            try
+            {
+                compactedIndex.save();
+            }
+            catch(IOException ex)
+            {
+                compactedIndex.invalidate();
+            }
+
+            MailBox.releaseSharedBodies(releasedHashes);
+
+            // Update the statistics
+            long reclaimed = length - path.length();
+
+            MailBoxCompactor.reclaimedBytes.addAndGet(reclaimed);
+            MailBoxCompactor.compactionTime.addAndGet(System.nanoTime() - start);
+            MailBoxCompactor.compactionsNumber.incrementAndGet();
+
+            return reclaimed;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies a range of a channel at the end of another one.
+     *
+     * @param source The channel to copy from.
+     * @param offset The range's offset.
+     * @param count The range's length.
+     * @param target The channel to copy to.
+     * @throws java.io.IOException If the range couldn't be copied.
+     */
+    protected static void transfer(FileChannel source, long offset, long count, FileChannel target)
+    throws IOException
+    {
+        for(long transferred = 0; transferred < count; )
+        {
+            transferred += source.transferTo(offset + transferred, count - transferred, target);
+        }
+    }
+
+    /**
+     * Gets the background thread, starting it if needed.
+     *
+     * @return The background thread.
+     */
+    protected static synchronized MailBoxCompactor getInstance()
+    {
+        if(null == MailBoxCompactor.instance)
+        {
+            MailBoxCompactor.instance = new MailBoxCompactor();
+            MailBoxCompactor.instance.start();
+        }
+
+        return MailBoxCompactor.instance;
+    }
+
+    /**
+     * Schedules the compaction of a mailbox if it has been deferred until the
+     * end of a session.
+     *
+     * @param path The mailbox's path.
+     */
+    public static void resume(File path)
+    {
+        // Initialize vars
+        MailBoxCompactor compactor;
+
+        synchronized(MailBoxCompactor.class)
+        {
+            compactor = MailBoxCompactor.instance;
+        }
+
+        if(null != compactor)
+        {
+            synchronized(compactor.pendingPaths)
+            {
+                if(compactor.deferredPaths.remove(path))
+                {
+                    compactor.schedule(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a mailbox to the ones waiting for a session to end before being
+     * compacted.
+     *
+     * @param path The mailbox's path.
+     */
+    protected void defer(File path)
+    {
+        synchronized(this.pendingPaths)
+        {
+            this.deferredPaths.add(path);
+        }
+    }
+
+    /**
+     * Adds a mailbox to the ones waiting to be compacted.
+     *
+     * @param path The mailbox's path.
+     */
+    protected void schedule(File path)
+    {
+        synchronized(this.pendingPaths)
+        {
+            this.pendingPaths.add(path);
+            this.pendingPaths.notify();
+        }
+    }
+
+    /**
+     * The background thread's main loop: compacting the pending mailboxes one
+     * after the other.
+     */
+    @Override
+    public void run()
+    {
+        // Initialize vars
+        File path;
+
+        while(true)
+        {
+            // Wait for a mailbox to compact
+            synchronized(this.pendingPaths)
+            {
+                while(this.pendingPaths.isEmpty())
+                {
+                    try
+                    {
+                        this.pendingPaths.wait();
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        return;
+                    }
+                }
+
+                path = this.pendingPaths.iterator().next();
+                this.pendingPaths.remove(path);
+            }
+
+            // Then, compact it
+            try
+            {
+                long reclaimed = MailBoxCompactor.compact(path);
+
+                Logger.getLogger(MailBoxCompactor.class.getName()).log(
+                    Level.INFO,
+                    "Compacted mailbox \"{0}\", {1} bytes reclaimed.",
+                    new Object[]
+                    {
+                        path.getAbsolutePath(), reclaimed
+                    }
+                );
+            }
+            catch(IOException | InvalidMailBoxFileException ex)
+            {
+                Logger.getLogger(MailBoxCompactor.class.getName()).log(
+                    Level.SEVERE,
+                    String.format(
+                        "Couldn't compact mailbox \"%s\".",
+                        path.getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Converts the text mailbox files of the mailboxes' directory to the binary
+ * format, while the servers keep running.
+ *
+ * The directory tree is walked as a stream and the mailboxes are converted by
+ * a pool of threads, each of them being locked meanwhile. The records are
+ * copied as is behind their new header, deleted ones included, so that the
+ * index keeps its tombstones.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.MailBoxFormat
+ */
+public class MailBoxConverter
+{
+    /**
+     * The mailboxes' directory.
+     */
+    protected File root;
+
+    /**
+     * The number of threads converting the mailboxes.
+     */
+    protected int threadsNumber;
+
+    /**
+     * The number of mailboxes converted.
+     */
+    protected final AtomicLong convertedNumber;
+
+    /**
+     * The number of mailboxes which couldn't be converted.
+     */
+    protected final AtomicLong failedNumber;
+
+    /**
+     * Creates a new converter.
+     *
+     * @param root The mailboxes' directory.
+     * @param threadsNumber The number of threads converting the mailboxes.
+     */
+    public MailBoxConverter(File root, int threadsNumber)
+    {
+        if(threadsNumber <= 0)
+        {
+            throw new IllegalArgumentException("Threads number must be positive.");
+        }
+
+        // Initialize properties
+        this.root = root;
+        this.threadsNumber = threadsNumber;
+        this.convertedNumber = new AtomicLong();
+        this.failedNumber = new AtomicLong();
+    }
+
+    /**
+     * Converts every text mailbox file, waiting for all of them to be
+     * converted.
+     *
+     * @throws java.io.IOException If the mailboxes' directory couldn't be
+     * walked.
+     * @throws java.lang.InterruptedException If the conversion has been
+     * interrupted.
+     */
+    public void convert()
+    throws IOException, InterruptedException
+    {
+        // Initialize vars
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadsNumber);
+
+        try(Stream<Path> entries = Files.walk(this.root.toPath()))
+        {
+            entries
+                .filter((entry) -> entry.getFileName().toString().endsWith(MailBoxLocator.EXTENSION))
+                .filter((entry) -> Files.isRegularFile(entry))
+                .forEach((entry) -> executor.execute(() -> this.convert(entry.toFile())));
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Converts a single mailbox file.
+     *
+     * @param path The mailbox file's path.
+     */
+    protected void convert(File path)
+    {
+        try
+        {
+            if(MailBoxConverter.convertFile(path))
+            {
+                this.convertedNumber.incrementAndGet();
+            }
+        }
+        catch(IOException | InvalidMailBoxFileException ex)
+        {
+            this.failedNumber.incrementAndGet();
+
+            Logger.getLogger(MailBoxConverter.class.getName()).log(
+                Level.SEVERE,
+                String.format(
+                    "Couldn't convert mailbox \"%s\".",
+                    path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Converts a mailbox file to the binary format if it is a text one, by
+     * copying its records into a new file which then replaces it.
+     *
+     * @param path The mailbox file's path.
+     * @return <code>true</code> if the mailbox has been converted,
+     * <code>false</code> if it already was a binary one.
+     * @throws java.io.IOException If the mailbox couldn't be converted, or if
+     * it is locked by a session.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     */
+    public static boolean convertFile(File path)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Deliveries wait for the conversion to end
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(path);
+
+        try
+        {
+            // Initialize vars
+            File directory = path.getAbsoluteFile().getParentFile();
+            File temporaryFile = null;
+            MailBoxIndex index, convertedIndex = new MailBoxIndex(path);
+            Iterator<MailBoxIndex.Entry> entriesIterator;
+            MailBoxIndex.Entry entry;
+            MailBoxParser parser;
+            DataOutputStream dataWriter;
+            long position = MailBoxFormat.BINARY.getFileHeaderLength();
+
+            if(MailBoxFormat.TEXT != MailBoxFormat.detect(path))
+            {
+                return false;
+            }
+
+            // A session reads the bodies at their offsets in the file
+            if(MailBoxLockManager.getInstance().isSessionLocked(path))
+            {
+                throw new IOException(String.format(
+                    "Mailbox \"%s\" is locked by a session.",
+                    path.getAbsolutePath()
+                ));
+            }
+
+            // The index gives the sizes and the tombstones of the records
+            index = MailBoxIndex.open(path);
+            entriesIterator = index.getEntries().iterator();
+
+            try
+            {
+                temporaryFile = File.createTempFile(path.getName() + ".", ".tmp", directory);
+
+                try(
+                    FileInputStream mailBoxStream = new FileInputStream(path);
+                    FileOutputStream convertedStream = new FileOutputStream(temporaryFile)
+                )
+                {
+                    parser = new MailBoxParser(mailBoxStream, path.getAbsolutePath());
+                    dataWriter = new DataOutputStream(new BufferedOutputStream(convertedStream, MailBoxParser.DEFAULT_BUFFER_SIZE));
+                    MailBoxFormat.writeFileHeader(dataWriter);
+
+                    while(parser.next())
+                    {
+                        entry = entriesIterator.hasNext() ? entriesIterator.next() : null;
+
+                        if(null == entry || entry.getOffset() != parser.getRecordOffset())
+                        {
+                            index.invalidate();
+
+                            throw new InvalidMailBoxFileException(String.format(
+                                "Index of mailbox \"%s\" doesn't match its records.",
+                                path.getAbsolutePath()
+                            ));
+                        }
+
+                        position += MailBoxFormat.BINARY.getRecordHeaderLength();
+                        convertedIndex.getEntries().add(new MailBoxIndex.Entry(
+                            position,
+                            parser.getRecordLength(),
+                            entry.getSize(),
+                            entry.getFlags()
+                        ));
+                        parser.writeBinaryRecord(dataWriter);
+                        position += parser.getRecordLength();
+                    }
+
+                    dataWriter.flush();
+
+                    if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+                    {
+                        convertedStream.getChannel().force(true);
+                    }
+                }
+
+                // The old index mustn't be mistaken for the new file's
+                index.invalidate();
+                MailBox.replace(temporaryFile, path);
+                temporaryFile = null;
+                MailBoxCache.getInstance().invalidate(path);
+                MailBoxSyncer.sync(directory.toPath());
+            }
+            finally
+            {
+                if(null != temporaryFile && temporaryFile.exists() && !temporaryFile.delete())
+                {
+                    Logger.getLogger(MailBoxConverter.class.getName()).log(
+                        Level.WARNING,
+                        "Couldn't delete temporary file \"{0}\".",
+                        temporaryFile.getAbsolutePath()
+                    );
+                }
+            }
+
+            // Finally, write the new index
+            try
+            {
+                convertedIndex.save();
+            }
+            catch(IOException ex)
+            {
+                convertedIndex.invalidate();
+            }
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of mailboxes converted.
+     *
+     * @return The number of mailboxes.
+     */
+    public long getConvertedNumber()
+    {
+        return this.convertedNumber.get();
+    }
+
+    /**
+     * Gets the number of mailboxes which couldn't be converted.
+     *
+     * @return The number of mailboxes.
+     */
+    public long getFailedNumber()
+    {
+        return this.failedNumber.get();
+    }
+
+    /**
+     * Entry point for the conversion.
+     *
+     * @param args Command line arguments: the mailboxes' directory and,
+     * optionally, the number of threads.
+     */
+    public static void main(String[] args)
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: MailBoxConverter <mailboxes directory> [threads]");
+            System.exit(1);
+        }
+
+        try
+        {
+            // The servers may keep running meanwhile
+            MailBoxLockManager.getInstance().share(new File(args[0]));
+
+            MailBoxConverter converter = new MailBoxConverter(
+                new File(args[0]),
+                args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors()
+            );
+            converter.convert();
+
+            Logger.getLogger(MailBoxConverter.class.getName()).log(
+                Level.INFO,
+                "{0} mailboxes converted, {1} failed.",
+                new Object[]
+                {
+                    converter.getConvertedNumber(), converter.getFailedNumber()
+                }
+            );
+        }
+        catch(IOException | InterruptedException ex)
+        {
+            Logger.getLogger(MailBoxConverter.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't convert mailboxes.",
+                ex
+            );
+        }
+    }
+}
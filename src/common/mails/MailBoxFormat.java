@@ -0,0 +1,194 @@
+package common.mails;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+/**
+ * The formats a mailbox file can be written in, both holding the same records:
+ * a mail's headers, an empty line, its body then the end of data marker.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.MailBoxParser
+ */
+public enum MailBoxFormat
+{
+    /**
+     * The records follow each other, each one ending at the first end of data
+     * marker found in it. Bodies aren't dot-stuffed, so a mail whose body has
+     * a line made of a single dot can't be written in this format.
+     */
+    TEXT(0, 0),
+    /**
+     * The file starts with a magic number and the format's version, and every
+     * record with its length, the length of its headers, flags and a CRC32
+     * checksum. Records are skipped without being looked at, the end of data
+     * marker is only kept so that their entries in the index are the same in
+     * both formats.
+     */
+    BINARY(8, 16);
+
+    /**
+     * The magic number binary mailbox files start with.
+     */
+    public static final int MAGIC = 0x894D4258;
+
+    /**
+     * The version of the binary format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * The flag of the records whose body has been compressed.
+     */
+    public static final int FLAG_COMPRESSED = 1;
+
+    /**
+     * The flag of the records whose body is in the {@link MailBlobStore}.
+     */
+    public static final int FLAG_SHARED = 2;
+
+    /**
+     * The length of the header the file starts with.
+     */
+    protected final int fileHeaderLength;
+
+    /**
+     * The length of the header every record starts with.
+     */
+    protected final int recordHeaderLength;
+
+    /**
+     * Creates a new format.
+     *
+     * @param fileHeaderLength The length of the header the file starts with.
+     * @param recordHeaderLength The length of the header every record starts
+     * with.
+     */
+    private MailBoxFormat(int fileHeaderLength, int recordHeaderLength)
+    {
+        this.fileHeaderLength = fileHeaderLength;
+        this.recordHeaderLength = recordHeaderLength;
+    }
+
+    /**
+     * Gets the length of the header the file starts with.
+     *
+     * @return The header's length, <code>0</code> if there is none.
+     */
+    public int getFileHeaderLength()
+    {
+        return this.fileHeaderLength;
+    }
+
+    /**
+     * Gets the length of the header every record starts with, before the
+     * record's content described by the index.
+     *
+     * @return The header's length, <code>0</code> if there is none.
+     */
+    public int getRecordHeaderLength()
+    {
+        return this.recordHeaderLength;
+    }
+
+    /**
+     * Tells the format of a mailbox file from its first bytes.
+     *
+     * @param path The mailbox file's path.
+     * @return The file's format, {@link #TEXT} if it is empty.
+     * @throws java.io.IOException If the file couldn't be read.
+     */
+    public static MailBoxFormat detect(File path)
+    throws IOException
+    {
+        // Initialize vars
+        byte[] header = new byte[4];
+        int readLength = 0, readBytes;
+
+        try(FileInputStream mailBoxStream = new FileInputStream(path))
+        {
+            while(readLength < header.length && -1 != (readBytes = mailBoxStream.read(header, readLength, header.length - readLength)))
+            {
+                readLength += readBytes;
+            }
+        }
+
+        return MailBoxFormat.detect(header, 0, readLength);
+    }
+
+    /**
+     * Tells the format of a mailbox file from its first bytes.
+     *
+     * @param data The array holding the bytes.
+     * @param offset The position of the bytes in the array.
+     * @param length The number of bytes available.
+     * @return The file's format.
+     */
+    public static MailBoxFormat detect(byte[] data, int offset, int length)
+    {
+        return length >= 4 && MailBoxFormat.MAGIC == MailBoxFormat.readInt(data, offset)
+            ? MailBoxFormat.BINARY
+            : MailBoxFormat.TEXT;
+    }
+
+    /**
+     * Writes the header a binary mailbox file starts with.
+     *
+     * @param dataWriter The stream to write the header into.
+     * @throws java.io.IOException If the header couldn't be written.
+     */
+    public static void writeFileHeader(DataOutputStream dataWriter)
+    throws IOException
+    {
+        dataWriter.writeInt(MailBoxFormat.MAGIC);
+        dataWriter.writeInt(MailBoxFormat.VERSION);
+    }
+
+    /**
+     * Writes the header of a binary record, which must then be followed by
+     * the record's content.
+     *
+     * @param dataWriter The stream to write the header into.
+     * @param data The array holding the record's content.
+     * @param offset The position of the content in the array.
+     * @param length The length of the content, including the end of data
+     * marker.
+     * @param headersLength The length of the content's headers, including the
+     * empty line ending them, <code>0</code> if there are none.
+     * @param flags The record's flags.
+     * @throws java.io.IOException If the header couldn't be written.
+     */
+    public static void writeRecordHeader(DataOutputStream dataWriter, byte[] data, int offset, int length, int headersLength, int flags)
+    throws IOException
+    {
+        // Initialize vars
+        CRC32 crc = new CRC32();
+
+        crc.update(data, offset, length);
+
+        dataWriter.writeInt(length);
+        dataWriter.writeInt(headersLength);
+        dataWriter.writeInt(flags);
+        dataWriter.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Reads a big-endian integer from an array.
+     *
+     * @param data The array.
+     * @param offset The position of the integer.
+     * @return The integer.
+     */
+    protected static int readInt(byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) << 24
+            | (data[offset + 1] & 0xFF) << 16
+            | (data[offset + 2] & 0xFF) << 8
+            | (data[offset + 3] & 0xFF);
+    }
+}
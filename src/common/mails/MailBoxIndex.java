@@ -0,0 +1,896 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import smtp.SmtpProtocol;
+
+/**
+ * A sidecar file stored next to a mailbox which records where each mail
+ * starts in the mailbox file, how many bytes its record takes and its size
+ * in octets, so that mails can be located without parsing the mailbox. In the
+ * binary format, an entry describes a record's content, after its header.
+ *
+ * The index remembers the mailbox file's length and modification time it was
+ * built for, and is considered stale as soon as one of them differs. A stale
+ * index of a mailbox which has only grown is brought up-to-date by scanning
+ * the new records only.
+ *
+ * Deleted mails aren't removed from the mailbox file right away: their
+ * entries are flagged as tombstones, and the space they take is reclaimed
+ * later by the {@link MailBoxCompactor}.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxIndex
+{
+    /**
+     * The extension of index files.
+     */
+    public static final String EXTENSION = ".idx";
+
+    /**
+     * The magic number index files start with.
+     */
+    protected static final int MAGIC = 0x4D425849;
+
+    /**
+     * The version of the index file format.
+     */
+    protected static final int VERSION = 2;
+
+    /**
+     * The length of the index file's header: magic number, version, mailbox
+     * length and mailbox modification time.
+     */
+    protected static final int HEADER_LENGTH = 24;
+
+    /**
+     * The length of an entry: offset, length, size and flags.
+     */
+    protected static final int ENTRY_LENGTH = 20;
+
+    /**
+     * The flag of the entries whose mail has been deleted.
+     */
+    public static final int FLAG_DELETED = 1;
+
+    /**
+     * The index file's path.
+     */
+    protected File path;
+
+    /**
+     * The indexed mailbox file's path.
+     */
+    protected File mailBoxPath;
+
+    /**
+     * The index's entries, one per mail.
+     */
+    protected List<Entry> entries;
+
+    /**
+     * The length of the mailbox file the loaded entries describe.
+     */
+    protected long indexedLength;
+
+    /**
+     * The position in the index file of the first loaded entry, only the
+     * last entries being loaded when refreshing a mailbox.
+     */
+    protected int firstEntry;
+
+    /**
+     * An entry of the index, describing where a mail's record is.
+     */
+    public static class Entry
+    {
+        /**
+         * The offset of the record in the mailbox file, after its header in
+         * the binary format.
+         */
+        protected long offset;
+
+        /**
+         * The length of the record, including the end of data marker but not
+         * the header of a binary record.
+         */
+        protected int length;
+
+        /**
+         * The mail's size in octets.
+         */
+        protected int size;
+
+        /**
+         * The entry's flags.
+         */
+        protected int flags;
+
+        /**
+         * Creates a new index entry.
+         *
+         * @param offset The offset of the record in the mailbox file.
+         * @param length The length of the record.
+         * @param size The mail's size in octets.
+         */
+        public Entry(long offset, int length, int size)
+        {
+            this(offset, length, size, 0);
+        }
+
+        /**
+         * Creates a new index entry.
+         *
+         * @param offset The offset of the record in the mailbox file.
+         * @param length The length of the record.
+         * @param size The mail's size in octets.
+         * @param flags The entry's flags.
+         */
+        public Entry(long offset, int length, int size, int flags)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.flags = flags;
+        }
+
+        /**
+         * Gets the offset of the record in the mailbox file.
+         *
+         * @return The record's offset.
+         */
+        public long getOffset()
+        {
+            return this.offset;
+        }
+
+        /**
+         * Gets the length of the record, including the end of data marker.
+         *
+         * @return The record's length.
+         */
+        public int getLength()
+        {
+            return this.length;
+        }
+
+        /**
+         * Gets the mail's size in octets.
+         *
+         * @return The mail's size.
+         */
+        public int getSize()
+        {
+            return this.size;
+        }
+
+        /**
+         * Gets the entry's flags.
+         *
+         * @return The flags.
+         */
+        public int getFlags()
+        {
+            return this.flags;
+        }
+
+        /**
+         * Tests if the mail has been deleted.
+         *
+         * @return <code>true</code> if the entry is a tombstone,
+         * <code>false</code> otherwise.
+         */
+        public boolean isDeleted()
+        {
+            return 0 != (this.flags & MailBoxIndex.FLAG_DELETED);
+        }
+    }
+
+    /**
+     * Creates a new index for a given mailbox.
+     *
+     * @param mailBoxPath The indexed mailbox file's path.
+     */
+    public MailBoxIndex(File mailBoxPath)
+    {
+        // Initialize properties
+        this.mailBoxPath = mailBoxPath;
+        this.path = MailBoxIndex.getIndexFile(mailBoxPath);
+        this.entries = new ArrayList<>();
+        this.indexedLength = 0;
+        this.firstEntry = 0;
+    }
+
+    /**
+     * Gets the path of the index file associated to a mailbox file.
+     *
+     * @param mailBoxPath The mailbox file's path.
+     * @return The index file's path.
+     */
+    public static File getIndexFile(File mailBoxPath)
+    {
+        String name = mailBoxPath.getName();
+        int dotPos = name.lastIndexOf('.');
+
+        return new File(
+            mailBoxPath.getParentFile(),
+            (-1 != dotPos ? name.substring(0, dotPos) : name) + MailBoxIndex.EXTENSION
+        );
+    }
+
+    /**
+     * Opens the index of a mailbox, updating it if the mailbox has grown and
+     * rebuilding it if it is missing or can't be updated.
+     *
+     * @param mailBoxPath The mailbox file's path.
+     * @return The up-to-date index.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     */
+    public static MailBoxIndex open(File mailBoxPath)
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxIndex index = new MailBoxIndex(mailBoxPath);
+
+        if(!index.load())
+        {
+            if(!index.update())
+            {
+                index.rebuild();
+            }
+
+            try
+            {
+                index.save();
+            }
+            catch(IOException ex)
+            {
+                // The index is still usable, it will simply be rebuilt next time
+                Logger.getLogger(MailBoxIndex.class.getName()).log(
+                    Level.WARNING,
+                    String.format(
+                        "Couldn't save index \"%s\".",
+                        index.path.getAbsolutePath()
+                    ),
+                    ex
+                );
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Gets the index file's path.
+     *
+     * @return The index file's path.
+     */
+    public File getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * Gets the number of indexed mails.
+     *
+     * @return The number of entries.
+     */
+    public int getSize()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Gets an entry by its mail's index.
+     *
+     * @param index The mail's index.
+     * @return The entry.
+     */
+    public Entry get(int index)
+    {
+        return this.entries.get(index);
+    }
+
+    /**
+     * Gets every entry of the index.
+     *
+     * @return The entries.
+     */
+    public List<Entry> getEntries()
+    {
+        return this.entries;
+    }
+
+    /**
+     * Gets the entries of the mails which haven't been deleted.
+     *
+     * @return The live entries.
+     */
+    public List<Entry> getLiveEntries()
+    {
+        // Initialize vars
+        List<Entry> liveEntries = new ArrayList<>(this.entries.size());
+
+        for(Entry entry : this.entries)
+        {
+            if(!entry.isDeleted())
+            {
+                liveEntries.add(entry);
+            }
+        }
+
+        return liveEntries;
+    }
+
+    /**
+     * Gets the entries of the deleted mails, whose records are still in the
+     * mailbox file.
+     *
+     * @return The tombstones.
+     */
+    public List<Entry> getDeletedEntries()
+    {
+        // Initialize vars
+        List<Entry> deletedEntries = new ArrayList<>();
+
+        for(Entry entry : this.entries)
+        {
+            if(entry.isDeleted())
+            {
+                deletedEntries.add(entry);
+            }
+        }
+
+        return deletedEntries;
+    }
+
+    /**
+     * Tests if the index file exists and was built for the current state of
+     * the mailbox file, only reading its header.
+     *
+     * @return <code>true</code> if the index is up-to-date, <code>false</code>
+     * otherwise.
+     */
+    public boolean isUpToDate()
+    {
+        if(!this.path.isFile() || !this.mailBoxPath.isFile())
+        {
+            return false;
+        }
+
+        try(DataInputStream indexReader = new DataInputStream(new FileInputStream(this.path)))
+        {
+            return this.readHeader(indexReader);
+        }
+        catch(IOException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Loads the index from its file.
+     *
+     * @return <code>true</code> if the index has been loaded,
+     * <code>false</code> if it is missing, corrupted or stale.
+     */
+    public boolean load()
+    {
+        return this.read() && this.indexedLength == this.mailBoxPath.length() && this.isUpToDate();
+    }
+
+    /**
+     * Loads the last entries of an up-to-date index from its file, only
+     * looking at the flags of the ones before them. Such an index can't be
+     * saved.
+     *
+     * @param firstEntry The position of the first entry to load.
+     * @return The number of deleted entries before the first one loaded,
+     * <code>-1</code> if the index is missing, corrupted, stale, or has less
+     * entries.
+     */
+    public int loadFrom(int firstEntry)
+    {
+        // Initialize vars
+        int deletedNumber = 0;
+
+        this.entries.clear();
+        this.firstEntry = 0;
+
+        if(!this.path.isFile() || !this.mailBoxPath.isFile())
+        {
+            return -1;
+        }
+
+        try(DataInputStream indexReader = new DataInputStream(new BufferedInputStream(new FileInputStream(this.path))))
+        {
+            // Initialize vars
+            long entriesNumber = (this.path.length() - MailBoxIndex.HEADER_LENGTH) / MailBoxIndex.ENTRY_LENGTH;
+
+            if(!this.readHeader(indexReader) || entriesNumber < firstEntry)
+            {
+                return -1;
+            }
+
+            // Only the flags of the first entries matter, they are read by chunks of whole entries
+            byte[] chunk = new byte[MailBoxIndex.ENTRY_LENGTH * 4096];
+            long remainingLength = (long) firstEntry * MailBoxIndex.ENTRY_LENGTH;
+            int chunkLength;
+
+            while(remainingLength > 0)
+            {
+                chunkLength = (int) Math.min(chunk.length, remainingLength);
+                indexReader.readFully(chunk, 0, chunkLength);
+                remainingLength -= chunkLength;
+
+                for(int i = MailBoxIndex.ENTRY_LENGTH - 4; i < chunkLength; i += MailBoxIndex.ENTRY_LENGTH)
+                {
+                    if(0 != (MailBoxFormat.readInt(chunk, i) & MailBoxIndex.FLAG_DELETED))
+                    {
+                        deletedNumber++;
+                    }
+                }
+            }
+
+            for(long i = firstEntry; i < entriesNumber; i++)
+            {
+                this.entries.add(new Entry(
+                    indexReader.readLong(),
+                    indexReader.readInt(),
+                    indexReader.readInt(),
+                    indexReader.readInt()
+                ));
+            }
+
+            this.indexedLength = this.mailBoxPath.length();
+            this.firstEntry = firstEntry;
+
+            return deletedNumber;
+        }
+        catch(IOException ex)
+        {
+            // The index will be brought up-to-date when it is opened
+            this.entries.clear();
+
+            return -1;
+        }
+    }
+
+    /**
+     * Loads a stale index from its file and brings it up-to-date by scanning
+     * the records appended to the mailbox since it was written, keeping the
+     * existing entries and their flags.
+     *
+     * @return <code>true</code> if the index has been updated,
+     * <code>false</code> if it is missing, corrupted, or if the mailbox has been
+     * rewritten since.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the new
+     * records aren't built correctly.
+     */
+    public boolean update()
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxFormat format;
+
+        if(
+            !this.read() || this.indexedLength > this.mailBoxPath.length()
+            || this.indexedLength < (format = MailBoxFormat.detect(this.mailBoxPath)).getFileHeaderLength()
+        )
+        {
+            this.entries.clear();
+
+            return false;
+        }
+
+        try(FileInputStream mailBoxStream = new FileInputStream(this.mailBoxPath))
+        {
+            // The indexed part must still end with a record
+            if(this.indexedLength > format.getFileHeaderLength())
+            {
+                byte[] endOfData = new byte[SmtpProtocol.END_OF_DATA.length()];
+
+                mailBoxStream.getChannel().position(this.indexedLength - endOfData.length);
+
+                if(
+                    endOfData.length != mailBoxStream.read(endOfData)
+                    || !SmtpProtocol.END_OF_DATA.equals(new String(endOfData, StandardCharsets.US_ASCII))
+                )
+                {
+                    this.entries.clear();
+
+                    return false;
+                }
+            }
+
+            // Then, only scan the new records, dropping any entry written past the
+            // header by an interrupted append
+            this.entries.removeIf((entry) -> entry.getOffset() >= this.indexedLength);
+            mailBoxStream.getChannel().position(this.indexedLength);
+            this.scan(mailBoxStream, this.indexedLength, format);
+        }
+        catch(InvalidMailBoxFileException ex)
+        {
+            // The mailbox has been rewritten in a way which can't be detected otherwise
+            this.entries.clear();
+
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the entries from the index file, whether it is stale or not.
+     *
+     * @return <code>true</code> if the entries have been read,
+     * <code>false</code> if the file is missing or corrupted.
+     */
+    protected boolean read()
+    {
+        this.entries.clear();
+        this.firstEntry = 0;
+
+        if(!this.path.isFile() || !this.mailBoxPath.isFile())
+        {
+            return false;
+        }
+
+        try(DataInputStream indexReader = new DataInputStream(new BufferedInputStream(new FileInputStream(this.path))))
+        {
+            if(
+                indexReader.readInt() != MailBoxIndex.MAGIC
+                || indexReader.readInt() != MailBoxIndex.VERSION
+                || (this.path.length() - MailBoxIndex.HEADER_LENGTH) % MailBoxIndex.ENTRY_LENGTH != 0
+            )
+            {
+                return false;
+            }
+
+            this.indexedLength = indexReader.readLong();
+            indexReader.readLong();
+
+            // Read every entry
+            long entriesNumber = (this.path.length() - MailBoxIndex.HEADER_LENGTH) / MailBoxIndex.ENTRY_LENGTH;
+
+            for(long i = 0; i < entriesNumber; i++)
+            {
+                this.entries.add(new Entry(
+                    indexReader.readLong(),
+                    indexReader.readInt(),
+                    indexReader.readInt(),
+                    indexReader.readInt()
+                ));
+            }
+
+            return true;
+        }
+        catch(EOFException ex)
+        {
+            // The index is truncated
+            this.entries.clear();
+
+            return false;
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(MailBoxIndex.class.getName()).log(
+                Level.WARNING,
+                String.format(
+                    "Couldn't read index \"%s\".",
+                    this.path.getAbsolutePath()
+                ),
+                ex
+            );
+
+            this.entries.clear();
+
+            return false;
+        }
+    }
+
+    /**
+     * Saves the whole index in its file, for the current state of the mailbox
+     * file.
+     *
+     * The entries are written in a temporary file which then replaces the
+     * index, since readers of the mailbox may save it concurrently after
+     * rebuilding it: each of them replaces it as a whole, none of them
+     * writes into the other's file.
+     *
+     * @throws java.io.IOException If the index couldn't be written.
+     */
+    public void save()
+    throws IOException
+    {
+        if(this.firstEntry > 0)
+        {
+            throw new IllegalStateException("Index has only been partially loaded.");
+        }
+
+        // Initialize vars
+        File temporaryFile = File.createTempFile(
+            this.path.getName() + ".",
+            ".tmp",
+            this.path.getAbsoluteFile().getParentFile()
+        );
+
+        try
+        {
+            try(DataOutputStream indexWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile))))
+            {
+                indexWriter.writeInt(MailBoxIndex.MAGIC);
+                indexWriter.writeInt(MailBoxIndex.VERSION);
+                indexWriter.writeLong(this.mailBoxPath.length());
+                indexWriter.writeLong(this.mailBoxPath.lastModified());
+
+                for(Entry entry : this.entries)
+                {
+                    indexWriter.writeLong(entry.getOffset());
+                    indexWriter.writeInt(entry.getLength());
+                    indexWriter.writeInt(entry.getSize());
+                    indexWriter.writeInt(entry.getFlags());
+                }
+            }
+
+            MailBox.replace(temporaryFile, this.path);
+            temporaryFile = null;
+        }
+        finally
+        {
+            // The temporary file is left over if something went wrong
+            if(null != temporaryFile && temporaryFile.exists() && !temporaryFile.delete())
+            {
+                Logger.getLogger(MailBoxIndex.class.getName()).log(
+                    Level.WARNING,
+                    "Couldn't delete temporary file \"{0}\".",
+                    temporaryFile.getAbsolutePath()
+                );
+            }
+        }
+
+        this.indexedLength = this.mailBoxPath.length();
+    }
+
+    /**
+     * Adds an entry at the end of the index file and updates its header for
+     * the current state of the mailbox file, without rewriting the other
+     * entries.
+     *
+     * @param entry The entry to add.
+     * @throws java.io.IOException If the index couldn't be updated.
+     */
+    public void append(Entry entry)
+    throws IOException
+    {
+        try(RandomAccessFile indexFile = new RandomAccessFile(this.path, "rw"))
+        {
+            // Write the entry
+            indexFile.seek(indexFile.length());
+            indexFile.writeLong(entry.getOffset());
+            indexFile.writeInt(entry.getLength());
+            indexFile.writeInt(entry.getSize());
+            indexFile.writeInt(entry.getFlags());
+
+            // Then, update the header
+            indexFile.seek(8);
+            indexFile.writeLong(this.mailBoxPath.length());
+            indexFile.writeLong(this.mailBoxPath.lastModified());
+        }
+
+        this.entries.add(entry);
+        this.indexedLength = this.mailBoxPath.length();
+    }
+
+    /**
+     * Flags the entry of a record as a tombstone, in memory and in the index
+     * file.
+     *
+     * @param offset The offset of the record in the mailbox file.
+     * @return <code>true</code> if the entry has been flagged,
+     * <code>false</code> if there is no such record or if it was already
+     * deleted.
+     * @throws java.io.IOException If the index couldn't be updated.
+     */
+    public boolean markDeleted(long offset)
+    throws IOException
+    {
+        // Entries are sorted by offset
+        int low = 0, high = this.entries.size() - 1, middle = -1;
+
+        while(low <= high)
+        {
+            middle = (low + high) >>> 1;
+
+            if(this.entries.get(middle).getOffset() < offset)
+            {
+                low = middle + 1;
+            }
+            else if(this.entries.get(middle).getOffset() > offset)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        if(low > high || this.entries.get(middle).isDeleted())
+        {
+            return false;
+        }
+
+        // Update the entry in memory
+        Entry entry = this.entries.get(middle);
+        entry.flags |= MailBoxIndex.FLAG_DELETED;
+
+        // Then, in the file
+        try(RandomAccessFile indexFile = new RandomAccessFile(this.path, "rw"))
+        {
+            indexFile.seek(MailBoxIndex.HEADER_LENGTH + ((long) this.firstEntry + middle) * MailBoxIndex.ENTRY_LENGTH + 16);
+            indexFile.writeInt(entry.getFlags());
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of bytes taken by deleted mails in the mailbox file.
+     *
+     * @return The dead space, in bytes.
+     */
+    public long getDeadSpace()
+    {
+        long deadSpace = 0;
+
+        for(Entry entry : this.entries)
+        {
+            if(entry.isDeleted())
+            {
+                deadSpace += entry.getLength();
+            }
+        }
+
+        return deadSpace;
+    }
+
+    /**
+     * Gets the ratio of the mailbox file taken by deleted mails.
+     *
+     * @return The dead space ratio, between 0 and 1.
+     */
+    public double getDeadSpaceRatio()
+    {
+        long length = this.mailBoxPath.length();
+
+        return length > 0 ? (double) this.getDeadSpace() / length : 0;
+    }
+
+    /**
+     * Gets the length of the mailbox file the entries describe.
+     *
+     * @return The indexed length.
+     */
+    public long getIndexedLength()
+    {
+        return this.indexedLength;
+    }
+
+    /**
+     * Deletes the index file, so that it will be rebuilt the next time it is
+     * opened.
+     */
+    public void invalidate()
+    {
+        this.entries.clear();
+
+        if(this.path.exists() && !this.path.delete())
+        {
+            Logger.getLogger(MailBoxIndex.class.getName()).log(
+                Level.WARNING,
+                "Couldn't delete stale index \"{0}\".",
+                this.path.getAbsolutePath()
+            );
+        }
+    }
+
+    /**
+     * Rebuilds the index by scanning the mailbox file for record boundaries,
+     * without building any mail.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     */
+    public void rebuild()
+    throws IOException
+    {
+        this.entries.clear();
+        this.firstEntry = 0;
+
+        try(InputStream mailBoxStream = new FileInputStream(this.mailBoxPath))
+        {
+            this.scan(mailBoxStream, 0, null);
+        }
+        catch(InvalidMailBoxFileException ex)
+        {
+            this.entries.clear();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Adds an entry for every record read from a stream.
+     *
+     * @param mailBoxStream The stream to read the records from.
+     * @param offset The offset of the stream in the mailbox file.
+     * @param format The format of the records, <code>null</code> to detect it
+     * from the beginning of the stream.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a record
+     * isn't built correctly.
+     */
+    protected void scan(InputStream mailBoxStream, long offset, MailBoxFormat format)
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxParser parser = new MailBoxParser(
+            mailBoxStream,
+            this.mailBoxPath.getAbsolutePath(),
+            MailBoxParser.DEFAULT_BUFFER_SIZE,
+            format
+        );
+
+        while(parser.next())
+        {
+            this.entries.add(new Entry(
+                offset + parser.getRecordOffset(),
+                parser.getRecordLength(),
+                parser.getSize()
+            ));
+        }
+
+        this.indexedLength = offset + parser.getRecordOffset() + parser.getRecordLength();
+    }
+
+    /**
+     * Reads and checks the index file's header.
+     *
+     * @param indexReader The stream to read the header from.
+     * @return <code>true</code> if the header matches the mailbox file,
+     * <code>false</code> otherwise.
+     * @throws java.io.IOException If the header couldn't be read.
+     */
+    protected boolean readHeader(DataInputStream indexReader)
+    throws IOException
+    {
+        return indexReader.readInt() == MailBoxIndex.MAGIC
+            && indexReader.readInt() == MailBoxIndex.VERSION
+            && indexReader.readLong() == this.mailBoxPath.length()
+            && indexReader.readLong() == this.mailBoxPath.lastModified()
+            && (this.path.length() - MailBoxIndex.HEADER_LENGTH) % MailBoxIndex.ENTRY_LENGTH == 0;
+    }
+}
@@ -0,0 +1,235 @@
+package common.mails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.CRC32;
+
+/**
+ * Resolves users' mailboxes inside the mailboxes' directory.
+ *
+ * Mailboxes are spread over two levels of subdirectories named after a hash
+ * of the username, <code>3f/a2/john.mbox</code> for instance, so that no
+ * directory holds more than a few of them however many users there are.
+ * Mailboxes still lying flat in the mailboxes' directory are found as well
+ * until they have been moved by the {@link MailBoxMigrator}.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxLocator
+{
+    /**
+     * The extension of mailbox files.
+     */
+    public static final String EXTENSION = ".mbox";
+
+    /**
+     * The number of levels of subdirectories.
+     */
+    protected static final int SHARD_LEVELS = 2;
+
+    /**
+     * The number of hexadecimal digits naming a subdirectory.
+     */
+    protected static final int SHARD_WIDTH = 2;
+
+    /**
+     * The mailboxes' directory.
+     */
+    protected File root;
+
+    /**
+     * Creates a new locator.
+     *
+     * @param root The mailboxes' directory.
+     */
+    public MailBoxLocator(File root)
+    {
+        // Initialize properties
+        this.root = root;
+    }
+
+    /**
+     * Gets the mailboxes' directory.
+     *
+     * @return The mailboxes' directory.
+     */
+    public File getRoot()
+    {
+        return this.root;
+    }
+
+    /**
+     * Gets the subdirectory a user's mailbox belongs in.
+     *
+     * @param userName The associated username.
+     * @return The subdirectory's path, whether it exists or not.
+     */
+    public File getShardDirectory(String userName)
+    {
+        // Initialize vars
+        CRC32 crc = new CRC32();
+        crc.update(userName.getBytes(StandardCharsets.UTF_8));
+        String hash = String.format("%08x", crc.getValue());
+        File directory = this.root;
+
+        for(int i = 0; i < MailBoxLocator.SHARD_LEVELS; i++)
+        {
+            directory = new File(
+                directory,
+                hash.substring(i * MailBoxLocator.SHARD_WIDTH, (i + 1) * MailBoxLocator.SHARD_WIDTH)
+            );
+        }
+
+        return directory;
+    }
+
+    /**
+     * Gets the path of a user's mailbox file, whether it exists or not.
+     *
+     * @param userName The associated username.
+     * @return The mailbox's path, in its subdirectory unless it hasn't been
+     * migrated yet.
+     */
+    public File getMailBoxFile(String userName)
+    {
+        return this.locate(userName + MailBoxLocator.EXTENSION);
+    }
+
+    /**
+     * Gets the path of a user's mailbox directory, whether it exists or not.
+     *
+     * @param userName The associated username.
+     * @return The mailbox's path, in its subdirectory unless it hasn't been
+     * migrated yet.
+     */
+    public File getMailDirPath(String userName)
+    {
+        return this.locate(userName);
+    }
+
+    /**
+     * Gets a user's mailbox without loading it, as a mailbox directory if
+     * there is one, as a mailbox file otherwise.
+     *
+     * @param userName The associated username.
+     * @return The mailbox, which may not exist.
+     */
+    public MailBox open(String userName)
+    {
+        File mailDirPath = this.getMailDirPath(userName);
+
+        return MailDir.isMailDir(mailDirPath)
+            ? new MailDir(mailDirPath)
+            : new MailBox(this.getMailBoxFile(userName));
+    }
+
+    /**
+     * Finds an entry of a user, in its subdirectory or else flat in the
+     * mailboxes' directory.
+     *
+     * @param name The entry's name.
+     * @return The entry's path, in its subdirectory if it exists nowhere.
+     */
+    protected File locate(String name)
+    {
+        // Initialize vars
+        String userName = name.endsWith(MailBoxLocator.EXTENSION)
+            ? name.substring(0, name.length() - MailBoxLocator.EXTENSION.length())
+            : name;
+        File shardedPath = new File(this.getShardDirectory(userName), name);
+        File flatPath;
+
+        if(shardedPath.exists())
+        {
+            return shardedPath;
+        }
+
+        // Then, look for a mailbox which hasn't been migrated
+        flatPath = new File(this.root, name);
+
+        return flatPath.exists() ? flatPath : shardedPath;
+    }
+
+    /**
+     * Moves a mailbox lying flat in the mailboxes' directory into its
+     * subdirectory.
+     *
+     * The mailbox is locked while it is moved, which keeps out the servers
+     * as well once the locks are shared through the mailboxes' directory, and
+     * every move is an atomic rename, so the mailbox can keep being used
+     * meanwhile: a delivery waiting for the lock finds the file missing and
+     * locates it again, and a missing or stale index is rebuilt or updated.
+     *
+     * @param flatPath The mailbox file or directory to move.
+     * @return <code>true</code> if the mailbox has been moved,
+     * <code>false</code> if it isn't a mailbox, if it already exists in its
+     * subdirectory or if it is locked by a session.
+     * @throws java.io.IOException If the mailbox couldn't be moved, for
+     * instance because the move can't be atomic.
+     */
+    public boolean migrate(File flatPath)
+    throws IOException
+    {
+        // The mailbox keeps its lock once moved, since only its name is hashed
+        Lock lock = MailBoxLockManager.getInstance().lockWrite(flatPath);
+
+        try
+        {
+            // Initialize vars
+            String name = flatPath.getName();
+            boolean isMailBoxFile = name.endsWith(MailBoxLocator.EXTENSION) && flatPath.isFile();
+            File targetPath;
+
+            if(!isMailBoxFile && !MailDir.isMailDir(flatPath))
+            {
+                return false;
+            }
+
+            // A session's mailbox mustn't move under it, it will be migrated next time
+            if(MailBoxLockManager.getInstance().isSessionLocked(flatPath))
+            {
+                return false;
+            }
+
+            targetPath = new File(
+                this.getShardDirectory(isMailBoxFile ? name.substring(0, name.length() - MailBoxLocator.EXTENSION.length()) : name),
+                name
+            );
+
+            if(targetPath.exists())
+            {
+                return false;
+            }
+
+            // Move the mailbox
+            Files.createDirectories(targetPath.getParentFile().toPath());
+            Files.move(flatPath.toPath(), targetPath.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            // Then, its index, replacing one which would have been rebuilt meanwhile
+            if(isMailBoxFile && MailBoxIndex.getIndexFile(flatPath).isFile())
+            {
+                Files.move(
+                    MailBoxIndex.getIndexFile(flatPath).toPath(),
+                    MailBoxIndex.getIndexFile(targetPath).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING
+                );
+            }
+
+            MailBoxSyncer.sync(this.root.toPath());
+            MailBoxSyncer.sync(targetPath.getParentFile().toPath());
+
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,660 @@
+package common.mails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synchronizes the threads reading and writing mailboxes' files.
+ *
+ * Each mailbox is guarded by a read/write lock: reading it, to load its mails
+ * or a body, can happen concurrently, whereas appending to it, saving it,
+ * deleting mails from it or compacting it is exclusive. Locks are striped, a
+ * fixed number of them being shared by every mailbox according to a hash of
+ * its file's name, so that memory stays bounded whatever the number of
+ * users. The name rather than the whole path is hashed so that a mailbox
+ * keeps its lock while it is migrated.
+ *
+ * The time spent waiting for locks and the number of times they were
+ * contended are counted per stripe, to find hot mailboxes.
+ *
+ * A mailbox can also be locked by a POP3 session for as long as it lasts, as
+ * required by RFC 1939. Such a lock doesn't block anything, it only keeps
+ * other sessions out and keeps the file from being rewritten, by compaction,
+ * conversion or migration, under the session's snapshot of it.
+ *
+ * Once shared through a file of the mailboxes' directory, the exclusive and
+ * session locks also keep out the other processes using the directory, such
+ * as the other server or the migrator: each of them is then backed by a lock
+ * on a byte of that file, the byte of an exclusive lock being its stripe's
+ * and the byte of a session lock being picked by a hash of the mailbox's
+ * name. A single channel is kept open on the file, since closing any channel
+ * would release every lock the process holds on it.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxLockManager
+{
+    /**
+     * The default number of stripes.
+     */
+    public static final int DEFAULT_STRIPES_NUMBER = 256;
+
+    /**
+     * The name of the file the locks are shared through, inside the
+     * mailboxes' directory.
+     */
+    public static final String LOCK_FILE_NAME = ".lock";
+
+    /**
+     * The time waited before trying again to lock a byte of the lock file
+     * held by another process, in milliseconds.
+     */
+    protected static final long LOCK_FILE_INTERVAL = 10;
+
+    /**
+     * The lock manager shared by the process.
+     */
+    protected static final MailBoxLockManager instance = new MailBoxLockManager(
+        MailBoxLockManager.DEFAULT_STRIPES_NUMBER
+    );
+
+    /**
+     * The locks, one per stripe.
+     */
+    protected final ReentrantReadWriteLock[] locks;
+
+    /**
+     * The number of times each stripe's lock couldn't be acquired right away.
+     */
+    protected final AtomicLongArray contentionsNumbers;
+
+    /**
+     * The time spent waiting for each stripe's lock, in nanoseconds.
+     */
+    protected final AtomicLongArray waitTimes;
+
+    /**
+     * The names of the mailboxes locked by a session.
+     */
+    protected final Set<String> sessionNames;
+
+    /**
+     * The file the locks are shared through, <code>null</code> if they
+     * aren't.
+     */
+    protected File lockFile;
+
+    /**
+     * The channel opened on the lock file, <code>null</code> if the locks
+     * aren't shared.
+     */
+    protected FileChannel lockChannel;
+
+    /**
+     * The locks on the lock file held for the stripes locked exclusively.
+     */
+    protected final FileLock[] stripeFileLocks;
+
+    /**
+     * The locks on the lock file held for the sessions, by mailbox name.
+     */
+    protected final Map<String, FileLock> sessionFileLocks;
+
+    /**
+     * Creates a new lock manager.
+     *
+     * @param stripesNumber The number of stripes.
+     */
+    public MailBoxLockManager(int stripesNumber)
+    {
+        if(stripesNumber <= 0)
+        {
+            throw new IllegalArgumentException("Stripes number must be positive.");
+        }
+
+        // Initialize properties
+        this.locks = new ReentrantReadWriteLock[stripesNumber];
+        this.contentionsNumbers = new AtomicLongArray(stripesNumber);
+        this.waitTimes = new AtomicLongArray(stripesNumber);
+        this.sessionNames = ConcurrentHashMap.newKeySet();
+        this.lockFile = null;
+        this.lockChannel = null;
+        this.stripeFileLocks = new FileLock[stripesNumber];
+        this.sessionFileLocks = new HashMap<>();
+
+        for(int i = 0; i < stripesNumber; i++)
+        {
+            this.locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Gets the lock manager shared by the process.
+     *
+     * @return The lock manager.
+     */
+    public static MailBoxLockManager getInstance()
+    {
+        return MailBoxLockManager.instance;
+    }
+
+    /**
+     * Shares the exclusive and session locks with the other processes using
+     * a mailboxes' directory.
+     *
+     * Sharing them through another directory afterwards releases the locks
+     * held on the previous one.
+     *
+     * @param root The mailboxes' directory.
+     * @throws java.io.IOException If the lock file couldn't be opened.
+     */
+    public synchronized void share(File root)
+    throws IOException
+    {
+        // Initialize vars
+        File file = new File(root, MailBoxLockManager.LOCK_FILE_NAME).getAbsoluteFile();
+
+        if(null != this.lockChannel)
+        {
+            // Both servers may run in the same process
+            if(this.lockFile.equals(file))
+            {
+                return;
+            }
+
+            this.lockChannel.close();
+            this.lockChannel = null;
+            this.lockFile = null;
+        }
+
+        this.lockChannel = FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        this.lockFile = file;
+    }
+
+    /**
+     * Acquires the shared lock of a mailbox, which must be released once it
+     * has been read.
+     *
+     * @param path The mailbox's path.
+     * @return The acquired lock.
+     */
+    public Lock lockRead(File path)
+    {
+        int stripe = this.getStripe(path);
+
+        return this.acquire(this.locks[stripe].readLock(), stripe);
+    }
+
+    /**
+     * Acquires the exclusive lock of a mailbox, which must be released once it
+     * has been written.
+     *
+     * If the locks are shared, the other processes are kept out as well until
+     * it is released.
+     *
+     * @param path The mailbox's path.
+     * @return The acquired lock.
+     */
+    public Lock lockWrite(File path)
+    {
+        // Initialize vars
+        int stripe = this.getStripe(path);
+        Lock lock = new StripeLock(stripe);
+
+        lock.lock();
+
+        return lock;
+    }
+
+    /**
+     * Acquires a lock, counting the time spent waiting for it if it is
+     * contended.
+     *
+     * @param lock The lock to acquire.
+     * @param stripe The lock's stripe.
+     * @return The acquired lock.
+     */
+    protected Lock acquire(Lock lock, int stripe)
+    {
+        if(!lock.tryLock())
+        {
+            long start = System.nanoTime();
+
+            lock.lock();
+
+            this.contentionsNumbers.incrementAndGet(stripe);
+            this.waitTimes.addAndGet(stripe, System.nanoTime() - start);
+        }
+
+        return lock;
+    }
+
+    /**
+     * Gets the stripe guarding a mailbox.
+     *
+     * @param path The mailbox's path.
+     * @return The stripe's number.
+     */
+    protected int getStripe(File path)
+    {
+        // Spread the hash's bits since stripes are picked by a modulo
+        int hash = path.getName().hashCode();
+        hash ^= (hash >>> 16);
+
+        return Math.floorMod(hash, this.locks.length);
+    }
+
+    /**
+     * Locks a byte of the lock file, waiting for another process holding it
+     * to release it.
+     *
+     * The lock is tried again and again rather than waited for, since a
+     * thread interrupted while waiting would close the channel.
+     *
+     * @param position The byte's position.
+     * @return The lock, <code>null</code> if the locks aren't shared or if it
+     * couldn't be acquired.
+     */
+    protected FileLock lockByte(long position)
+    {
+        // Initialize vars
+        FileChannel channel;
+        FileLock fileLock = null;
+        boolean interrupted = false;
+
+        synchronized(this)
+        {
+            channel = this.lockChannel;
+        }
+
+        try
+        {
+            while(null != channel && null == fileLock)
+            {
+                try
+                {
+                    fileLock = channel.tryLock(position, 1, false);
+                }
+                catch(OverlappingFileLockException ex)
+                {
+                    // Another channel of this process holds it
+                }
+
+                if(null == fileLock)
+                {
+                    try
+                    {
+                        Thread.sleep(MailBoxLockManager.LOCK_FILE_INTERVAL);
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        // The lock must still be acquired
+                        interrupted = true;
+                    }
+                }
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(MailBoxLockManager.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't lock mailbox for other processes.",
+                ex
+            );
+        }
+        finally
+        {
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return fileLock;
+    }
+
+    /**
+     * Releases a lock on the lock file.
+     *
+     * @param fileLock The lock, <code>null</code> if there is none.
+     */
+    protected static void unlockByte(FileLock fileLock)
+    {
+        if(null != fileLock)
+        {
+            try
+            {
+                fileLock.release();
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(MailBoxLockManager.class.getName()).log(
+                    Level.SEVERE,
+                    "Couldn't unlock mailbox for other processes.",
+                    ex
+                );
+            }
+        }
+    }
+
+    /**
+     * Gets the position of the byte of the lock file backing a mailbox's
+     * session lock, past the stripes' bytes.
+     *
+     * @param path The mailbox's path.
+     * @return The byte's position.
+     */
+    protected long getSessionPosition(File path)
+    {
+        return this.locks.length + (UUID.nameUUIDFromBytes(path.getName().getBytes(StandardCharsets.UTF_8)).getMostSignificantBits() >>> 2);
+    }
+
+    /**
+     * Locks a mailbox for a session if no other session has, in this process
+     * or in another one sharing the locks.
+     *
+     * @param path The mailbox's path.
+     * @return <code>true</code> if it has been locked, <code>false</code> if
+     * another session holds it.
+     */
+    public boolean tryLockSession(File path)
+    {
+        // Initialize vars
+        FileLock fileLock;
+
+        synchronized(this.sessionFileLocks)
+        {
+            if(!this.sessionNames.add(path.getName()))
+            {
+                return false;
+            }
+
+            try
+            {
+                synchronized(this)
+                {
+                    fileLock = null != this.lockChannel
+                        ? this.lockChannel.tryLock(this.getSessionPosition(path), 1, false)
+                        : null;
+
+                    if(null != this.lockChannel && null == fileLock)
+                    {
+                        // A session of another process holds it
+                        this.sessionNames.remove(path.getName());
+
+                        return false;
+                    }
+                }
+            }
+            catch(OverlappingFileLockException ex)
+            {
+                // Another channel of this process holds it
+                this.sessionNames.remove(path.getName());
+
+                return false;
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(MailBoxLockManager.class.getName()).log(
+                    Level.SEVERE,
+                    "Couldn't lock mailbox for other processes.",
+                    ex
+                );
+
+                this.sessionNames.remove(path.getName());
+
+                return false;
+            }
+
+            if(null != fileLock)
+            {
+                this.sessionFileLocks.put(path.getName(), fileLock);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Unlocks a mailbox locked for a session.
+     *
+     * @param path The mailbox's path.
+     */
+    public void unlockSession(File path)
+    {
+        synchronized(this.sessionFileLocks)
+        {
+            MailBoxLockManager.unlockByte(this.sessionFileLocks.remove(path.getName()));
+            this.sessionNames.remove(path.getName());
+        }
+    }
+
+    /**
+     * Tests if a mailbox is locked by a session, in this process or in
+     * another one sharing the locks, which must be done while holding its
+     * write lock before rewriting it.
+     *
+     * @param path The mailbox's path.
+     * @return <code>true</code> if it is, <code>false</code> otherwise.
+     */
+    public boolean isSessionLocked(File path)
+    {
+        // Initialize vars
+        FileLock fileLock;
+
+        synchronized(this.sessionFileLocks)
+        {
+            if(this.sessionNames.contains(path.getName()))
+            {
+                return true;
+            }
+
+            try
+            {
+                synchronized(this)
+                {
+                    if(null == this.lockChannel)
+                    {
+                        return false;
+                    }
+
+                    // Only another process's session can hold it
+                    fileLock = this.lockChannel.tryLock(this.getSessionPosition(path), 1, false);
+                }
+            }
+            catch(OverlappingFileLockException ex)
+            {
+                // Another channel of this process holds it
+                return true;
+            }
+            catch(IOException ex)
+            {
+                Logger.getLogger(MailBoxLockManager.class.getName()).log(
+                    Level.SEVERE,
+                    "Couldn't test mailbox's lock in other processes.",
+                    ex
+                );
+
+                return true;
+            }
+
+            MailBoxLockManager.unlockByte(fileLock);
+
+            return null == fileLock;
+        }
+    }
+
+    /**
+     * Gets the number of times the lock guarding a mailbox was contended.
+     *
+     * @param path The mailbox's path.
+     * @return The number of contentions of its stripe.
+     */
+    public long getContentionsNumber(File path)
+    {
+        return this.contentionsNumbers.get(this.getStripe(path));
+    }
+
+    /**
+     * Gets the time spent waiting for the lock guarding a mailbox.
+     *
+     * @param path The mailbox's path.
+     * @return The wait time of its stripe, in milliseconds.
+     */
+    public long getWaitTime(File path)
+    {
+        return TimeUnit.NANOSECONDS.toMillis(this.waitTimes.get(this.getStripe(path)));
+    }
+
+    /**
+     * Gets the number of times any lock was contended.
+     *
+     * @return The number of contentions.
+     */
+    public long getContentionsNumber()
+    {
+        long contentionsNumber = 0;
+
+        for(int i = 0, j = this.contentionsNumbers.length(); i < j; i++)
+        {
+            contentionsNumber += this.contentionsNumbers.get(i);
+        }
+
+        return contentionsNumber;
+    }
+
+    /**
+     * Gets the time spent waiting for any lock.
+     *
+     * @return The wait time, in milliseconds.
+     */
+    public long getWaitTime()
+    {
+        long waitTime = 0;
+
+        for(int i = 0, j = this.waitTimes.length(); i < j; i++)
+        {
+            waitTime += this.waitTimes.get(i);
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(waitTime);
+    }
+
+    /**
+     * The exclusive lock of a stripe, which also holds the stripe's byte of
+     * the lock file when the locks are shared.
+     */
+    protected class StripeLock implements Lock
+    {
+        /**
+         * The stripe's number.
+         */
+        protected final int stripe;
+
+        /**
+         * The stripe's lock, within this process.
+         */
+        protected final ReentrantReadWriteLock.WriteLock lock;
+
+        /**
+         * Creates a new stripe's lock.
+         *
+         * @param stripe The stripe's number.
+         */
+        protected StripeLock(int stripe)
+        {
+            this.stripe = stripe;
+            this.lock = MailBoxLockManager.this.locks[stripe].writeLock();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void lock()
+        {
+            MailBoxLockManager.this.acquire(this.lock, this.stripe);
+
+            // The other processes only need to be kept out once
+            if(1 == this.lock.getHoldCount())
+            {
+                MailBoxLockManager.this.stripeFileLocks[this.stripe] = MailBoxLockManager.this.lockByte(this.stripe);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void lockInterruptibly()
+        {
+            throw new UnsupportedOperationException("Stripe locks can't be interrupted.");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean tryLock()
+        {
+            throw new UnsupportedOperationException("Stripe locks can only be waited for.");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean tryLock(long time, TimeUnit unit)
+        {
+            throw new UnsupportedOperationException("Stripe locks can only be waited for.");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void unlock()
+        {
+            if(1 == this.lock.getHoldCount())
+            {
+                MailBoxLockManager.unlockByte(MailBoxLockManager.this.stripeFileLocks[this.stripe]);
+                MailBoxLockManager.this.stripeFileLocks[this.stripe] = null;
+            }
+
+            this.lock.unlock();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Condition newCondition()
+        {
+            throw new UnsupportedOperationException("Stripe locks have no conditions.");
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package common.mails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the mailboxes lying flat in the mailboxes' directory into their
+ * hashed subdirectories, while the servers keep running.
+ *
+ * The directory is listed as a stream so that millions of entries don't have
+ * to be held in memory, and the mailboxes are moved by a pool of threads.
+ * The mailboxes' locks are shared with the servers through the directory, so
+ * that no mailbox is moved while it is written or while a session holds it.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.MailBoxLocator
+ */
+public class MailBoxMigrator
+{
+    /**
+     * The locator the mailboxes are moved with.
+     */
+    protected MailBoxLocator locator;
+
+    /**
+     * The number of threads moving the mailboxes.
+     */
+    protected int threadsNumber;
+
+    /**
+     * The number of mailboxes moved.
+     */
+    protected final AtomicLong migratedNumber;
+
+    /**
+     * The number of mailboxes which couldn't be moved.
+     */
+    protected final AtomicLong failedNumber;
+
+    /**
+     * Creates a new migrator.
+     *
+     * @param root The mailboxes' directory.
+     * @param threadsNumber The number of threads moving the mailboxes.
+     */
+    public MailBoxMigrator(File root, int threadsNumber)
+    {
+        if(threadsNumber <= 0)
+        {
+            throw new IllegalArgumentException("Threads number must be positive.");
+        }
+
+        // Initialize properties
+        this.locator = new MailBoxLocator(root);
+        this.threadsNumber = threadsNumber;
+        this.migratedNumber = new AtomicLong();
+        this.failedNumber = new AtomicLong();
+    }
+
+    /**
+     * Moves every flat mailbox, waiting for all of them to be moved.
+     *
+     * @throws java.io.IOException If the mailboxes' directory couldn't be
+     * listed.
+     * @throws java.lang.InterruptedException If the migration has been
+     * interrupted.
+     */
+    public void migrate()
+    throws IOException, InterruptedException
+    {
+        // Initialize vars
+        ExecutorService executor = Executors.newFixedThreadPool(this.threadsNumber);
+
+        try(DirectoryStream<Path> entries = Files.newDirectoryStream(this.locator.getRoot().toPath()))
+        {
+            for(Path entry : entries)
+            {
+                executor.execute(() -> this.migrate(entry.toFile()));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Moves a single flat mailbox.
+     *
+     * @param flatPath The mailbox file or directory to move.
+     */
+    protected void migrate(File flatPath)
+    {
+        try
+        {
+            if(this.locator.migrate(flatPath))
+            {
+                this.migratedNumber.incrementAndGet();
+            }
+        }
+        catch(IOException ex)
+        {
+            this.failedNumber.incrementAndGet();
+
+            Logger.getLogger(MailBoxMigrator.class.getName()).log(
+                Level.SEVERE,
+                String.format(
+                    "Couldn't migrate mailbox \"%s\".",
+                    flatPath.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Gets the number of mailboxes moved.
+     *
+     * @return The number of mailboxes.
+     */
+    public long getMigratedNumber()
+    {
+        return this.migratedNumber.get();
+    }
+
+    /**
+     * Gets the number of mailboxes which couldn't be moved.
+     *
+     * @return The number of mailboxes.
+     */
+    public long getFailedNumber()
+    {
+        return this.failedNumber.get();
+    }
+
+    /**
+     * Entry point for the migration.
+     *
+     * @param args Command line arguments: the mailboxes' directory and,
+     * optionally, the number of threads.
+     */
+    public static void main(String[] args)
+    {
+        if(args.length < 1)
+        {
+            System.err.println("Usage: MailBoxMigrator <mailboxes directory> [threads]");
+            System.exit(1);
+        }
+
+        try
+        {
+            // The servers may keep running meanwhile
+            MailBoxLockManager.getInstance().share(new File(args[0]));
+
+            MailBoxMigrator migrator = new MailBoxMigrator(
+                new File(args[0]),
+                args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors()
+            );
+            migrator.migrate();
+
+            Logger.getLogger(MailBoxMigrator.class.getName()).log(
+                Level.INFO,
+                "{0} mailboxes migrated, {1} failed.",
+                new Object[]
+                {
+                    migrator.getMigratedNumber(), migrator.getFailedNumber()
+                }
+            );
+        }
+        catch(IOException | InterruptedException ex)
+        {
+            Logger.getLogger(MailBoxMigrator.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't migrate mailboxes.",
+                ex
+            );
+        }
+    }
+}
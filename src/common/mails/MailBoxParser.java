@@ -0,0 +1,659 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import smtp.SmtpProtocol;
+
+/**
+ * Reads the records of a mailbox file one after the other.
+ *
+ * The file is read by large chunks into a reusable buffer in which record
+ * boundaries are looked for, rather than character by character. The current
+ * record always lies contiguously in the buffer, which grows if a record is
+ * larger than it.
+ *
+ * Unless it is told otherwise, the parser detects the file's format from its
+ * first bytes. Binary records give their boundaries in their header, so they
+ * are only checked against their checksum instead of being looked through.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxParser
+{
+    /**
+     * The default size of the buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    /**
+     * The beginning of the header marking a compressed body.
+     */
+    protected static final byte[] COMPRESSED_PREFIX = (MailCompressor.HEADER + ": ").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The beginning of the header pointing to a body in the store.
+     */
+    protected static final byte[] REFERENCE_PREFIX = (MailBlobStore.HEADER + ": ").getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The format of the records, <code>null</code> until it has been
+     * detected.
+     */
+    protected MailBoxFormat format;
+
+    /**
+     * The flags of the current record if it is a binary one.
+     */
+    protected int flags;
+
+    /**
+     * The stream to read the records from.
+     */
+    protected InputStream stream;
+
+    /**
+     * The name of the mailbox being parsed, for error messages.
+     */
+    protected String name;
+
+    /**
+     * The buffer the stream is read into.
+     */
+    protected byte[] buffer;
+
+    /**
+     * The position of the current record in the buffer.
+     */
+    protected int start;
+
+    /**
+     * The number of bytes available in the buffer.
+     */
+    protected int limit;
+
+    /**
+     * The offset in the stream of the buffer's first byte.
+     */
+    protected long bufferOffset;
+
+    /**
+     * The position in the current record of the carriage return ending the
+     * headers.
+     */
+    protected int headersEnd;
+
+    /**
+     * The position in the current record of the body.
+     */
+    protected int bodyStart;
+
+    /**
+     * The position in the current record of the end of data marker's dot,
+     * preceded by the body's last line feed.
+     */
+    protected int bodyEnd;
+
+    /**
+     * The length of the current record, including the end of data marker.
+     */
+    protected int recordLength;
+
+    /**
+     * Creates a new parser with a default buffer.
+     *
+     * @param stream The stream to read the records from.
+     * @param name The name of the mailbox being parsed, for error messages.
+     */
+    public MailBoxParser(InputStream stream, String name)
+    {
+        this(stream, name, MailBoxParser.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new parser.
+     *
+     * @param stream The stream to read the records from.
+     * @param name The name of the mailbox being parsed, for error messages.
+     * @param bufferSize The initial size of the buffer.
+     */
+    public MailBoxParser(InputStream stream, String name, int bufferSize)
+    {
+        this(stream, name, bufferSize, null);
+    }
+
+    /**
+     * Creates a new parser reading records in a given format, from a stream
+     * positioned after the file's header if there is one.
+     *
+     * @param stream The stream to read the records from.
+     * @param name The name of the mailbox being parsed, for error messages.
+     * @param bufferSize The initial size of the buffer.
+     * @param format The format of the records, <code>null</code> to detect it
+     * from the beginning of the stream.
+     */
+    public MailBoxParser(InputStream stream, String name, int bufferSize, MailBoxFormat format)
+    {
+        // Initialize properties
+        this.format = format;
+        this.flags = 0;
+        this.stream = stream;
+        this.name = name;
+        this.buffer = new byte[bufferSize];
+        this.start = this.limit = 0;
+        this.bufferOffset = 0;
+        this.headersEnd = this.bodyStart = this.bodyEnd = this.recordLength = 0;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return <code>true</code> if there is another record, <code>false</code>
+     * if the end of the stream has been reached.
+     * @throws java.io.IOException If the stream couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * record isn't built correctly.
+     * @throws java.lang.IllegalArgumentException If an unfinished record has a
+     * malformed header.
+     */
+    public boolean next()
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Skip the previous record
+        this.start += this.recordLength;
+        this.recordLength = 0;
+
+        // Is there another record?
+        if(null == this.format && !this.detect())
+        {
+            return false;
+        }
+        else if(this.start == this.limit && !this.fill())
+        {
+            return false;
+        }
+        else if(MailBoxFormat.BINARY == this.format)
+        {
+            return this.nextBinary();
+        }
+
+        // Look for the headers' end: a carriage return right after a line feed
+        int position = 0;
+
+        while(-1 == (this.headersEnd = this.indexOf(position, (byte) '\n', (byte) '\r', (byte) 0, (byte) 0, 2)))
+        {
+            position = Math.max(0, this.limit - this.start - 1);
+
+            if(!this.fill())
+            {
+                // Complete lines are still read as headers first, and may be malformed
+                this.readHeaders(new Mail(), this.limit - this.start, StandardCharsets.ISO_8859_1);
+
+                throw this.invalid();
+            }
+        }
+
+        // The byte after the carriage return is skipped
+        this.headersEnd++;
+        this.bodyStart = this.headersEnd + 2;
+
+        // Then, look for the end of data marker
+        position = this.bodyStart;
+
+        while(-1 == (this.bodyEnd = this.indexOf(position, (byte) '\n', (byte) '.', (byte) '\r', (byte) '\n', 4)))
+        {
+            position = Math.max(this.bodyStart, this.limit - this.start - 3);
+
+            if(!this.fill())
+            {
+                throw this.invalid();
+            }
+        }
+
+        this.bodyEnd++;
+        this.recordLength = this.bodyEnd + 3;
+
+        return true;
+    }
+
+    /**
+     * Detects the format from the beginning of the stream, skipping the
+     * file's header if there is one.
+     *
+     * @return <code>true</code> if there is something after the header,
+     * <code>false</code> if the end of the stream has been reached.
+     * @throws java.io.IOException If the stream couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * binary format's version isn't supported.
+     */
+    protected boolean detect()
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Read enough bytes to hold the file's header, unless there aren't as many
+        while(this.limit - this.start < MailBoxFormat.BINARY.getFileHeaderLength() && this.fill())
+        {
+        }
+
+        this.format = MailBoxFormat.detect(this.buffer, this.start, this.limit - this.start);
+
+        if(MailBoxFormat.BINARY == this.format)
+        {
+            if(this.limit - this.start < MailBoxFormat.BINARY.getFileHeaderLength())
+            {
+                throw this.invalid();
+            }
+            else if(MailBoxFormat.VERSION != MailBoxFormat.readInt(this.buffer, this.start + 4))
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mailbox \"%s\" has an unsupported format version.",
+                    this.name
+                ));
+            }
+
+            this.start += MailBoxFormat.BINARY.getFileHeaderLength();
+        }
+
+        return this.start < this.limit;
+    }
+
+    /**
+     * Moves to the next binary record, whose header tells where it ends.
+     *
+     * @return <code>true</code> since there is another record.
+     * @throws java.io.IOException If the stream couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * record is truncated or doesn't match its checksum.
+     */
+    protected boolean nextBinary()
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        int headerLength = MailBoxFormat.BINARY.getRecordHeaderLength();
+        int contentLength, headersLength, checksum;
+        CRC32 crc = new CRC32();
+
+        // Read the record's header
+        while(this.limit - this.start < headerLength)
+        {
+            if(!this.fill())
+            {
+                throw this.invalid();
+            }
+        }
+
+        contentLength = MailBoxFormat.readInt(this.buffer, this.start);
+        headersLength = MailBoxFormat.readInt(this.buffer, this.start + 4);
+        this.flags = MailBoxFormat.readInt(this.buffer, this.start + 8);
+        checksum = MailBoxFormat.readInt(this.buffer, this.start + 12);
+
+        if(
+            contentLength < SmtpProtocol.END_OF_DATA.length()
+            || headersLength < 0 || headersLength > contentLength - SmtpProtocol.END_OF_DATA.length()
+        )
+        {
+            throw this.invalid();
+        }
+
+        // Then, its content, which doesn't need to be looked through
+        this.start += headerLength;
+
+        while(this.limit - this.start < contentLength)
+        {
+            if(!this.fill())
+            {
+                throw this.invalid();
+            }
+        }
+
+        crc.update(this.buffer, this.start, contentLength);
+
+        if(checksum != (int) crc.getValue())
+        {
+            throw this.invalid();
+        }
+
+        this.headersEnd = headersLength > 0 ? headersLength - 2 : 0;
+        this.bodyStart = headersLength;
+        this.bodyEnd = contentLength - 3;
+        this.recordLength = contentLength;
+
+        return true;
+    }
+
+    /**
+     * Gets the format of the records, once the first one has been read.
+     *
+     * @return The format.
+     */
+    public MailBoxFormat getFormat()
+    {
+        return this.format;
+    }
+
+    /**
+     * Gets the offset of the current record in the stream.
+     *
+     * @return The record's offset.
+     */
+    public long getRecordOffset()
+    {
+        return this.bufferOffset + this.start;
+    }
+
+    /**
+     * Gets the length of the current record, including the end of data marker
+     * but not the header of a binary record.
+     *
+     * @return The record's length.
+     */
+    public int getRecordLength()
+    {
+        return this.recordLength;
+    }
+
+    /**
+     * Gets the size in octets of the mail in the current record, counting a
+     * compressed body or a body in the {@link MailBlobStore} as if it was in
+     * the record as is.
+     *
+     * @return The mail's size.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * header replacing the body is malformed.
+     */
+    public int getSize()
+    throws InvalidMailBoxFileException
+    {
+        // Initialize vars
+        int lineStart = this.start, headersLimit = this.start + this.headersEnd, lineEnd;
+        String value;
+
+        // A binary record tells if a header replaces the body
+        if(MailBoxFormat.BINARY == this.format && 0 == this.flags)
+        {
+            headersLimit = lineStart;
+        }
+
+        // Look for a header replacing the body
+        while(lineStart < headersLimit)
+        {
+            lineEnd = lineStart;
+
+            while(lineEnd < headersLimit && this.buffer[lineEnd] != '\r')
+            {
+                lineEnd++;
+            }
+
+            if(MailBoxParser.startsWith(this.buffer, lineStart, lineEnd, MailBoxParser.COMPRESSED_PREFIX))
+            {
+                value = this.getHeaderValue(lineStart, lineEnd, MailBoxParser.COMPRESSED_PREFIX);
+
+                return MailBox.getSize(
+                    this.bodyStart, MailCompressor.HEADER, value, MailCompressor.getLength(value)
+                );
+            }
+            else if(MailBoxParser.startsWith(this.buffer, lineStart, lineEnd, MailBoxParser.REFERENCE_PREFIX))
+            {
+                value = this.getHeaderValue(lineStart, lineEnd, MailBoxParser.REFERENCE_PREFIX);
+
+                return MailBox.getSize(
+                    this.bodyStart, MailBlobStore.HEADER, value, SharedMail.getBodyLength(value)
+                );
+            }
+
+            lineStart = lineEnd + 2;
+        }
+
+        return this.recordLength - SmtpProtocol.END_OF_DATA.length();
+    }
+
+    /**
+     * Gets the flags of the current record, telling whether its body has been
+     * compressed or is in the {@link MailBlobStore}.
+     *
+     * @return The record's flags.
+     */
+    public int getFlags()
+    {
+        // Initialize vars
+        int lineStart = this.start, headersLimit = this.start + this.headersEnd, lineEnd, flags = 0;
+
+        if(MailBoxFormat.BINARY == this.format)
+        {
+            return this.flags;
+        }
+
+        // Otherwise, the headers replacing the body tell it
+        while(lineStart < headersLimit)
+        {
+            lineEnd = lineStart;
+
+            while(lineEnd < headersLimit && this.buffer[lineEnd] != '\r')
+            {
+                lineEnd++;
+            }
+
+            if(MailBoxParser.startsWith(this.buffer, lineStart, lineEnd, MailBoxParser.COMPRESSED_PREFIX))
+            {
+                flags |= MailBoxFormat.FLAG_COMPRESSED;
+            }
+            else if(MailBoxParser.startsWith(this.buffer, lineStart, lineEnd, MailBoxParser.REFERENCE_PREFIX))
+            {
+                flags |= MailBoxFormat.FLAG_SHARED;
+            }
+
+            lineStart = lineEnd + 2;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Writes the current record as a binary one, its content being copied as
+     * is.
+     *
+     * @param dataWriter The stream to write the record into.
+     * @throws java.io.IOException If the record couldn't be written.
+     */
+    public void writeBinaryRecord(DataOutputStream dataWriter)
+    throws IOException
+    {
+        MailBoxFormat.writeRecordHeader(
+            dataWriter,
+            this.buffer,
+            this.start,
+            this.recordLength,
+            this.headersEnd > 0 ? this.bodyStart : 0,
+            this.getFlags()
+        );
+        dataWriter.write(this.buffer, this.start, this.recordLength);
+    }
+
+    /**
+     * Gets the value of a header line of the current record.
+     *
+     * @param lineStart The position of the line in the buffer.
+     * @param lineEnd The position of the line's end in the buffer.
+     * @param prefix The header's name followed by a colon and a space.
+     * @return The header's value.
+     */
+    protected String getHeaderValue(int lineStart, int lineEnd, byte[] prefix)
+    {
+        return new String(
+            this.buffer,
+            lineStart + prefix.length,
+            lineEnd - lineStart - prefix.length,
+            StandardCharsets.US_ASCII
+        );
+    }
+
+    /**
+     * Tests if some bytes start with a given prefix.
+     *
+     * @param data The bytes to test.
+     * @param offset The position of the bytes to test.
+     * @param limit The position of the end of the bytes to test.
+     * @param prefix The prefix.
+     * @return <code>true</code> if they start with the prefix,
+     * <code>false</code> otherwise.
+     */
+    protected static boolean startsWith(byte[] data, int offset, int limit, byte[] prefix)
+    {
+        if(limit - offset < prefix.length)
+        {
+            return false;
+        }
+
+        for(int i = 0; i < prefix.length; i++)
+        {
+            if(data[offset + i] != prefix[i])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the position of the body in the current record.
+     *
+     * @return The body's position.
+     */
+    public int getBodyStart()
+    {
+        return this.bodyStart;
+    }
+
+    /**
+     * Builds a mail from the current record.
+     *
+     * The mail keeps a copy of the record's bytes, its headers and its body
+     * are only decoded when they are asked for.
+     *
+     * @param charset The charset to build the strings with.
+     * @return The mail.
+     */
+    public Mail getMail(Charset charset)
+    {
+        // Every line ended by a CRLF before the empty line is a header, the body ends before the marker
+        return new RawMail(
+            Arrays.copyOfRange(this.buffer, this.start, this.start + this.recordLength),
+            this.headersEnd > 0 ? this.bodyStart : 0,
+            this.bodyStart,
+            Math.max(0, this.bodyEnd - this.bodyStart - 2),
+            charset,
+            true
+        );
+    }
+
+    /**
+     * Adds the headers in the beginning of the current record to a mail,
+     * unfolding those going on over several lines.
+     *
+     * @param mail The mail to add the headers to.
+     * @param length The length of the beginning of the record to read.
+     * @param charset The charset to build the strings with.
+     * @throws java.lang.IllegalArgumentException If a header is malformed.
+     */
+    protected void readHeaders(Mail mail, int length, Charset charset)
+    throws IllegalArgumentException
+    {
+        MailParser.readHeaders(
+            Arrays.copyOfRange(this.buffer, this.start, this.start + length),
+            length,
+            charset,
+            mail.getHeaders()
+        );
+    }
+
+    /**
+     * Looks for a sequence of bytes in the current record.
+     *
+     * @param from The position in the record to start looking from.
+     * @param b0 The sequence's first byte.
+     * @param b1 The sequence's second byte.
+     * @param b2 The sequence's third byte, if any.
+     * @param b3 The sequence's fourth byte, if any.
+     * @param length The length of the sequence, 2 or 4.
+     * @return The position of the sequence in the record, <code>-1</code> if
+     * it isn't in the buffer.
+     */
+    protected int indexOf(int from, byte b0, byte b1, byte b2, byte b3, int length)
+    {
+        // Initialize vars
+        byte[] data = this.buffer;
+        int last = this.limit - length;
+
+        for(int i = this.start + from; i <= last; i++)
+        {
+            if(
+                data[i] == b0 && data[i + 1] == b1
+                && (length == 2 || (data[i + 2] == b2 && data[i + 3] == b3))
+            )
+            {
+                return i - this.start;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reads another chunk from the stream, moving the current record at the
+     * beginning of the buffer first and growing the buffer if it is full.
+     *
+     * @return <code>true</code> if some bytes have been read,
+     * <code>false</code> if the end of the stream has been reached.
+     * @throws java.io.IOException If the stream couldn't be read.
+     */
+    protected boolean fill()
+    throws IOException
+    {
+        // Move the current record at the beginning of the buffer
+        if(this.start > 0)
+        {
+            System.arraycopy(this.buffer, this.start, this.buffer, 0, this.limit - this.start);
+            this.limit -= this.start;
+            this.bufferOffset += this.start;
+            this.start = 0;
+        }
+
+        // Grow the buffer if the record doesn't fit in it
+        if(this.limit == this.buffer.length)
+        {
+            this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+        }
+
+        // Then, read the next chunk
+        int readBytes = this.stream.read(this.buffer, this.limit, this.buffer.length - this.limit);
+
+        if(-1 == readBytes)
+        {
+            return false;
+        }
+
+        this.limit += readBytes;
+
+        return true;
+    }
+
+    /**
+     * Builds the exception thrown when the mailbox isn't built correctly.
+     *
+     * @return The exception.
+     */
+    protected InvalidMailBoxFileException invalid()
+    {
+        return new InvalidMailBoxFileException(String.format(
+            "Mailbox \"%s\" isn't built correctly.",
+            this.name
+        ));
+    }
+}
@@ -0,0 +1,281 @@
+package common.mails;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Forces mailboxes' files and directories to the disk according to the
+ * configured {@link SyncPolicy}.
+ *
+ * With the batched policy, the paths to force are collected and forced
+ * together by a single background thread, once per interval.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxSyncer extends Thread
+{
+    /**
+     * The default interval between two batches, in milliseconds.
+     */
+    public static final long DEFAULT_INTERVAL = 200;
+
+    /**
+     * The current policy.
+     */
+    protected static volatile SyncPolicy policy = SyncPolicy.ALWAYS;
+
+    /**
+     * The interval between two batches, in milliseconds.
+     */
+    protected static volatile long interval = MailBoxSyncer.DEFAULT_INTERVAL;
+
+    /**
+     * The paths whose forcing the current thread defers, <code>null</code> if
+     * it doesn't.
+     */
+    protected static final ThreadLocal<Set<Path>> deferredPaths = new ThreadLocal<>();
+
+    /**
+     * The background thread, started with the first batched path.
+     */
+    protected static MailBoxSyncer instance = null;
+
+    /**
+     * The paths waiting to be forced.
+     */
+    protected final Set<Path> pendingPaths;
+
+    /**
+     * Creates the background thread.
+     */
+    protected MailBoxSyncer()
+    {
+        super("MailBoxSyncer");
+
+        // Initialize properties
+        this.pendingPaths = new LinkedHashSet<>();
+        this.setDaemon(true);
+    }
+
+    /**
+     * Gets the current policy.
+     *
+     * @return The policy.
+     */
+    public static SyncPolicy getPolicy()
+    {
+        return MailBoxSyncer.policy;
+    }
+
+    /**
+     * Sets the policy used for every mailbox.
+     *
+     * @param policy The policy.
+     */
+    public static void setPolicy(SyncPolicy policy)
+    {
+        MailBoxSyncer.policy = policy;
+    }
+
+    /**
+     * Gets the interval between two batches.
+     *
+     * @return The interval, in milliseconds.
+     */
+    public static long getInterval()
+    {
+        return MailBoxSyncer.interval;
+    }
+
+    /**
+     * Sets the interval between two batches.
+     *
+     * @param interval The interval, in milliseconds.
+     */
+    public static void setInterval(long interval)
+    {
+        if(interval <= 0)
+        {
+            throw new IllegalArgumentException("Interval must be positive.");
+        }
+
+        MailBoxSyncer.interval = interval;
+    }
+
+    /**
+     * Forces a file or a directory to the disk, now or in the next batch
+     * depending on the policy, unless the current thread defers it.
+     *
+     * @param path The path to force.
+     * @throws java.io.IOException If the path couldn't be forced right away.
+     */
+    public static void sync(Path path)
+    throws IOException
+    {
+        // Initialize vars
+        Set<Path> deferred = MailBoxSyncer.deferredPaths.get();
+
+        if(null != deferred && SyncPolicy.NEVER != MailBoxSyncer.policy)
+        {
+            deferred.add(path);
+
+            return;
+        }
+
+        switch(MailBoxSyncer.policy)
+        {
+            case ALWAYS:
+                MailBoxSyncer.force(path);
+                break;
+
+            case BATCHED:
+                MailBoxSyncer.getInstance().schedule(path);
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Makes the current thread collect the paths it should force rather than
+     * forcing them, for when something else, such as the
+     * {@link DeliveryJournal}, keeps the changes durable meanwhile.
+     *
+     * @param paths The set to collect the paths into, <code>null</code> to
+     * force them again.
+     */
+    public static void defer(Set<Path> paths)
+    {
+        if(null != paths)
+        {
+            MailBoxSyncer.deferredPaths.set(paths);
+        }
+        else
+        {
+            MailBoxSyncer.deferredPaths.remove();
+        }
+    }
+
+    /**
+     * Forces a file or a directory to the disk right away.
+     *
+     * Directories can't be opened on every platform, in which case forcing
+     * them is silently skipped.
+     *
+     * @param path The path to force.
+     * @throws java.io.IOException If the file couldn't be forced.
+     */
+    public static void force(Path path)
+    throws IOException
+    {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch(NoSuchFileException ex)
+        {
+            // The file has been replaced or deleted since, nothing to force
+        }
+        catch(IOException ex)
+        {
+            if(!path.toFile().isDirectory())
+            {
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Gets the background thread, starting it if needed.
+     *
+     * @return The background thread.
+     */
+    protected static synchronized MailBoxSyncer getInstance()
+    {
+        if(null == MailBoxSyncer.instance)
+        {
+            MailBoxSyncer.instance = new MailBoxSyncer();
+            MailBoxSyncer.instance.start();
+        }
+
+        return MailBoxSyncer.instance;
+    }
+
+    /**
+     * Adds a path to the next batch.
+     *
+     * @param path The path to force.
+     */
+    protected void schedule(Path path)
+    {
+        synchronized(this.pendingPaths)
+        {
+            this.pendingPaths.add(path);
+        }
+    }
+
+    /**
+     * The background thread's main loop: forcing every pending path once per
+     * interval.
+     */
+    @Override
+    public void run()
+    {
+        // Initialize vars
+        Set<Path> batch;
+
+        while(true)
+        {
+            try
+            {
+                Thread.sleep(MailBoxSyncer.interval);
+            }
+            catch(InterruptedException ex)
+            {
+                return;
+            }
+
+            // Take the current batch
+            synchronized(this.pendingPaths)
+            {
+                if(this.pendingPaths.isEmpty())
+                {
+                    continue;
+                }
+
+                batch = new LinkedHashSet<>(this.pendingPaths);
+                this.pendingPaths.clear();
+            }
+
+            // Then, force it
+            for(Path path : batch)
+            {
+                try
+                {
+                    MailBoxSyncer.force(path);
+                }
+                catch(IOException ex)
+                {
+                    Logger.getLogger(MailBoxSyncer.class.getName()).log(
+                        Level.SEVERE,
+                        String.format(
+                            "Couldn't force \"%s\" to the disk.",
+                            path
+                        ),
+                        ex
+                    );
+                }
+            }
+        }
+    }
+}
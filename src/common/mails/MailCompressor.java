@@ -0,0 +1,263 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the bodies of mails in their mailbox records.
+ *
+ * Each body is compressed on its own, so that a single mail can be read
+ * without the others. The compressed bytes are encoded in base 64 so that they
+ * can never be mistaken for the end of data marker, and the record gets a
+ * header giving the uncompressed length, which is what the mail's size is
+ * computed from. Compression is disabled by default, records written while it
+ * was enabled are read either way.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailCompressor
+{
+    /**
+     * The header marking a record whose body is compressed.
+     */
+    public static final String HEADER = "X-Compressed";
+
+    /**
+     * The compression method, which comes first in the header's value.
+     */
+    public static final String METHOD = "deflate";
+
+    /**
+     * The default minimum length of a body worth compressing, in bytes.
+     */
+    public static final int DEFAULT_THRESHOLD = 512;
+
+    /**
+     * The minimum length of a body worth compressing, <code>-1</code> if
+     * compression is disabled.
+     */
+    protected static volatile int threshold = -1;
+
+    /**
+     * Gets the minimum length of a body worth compressing.
+     *
+     * @return The threshold, <code>-1</code> if compression is disabled.
+     */
+    public static int getThreshold()
+    {
+        return MailCompressor.threshold;
+    }
+
+    /**
+     * Sets the minimum length of a body worth compressing.
+     *
+     * @param threshold The threshold in bytes, <code>-1</code> to disable
+     * compression.
+     */
+    public static void setThreshold(int threshold)
+    {
+        if(threshold < -1)
+        {
+            throw new IllegalArgumentException("Threshold must be positive, or -1 to disable compression.");
+        }
+
+        MailCompressor.threshold = threshold;
+    }
+
+    /**
+     * Tests if a body should be compressed.
+     *
+     * @param length The body's length.
+     * @return <code>true</code> if it should, <code>false</code> otherwise.
+     */
+    public static boolean accepts(int length)
+    {
+        // Initialize vars
+        int currentThreshold = MailCompressor.threshold;
+
+        return -1 != currentThreshold && length >= currentThreshold;
+    }
+
+    /**
+     * Compresses a body.
+     *
+     * @param body The body's bytes.
+     * @return The compressed bytes, encoded in base 64.
+     */
+    public static byte[] compress(byte[] body)
+    {
+        return MailCompressor.compress(body, 0, body.length);
+    }
+
+    /**
+     * Compresses a body lying in a larger array.
+     *
+     * @param data The array holding the body's bytes.
+     * @param offset The position of the body in the array.
+     * @param length The body's length.
+     * @return The compressed bytes, encoded in base 64.
+     */
+    public static byte[] compress(byte[] data, int offset, int length)
+    {
+        // Initialize vars
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressedStream = new ByteArrayOutputStream(Math.max(64, length / 4));
+        byte[] buffer = new byte[8192];
+
+        try
+        {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+
+            while(!deflater.finished())
+            {
+                compressedStream.write(buffer, 0, deflater.deflate(buffer));
+            }
+        }
+        finally
+        {
+            // Release the native memory right away
+            deflater.end();
+        }
+
+        return Base64.getEncoder().encode(compressedStream.toByteArray());
+    }
+
+    /**
+     * Decompresses a body.
+     *
+     * @param compressedBody The compressed bytes, encoded in base 64.
+     * @return The body's bytes.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the body
+     * isn't compressed correctly.
+     */
+    public static byte[] decompress(byte[] compressedBody)
+    throws InvalidMailBoxFileException
+    {
+        // Initialize vars
+        Inflater inflater = new Inflater();
+        ByteArrayOutputStream bodyStream = new ByteArrayOutputStream(compressedBody.length * 4);
+        byte[] buffer = new byte[8192];
+
+        try
+        {
+            inflater.setInput(Base64.getDecoder().decode(compressedBody));
+
+            while(!inflater.finished())
+            {
+                int inflatedLength = inflater.inflate(buffer);
+
+                if(0 == inflatedLength && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new InvalidMailBoxFileException("Compressed body is truncated.");
+                }
+
+                bodyStream.write(buffer, 0, inflatedLength);
+            }
+        }
+        catch(DataFormatException | IllegalArgumentException ex)
+        {
+            throw new InvalidMailBoxFileException("Body isn't compressed correctly.", ex);
+        }
+        finally
+        {
+            // Release the native memory right away
+            inflater.end();
+        }
+
+        return bodyStream.toByteArray();
+    }
+
+    /**
+     * Decompresses a body as it is read.
+     *
+     * @param compressedStream The stream of compressed bytes, encoded in base
+     * 64.
+     * @return The stream of the body's bytes.
+     */
+    public static InputStream decompress(InputStream compressedStream)
+    {
+        return new InflaterInputStream(Base64.getDecoder().wrap(compressedStream));
+    }
+
+    /**
+     * Builds the value of the header marking a compressed record.
+     *
+     * @param length The body's uncompressed length.
+     * @return The header's value.
+     */
+    public static String getHeaderValue(int length)
+    {
+        return MailCompressor.METHOD + " " + length;
+    }
+
+    /**
+     * Gets the uncompressed length of a body from the header marking its
+     * record.
+     *
+     * @param value The header's value.
+     * @return The body's length.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * header is malformed or names another method.
+     */
+    public static int getLength(String value)
+    throws InvalidMailBoxFileException
+    {
+        try
+        {
+            if(!value.startsWith(MailCompressor.METHOD + " "))
+            {
+                throw new NumberFormatException();
+            }
+
+            return Integer.parseInt(value.substring(MailCompressor.METHOD.length() + 1).trim());
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new InvalidMailBoxFileException(
+                String.format(
+                    "Unsupported compression \"%s\".",
+                    value
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Decompresses the body of a mail read as a whole from a record if it is
+     * compressed.
+     *
+     * @param mail The mail read from the record.
+     * @param charset The charset to build the body with.
+     * @return The mail, whose body is now uncompressed.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the body
+     * isn't compressed correctly.
+     */
+    public static Mail resolve(Mail mail, Charset charset)
+    throws InvalidMailBoxFileException
+    {
+        // Initialize vars
+        String value = mail.removeHeader(MailCompressor.HEADER);
+
+        if(null != value)
+        {
+            mail.setBody(new String(
+                MailCompressor.decompress(mail.getBody().getBytes(StandardCharsets.US_ASCII)),
+                charset
+            ).trim());
+        }
+
+        return mail;
+    }
+}
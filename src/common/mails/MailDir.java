@@ -0,0 +1,732 @@
+package common.mails;
+
+import common.mails.exceptions.FailedMailBoxUpdateException;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.UnknownMailBoxException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import smtp.SmtpProtocol;
+
+/**
+ * A mailbox stored as a directory holding one file per mail, the way Maildir
+ * does.
+ *
+ * A mail is delivered by writing it in the <code>tmp</code> subdirectory then
+ * renaming it into the <code>new</code> one, and deleted by unlinking its
+ * file, so neither reads nor rewrites the other mails and concurrent
+ * deliveries need no lock. Mails moved into the <code>cur</code> subdirectory
+ * by other tools are read as well.
+ *
+ * Each file holds a single mailbox record, so mails are parsed exactly the
+ * same way as in a flat mailbox.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailDir extends MailBox
+{
+    /**
+     * The subdirectory mails are written in before being delivered.
+     */
+    public static final String TMP = "tmp";
+
+    /**
+     * The subdirectory mails are delivered in.
+     */
+    public static final String NEW = "new";
+
+    /**
+     * The subdirectory of the mails which have already been seen.
+     */
+    public static final String CUR = "cur";
+
+    /**
+     * The number of mails delivered by this process, to build unique names.
+     */
+    protected static final AtomicLong deliveriesNumber = new AtomicLong();
+
+    /**
+     * The part of the mails' names identifying this process and its host.
+     */
+    protected static String nameSuffix = null;
+
+    /**
+     * The files the mails have been read from or written to.
+     */
+    protected Map<Mail, File> filesMap;
+
+    /**
+     * Creates a new mailbox associated with a given directory.
+     *
+     * @param path The associated directory's path.
+     */
+    public MailDir(File path)
+    {
+        super(path);
+
+        // Initialize properties
+        this.filesMap = new IdentityHashMap<>();
+    }
+
+    /**
+     * Creates a new mailbox holding the same mails as another one, but whose
+     * marks for deletion are its own.
+     *
+     * @param mailDir The mailbox to copy.
+     */
+    protected MailDir(MailDir mailDir)
+    {
+        super(mailDir);
+
+        // Initialize properties
+        this.filesMap = new IdentityHashMap<>(mailDir.filesMap.size());
+
+        // Mails have been copied in the same order
+        for(int i = 0, j = this.mailsList.size(); i < j; i++)
+        {
+            File mailFile = mailDir.filesMap.get(mailDir.mailsList.get(i));
+
+            if(null != mailFile)
+            {
+                this.filesMap.put(this.mailsList.get(i), mailFile);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public MailBox copy()
+    {
+        return new MailDir(this);
+    }
+
+    /**
+     * Tests if a directory is laid out as a mailbox.
+     *
+     * @param path The directory's path.
+     * @return <code>true</code> if it has the three subdirectories,
+     * <code>false</code> otherwise.
+     */
+    public static boolean isMailDir(File path)
+    {
+        return new File(path, MailDir.TMP).isDirectory()
+            && new File(path, MailDir.NEW).isDirectory()
+            && new File(path, MailDir.CUR).isDirectory();
+    }
+
+    /**
+     * Creates the associated directory and its subdirectories if they don't
+     * exist yet.
+     *
+     * @throws java.io.IOException If a directory couldn't be created.
+     */
+    public void create()
+    throws IOException
+    {
+        for(String subdirectory : new String[] {MailDir.TMP, MailDir.NEW, MailDir.CUR})
+        {
+            Files.createDirectories(new File(this.path, subdirectory).toPath());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getUserName()
+    {
+        return this.path.getName();
+    }
+
+    /**
+     * Delivers the mails which haven't been stored yet and deletes the ones
+     * marked for deletion, leaving the other mails' files untouched.
+     *
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the
+     * mailbox couldn't be updated.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     */
+    @Override
+    public void save()
+    throws FailedMailBoxUpdateException, FileNotFoundException, IllegalArgumentException
+    {
+        // Delete the marked mails first
+        this.expunge();
+
+        // Then, deliver the new ones
+        for(Mail mail : this.mailsList)
+        {
+            if(!this.filesMap.containsKey(mail))
+            {
+                this.filesMap.put(mail, this.deliver(mail));
+            }
+        }
+    }
+
+    /**
+     * Delivers a single mail into its own file.
+     *
+     * The mail is also added to the in-memory list, so this method can be used
+     * on a mailbox which hasn't been loaded.
+     *
+     * @param mail The mail to deliver.
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the mail
+     * couldn't be delivered.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     */
+    @Override
+    public void append(Mail mail)
+    throws FailedMailBoxUpdateException, FileNotFoundException, IllegalArgumentException
+    {
+        File mailFile = this.deliver(mail);
+
+        this.add(mail);
+        this.filesMap.put(mail, mailFile);
+    }
+
+    /**
+     * Writes a mail in the <code>tmp</code> subdirectory, then renames it into
+     * the <code>new</code> one.
+     *
+     * @param mail The mail to deliver.
+     * @return The delivered file.
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If the mail
+     * couldn't be delivered.
+     * @throws java.io.FileNotFoundException If the mailbox doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     */
+    protected File deliver(Mail mail)
+    throws FailedMailBoxUpdateException, FileNotFoundException, IllegalArgumentException
+    {
+        // Does the mailbox exist?
+        if(!this.path.exists())
+        {
+            throw new FileNotFoundException(String.format(
+                "Mailbox \"%s\" doesn't exist.",
+                this.path.getAbsolutePath()
+            ));
+        }
+        // Is it an actual mailbox directory?
+        else if(!MailDir.isMailDir(this.path))
+        {
+            throw new IllegalArgumentException(String.format(
+                "Mailbox \"%s\" isn't a mailbox directory.",
+                this.path.getAbsolutePath()
+            ));
+        }
+
+        // Initialize vars
+        String name = MailDir.createName();
+        File temporaryFile = new File(new File(this.path, MailDir.TMP), name);
+        File mailFile = new File(new File(this.path, MailDir.NEW), name);
+        ByteArrayOutputStream dataStream;
+        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
+
+        try
+        {
+            // Write the mail into its temporary file
+            MailBox.write(dataWriter, mail);
+
+            try(FileOutputStream mailStream = new FileOutputStream(temporaryFile))
+            {
+                mailStream.write(dataStream.toByteArray());
+
+                // It must be complete on the disk before it is delivered
+                if(SyncPolicy.NEVER != MailBoxSyncer.getPolicy())
+                {
+                    mailStream.getChannel().force(true);
+                }
+            }
+
+            // Then, deliver it and make the delivery durable
+            Files.move(temporaryFile.toPath(), mailFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            MailBoxCache.getInstance().grow(this.path);
+            MailBoxSyncer.sync(mailFile.getParentFile().toPath());
+        }
+        catch(IOException ex)
+        {
+            if(temporaryFile.exists() && !temporaryFile.delete())
+            {
+                Logger.getLogger(MailDir.class.getName()).log(
+                    Level.WARNING,
+                    "Couldn't delete temporary file \"{0}\".",
+                    temporaryFile.getAbsolutePath()
+                );
+            }
+
+            throw new FailedMailBoxUpdateException(
+                String.format(
+                    "Mail couldn't be delivered to mailbox \"%s\".",
+                    this.path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+
+        return mailFile;
+    }
+
+    /**
+     * Builds a name unique across processes and hosts for a new mail's file.
+     *
+     * @return The name.
+     */
+    protected static String createName()
+    {
+        if(null == MailDir.nameSuffix)
+        {
+            // Initialize vars
+            String processName = ManagementFactory.getRuntimeMXBean().getName();
+            String host;
+
+            try
+            {
+                host = InetAddress.getLocalHost().getHostName();
+            }
+            catch(UnknownHostException ex)
+            {
+                host = "localhost";
+            }
+
+            MailDir.nameSuffix = String.format(
+                "P%s.%s",
+                processName.substring(0, Math.max(0, processName.indexOf("@"))),
+                host.replace('/', '_').replace(':', '_')
+            );
+        }
+
+        // The sequence number is padded so names sort in the delivery order
+        return String.format(
+            "%d.Q%010d%s",
+            System.currentTimeMillis(),
+            MailDir.deliveriesNumber.incrementAndGet(),
+            MailDir.nameSuffix
+        );
+    }
+
+    /**
+     * Loads every mail from the associated directory.
+     *
+     * @param charset The charset to build the strings with.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a mail's
+     * file isn't built correctly.
+     * @throws java.io.IOException If a mail's file couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     */
+    @Override
+    public void load(Charset charset)
+    throws UnknownMailBoxException, FileNotFoundException, IOException,
+        InvalidMailBoxFileException
+    {
+        // Can the mailbox be read?
+        this.checkReadable();
+
+        // Initialize vars
+        Mail mail;
+
+        this.lazy = false;
+
+        for(File mailFile : this.listMailFiles())
+        {
+            if(null != (mail = this.readMailFile(mailFile, charset)))
+            {
+                this.add(mail);
+                this.filesMap.put(mail, mailFile);
+            }
+        }
+    }
+
+    /**
+     * Loads the headers of every mail from the associated directory, leaving
+     * their bodies on disk until they are needed.
+     *
+     * @param charset The charset to build the strings with.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a mail's
+     * file isn't built correctly.
+     * @throws java.io.IOException If a mail's file couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     * @see common.mails.LazyMail
+     */
+    @Override
+    public void loadLazily(Charset charset)
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        // Can the mailbox be read?
+        this.checkReadable();
+
+        // Initialize vars
+        Mail mail;
+
+        this.lazy = true;
+
+        for(File mailFile : this.listMailFiles())
+        {
+            if(null != (mail = this.readMailFileLazily(mailFile, charset)))
+            {
+                this.add(mail);
+                this.filesMap.put(mail, mailFile);
+            }
+        }
+    }
+
+    /**
+     * Reads the mails delivered since the mailbox was loaded, the same way as
+     * the others, without reading the others again.
+     *
+     * The mailbox is loaded again if a mail read from it has been deleted or
+     * moved by another session meanwhile, in which case the marks for
+     * deletion are lost.
+     *
+     * @param charset The charset to build the strings with.
+     * @return <code>true</code> if only the new mails have been read,
+     * <code>false</code> if the mailbox had to be loaded again.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a mail's
+     * file isn't built correctly.
+     * @throws java.io.IOException If a mail's file couldn't be read.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory.
+     */
+    @Override
+    public boolean refresh(Charset charset)
+    throws UnknownMailBoxException, IOException, InvalidMailBoxFileException
+    {
+        // Can the mailbox be read?
+        this.checkReadable();
+
+        // Initialize vars
+        Set<File> loadedFiles = new HashSet<>(this.filesMap.values());
+        List<Mail> newMails = new ArrayList<>();
+        List<File> newFiles = new ArrayList<>();
+        int foundNumber = 0;
+        Mail mail;
+
+        for(File mailFile : this.listMailFiles())
+        {
+            if(loadedFiles.contains(mailFile))
+            {
+                foundNumber++;
+            }
+            else if(null != (mail = this.lazy ? this.readMailFileLazily(mailFile, charset) : this.readMailFile(mailFile, charset)))
+            {
+                newMails.add(mail);
+                newFiles.add(mailFile);
+            }
+        }
+
+        if(foundNumber != loadedFiles.size())
+        {
+            this.clear();
+            this.filesMap.clear();
+
+            if(this.lazy)
+            {
+                this.loadLazily(charset);
+            }
+            else
+            {
+                this.load(charset);
+            }
+
+            return false;
+        }
+
+        // Nothing is added unless every new mail has been read
+        for(int i = 0; i < newMails.size(); i++)
+        {
+            this.add(newMails.get(i));
+            this.filesMap.put(newMails.get(i), newFiles.get(i));
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads a mail from its file.
+     *
+     * The file holds a single record, which ends with the file rather than at
+     * the first end of data marker: the body may hold one since the client's
+     * dot-stuffing has been removed.
+     *
+     * @param mailFile The mail's file.
+     * @param charset The charset to build the strings with.
+     * @return The mail, <code>null</code> if it has been deleted.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the file
+     * isn't built correctly.
+     * @throws java.io.IOException If the file couldn't be read.
+     */
+    protected Mail readMailFile(File mailFile, Charset charset)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        byte[] data;
+        int contentLength, headersLength;
+
+        try(RandomAccessFile mailStream = new RandomAccessFile(mailFile, "r"))
+        {
+            data = new byte[(int) mailStream.length()];
+            mailStream.readFully(data);
+        }
+        catch(FileNotFoundException ex)
+        {
+            // The mail has been deleted since the directory was listed
+            return null;
+        }
+
+        if((contentLength = data.length - SmtpProtocol.END_OF_DATA.length()) < 0)
+        {
+            throw new InvalidMailBoxFileException(String.format(
+                "Mail \"%s\" isn't built correctly.",
+                mailFile.getAbsolutePath()
+            ));
+        }
+
+        // The headers are those ended by an empty line, the body goes on up to the file's marker
+        headersLength = MailBox.indexOfEmptyLine(data, contentLength);
+        headersLength = -1 == headersLength ? 0 : headersLength + 4;
+
+        return MailBox.resolve(
+            new RawMail(data, headersLength, headersLength, contentLength - headersLength, charset, true),
+            headersLength,
+            MailBoxFormat.FLAG_COMPRESSED | MailBoxFormat.FLAG_SHARED,
+            charset
+        );
+    }
+
+    /**
+     * Reads the headers of a mail from its file, leaving its body on disk
+     * until it is needed.
+     *
+     * @param mailFile The mail's file.
+     * @param charset The charset to build the strings with.
+     * @return The mail, <code>null</code> if it has been deleted.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the file
+     * isn't built correctly.
+     * @throws java.io.IOException If the file couldn't be read.
+     */
+    protected Mail readMailFileLazily(File mailFile, Charset charset)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        long length;
+
+        try(RandomAccessFile mailStream = new RandomAccessFile(mailFile, "r"))
+        {
+            length = mailStream.length();
+
+            if(length < SmtpProtocol.END_OF_DATA.length())
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mail \"%s\" isn't built correctly.",
+                    mailFile.getAbsolutePath()
+                ));
+            }
+
+            // A mail's file is never rewritten, only deleted
+            return MailBox.readLazily(
+                mailStream,
+                mailFile,
+                null,
+                new MailBoxIndex.Entry(0, (int) length, (int) length - SmtpProtocol.END_OF_DATA.length()),
+                MailBoxFormat.TEXT,
+                charset
+            );
+        }
+        catch(FileNotFoundException ex)
+        {
+            // The mail has been deleted since the directory was listed
+            return null;
+        }
+    }
+
+    /**
+     * Lists the files of the delivered mails, in the order they have been
+     * delivered.
+     *
+     * @return The mails' files.
+     */
+    protected List<File> listMailFiles()
+    {
+        // Initialize vars
+        List<File> mailFiles = new ArrayList<>();
+
+        for(String subdirectory : new String[] {MailDir.CUR, MailDir.NEW})
+        {
+            File[] files = new File(this.path, subdirectory).listFiles();
+
+            if(null != files)
+            {
+                for(File file : files)
+                {
+                    if(file.isFile() && !file.getName().startsWith("."))
+                    {
+                        mailFiles.add(file);
+                    }
+                }
+            }
+        }
+
+        // Names start with the delivery time
+        mailFiles.sort((first, second) -> first.getName().compareTo(second.getName()));
+
+        return mailFiles;
+    }
+
+    /**
+     * Deletes the files of the mails marked for deletion.
+     *
+     * @throws common.mails.exceptions.FailedMailBoxUpdateException If a file
+     * couldn't be deleted.
+     */
+    @Override
+    public void expunge()
+    throws FailedMailBoxUpdateException
+    {
+        // Initialize vars
+        List<File> failedFiles = new ArrayList<>();
+        List<String> releasedHashes = new ArrayList<>();
+        File mailFile;
+
+        for(Mail mail : this.getMarkedMails())
+        {
+            mailFile = this.filesMap.remove(mail);
+
+            if(null != mailFile && !mailFile.delete() && mailFile.exists())
+            {
+                failedFiles.add(mailFile);
+                this.filesMap.put(mail, mailFile);
+            }
+            else if(null != mailFile && mail instanceof SharedMail)
+            {
+                releasedHashes.add(((SharedMail) mail).getHash());
+            }
+        }
+
+        // Forget about the deleted mails
+        this.removeMarkedMails((mail) -> this.filesMap.containsKey(mail));
+        MailBoxCache.getInstance().invalidate(this.path);
+
+        // Then, make the deletions durable
+        try
+        {
+            MailBoxSyncer.sync(new File(this.path, MailDir.NEW).toPath());
+            MailBoxSyncer.sync(new File(this.path, MailDir.CUR).toPath());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(MailDir.class.getName()).log(
+                Level.WARNING,
+                String.format(
+                    "Couldn't force mailbox \"%s\" to the disk.",
+                    this.path.getAbsolutePath()
+                ),
+                ex
+            );
+        }
+
+        MailBox.releaseSharedBodies(releasedHashes);
+
+        if(!failedFiles.isEmpty())
+        {
+            throw new FailedMailBoxUpdateException(String.format(
+                "Mails %s couldn't be deleted.",
+                Arrays.toString(failedFiles.toArray())
+            ));
+        }
+    }
+
+    /**
+     * Opens a memory-mapped, read-only view of the mails' files, which must
+     * be closed once it isn't needed anymore.
+     *
+     * @return The mapped mailbox.
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a mail's
+     * file isn't built correctly.
+     * @throws java.io.IOException If a mail's file couldn't be mapped.
+     */
+    @Override
+    public MappedMailBox map()
+    throws UnknownMailBoxException, InvalidMailBoxFileException, IOException
+    {
+        MappedMailBox mappedMailBox = new MappedMailDir(this);
+        mappedMailBox.open();
+
+        return mappedMailBox;
+    }
+
+    /**
+     * Checks that the associated directory can be read.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws java.lang.IllegalArgumentException If the mailbox isn't a
+     * directory or can't be read.
+     */
+    @Override
+    protected void checkReadable()
+    throws UnknownMailBoxException, IllegalArgumentException
+    {
+        // Does the mailbox exist?
+        if(!this.path.exists())
+        {
+            throw new UnknownMailBoxException(String.format(
+                "Mailbox \"%s\" doesn't exist.",
+                this.path.getAbsolutePath()
+            ));
+        }
+        // Is it an actual mailbox directory?
+        else if(!MailDir.isMailDir(this.path))
+        {
+            throw new IllegalArgumentException(String.format(
+                "Mailbox \"%s\" isn't a mailbox directory.",
+                this.path.getAbsolutePath()
+            ));
+        }
+        // Can it be read?
+        else if(!this.path.canRead())
+        {
+            throw new IllegalArgumentException(String.format(
+                "Mailbox \"%s\" can't be read.",
+                this.path.getAbsolutePath()
+            ));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package common.mails;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Gives mails unique identifiers which stay the same for as long as they are
+ * in their mailbox, so that POP3 clients leaving them on the server can tell
+ * which ones they have already retrieved, as described by RFC 1939.
+ *
+ * An identifier is assigned when a mail is delivered and stored as one of its
+ * headers, so that it is kept by every rewrite of its mailbox and by every
+ * format. Mails delivered before identifiers were assigned get one derived
+ * from their headers and size, identical mails being told apart by their rank
+ * among the identical mails of their mailbox.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailIdentifier
+{
+    /**
+     * The header holding a mail's identifier.
+     */
+    public static final String HEADER = "X-UIDL";
+
+    /**
+     * The maximum length of an identifier.
+     */
+    public static final int MAX_LENGTH = 70;
+
+    /**
+     * Generates a new identifier.
+     *
+     * @return The identifier, made of hexadecimal digits.
+     */
+    public static String generate()
+    {
+        // Initialize vars
+        UUID uuid = UUID.randomUUID();
+
+        return String.format("%016x%016x", uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Gives a mail about to be delivered a new identifier, replacing any
+     * identifier it already had.
+     *
+     * @param mail The mail.
+     */
+    public static void assign(Mail mail)
+    {
+        mail.addHeader(MailIdentifier.HEADER, MailIdentifier.generate());
+    }
+
+    /**
+     * Gets a mail's identifier.
+     *
+     * @param mail The mail.
+     * @return The identifier stored in its headers if there is a valid one,
+     * otherwise one derived from its headers and size.
+     */
+    public static String get(Mail mail)
+    {
+        // Initialize vars
+        String identifier = mail.getHeader(MailIdentifier.HEADER);
+        MessageDigest md5;
+        StringBuilder identifierBuilder;
+
+        if(MailIdentifier.isValid(identifier))
+        {
+            return identifier;
+        }
+
+        try
+        {
+            md5 = MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException ex)
+        {
+            // Every Java platform must support MD5
+            throw new IllegalStateException(ex);
+        }
+
+        // The headers are sorted so that their order in the map doesn't matter
+        for(Map.Entry<String, String> header : new TreeMap<>(mail.getHeaders()).entrySet())
+        {
+            md5.update(header.getKey().getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) ':');
+            md5.update(header.getValue().getBytes(StandardCharsets.UTF_8));
+            md5.update((byte) '\n');
+        }
+
+        md5.update(Integer.toString(mail.getSize()).getBytes(StandardCharsets.US_ASCII));
+        identifierBuilder = new StringBuilder();
+
+        for(byte b : md5.digest())
+        {
+            identifierBuilder.append(String.format("%02x", b & 0xff));
+        }
+
+        return identifierBuilder.toString();
+    }
+
+    /**
+     * Gets the identifier of a mail of a mailbox, which no other mail of the
+     * mailbox shares.
+     *
+     * @param mails The mailbox's mails, including those marked as deleted.
+     * @param index The mail's index.
+     * @return The identifier stored in its headers if there is a valid one,
+     * otherwise one derived from its headers and size, followed by its rank
+     * among the identical mails before it if there are any.
+     */
+    public static String get(List<Mail> mails, int index)
+    {
+        // Initialize vars
+        Mail mail = mails.get(index);
+        String identifier = MailIdentifier.get(mail);
+        int rank = 1;
+
+        if(identifier.equals(mail.getHeader(MailIdentifier.HEADER)))
+        {
+            return identifier;
+        }
+
+        // Only the mails of the same size need to be hashed
+        for(int i = 0; i < index; i++)
+        {
+            if(
+                mails.get(i).getSize() == mail.getSize()
+                && !MailIdentifier.isValid(mails.get(i).getHeader(MailIdentifier.HEADER))
+                && identifier.equals(MailIdentifier.get(mails.get(i)))
+            )
+            {
+                rank++;
+            }
+        }
+
+        return MailIdentifier.rank(identifier, rank);
+    }
+
+    /**
+     * Gets the identifiers of every mail of a mailbox, which no two mails of
+     * the mailbox share.
+     *
+     * @param mails The mailbox's mails, including those marked as deleted.
+     * @return The identifiers, in the same order as the mails.
+     * @see #get(java.util.List, int)
+     */
+    public static String[] getAll(List<Mail> mails)
+    {
+        // Initialize vars
+        String[] identifiers = new String[mails.size()];
+        Map<String, Integer> ranks = new HashMap<>();
+        Mail mail;
+
+        for(int i = 0; i < identifiers.length; i++)
+        {
+            mail = mails.get(i);
+            identifiers[i] = MailIdentifier.get(mail);
+
+            if(!identifiers[i].equals(mail.getHeader(MailIdentifier.HEADER)))
+            {
+                identifiers[i] = MailIdentifier.rank(identifiers[i], ranks.merge(identifiers[i], 1, Integer::sum));
+            }
+        }
+
+        return identifiers;
+    }
+
+    /**
+     * Appends its rank to a derived identifier, the first identical mail
+     * keeping the identifier alone.
+     *
+     * @param identifier The derived identifier.
+     * @param rank The mail's rank among the identical mails, from 1.
+     * @return The identifier.
+     */
+    protected static String rank(String identifier, int rank)
+    {
+        return 1 == rank ? identifier : identifier + "-" + rank;
+    }
+
+    /**
+     * Tests if a string can be used as an identifier: between 1 and 70
+     * printable ASCII characters, spaces excluded.
+     *
+     * @param identifier The string.
+     * @return <code>true</code> if it can, <code>false</code> otherwise.
+     */
+    public static boolean isValid(String identifier)
+    {
+        if(null == identifier || identifier.isEmpty() || identifier.length() > MailIdentifier.MAX_LENGTH)
+        {
+            return false;
+        }
+
+        for(int i = 0; i < identifier.length(); i++)
+        {
+            if(identifier.charAt(i) < 0x21 || identifier.charAt(i) > 0x7E)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
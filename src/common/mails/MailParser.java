@@ -0,0 +1,403 @@
+package common.mails;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Parses the data of a mail as it is received, up to the end of data marker.
+ *
+ * Bytes are fed in chunks of any size, each of them being looked at once: the
+ * lines are followed as they end, so that once the marker has been found the
+ * boundaries of the headers and of the body are already known. The beginning
+ * of the data is only considered as headers if every line of it up to an
+ * empty line is a header, a line starting with a space or a tab continuing
+ * the previous one. Otherwise, everything is the body.
+ *
+ * The dot the client has added at the beginning of every line starting with
+ * one is removed as the line is followed, the bytes after it being moved back
+ * in the buffer, so that the mail is kept as it has been written. The end of
+ * data marker is then the line left empty by the removal of its dot.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.RawMail
+ */
+public class MailParser
+{
+    /**
+     * The default initial size of the buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The buffer the data is accumulated into.
+     */
+    protected byte[] buffer;
+
+    /**
+     * The number of bytes kept in the buffer, once the dots stuffed by the
+     * client have been removed.
+     */
+    protected int length;
+
+    /**
+     * The position of the current line in the buffer.
+     */
+    protected int lineStart;
+
+    /**
+     * The position of the current line's first colon, <code>-1</code> if it
+     * hasn't any yet.
+     */
+    protected int colonPos;
+
+    /**
+     * Whether the dot starting the current line has been removed.
+     */
+    protected boolean dotted;
+
+    /**
+     * Whether the lines read so far may still be headers.
+     */
+    protected boolean inHeaders;
+
+    /**
+     * The length of the header lines, including the empty line ending them,
+     * <code>0</code> if there are none.
+     */
+    protected int headersLength;
+
+    /**
+     * The position of the body's end, before the CRLF preceding the marker,
+     * <code>-1</code> until the marker has been found.
+     */
+    protected int bodyEnd;
+
+    /**
+     * Creates a new parser with a default buffer.
+     */
+    public MailParser()
+    {
+        this(MailParser.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a new parser.
+     *
+     * @param bufferSize The initial size of the buffer.
+     */
+    public MailParser(int bufferSize)
+    {
+        this(new byte[Math.max(16, bufferSize)], 0);
+    }
+
+    /**
+     * Creates a new parser over some data which has already been received.
+     *
+     * @param data The data, which becomes the parser's buffer.
+     * @param length The length of the data.
+     */
+    protected MailParser(byte[] data, int length)
+    {
+        // Initialize properties
+        this.buffer = data;
+        this.length = 0;
+        this.lineStart = 0;
+        this.colonPos = -1;
+        this.dotted = false;
+        this.inHeaders = true;
+        this.headersLength = 0;
+        this.bodyEnd = -1;
+
+        // Then, parse what has been given
+        this.scan(0, length);
+    }
+
+    /**
+     * Parses the data received for a mail, which has already been read up to
+     * the end of data marker.
+     *
+     * @param data The data, ended by the end of data marker, which is
+     * modified in place to remove the dots stuffed by the client.
+     * @param length The length of the data.
+     * @param charset The charset to decode the data with.
+     * @return The newly built mail, whose body is the whole data if the
+     * marker is missing.
+     */
+    public static RawMail parse(byte[] data, int length, Charset charset)
+    {
+        // Initialize vars
+        MailParser parser = new MailParser(data, length);
+
+        if(!parser.isComplete())
+        {
+            // Every byte received belongs to the body
+            return new RawMail(data, 0, 0, parser.getLength(), charset);
+        }
+
+        return parser.getMail(charset);
+    }
+
+    /**
+     * Feeds the parser with some more bytes, stopping right after the end of
+     * data marker.
+     *
+     * @param data The array holding the bytes.
+     * @param offset The position of the bytes in the array.
+     * @param length The number of bytes.
+     * @return The number of bytes consumed, less than given if the marker
+     * has been found before the last of them.
+     */
+    public int update(byte[] data, int offset, int length)
+    {
+        // Initialize vars
+        int start = this.length;
+
+        if(-1 != this.bodyEnd)
+        {
+            return 0;
+        }
+        else if(start + length > this.buffer.length)
+        {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, start + length));
+        }
+
+        // Copy the whole chunk, then only keep it up to the marker
+        System.arraycopy(data, offset, this.buffer, start, length);
+
+        return this.scan(start, start + length) - start;
+    }
+
+    /**
+     * Follows the lines through some bytes of the buffer, removing the dots
+     * stuffed at their beginning.
+     *
+     * The bytes looked at must come right after those kept so far.
+     *
+     * @param from The position of the first byte to look at.
+     * @param to The position after the last byte to look at.
+     * @return The position right after the end of data marker if it has been
+     * found, <code>to</code> otherwise.
+     */
+    protected int scan(int from, int to)
+    {
+        // Initialize vars
+        byte[] data = this.buffer;
+        int kept = from;
+        byte b;
+
+        for(int i = from; i < to; i++)
+        {
+            b = data[i];
+
+            // The client's dot is dropped, the bytes after it moving back
+            if(kept == this.lineStart && '.' == b && !this.dotted)
+            {
+                this.dotted = true;
+
+                continue;
+            }
+
+            data[kept++] = b;
+
+            if('\n' == b)
+            {
+                if(kept - 2 >= this.lineStart && '\r' == data[kept - 2] && this.endLine(kept - 2, kept))
+                {
+                    this.length = kept;
+
+                    return i + 1;
+                }
+            }
+            else if(':' == b && -1 == this.colonPos && this.inHeaders)
+            {
+                this.colonPos = kept - 1;
+            }
+        }
+
+        this.length = kept;
+
+        return to;
+    }
+
+    /**
+     * Handles a line which has just ended.
+     *
+     * @param lineEnd The position of the line's carriage return.
+     * @param nextLineStart The position of the next line.
+     * @return <code>true</code> if the line is the end of data marker,
+     * <code>false</code> otherwise.
+     */
+    protected boolean endLine(int lineEnd, int nextLineStart)
+    {
+        // The marker is a single dot, which has been removed
+        boolean marker = this.dotted && lineEnd == this.lineStart;
+
+        if(this.inHeaders)
+        {
+            if(marker)
+            {
+                // The headers haven't been ended, everything is the body
+                this.headersLength = 0;
+                this.inHeaders = false;
+            }
+            else if(lineEnd == this.lineStart)
+            {
+                // An empty line ends the headers if there are some
+                this.headersLength = this.lineStart > 0 ? nextLineStart : 0;
+                this.inHeaders = false;
+            }
+            else if(this.lineStart > 0 && MailParser.isFolding(this.buffer[this.lineStart]))
+            {
+                // The previous header goes on
+            }
+            else if(this.colonPos <= this.lineStart || this.colonPos + 1 >= lineEnd)
+            {
+                // Not a header, everything is the body
+                this.headersLength = 0;
+                this.inHeaders = false;
+            }
+        }
+
+        if(marker)
+        {
+            this.bodyEnd = Math.max(this.headersLength, this.lineStart - 2);
+        }
+
+        this.lineStart = nextLineStart;
+        this.colonPos = -1;
+        this.dotted = false;
+
+        return -1 != this.bodyEnd;
+    }
+
+    /**
+     * Tests if a line continues the previous header.
+     *
+     * @param b The line's first byte.
+     * @return <code>true</code> if it is a space or a tab, <code>false</code>
+     * otherwise.
+     */
+    protected static boolean isFolding(byte b)
+    {
+        return ' ' == b || '\t' == b;
+    }
+
+    /**
+     * Tests if the end of data marker has been found.
+     *
+     * @return <code>true</code> if it has, <code>false</code> otherwise.
+     */
+    public boolean isComplete()
+    {
+        return -1 != this.bodyEnd;
+    }
+
+    /**
+     * Gets the number of bytes received so far, without the dots stuffed by
+     * the client.
+     *
+     * @return The number of bytes.
+     */
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * Builds the mail once the end of data marker has been found.
+     *
+     * @param charset The charset to decode the data with.
+     * @return The mail, sharing the parser's buffer.
+     * @throws java.lang.IllegalStateException If the marker hasn't been found.
+     */
+    public RawMail getMail(Charset charset)
+    {
+        if(-1 == this.bodyEnd)
+        {
+            throw new IllegalStateException("End of data marker hasn't been received yet.");
+        }
+
+        return new RawMail(
+            this.buffer,
+            this.headersLength,
+            this.headersLength,
+            this.bodyEnd - this.headersLength,
+            charset
+        );
+    }
+
+    /**
+     * Reads the header lines at the beginning of some data, unfolding those
+     * going on over several lines.
+     *
+     * @param data The data.
+     * @param headersLength The length of the header lines, including the
+     * empty line ending them.
+     * @param charset The charset to decode the headers with.
+     * @param headers The map to add the headers to.
+     * @throws java.lang.IllegalArgumentException If a header is malformed.
+     */
+    public static void readHeaders(byte[] data, int headersLength, Charset charset, Map<String, String> headers)
+    throws IllegalArgumentException
+    {
+        // Initialize vars
+        int headerStart = 0, lineStart = 0;
+
+        for(int i = 0; i + 1 < headersLength; i++)
+        {
+            if('\r' != data[i] || '\n' != data[i + 1])
+            {
+                continue;
+            }
+
+            // Add the previous header once the line doesn't continue it
+            if(lineStart > headerStart && (i == lineStart || !MailParser.isFolding(data[lineStart])))
+            {
+                MailParser.putHeader(data, headerStart, lineStart - 2, charset, headers);
+                headerStart = lineStart;
+            }
+
+            if(i == lineStart)
+            {
+                break;
+            }
+
+            lineStart = i + 2;
+            i++;
+        }
+
+        // The last header if the headers weren't ended by an empty line
+        if(lineStart > headerStart)
+        {
+            MailParser.putHeader(data, headerStart, lineStart - 2, charset, headers);
+        }
+    }
+
+    /**
+     * Adds a header spreading over one or several lines.
+     *
+     * @param data The data.
+     * @param headerStart The position of the header's first line.
+     * @param headerEnd The position of the header's last carriage return.
+     * @param charset The charset to decode the header with.
+     * @param headers The map to add the header to.
+     * @throws java.lang.IllegalArgumentException If the header is malformed.
+     */
+    protected static void putHeader(byte[] data, int headerStart, int headerEnd, Charset charset, Map<String, String> headers)
+    throws IllegalArgumentException
+    {
+        // Initialize vars
+        String header = new String(data, headerStart, headerEnd - headerStart, charset);
+
+        // Unfolding only removes the line breaks
+        if(-1 != header.indexOf('\n'))
+        {
+            header = header.replace("\r\n", "");
+        }
+
+        Mail.putHeader(headers, header.trim());
+    }
+}
@@ -0,0 +1,208 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads the bodies of lazy mails ahead of time, so that they are in the file
+ * system's cache by the time they are asked for.
+ *
+ * Clients retrieving mails one after the other ask for the next one as soon
+ * as the current one has been sent, so the next mail is handed over to a
+ * single background thread which reads its stored bytes through a fixed
+ * buffer while the current one is being sent, without keeping them.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailPrefetcher extends Thread
+{
+    /**
+     * The maximum number of mails waiting to be read, the others are
+     * ignored.
+     */
+    public static final int MAX_PENDING_MAILS = 64;
+
+    /**
+     * The size of the buffer the bodies are read through.
+     */
+    public static final int BUFFER_SIZE = 65536;
+
+    /**
+     * The background thread, started with the first submitted mail.
+     */
+    protected static MailPrefetcher instance = null;
+
+    /**
+     * The number of bytes read ahead since the server started.
+     */
+    protected static final AtomicLong prefetchedBytes = new AtomicLong();
+
+    /**
+     * The mails waiting to be read.
+     */
+    protected final Set<LazyMail> pendingMails;
+
+    /**
+     * Creates the background thread.
+     */
+    protected MailPrefetcher()
+    {
+        super("MailPrefetcher");
+
+        // Initialize properties
+        this.pendingMails = new LinkedHashSet<>();
+        this.setDaemon(true);
+    }
+
+    /**
+     * Gets the number of bytes read ahead since the server started.
+     *
+     * @return The number of bytes.
+     */
+    public static long getPrefetchedBytes()
+    {
+        return MailPrefetcher.prefetchedBytes.get();
+    }
+
+    /**
+     * Schedules the reading of a mail's body if it is still stored.
+     *
+     * @param mail The mail.
+     */
+    public static void submit(Mail mail)
+    {
+        if(mail instanceof LazyMail && ((LazyMail) mail).isBodyStored())
+        {
+            MailPrefetcher.getInstance().schedule((LazyMail) mail);
+        }
+    }
+
+    /**
+     * Reads the stored bytes of a mail's body without keeping them.
+     *
+     * @param mail The mail.
+     * @param buffer The buffer to read them through.
+     * @return The number of bytes read.
+     * @throws java.io.IOException If the body couldn't be read.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * mailbox file has been rewritten since the mail was loaded.
+     */
+    public static long prefetch(LazyMail mail, byte[] buffer)
+    throws IOException, InvalidMailBoxFileException
+    {
+        // Initialize vars
+        long readLength = 0;
+        int readBytes;
+
+        try(InputStream bodyStream = mail.openStoredBody())
+        {
+            while(-1 != (readBytes = bodyStream.read(buffer)))
+            {
+                readLength += readBytes;
+            }
+        }
+
+        MailPrefetcher.prefetchedBytes.addAndGet(readLength);
+
+        return readLength;
+    }
+
+    /**
+     * Gets the background thread, starting it if needed.
+     *
+     * @return The background thread.
+     */
+    protected static synchronized MailPrefetcher getInstance()
+    {
+        if(null == MailPrefetcher.instance)
+        {
+            MailPrefetcher.instance = new MailPrefetcher();
+            MailPrefetcher.instance.start();
+        }
+
+        return MailPrefetcher.instance;
+    }
+
+    /**
+     * Adds a mail to the ones waiting to be read, unless there are too many
+     * of them already.
+     *
+     * @param mail The mail.
+     */
+    protected void schedule(LazyMail mail)
+    {
+        synchronized(this.pendingMails)
+        {
+            if(this.pendingMails.size() < MailPrefetcher.MAX_PENDING_MAILS)
+            {
+                this.pendingMails.add(mail);
+                this.pendingMails.notify();
+            }
+        }
+    }
+
+    /**
+     * The background thread's main loop: reading the pending mails one after
+     * the other.
+     */
+    @Override
+    public void run()
+    {
+        // Initialize vars
+        byte[] buffer = new byte[MailPrefetcher.BUFFER_SIZE];
+        LazyMail mail;
+
+        while(true)
+        {
+            // Wait for a mail to read
+            synchronized(this.pendingMails)
+            {
+                while(this.pendingMails.isEmpty())
+                {
+                    try
+                    {
+                        this.pendingMails.wait();
+                    }
+                    catch(InterruptedException ex)
+                    {
+                        return;
+                    }
+                }
+
+                mail = this.pendingMails.iterator().next();
+                this.pendingMails.remove(mail);
+            }
+
+            // Then, read it, which only matters to the cache
+            try
+            {
+                MailPrefetcher.prefetch(mail, buffer);
+            }
+            catch(IOException | InvalidMailBoxFileException ex)
+            {
+                Logger.getLogger(MailPrefetcher.class.getName()).log(
+                    Level.FINE,
+                    "Couldn't read a mail ahead of time.",
+                    ex
+                );
+            }
+            catch(RuntimeException ex)
+            {
+                // The thread is shared by every session, it must keep reading the other mails
+                Logger.getLogger(MailPrefetcher.class.getName()).log(
+                    Level.WARNING,
+                    "Reading a mail ahead of time failed unexpectedly.",
+                    ex
+                );
+            }
+        }
+    }
+}
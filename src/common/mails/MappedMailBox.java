@@ -0,0 +1,355 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.NonExistentMailException;
+import common.mails.exceptions.UnknownMailBoxException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import smtp.SmtpProtocol;
+
+/**
+ * A read-only view of a mailbox backed by memory-mapped regions of its file.
+ *
+ * Mails are exposed as slices of the mapped regions instead of strings, so
+ * reading them doesn't copy anything onto the heap and repeated reads are
+ * served by the operating system's page cache. Strings are only built when a
+ * caller asks for text.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MappedMailBox implements Closeable
+{
+    /**
+     * The maximum length of a single mapped region, a mapping can't exceed
+     * <code>Integer.MAX_VALUE</code> bytes.
+     */
+    protected static final long REGION_LENGTH = 1L << 30;
+
+    /**
+     * The associated file's path.
+     */
+    protected File path;
+
+    /**
+     * The associated file's channel.
+     */
+    protected FileChannel channel;
+
+    /**
+     * The mailbox's index.
+     */
+    protected MailBoxIndex index;
+
+    /**
+     * The entries of the mails which haven't been deleted.
+     */
+    protected List<MailBoxIndex.Entry> entries;
+
+    /**
+     * The mapped regions of the file, each one covering
+     * <code>REGION_LENGTH</code> bytes except the last one.
+     */
+    protected List<ByteBuffer> regions;
+
+    /**
+     * The format of the associated file.
+     */
+    protected MailBoxFormat format;
+
+    /**
+     * Creates a new mapped mailbox associated with a given file.
+     *
+     * @param path The associated file's path.
+     */
+    public MappedMailBox(File path)
+    {
+        // Initialize properties
+        this.path = path;
+        this.channel = null;
+        this.index = null;
+        this.entries = new ArrayList<>();
+        this.regions = new ArrayList<>();
+        this.format = MailBoxFormat.TEXT;
+    }
+
+    /**
+     * Maps the associated file into memory.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the mailbox
+     * isn't built correctly.
+     * @throws java.io.IOException If the mailbox couldn't be mapped.
+     */
+    public void open()
+    throws UnknownMailBoxException, InvalidMailBoxFileException, IOException
+    {
+        // Does the mailbox exist?
+        if(!this.path.isFile())
+        {
+            throw new UnknownMailBoxException(String.format(
+                "Mailbox \"%s\" doesn't exist.",
+                this.path.getAbsolutePath()
+            ));
+        }
+
+        // Find the mails' boundaries
+        this.index = MailBoxIndex.open(this.path);
+        this.entries = this.index.getLiveEntries();
+        this.format = MailBoxFormat.detect(this.path);
+
+        // Then, map the file region by region
+        this.channel = new RandomAccessFile(this.path, "r").getChannel();
+
+        try
+        {
+            long length = this.channel.size();
+
+            for(long position = 0; position < length; position += MappedMailBox.REGION_LENGTH)
+            {
+                this.regions.add(this.channel.map(
+                    FileChannel.MapMode.READ_ONLY,
+                    position,
+                    Math.min(MappedMailBox.REGION_LENGTH, length - position)
+                ));
+            }
+        }
+        catch(IOException ex)
+        {
+            this.close();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the mapped mailbox's path.
+     *
+     * @return The mailbox's path.
+     */
+    public File getPath()
+    {
+        return this.path;
+    }
+
+    /**
+     * Gets the number of mails in this mailbox, deleted ones excluded.
+     *
+     * @return The number of mails.
+     */
+    public int getSize()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * Gets a mail's raw content, its headers and its body without the end of
+     * data marker, as a read-only slice of the mapped file.
+     *
+     * @param index The mail's index.
+     * @return The mail's content.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     * @throws java.io.IOException If a record spanning two regions couldn't be
+     * mapped.
+     */
+    public ByteBuffer getMessage(int index)
+    throws NonExistentMailException, IOException
+    {
+        if(index < 0 || index >= this.getSize())
+        {
+            throw new NonExistentMailException(String.format(
+                "Mail #%d doesn't exist.",
+                index
+            ));
+        }
+
+        // Initialize vars
+        MailBoxIndex.Entry entry = this.entries.get(index);
+        long offset = entry.getOffset();
+        int length = entry.getLength() - SmtpProtocol.END_OF_DATA.length();
+        int regionNumber = (int) (offset / MappedMailBox.REGION_LENGTH);
+        int regionOffset = (int) (offset % MappedMailBox.REGION_LENGTH);
+
+        if(regionOffset + length <= MappedMailBox.REGION_LENGTH)
+        {
+            // The record is inside a single region, slice it
+            ByteBuffer region = this.regions.get(regionNumber).duplicate();
+            region.position(regionOffset);
+            region.limit(regionOffset + length);
+
+            return region.slice().asReadOnlyBuffer();
+        }
+        else
+        {
+            // The record spans two regions, map it on its own
+            return this.channel.map(FileChannel.MapMode.READ_ONLY, offset, length).asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * Decodes a mail's raw content using UTF-8.
+     *
+     * @param index The mail's index.
+     * @return The mail's content.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     * @throws java.io.IOException If the mail couldn't be read.
+     */
+    public String getText(int index)
+    throws NonExistentMailException, IOException
+    {
+        return this.getText(index, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decodes a mail's raw content.
+     *
+     * @param index The mail's index.
+     * @param charset The charset to build the string with.
+     * @return The mail's content.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     * @throws java.io.IOException If the mail couldn't be read.
+     */
+    public String getText(int index, Charset charset)
+    throws NonExistentMailException, IOException
+    {
+        return charset.decode(this.getMessage(index)).toString();
+    }
+
+    /**
+     * Builds a mail from its raw content using UTF-8.
+     *
+     * @param index The mail's index.
+     * @return The mail.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     * @throws java.io.IOException If the mail couldn't be read.
+     */
+    public Mail getMail(int index)
+    throws NonExistentMailException, IOException
+    {
+        return this.getMail(index, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Builds a mail from its raw content, the same way
+     * {@link MailBox#load(Charset)} does.
+     *
+     * @param index The mail's index.
+     * @param charset The charset to build the strings with.
+     * @return The mail.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     * @throws java.io.IOException If the mail couldn't be read.
+     */
+    public Mail getMail(int index, Charset charset)
+    throws NonExistentMailException, IOException
+    {
+        // Initialize vars
+        ByteBuffer message = this.getMessage(index);
+        Mail mail = new Mail();
+        byte[] headersData;
+        int headersEnd = -1;
+
+        // Find the empty line ending the headers
+        for(int i = 0, j = message.limit() - 3; i < j && -1 == headersEnd; i++)
+        {
+            if(
+                message.get(i) == '\r' && message.get(i + 1) == '\n'
+                && message.get(i + 2) == '\r' && message.get(i + 3) == '\n'
+            )
+            {
+                headersEnd = i;
+            }
+        }
+
+        if(-1 == headersEnd)
+        {
+            throw new InvalidMailBoxFileException(String.format(
+                "Mailbox \"%s\" isn't built correctly.",
+                this.path.getAbsolutePath()
+            ));
+        }
+
+        // Decode the headers, unfolding them like when the mail is read as a whole
+        headersData = new byte[headersEnd + 4];
+        message.get(headersData);
+        MailParser.readHeaders(headersData, headersData.length, charset, mail.getHeaders());
+
+        // Then, decode the body
+        mail.setBody(charset.decode(message).toString().trim());
+
+        // Its body may be compressed, or in the store rather than in the record
+        return MailBox.resolve(mail, headersEnd + 4, this.getFlags(index), charset);
+    }
+
+    /**
+     * Gets the flags of a mail's record, telling which of its headers
+     * replaces its body.
+     *
+     * @param index The mail's index.
+     * @return The record's flags, every flag for a text record whose headers
+     * tell it themselves.
+     * @throws java.io.IOException If the record's header couldn't be read.
+     */
+    protected int getFlags(int index)
+    throws IOException
+    {
+        // Initialize vars
+        ByteBuffer recordHeader;
+        long position;
+
+        if(MailBoxFormat.BINARY != this.format)
+        {
+            return MailBoxFormat.FLAG_COMPRESSED | MailBoxFormat.FLAG_SHARED;
+        }
+
+        // The record's header comes right before its content
+        recordHeader = ByteBuffer.allocate(this.format.getRecordHeaderLength());
+        position = this.entries.get(index).getOffset() - recordHeader.capacity();
+
+        while(recordHeader.hasRemaining())
+        {
+            if(-1 == this.channel.read(recordHeader, position + recordHeader.position()))
+            {
+                throw new InvalidMailBoxFileException(String.format(
+                    "Mailbox \"%s\" isn't built correctly.",
+                    this.path.getAbsolutePath()
+                ));
+            }
+        }
+
+        return recordHeader.getInt(8);
+    }
+
+    /**
+     * Closes the associated file's channel, the mapped regions are released
+     * once they aren't referenced anymore.
+     *
+     * @throws java.io.IOException If the channel couldn't be closed.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        this.regions.clear();
+
+        if(null != this.channel)
+        {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.NonExistentMailException;
+import common.mails.exceptions.UnknownMailBoxException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import smtp.SmtpProtocol;
+
+/**
+ * A read-only view of a mailbox directory backed by memory-mapped mail files.
+ *
+ * Each mail's file holds a single text record, which is mapped on its own, so
+ * mails are exposed exactly like those of a {@link MappedMailBox}.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MappedMailDir extends MappedMailBox
+{
+    /**
+     * The mapped mailbox directory.
+     */
+    protected MailDir mailDir;
+
+    /**
+     * The mapped mails' files, without their end of data marker, in the order
+     * they have been delivered.
+     */
+    protected List<ByteBuffer> messages;
+
+    /**
+     * Creates a new mapped mailbox associated with a given directory.
+     *
+     * @param mailDir The mailbox directory.
+     */
+    public MappedMailDir(MailDir mailDir)
+    {
+        super(mailDir.getPath());
+
+        // Initialize properties
+        this.mailDir = mailDir;
+        this.messages = new ArrayList<>();
+    }
+
+    /**
+     * Maps the files of the delivered mails into memory.
+     *
+     * @throws common.mails.exceptions.UnknownMailBoxException If the mailbox
+     * doesn't exist.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If a mail's
+     * file isn't built correctly.
+     * @throws java.io.IOException If a mail's file couldn't be mapped.
+     */
+    @Override
+    public void open()
+    throws UnknownMailBoxException, InvalidMailBoxFileException, IOException
+    {
+        // Can the mailbox be read?
+        this.mailDir.checkReadable();
+
+        try
+        {
+            for(File mailFile : this.mailDir.listMailFiles())
+            {
+                try(FileChannel mailChannel = FileChannel.open(mailFile.toPath(), StandardOpenOption.READ))
+                {
+                    // Initialize vars
+                    long length = mailChannel.size() - SmtpProtocol.END_OF_DATA.length();
+
+                    if(length < 0 || length > Integer.MAX_VALUE)
+                    {
+                        throw new InvalidMailBoxFileException(String.format(
+                            "Mail \"%s\" isn't built correctly.",
+                            mailFile.getAbsolutePath()
+                        ));
+                    }
+
+                    // The mapping stays valid once the file is closed, or even deleted
+                    this.messages.add(mailChannel.map(FileChannel.MapMode.READ_ONLY, 0, length).asReadOnlyBuffer());
+                }
+                catch(NoSuchFileException ex)
+                {
+                    // The mail has been deleted since the directory was listed
+                }
+            }
+        }
+        catch(IOException | InvalidMailBoxFileException ex)
+        {
+            this.close();
+
+            throw ex;
+        }
+    }
+
+    /**
+     * Gets the number of mails in this mailbox.
+     *
+     * @return The number of mails.
+     */
+    @Override
+    public int getSize()
+    {
+        return this.messages.size();
+    }
+
+    /**
+     * Gets a mail's raw content, its headers and its body without the end of
+     * data marker, as a read-only view of its mapped file.
+     *
+     * @param index The mail's index.
+     * @return The mail's content.
+     * @throws common.mails.exceptions.NonExistentMailException If the mail
+     * doesn't exist.
+     */
+    @Override
+    public ByteBuffer getMessage(int index)
+    throws NonExistentMailException
+    {
+        if(index < 0 || index >= this.getSize())
+        {
+            throw new NonExistentMailException(String.format(
+                "Mail #%d doesn't exist.",
+                index
+            ));
+        }
+
+        return this.messages.get(index).duplicate();
+    }
+
+    /**
+     * Gets the flags of a mail's record, which is always a text record.
+     *
+     * @param index The mail's index.
+     * @return Every flag, the record's headers telling which of them replaces
+     * its body.
+     */
+    @Override
+    protected int getFlags(int index)
+    {
+        return MailBoxFormat.FLAG_COMPRESSED | MailBoxFormat.FLAG_SHARED;
+    }
+
+    /**
+     * Releases the mapped files, which are unmapped once they aren't
+     * referenced anymore.
+     *
+     * @throws java.io.IOException Never, no file is kept open.
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        this.messages.clear();
+
+        super.close();
+    }
+}
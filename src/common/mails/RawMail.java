@@ -0,0 +1,432 @@
+package common.mails;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A mail backed by its raw bytes, as they were received or read from its
+ * mailbox's record.
+ *
+ * Only the boundaries of the headers and of the body are known at first, as
+ * found by the {@link MailParser} or the {@link MailBoxParser}: the
+ * headers are parsed the first time one of them is asked for, and the body is
+ * decoded the first time it is asked for. The size is computed once from the
+ * bytes, and as long as the mail isn't modified it is written back as is
+ * rather than encoded again.
+ *
+ * Headers must be changed through {@link #addHeader(String, String)} and
+ * {@link #removeHeader(String)}, the map returned by {@link #getHeaders()}
+ * can't be modified.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class RawMail extends Mail
+{
+    /**
+     * The mail's raw bytes.
+     */
+    protected byte[] data;
+
+    /**
+     * The length of the header lines at the beginning of the bytes, including
+     * the empty line ending them, <code>0</code> if there are none.
+     */
+    protected int headersLength;
+
+    /**
+     * The offset of the body in the bytes.
+     */
+    protected int bodyOffset;
+
+    /**
+     * The length of the body in the bytes.
+     */
+    protected int bodyLength;
+
+    /**
+     * The charset to decode the bytes with.
+     */
+    protected Charset charset;
+
+    /**
+     * Whether the decoded body is trimmed, as it is when read from a record.
+     */
+    protected boolean trimmed;
+
+    /**
+     * Whether the headers have been parsed.
+     */
+    protected volatile boolean headersParsed;
+
+    /**
+     * Whether the headers differ from the bytes.
+     */
+    protected boolean headersModified;
+
+    /**
+     * Whether the body differs from the bytes.
+     */
+    protected boolean bodyModified;
+
+    /**
+     * The mail's size in octets for its charset, <code>-1</code> if it has to
+     * be computed again.
+     */
+    protected int size;
+
+    /**
+     * Creates a new raw mail.
+     *
+     * @param data The mail's raw bytes, which mustn't be modified afterwards.
+     * @param headersLength The length of the header lines, including the
+     * empty line ending them, <code>0</code> if there are none.
+     * @param bodyOffset The offset of the body in the bytes.
+     * @param bodyLength The length of the body in the bytes.
+     * @param charset The charset to decode the bytes with.
+     */
+    public RawMail(byte[] data, int headersLength, int bodyOffset, int bodyLength, Charset charset)
+    {
+        this(data, headersLength, bodyOffset, bodyLength, charset, false);
+    }
+
+    /**
+     * Creates a new raw mail.
+     *
+     * @param data The mail's raw bytes, which mustn't be modified afterwards.
+     * @param headersLength The length of the header lines, including the
+     * empty line ending them, <code>0</code> if there are none.
+     * @param bodyOffset The offset of the body in the bytes.
+     * @param bodyLength The length of the body in the bytes.
+     * @param charset The charset to decode the bytes with.
+     * @param trimmed Whether the decoded body is trimmed, the size still
+     * counting every byte.
+     */
+    public RawMail(byte[] data, int headersLength, int bodyOffset, int bodyLength, Charset charset, boolean trimmed)
+    {
+        super();
+
+        // Initialize properties
+        this.data = data;
+        this.headersLength = headersLength;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+        this.charset = charset;
+        this.trimmed = trimmed;
+        this.headersParsed = 0 == headersLength;
+        this.headersModified = false;
+        this.bodyModified = false;
+        this.size = -1;
+    }
+
+    /**
+     * Parses the header lines from the bytes if it hasn't been done yet.
+     *
+     * A cached mail may be read by several threads at once, so the headers
+     * are parsed into a map of their own which is only published once full.
+     */
+    protected void parseHeaders()
+    {
+        if(this.headersParsed)
+        {
+            return;
+        }
+
+        // Initialize vars
+        Map<String, String> parsedHeaders = new HashMap<>();
+
+        MailParser.readHeaders(this.data, this.headersLength, this.charset, parsedHeaders);
+        this.headers = parsedHeaders;
+        this.headersParsed = true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getHeader(String name)
+    {
+        this.parseHeaders();
+
+        return super.getHeader(name);
+    }
+
+    /**
+     * Gets every headers from the mail, parsing them if needed.
+     *
+     * @return A view of the headers which can't be modified.
+     */
+    @Override
+    public Map<String, String> getHeaders()
+    {
+        this.parseHeaders();
+
+        return Collections.unmodifiableMap(this.headers);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeader(String header)
+    {
+        this.parseHeaders();
+        super.addHeader(header);
+
+        this.headersModified = true;
+        this.size = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addHeader(String name, String value)
+    {
+        this.parseHeaders();
+        super.addHeader(name, value);
+
+        this.headersModified = true;
+        this.size = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String removeHeader(String name)
+    {
+        this.parseHeaders();
+
+        // Initialize vars
+        String value = super.removeHeader(name);
+
+        if(null != value)
+        {
+            this.headersModified = true;
+            this.size = -1;
+        }
+
+        return value;
+    }
+
+    /**
+     * Gets the mail's body, decoding it if it hasn't been done yet.
+     *
+     * @return The mail's body.
+     */
+    @Override
+    public String getBody()
+    {
+        if(null == this.body)
+        {
+            String decodedBody = new String(this.data, this.bodyOffset, this.bodyLength, this.charset);
+            this.body = this.trimmed ? decodedBody.trim() : decodedBody;
+        }
+
+        return this.body;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setBody(String body)
+    {
+        super.setBody(body);
+
+        this.bodyModified = true;
+        this.size = -1;
+    }
+
+    /**
+     * Gets the mail's size, computed once from the bytes for the mail's
+     * charset.
+     *
+     * @param charset The charset to use.
+     * @return The mail' size.
+     */
+    @Override
+    public int getSize(Charset charset)
+    {
+        if(!this.charset.equals(charset))
+        {
+            this.parseHeaders();
+
+            return super.getSize(charset);
+        }
+        else if(-1 == this.size)
+        {
+            this.size = this.computeSize();
+        }
+
+        return this.size;
+    }
+
+    /**
+     * Computes the mail's size for its charset, counting what hasn't been
+     * modified from the bytes.
+     *
+     * @return The mail's size.
+     */
+    protected int computeSize()
+    {
+        // Initialize vars
+        int computedSize = 0;
+
+        if(!this.headersModified)
+        {
+            computedSize += this.headersLength > 0 ? this.headersLength : 2; // "<CRLF>"
+        }
+        else
+        {
+            for(Map.Entry<String, String> entry : this.headers.entrySet())
+            {
+                computedSize += entry.getKey().getBytes(this.charset).length;
+                computedSize += 2; // ": "
+                computedSize += entry.getValue().getBytes(this.charset).length;
+                computedSize += 2; // "<CRLF>"
+            }
+
+            computedSize += 2; // "<CRLF>"
+        }
+
+        computedSize += !this.bodyModified
+            ? this.bodyLength
+            : this.body.getBytes(this.charset).length;
+
+        return computedSize;
+    }
+
+    /**
+     * Tests if the header lines can still be written from the bytes.
+     *
+     * @return <code>true</code> if the headers haven't been modified,
+     * <code>false</code> otherwise.
+     */
+    public boolean hasRawHeaders()
+    {
+        return !this.headersModified;
+    }
+
+    /**
+     * Tests if the body can still be written from the bytes.
+     *
+     * @return <code>true</code> if the body hasn't been modified,
+     * <code>false</code> otherwise.
+     */
+    public boolean hasRawBody()
+    {
+        return !this.bodyModified;
+    }
+
+    /**
+     * Writes the header lines from the bytes, without the empty line ending
+     * them.
+     *
+     * @param stream The stream to write into.
+     * @throws java.io.IOException If the headers couldn't be written.
+     */
+    public void writeRawHeaders(OutputStream stream)
+    throws IOException
+    {
+        stream.write(this.data, 0, Math.max(0, this.headersLength - 2));
+    }
+
+    /**
+     * Writes the body from the bytes.
+     *
+     * @param stream The stream to write into.
+     * @throws java.io.IOException If the body couldn't be written.
+     */
+    public void writeRawBody(OutputStream stream)
+    throws IOException
+    {
+        stream.write(this.data, this.bodyOffset, this.bodyLength);
+    }
+
+    /**
+     * Opens a stream over the body's bytes, as they have been received or
+     * read if it hasn't been modified.
+     *
+     * @return The stream, which must be closed.
+     * @throws java.io.IOException If the body couldn't be opened.
+     */
+    @Override
+    public InputStream openBody()
+    throws IOException
+    {
+        return this.bodyModified
+            ? super.openBody()
+            : new ByteArrayInputStream(this.data, this.bodyOffset, this.bodyLength);
+    }
+
+    /**
+     * Gets the mail's raw bytes.
+     *
+     * @return The bytes, which mustn't be modified.
+     */
+    public byte[] getData()
+    {
+        return this.data;
+    }
+
+    /**
+     * Gets the length of the header lines in the bytes.
+     *
+     * @return The headers' length, including the empty line ending them,
+     * <code>0</code> if there are none.
+     */
+    public int getHeadersLength()
+    {
+        return this.headersLength;
+    }
+
+    /**
+     * Gets the offset of the body in the bytes.
+     *
+     * @return The body's offset.
+     */
+    public int getBodyOffset()
+    {
+        return this.bodyOffset;
+    }
+
+    /**
+     * Gets the length of the body in the bytes.
+     *
+     * @return The body's length.
+     */
+    public int getBodyLength()
+    {
+        return this.bodyLength;
+    }
+
+    /**
+     * Tests if the headers have been parsed.
+     *
+     * @return <code>true</code> if they have, <code>false</code> otherwise.
+     */
+    public boolean isHeadersParsed()
+    {
+        return this.headersParsed;
+    }
+
+    /**
+     * Tests if the body has been decoded or replaced.
+     *
+     * @return <code>true</code> if it is held as a string, <code>false</code>
+     * otherwise.
+     */
+    public boolean isBodyDecoded()
+    {
+        return null != this.body;
+    }
+}
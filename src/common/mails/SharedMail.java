@@ -0,0 +1,222 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * A mail whose body is kept once in the {@link MailBlobStore} for all its
+ * recipients, its mailbox's record only holding its headers and a header
+ * pointing to the body.
+ *
+ * The body is read from the store when it is asked for, like a lazy mail's
+ * body is read from its mailbox file.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class SharedMail extends LazyMail
+{
+    /**
+     * The store holding the body.
+     */
+    protected MailBlobStore store;
+
+    /**
+     * The hash addressing the body in the store.
+     */
+    protected String hash;
+
+    /**
+     * Creates a new shared mail.
+     *
+     * @param store The store holding the body.
+     * @param charset The charset to build the body with.
+     * @param hash The hash addressing the body.
+     * @param bodyLength The length of the body.
+     * @param size The mail's size in octets, as if the body was in the
+     * record.
+     */
+    public SharedMail(MailBlobStore store, Charset charset, String hash, int bodyLength, int size)
+    {
+        // A body in the store is never rewritten, only deleted
+        super(store.getBlobFile(hash), charset, 0, bodyLength, size, null);
+
+        // Initialize properties
+        this.store = store;
+        this.hash = hash;
+    }
+
+    /**
+     * Creates a new shared mail pointing to the same body as another one.
+     *
+     * @param mail The shared mail to copy.
+     */
+    protected SharedMail(SharedMail mail)
+    {
+        super(mail);
+
+        // Initialize properties
+        this.store = mail.store;
+        this.hash = mail.hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LazyMail copy()
+    {
+        return new SharedMail(this);
+    }
+
+    /**
+     * Builds a shared mail from a mail read from a record if it points to
+     * its body in the store.
+     *
+     * @param mail The mail read from the record.
+     * @param headersLength The length of the record's headers, including the
+     * empty line ending them.
+     * @param charset The charset to build the body with.
+     * @return The shared mail, or the given mail if its body is in the record.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * header is malformed or if bodies aren't shared.
+     */
+    public static Mail resolve(Mail mail, int headersLength, Charset charset)
+    throws InvalidMailBoxFileException
+    {
+        // Initialize vars
+        String reference = mail.getHeader(MailBlobStore.HEADER);
+        MailBlobStore store = MailBlobStore.getInstance();
+        SharedMail sharedMail;
+        int bodyLength;
+
+        if(null == reference)
+        {
+            return mail;
+        }
+        else if(null == store)
+        {
+            throw new InvalidMailBoxFileException("Mail points to a shared body but there is no store.");
+        }
+
+        bodyLength = SharedMail.getBodyLength(reference);
+        sharedMail = new SharedMail(
+            store,
+            charset,
+            SharedMail.getHash(reference),
+            bodyLength,
+            MailBox.getSize(headersLength, MailBlobStore.HEADER, reference, bodyLength)
+        );
+
+        for(Map.Entry<String, String> header : mail.getHeaders().entrySet())
+        {
+            if(!MailBlobStore.HEADER.equals(header.getKey()))
+            {
+                sharedMail.addHeader(header.getKey(), header.getValue());
+            }
+        }
+
+        return sharedMail;
+    }
+
+    /**
+     * Gets the hash from the value of the header pointing to a body.
+     *
+     * @param reference The header's value.
+     * @return The body's hash.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * header is malformed.
+     */
+    protected static String getHash(String reference)
+    throws InvalidMailBoxFileException
+    {
+        int spacePos = reference.indexOf(' ');
+
+        if(spacePos <= MailBlobStore.SHARD_WIDTH)
+        {
+            throw new InvalidMailBoxFileException(String.format(
+                "Malformed shared body reference \"%s\".",
+                reference
+            ));
+        }
+
+        return reference.substring(0, spacePos);
+    }
+
+    /**
+     * Gets the body's length from the value of the header pointing to a body.
+     *
+     * @param reference The header's value.
+     * @return The body's length.
+     * @throws common.mails.exceptions.InvalidMailBoxFileException If the
+     * header is malformed.
+     */
+    protected static int getBodyLength(String reference)
+    throws InvalidMailBoxFileException
+    {
+        try
+        {
+            return Integer.parseInt(reference.substring(reference.indexOf(' ') + 1).trim());
+        }
+        catch(NumberFormatException ex)
+        {
+            throw new InvalidMailBoxFileException(
+                String.format(
+                    "Malformed shared body reference \"%s\".",
+                    reference
+                ),
+                ex
+            );
+        }
+    }
+
+    /**
+     * Gets the hash addressing the body in the store.
+     *
+     * @return The body's hash.
+     */
+    public String getHash()
+    {
+        return this.hash;
+    }
+
+    /**
+     * Gets the lock manager guarding the store's bodies rather than the one
+     * guarding mailboxes.
+     *
+     * @return The store's lock manager.
+     */
+    @Override
+    protected MailBoxLockManager getLockManager()
+    {
+        return this.store.getLockManager();
+    }
+
+    /**
+     * Gets the value of the header pointing the mail's record to its body.
+     *
+     * @return The header's value.
+     */
+    public String getReference()
+    {
+        return this.hash + " " + this.bodyLength;
+    }
+
+    /**
+     * The body stays in the store when the mailbox file is rewritten, only
+     * the mail's record moves.
+     *
+     * @param bodyOffset Ignored.
+     * @param bodyLength Ignored.
+     * @param size The mail's new size in octets.
+     * @param fileKey Ignored.
+     * @param compressed Ignored, a body in the store is never compressed.
+     */
+    @Override
+    public void relocate(long bodyOffset, int bodyLength, int size, Object fileKey, boolean compressed)
+    {
+        this.size = size;
+    }
+}
@@ -0,0 +1,25 @@
+package common.mails;
+
+/**
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public enum SyncPolicy
+{
+    /**
+     * Every write to a mailbox is forced to the disk before returning.
+     */
+    ALWAYS,
+    /**
+     * Mailboxes' contents are forced to the disk before being renamed, but the
+     * other writes are forced together by a background thread at a fixed
+     * interval, so a crash may lose the last interval's changes.
+     */
+    BATCHED,
+    /**
+     * Nothing is forced, the operating system decides when data reaches the
+     * disk.
+     */
+    NEVER;
+}
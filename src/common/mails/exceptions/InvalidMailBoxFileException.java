@@ -14,4 +14,12 @@ public class InvalidMailBoxFileException extends AbstractMailException
     {
         super(message);
     }
+    
+    /**
+     * {@inheritDoc}
+     */
+    public InvalidMailBoxFileException(String message, Throwable cause)
+    {
+        super(message, cause);
+    }
 }
@@ -27,6 +27,12 @@ public abstract class Pop3Protocol
      */
     public static final String END_OF_LINE = "\r\n";
     
+    /**
+     * The maximum length of a request, including its end of line, as set by
+     * RFC 2449.
+     */
+    public static final int MAX_REQUEST_LENGTH = 255;
+    
     /**
      * Extracts the command name from a request.
      * 
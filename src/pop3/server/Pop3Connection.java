@@ -1,10 +1,12 @@
 package pop3.server;
 
 import common.mails.MailBox;
+import common.mails.MailBoxCompactor;
+import common.mails.MailBoxLockManager;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
@@ -42,6 +44,11 @@ public class Pop3Connection extends Thread
      */
     protected BufferedOutputStream socketWriter;
 
+    /**
+     * The writer the responses are sent through.
+     */
+    protected Pop3ResponseWriter responseWriter;
+
     /**
      * The connection's input stream.
      */
@@ -101,6 +108,7 @@ public class Pop3Connection extends Thread
 
             // Get streams
             this.socketWriter = new BufferedOutputStream(this.socket.getOutputStream());
+            this.responseWriter = new Pop3ResponseWriter(this.socketWriter);
             this.socketReader = new BufferedInputStream(this.socket.getInputStream());
         }
         catch(IOException ex)
@@ -216,34 +224,64 @@ public class Pop3Connection extends Thread
         AbstractPop3Command command;
         boolean keepLooping = true;
 
-        // Main loop
-        do
+        try
         {
-            // Read the client's request
-            request = this.readRequest();
-
-            if(null != request && !request.isEmpty())
+            // Main loop
+            do
             {
-                // Extract the command from the request
-                command = this.server.supportsCommand(Pop3Protocol.extractCommand(request));
+                // Read the client's request
+                request = this.readRequest();
 
-                // Is the command supported?
-                if(null != command)
+                if(null != request && !request.isEmpty())
                 {
-                    if(command.isValid(this))
+                    // Extract the command from the request
+                    command = this.server.supportsCommand(Pop3Protocol.extractCommand(request));
+
+                    // Is the command supported?
+                    if(null != command)
                     {
-                        // Handle the command
-                        keepLooping = command.handle(this, request);
+                        if(command.isValid(this))
+                        {
+                            // Handle the command
+                            keepLooping = command.handle(this, request);
+                        }
+                        else
+                        {
+                            // The command is invalid because it can't be used right now
+                            try
+                            {
+                                // Build the error response
+                                responseBuilder = new StringBuilder();
+                                responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                                responseBuilder.append(" invalid command");
+                                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+                                // Then, send it
+                                this.sendResponse(responseBuilder.toString());
+                            }
+                            catch(IOException ex)
+                            {
+                                Logger.getLogger(Pop3Connection.class.getName()).log(
+                                    Level.SEVERE,
+                                    "Couldn't send error response.",
+                                    ex
+                                );
+                            }
+                            finally
+                            {
+                                // Finally, clear the builder
+                                responseBuilder = null;
+                            }
+                        }
                     }
                     else
                     {
-                        // The command is invalid because it can't be used right now
                         try
                         {
                             // Build the error response
                             responseBuilder = new StringBuilder();
                             responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
-                            responseBuilder.append(" invalid command");
+                            responseBuilder.append(" unknown command");
                             responseBuilder.append(Pop3Protocol.END_OF_LINE);
 
                             // Then, send it
@@ -264,43 +302,20 @@ public class Pop3Connection extends Thread
                         }
                     }
                 }
-                else
+                else if(null == request)
                 {
-                    try
-                    {
-                        // Build the error response
-                        responseBuilder = new StringBuilder();
-                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
-                        responseBuilder.append(" unknown command");
-                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
-
-                        // Then, send it
-                        this.sendResponse(responseBuilder.toString());
-                    }
-                    catch(IOException ex)
-                    {
-                        Logger.getLogger(Pop3Connection.class.getName()).log(
-                            Level.SEVERE,
-                            "Couldn't send error response.",
-                            ex
-                        );
-                    }
-                    finally
-                    {
-                        // Finally, clear the builder
-                        responseBuilder = null;
-                    }
+                    keepLooping = false;
                 }
             }
-            else if(null == request)
-            {
-                keepLooping = false;
-            }
+            while(keepLooping);
+        }
+        finally
+        {
+            // The loop has reached its end, release the maildrop even if a command failed,
+            // close the socket and end the thread
+            this.closeMailDrop();
+            this.closeSocket();
         }
-        while(keepLooping);
-
-        // The loop has reached its end, close the socket and end the thread
-        this.closeSocket();
     }
 
     /**
@@ -308,6 +323,20 @@ public class Pop3Connection extends Thread
      */
     protected void closeSocket()
     {
+        try
+        {
+            // The last responses may not have been sent yet
+            this.responseWriter.flush();
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(Pop3Connection.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't send the last responses.",
+                ex
+            );
+        }
+
         try
         {
             this.socket.close();
@@ -323,31 +352,66 @@ public class Pop3Connection extends Thread
     }
 
     /**
-     * Reads a request from the client by trying to read everything available
-     * from the stream.
+     * Reads a single request line from the client.
+     *
+     * The responses written so far are sent first unless the client has
+     * already sent other requests, so that the responses to pipelined
+     * requests are sent together. A line longer than the maximum length of a
+     * request is discarded as a whole and answered with an error, rather than
+     * being handled truncated.
      *
-     * @return The client's request.
+     * @return The client's request, without its end of line, or
+     * <code>null</code> if the client has closed the connection.
      */
     protected String readRequest()
     {
         // Initialize vars
-        ByteArrayOutputStream dataStream;
-        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
+        ByteArrayOutputStream dataStream = new ByteArrayOutputStream(Pop3Protocol.MAX_REQUEST_LENGTH);
+        boolean tooLong;
         int readByte;
 
         try
         {
-            // Try reading everything
             do
             {
-                readByte = this.socketReader.read();
+                // Nothing more to answer before the client has been sent the responses
+                if(0 == this.socketReader.available())
+                {
+                    this.responseWriter.flush();
+                }
+
+                // Read up to the end of the line, the line feed ending it counting too
+                dataStream.reset();
+                tooLong = false;
+
+                while(-1 != (readByte = this.socketReader.read()) && '\n' != readByte)
+                {
+                    if(dataStream.size() < Pop3Protocol.MAX_REQUEST_LENGTH - 1)
+                    {
+                        dataStream.write(readByte);
+                    }
+                    else
+                    {
+                        tooLong = true;
+                    }
+                }
 
-                if(-1 != readByte)
+                if(-1 == readByte && (tooLong || 0 == dataStream.size()))
                 {
-                    dataWriter.writeByte(readByte);
+                    return null;
+                }
+                else if(tooLong)
+                {
+                    // Inform the user the whole line has been discarded
+                    StringBuilder responseBuilder = new StringBuilder();
+                    responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                    responseBuilder.append(" line too long");
+                    responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+                    this.sendResponse(responseBuilder.toString());
                 }
             }
-            while(this.socketReader.available() > 0 && -1 != readByte);
+            while(tooLong);
 
             // Log if necessary
             if(this.server.isDebug())
@@ -362,10 +426,7 @@ public class Pop3Connection extends Thread
                 );
             }
 
-            // Get the byte array
-            byte[] byteArray = dataStream.toByteArray();
-
-            return byteArray.length > 0 ? new String(byteArray, StandardCharsets.UTF_8).trim() : null;
+            return new String(dataStream.toByteArray(), StandardCharsets.UTF_8).trim();
         }
         catch(IOException ex)
         {
@@ -380,7 +441,8 @@ public class Pop3Connection extends Thread
     }
 
     /**
-     * Sends a response to the client.
+     * Sends a response to the client, once the requests it has already sent
+     * have been answered too.
      *
      * @param response The response to send.
      * @throws java.io.IOException If the response couldn't be sent.
@@ -388,31 +450,13 @@ public class Pop3Connection extends Thread
     public void sendResponse(String response)
     throws IOException
     {
-        // Initialize vars
-        ByteArrayOutputStream dataStream;
-        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
-
         try
         {
-            // Transform the response into a byte array
-            dataWriter.writeBytes(response);
-
             // Log if necessary
-            if(this.server.isDebug())
-            {
-                Logger.getLogger(Pop3Connection.class.getName()).log(
-                    Level.INFO,
-                    "-> {0}:{1} {2}",
-                    new Object[]
-                    {
-                        this.socket.getInetAddress(), this.socket.getPort(), response.trim()
-                    }
-                );
-            }
+            this.logResponse(response);
 
-            // Then, send the response to the client
-            this.socketWriter.write(dataStream.toByteArray());
-            this.socketWriter.flush();
+            // Then, queue the response for the client
+            this.responseWriter.write(response);
         }
         catch(IOException ex)
         {
@@ -426,6 +470,47 @@ public class Pop3Connection extends Thread
         }
     }
 
+    /**
+     * Starts a multi-line response, whose lines are then written with the
+     * returned writer as they are built, and which is sent like the others
+     * once it is ended.
+     *
+     * @param statusLine The first line of the response, with its end.
+     * @return The writer to write the lines with.
+     * @throws java.io.IOException If part of the response couldn't be sent.
+     * @see pop3.server.Pop3ResponseWriter#end()
+     */
+    public Pop3ResponseWriter beginResponse(String statusLine)
+    throws IOException
+    {
+        // Log if necessary
+        this.logResponse(statusLine);
+
+        this.responseWriter.write(statusLine);
+
+        return this.responseWriter;
+    }
+
+    /**
+     * Logs a response if the server is in debug mode.
+     *
+     * @param response The response, or its first line.
+     */
+    protected void logResponse(String response)
+    {
+        if(this.server.isDebug())
+        {
+            Logger.getLogger(Pop3Connection.class.getName()).log(
+                Level.INFO,
+                "-> {0}:{1} {2}",
+                new Object[]
+                {
+                    this.socket.getInetAddress(), this.socket.getPort(), response.trim()
+                }
+            );
+        }
+    }
+
     /**
      * Gets the connection's reference to the server.
      *
@@ -476,6 +561,70 @@ public class Pop3Connection extends Thread
         this.mailBox = mailBox;
     }
 
+    /**
+     * Starts a session on a user's maildrop, which is locked exclusively for
+     * as long as the session lasts, as required by RFC 1939.
+     *
+     * The session works on a snapshot of the mailbox taken once it has been
+     * locked: its mails keep their numbers until the session ends, mails
+     * delivered meanwhile are appended to the file without waiting and only
+     * show up in the next session, and the marked mails are deleted by their
+     * records when the session quits, leaving the others untouched. The file
+     * isn't rewritten under the snapshot while the lock is held.
+     *
+     * @param userName The user's name.
+     * @return <code>true</code> if the maildrop has been locked and read,
+     * <code>false</code> if another session holds it or if it couldn't be
+     * read.
+     * @see #closeMailDrop()
+     */
+    public boolean openMailDrop(String userName)
+    {
+        // Initialize vars
+        File path = this.server.openMailBox(userName).getPath();
+        MailBox mailBox = null;
+
+        if(!MailBoxLockManager.getInstance().tryLockSession(path))
+        {
+            return false;
+        }
+
+        // Only read once locked, so that nothing rewrites it from now on
+        try
+        {
+            mailBox = this.server.getMailBox(userName);
+        }
+        finally
+        {
+            if(null == mailBox)
+            {
+                MailBoxLockManager.getInstance().unlockSession(path);
+            }
+        }
+
+        this.mailBox = mailBox;
+
+        return null != mailBox;
+    }
+
+    /**
+     * Ends the session on the maildrop, if there is one, by unlocking it.
+     *
+     * The marked mails must have been deleted beforehand if the session
+     * quits, they are left as they are if the connection has been lost.
+     */
+    public void closeMailDrop()
+    {
+        if(null != this.mailBox)
+        {
+            MailBoxLockManager.getInstance().unlockSession(this.mailBox.getPath());
+
+            // Its compaction may have been waiting for the session to end
+            MailBoxCompactor.resume(this.mailBox.getPath());
+            this.mailBox = null;
+        }
+    }
+
     /**
      * Gets the security digest.
      *
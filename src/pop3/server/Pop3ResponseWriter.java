@@ -0,0 +1,241 @@
+package pop3.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import pop3.Pop3Protocol;
+
+/**
+ * Writes responses to a POP3 client through a buffer reused from one response
+ * to the next, which is sent every time it is full, so that a response takes
+ * the same memory whatever the number of lines or the size of the mail it
+ * holds.
+ *
+ * Characters are written one byte each, like the responses always have been.
+ * The lines of a multi-line response are dot-stuffed as they are written.
+ *
+ * Complete responses stay in the buffer until they are flushed, so that the
+ * responses to pipelined requests are sent together.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class Pop3ResponseWriter
+{
+    /**
+     * The size of the buffer, and of the chunks read from streams.
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    /**
+     * The stream the responses are sent through.
+     */
+    protected OutputStream stream;
+
+    /**
+     * The buffer holding what hasn't been sent yet.
+     */
+    protected final byte[] buffer;
+
+    /**
+     * The number of bytes in the buffer.
+     */
+    protected int position;
+
+    /**
+     * The buffer the streams are read into.
+     */
+    protected final byte[] chunk;
+
+    /**
+     * Whether the next byte written starts a line.
+     */
+    protected boolean lineStart;
+
+    /**
+     * Creates a new response writer.
+     *
+     * @param stream The stream the responses are sent through.
+     */
+    public Pop3ResponseWriter(OutputStream stream)
+    {
+        // Initialize properties
+        this.stream = stream;
+        this.buffer = new byte[Pop3ResponseWriter.BUFFER_SIZE];
+        this.position = 0;
+        this.chunk = new byte[Pop3ResponseWriter.BUFFER_SIZE];
+        this.lineStart = true;
+    }
+
+    /**
+     * Writes characters as they are, which is how single-line responses and
+     * the first line of multi-line ones are written.
+     *
+     * @param data The characters.
+     * @throws java.io.IOException If the buffer couldn't be sent.
+     */
+    public void write(CharSequence data)
+    throws IOException
+    {
+        for(int i = 0, j = data.length(); i < j; i++)
+        {
+            this.put((byte) data.charAt(i));
+        }
+
+        this.lineStart = data.length() > 0 ? '\n' == data.charAt(data.length() - 1) : this.lineStart;
+    }
+
+    /**
+     * Writes a line of a multi-line response, dot-stuffed, followed by the
+     * end of line.
+     *
+     * @param line The line, without its end.
+     * @throws java.io.IOException If the buffer couldn't be sent.
+     */
+    public void writeLine(CharSequence line)
+    throws IOException
+    {
+        if(line.length() > 0 && '.' == line.charAt(0))
+        {
+            this.put((byte) '.');
+        }
+
+        for(int i = 0, j = line.length(); i < j; i++)
+        {
+            this.put((byte) line.charAt(i));
+        }
+
+        this.put((byte) '\r');
+        this.put((byte) '\n');
+        this.lineStart = true;
+    }
+
+    /**
+     * Writes bytes of a multi-line response, dot-stuffing the lines they
+     * start.
+     *
+     * @param data The array holding the bytes.
+     * @param offset The position of the bytes in the array.
+     * @param length The number of bytes.
+     * @throws java.io.IOException If the buffer couldn't be sent.
+     */
+    public void write(byte[] data, int offset, int length)
+    throws IOException
+    {
+        for(int i = offset, j = offset + length; i < j; i++)
+        {
+            if(this.lineStart && '.' == data[i])
+            {
+                this.put((byte) '.');
+            }
+
+            this.put(data[i]);
+            this.lineStart = '\n' == data[i];
+        }
+    }
+
+    /**
+     * Copies lines from a stream into a multi-line response, dot-stuffing
+     * them, reading no more of the stream than needed.
+     *
+     * @param dataStream The stream.
+     * @param linesNumber The number of lines to copy, <code>-1</code> to copy
+     * the whole stream.
+     * @throws java.io.IOException If the stream couldn't be read or the
+     * buffer couldn't be sent.
+     */
+    public void writeLines(InputStream dataStream, int linesNumber)
+    throws IOException
+    {
+        // Initialize vars
+        int linesLeft = linesNumber, readLength, length;
+
+        while(0 != linesLeft && -1 != (readLength = dataStream.read(this.chunk)))
+        {
+            length = readLength;
+
+            if(linesLeft > 0)
+            {
+                // Stop after the last line wanted
+                for(int i = 0; i < readLength; i++)
+                {
+                    if('\n' == this.chunk[i] && 0 == --linesLeft)
+                    {
+                        length = i + 1;
+
+                        break;
+                    }
+                }
+            }
+
+            this.write(this.chunk, 0, length);
+        }
+    }
+
+    /**
+     * Ends a multi-line response, ending its last line if needed.
+     *
+     * @throws java.io.IOException If the buffer couldn't be sent.
+     */
+    public void end()
+    throws IOException
+    {
+        if(!this.lineStart)
+        {
+            this.write(Pop3Protocol.END_OF_LINE);
+        }
+
+        this.write(".");
+        this.write(Pop3Protocol.END_OF_LINE);
+    }
+
+    /**
+     * Sends what has been written so far.
+     *
+     * @throws java.io.IOException If it couldn't be sent.
+     */
+    public void flush()
+    throws IOException
+    {
+        try
+        {
+            if(this.position > 0)
+            {
+                this.stream.write(this.buffer, 0, this.position);
+            }
+
+            this.stream.flush();
+        }
+        finally
+        {
+            // Nothing sent twice, even if part of it has been lost
+            this.position = 0;
+            this.lineStart = true;
+        }
+    }
+
+    /**
+     * Puts a byte in the buffer, sending it first if it is full.
+     *
+     * @param b The byte.
+     * @throws java.io.IOException If the buffer couldn't be sent.
+     */
+    protected void put(byte b)
+    throws IOException
+    {
+        if(this.buffer.length == this.position)
+        {
+            try
+            {
+                this.stream.write(this.buffer, 0, this.position);
+            }
+            finally
+            {
+                this.position = 0;
+            }
+        }
+
+        this.buffer[this.position++] = b;
+    }
+}
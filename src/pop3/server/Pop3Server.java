@@ -1,5 +1,12 @@
 package pop3.server;
 
+import common.mails.MailBlobStore;
+import common.mails.MailBox;
+import common.mails.MailBoxCache;
+import common.mails.MailBoxLocator;
+import common.mails.MailBoxLockManager;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.UnknownMailBoxException;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
@@ -13,6 +20,7 @@ import pop3.exceptions.Pop3ConnectionInitializationException;
 import pop3.exceptions.Pop3ServerInitializationException;
 import pop3.server.commands.AbstractPop3Command;
 import pop3.server.commands.ApopCommand;
+import pop3.server.commands.CapabilitiesCommand;
 import pop3.server.commands.DeleteCommand;
 import pop3.server.commands.ListCommand;
 import pop3.server.commands.PasswordCommand;
@@ -20,6 +28,8 @@ import pop3.server.commands.QuitCommand;
 import pop3.server.commands.ResetCommand;
 import pop3.server.commands.RetrieveCommand;
 import pop3.server.commands.StatisticsCommand;
+import pop3.server.commands.TopCommand;
+import pop3.server.commands.UniqueIdListCommand;
 import pop3.server.commands.UserCommand;
 
 /**
@@ -49,6 +59,11 @@ public class Pop3Server
      */
     protected File mailBoxesPath;
 
+    /**
+     * The locator resolving users' mailboxes in the mailboxes' path.
+     */
+    protected MailBoxLocator mailBoxLocator;
+
     /**
      * The server's secret to use with the <code>APOP</code> command.
      */
@@ -76,8 +91,28 @@ public class Pop3Server
         this.name = name;
         this.debug = debug;
         this.mailBoxesPath = mailBoxesPath;
+        this.mailBoxLocator = new MailBoxLocator(mailBoxesPath);
         this.secret = secret;
 
+        // Bodies of mails with several recipients are stored only once
+        MailBlobStore.setInstance(new MailBlobStore(new File(mailBoxesPath, MailBlobStore.DIRECTORY_NAME)));
+
+        // Mailboxes are also written by the SMTP server and the migrator
+        try
+        {
+            MailBoxLockManager.getInstance().share(mailBoxesPath);
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(Pop3Server.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't share mailboxes' locks.",
+                ex
+            );
+
+            throw new Pop3ServerInitializationException(ex);
+        }
+
         // Register supported commands
         this.supportedCommands = new HashMap<>();
 
@@ -117,6 +152,18 @@ public class Pop3Server
             "RSET",
             new ResetCommand()
         );
+        this.supportedCommands.put(
+            "TOP",
+            new TopCommand()
+        );
+        this.supportedCommands.put(
+            "UIDL",
+            new UniqueIdListCommand()
+        );
+        this.supportedCommands.put(
+            "CAPA",
+            new CapabilitiesCommand()
+        );
 
         // Start server
         try
@@ -198,6 +245,60 @@ public class Pop3Server
         return this.mailBoxesPath;
     }
 
+    /**
+     * Gets the path of a user's mailbox file, whether it exists or not.
+     *
+     * @param userName The associated username.
+     * @return The mailbox's path.
+     */
+    public File getMailBoxFile(String userName)
+    {
+        return this.mailBoxLocator.getMailBoxFile(userName);
+    }
+
+    /**
+     * Gets a user's mailbox without loading it, as a mailbox directory if
+     * there is one, as a mailbox file otherwise.
+     *
+     * @param userName The associated username.
+     * @return The mailbox, which may not exist.
+     */
+    public MailBox openMailBox(String userName)
+    {
+        return this.mailBoxLocator.open(userName);
+    }
+
+    /**
+     * Gets an existing mailbox for a session, from the mailboxes' cache or by
+     * only loading the mails' headers so that their bodies stay on disk until
+     * they are retrieved.
+     *
+     * @param userName The associated username.
+     * @return The mailbox if it exists, <code>null</code> otherwise.
+     */
+    public MailBox getMailBox(String userName)
+    {
+        // Initialize vars
+        MailBox mailBox = this.openMailBox(userName);
+
+        try
+        {
+            mailBox = MailBoxCache.getInstance().load(mailBox);
+
+            return mailBox;
+        }
+        catch(UnknownMailBoxException | IOException | IllegalArgumentException | InvalidMailBoxFileException ex)
+        {
+            Logger.getLogger(Pop3Server.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't get mailbox.",
+                ex
+            );
+
+            return null;
+        }
+    }
+
     /**
      * Gets the server' secret.
      *
@@ -1,6 +1,13 @@
 package pop3.server.commands;
 
+import common.mails.LazyMail;
+import common.mails.Mail;
+import common.mails.RawMail;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
 import pop3.server.Pop3Connection;
+import pop3.server.Pop3ResponseWriter;
 
 /**
  * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
@@ -26,4 +33,40 @@ public abstract class AbstractPop3Command
      * @return <code>true</code> to keep looping, <code>false</code> otherwise.
      */
     public abstract boolean handle(Pop3Connection connection, String request);
+
+    /**
+     * Writes the header lines of a mail, as they have been received if they
+     * haven't been modified since.
+     *
+     * @param responseWriter The writer of the response.
+     * @param mail The mail.
+     * @throws java.io.IOException If the headers couldn't be written.
+     */
+    protected static void writeHeaders(Pop3ResponseWriter responseWriter, Mail mail)
+    throws IOException
+    {
+        // Initialize vars
+        ByteArrayOutputStream headersStream = new ByteArrayOutputStream();
+
+        if(mail instanceof RawMail && ((RawMail) mail).hasRawHeaders())
+        {
+            ((RawMail) mail).writeRawHeaders(headersStream);
+        }
+        else if(mail instanceof LazyMail && ((LazyMail) mail).hasRawHeaders())
+        {
+            ((LazyMail) mail).writeRawHeaders(headersStream);
+        }
+        else
+        {
+            for(Map.Entry<String, String> header : mail.getHeaders().entrySet())
+            {
+                responseWriter.writeLine(header.getKey() + ": " + header.getValue());
+            }
+
+            return;
+        }
+
+        // The stored lines already end with a CRLF, the empty line is the caller's
+        responseWriter.write(headersStream.toByteArray(), 0, headersStream.size());
+    }
 }
@@ -1,12 +1,23 @@
 package pop3.server.commands;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
 import pop3.server.Pop3State;
 
 /**
+ * Authenticates the user with the digest of the greeting's timestamp and the
+ * server's secret, then starts the session on the user's maildrop.
+ *
  * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
  * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
  * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see pop3.server.Pop3Connection#openMailDrop(java.lang.String)
  */
 public class ApopCommand extends AbstractPop3Command
 {
@@ -25,6 +36,79 @@ public class ApopCommand extends AbstractPop3Command
     @Override
     public boolean handle(Pop3Connection connection, String request)
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        String[] arguments = request.trim().split("\\s+");
+
+        if(3 != arguments.length)
+        {
+            // Inform the user the arguments couldn't be extracted
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" couldn't extract name and digest");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+        else if(null == connection.getSecurityDigest())
+        {
+            // The digest couldn't be computed when the connection started
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" APOP not available");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+        else if(
+            !MessageDigest.isEqual(
+                connection.getSecurityDigest().getBytes(StandardCharsets.US_ASCII),
+                arguments[2].toLowerCase(Locale.ROOT).getBytes(StandardCharsets.US_ASCII)
+            )
+            || !connection.getServer().openMailBox(arguments[1]).getPath().exists()
+        )
+        {
+            // Inform the user the authentication failed
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" permission denied");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+        else if(!connection.openMailDrop(arguments[1]))
+        {
+            // Another session is using the maildrop
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" unable to lock maildrop");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+        else
+        {
+            connection.setCurrentState(Pop3State.TRANSACTION);
+
+            // Build response
+            int mailsNumber = connection.getMailBox().getLiveNumber();
+            long mailsSize = connection.getMailBox().getLiveSize();
+
+            responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+            responseBuilder.append(" maildrop has ");
+            responseBuilder.append(mailsNumber);
+            responseBuilder.append(" ");
+            responseBuilder.append(mailsNumber > 1 ? "messages" : "message");
+            responseBuilder.append(" (");
+            responseBuilder.append(mailsSize);
+            responseBuilder.append(" ");
+            responseBuilder.append(mailsSize > 1 ? "octets" : "octet");
+            responseBuilder.append(")");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response
+        try
+        {
+            connection.sendResponse(responseBuilder.toString());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(ApopCommand.class.getName()).log(
+                Level.SEVERE,
+                "Apop response couldn't be sent.",
+                ex
+            );
+        }
+
+        return true;
     }
 }
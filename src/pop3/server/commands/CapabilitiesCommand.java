@@ -0,0 +1,89 @@
+package pop3.server.commands;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
+import pop3.server.Pop3Connection;
+import pop3.server.Pop3State;
+
+/**
+ * Lists the optional features the server supports, as described by RFC 2449.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class CapabilitiesCommand extends AbstractPop3Command
+{
+    /**
+     * The optional commands advertised if they are supported, which are also
+     * the names of their capabilities. <code>USER</code> isn't one of them
+     * since only <code>APOP</code> authenticates users.
+     */
+    protected static final String[] OPTIONAL_COMMANDS = {"TOP", "UIDL"};
+
+    /**
+     * The capabilities which don't depend on the supported commands.
+     */
+    protected static final String[] CAPABILITIES = {"PIPELINING"};
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(Pop3Connection connection)
+    {
+        return connection.getCurrentState().equals(Pop3State.AUTHENTICATION)
+            || connection.getCurrentState().equals(Pop3State.TRANSACTION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean handle(Pop3Connection connection, String request)
+    {
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+
+        // Build response
+        responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+        responseBuilder.append(" capability list follows");
+        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+        for(String command : CapabilitiesCommand.OPTIONAL_COMMANDS)
+        {
+            if(null != connection.getServer().supportsCommand(command))
+            {
+                responseBuilder.append(command);
+                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+            }
+        }
+
+        for(String capability : CapabilitiesCommand.CAPABILITIES)
+        {
+            responseBuilder.append(capability);
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        responseBuilder.append(".");
+        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+        // Then, send response
+        try
+        {
+            connection.sendResponse(responseBuilder.toString());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(CapabilitiesCommand.class.getName()).log(
+                Level.SEVERE,
+                "Capabilities response couldn't be sent.",
+                ex
+            );
+        }
+
+        return true;
+    }
+}
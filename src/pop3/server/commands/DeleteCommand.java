@@ -1,5 +1,12 @@
 package pop3.server.commands;
 
+import common.mails.MailBox;
+import common.mails.exceptions.AlreadyMarkedForDeletionException;
+import common.mails.exceptions.NonExistentMailException;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
 import pop3.server.Pop3State;
 
@@ -25,6 +32,84 @@ public class DeleteCommand extends AbstractPop3Command
     @Override
     public boolean handle(Pop3Connection connection, String request)
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+
+        if(null != mailBox)
+        {
+            try
+            {
+                int index = Integer.parseInt(request.length() > 4 ? request.substring(5).trim() : "");
+
+                if(index > 0)
+                {
+                    try
+                    {
+                        // Try marking the mail, it is only deleted when the session ends
+                        mailBox.delete(index - 1);
+
+                        responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+                        responseBuilder.append(" message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(" deleted");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(AlreadyMarkedForDeletionException ex)
+                    {
+                        // Inform the user the mail has already been marked for deletion
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(" already deleted");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(NonExistentMailException ex)
+                    {
+                        // Inform the user the mail doesn't exist
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" no such message");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                }
+                else
+                {
+                    // Inform the user the index is invalid
+                    responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                    responseBuilder.append(" invalid mail number");
+                    responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                }
+            }
+            catch(NumberFormatException ex)
+            {
+                // Inform the user the mail index couldn't be extracted
+                responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                responseBuilder.append(" couldn't extract mail index");
+                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+            }
+        }
+        else
+        {
+            // Build error response
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" no mailbox associated");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response
+        try
+        {
+            connection.sendResponse(responseBuilder.toString());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(DeleteCommand.class.getName()).log(
+                Level.SEVERE,
+                "Delete response couldn't be sent.",
+                ex
+            );
+        }
+
+        return true;
     }
 }
@@ -10,6 +10,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
+import pop3.server.Pop3ResponseWriter;
 import pop3.server.Pop3State;
 
 /**
@@ -37,6 +38,7 @@ public class ListCommand extends AbstractPop3Command
         // Initialize vars
         StringBuilder responseBuilder = new StringBuilder();
         MailBox mailBox = connection.getMailBox();
+        List<Mail> mailsList = null;
         
         if(null != mailBox)
         {
@@ -55,8 +57,8 @@ public class ListCommand extends AbstractPop3Command
                             // Try fetching the mail
                             Mail mail = connection.getMailBox().get(index - 1);
                             
-                            // Inform the user the mail has been marked for deletion
-                            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                            // Build response
+                            responseBuilder.append(Pop3Protocol.RESPONSE_OK);
                             responseBuilder.append(" ");
                             responseBuilder.append(index);
                             responseBuilder.append(" ");
@@ -98,18 +100,10 @@ public class ListCommand extends AbstractPop3Command
             }
             else
             {
-                // No mail number has been provided
-                int mailsSize = 0, mailsNumber = 0;
-                List<Mail> mailsList = mailBox.getAll();
-                
-                for(Mail mail : mailsList)
-                {
-                    if(!mailBox.isDeleted(mail))
-                    {
-                        mailsSize += mail.getSize();
-                        mailsNumber++;
-                    }
-                }
+                // No mail number has been provided, the totals are kept by the mailbox
+                int mailsNumber = mailBox.getLiveNumber();
+                long mailsSize = mailBox.getLiveSize();
+                mailsList = mailBox.getAll();
                 
                 // Build response
                 responseBuilder.append(Pop3Protocol.RESPONSE_OK);
@@ -123,20 +117,6 @@ public class ListCommand extends AbstractPop3Command
                 responseBuilder.append(mailsSize > 1 ? "octets" : "octet");
                 responseBuilder.append(")");
                 responseBuilder.append(Pop3Protocol.END_OF_LINE);
-                
-                for(int i = 0, j = mailsList.size(); i < j; i++)
-                {
-                    if(!mailBox.isDeleted(mailsList.get(i)))
-                    {
-                        responseBuilder.append(i + 1);
-                        responseBuilder.append(" ");
-                        responseBuilder.append(mailsList.get(i).getSize());
-                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
-                    }
-                }
-
-                responseBuilder.append(".");
-                responseBuilder.append(Pop3Protocol.END_OF_LINE);
             }
         }
         else
@@ -147,10 +127,31 @@ public class ListCommand extends AbstractPop3Command
             responseBuilder.append(Pop3Protocol.END_OF_LINE);
         }
         
-        // Then, send response
+        // Then, send response, streaming the listing line by line
         try
         {
-            connection.sendResponse(responseBuilder.toString());
+            if(null != mailsList)
+            {
+                Pop3ResponseWriter responseWriter = connection.beginResponse(responseBuilder.toString());
+                
+                for(int i = 0, j = mailsList.size(); i < j; i++)
+                {
+                    if(!mailBox.isDeleted(i))
+                    {
+                        responseBuilder.setLength(0);
+                        responseBuilder.append(i + 1);
+                        responseBuilder.append(" ");
+                        responseBuilder.append(mailsList.get(i).getSize());
+                        responseWriter.writeLine(responseBuilder);
+                    }
+                }
+                
+                responseWriter.end();
+            }
+            else
+            {
+                connection.sendResponse(responseBuilder.toString());
+            }
         }
         catch(IOException ex)
         {
@@ -1,6 +1,14 @@
 package pop3.server.commands;
 
+import common.mails.MailBox;
+import common.mails.exceptions.FailedMailBoxUpdateException;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
+import pop3.server.Pop3State;
 
 /**
  * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
@@ -24,6 +32,53 @@ public class QuitCommand extends AbstractPop3Command
     @Override
     public boolean handle(Pop3Connection connection, String request)
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+        boolean updated = true;
+
+        // Delete the marked mails if the session was in the transaction state
+        if(Pop3State.TRANSACTION.equals(connection.getCurrentState()) && null != mailBox)
+        {
+            connection.setCurrentState(Pop3State.UPDATE);
+
+            try
+            {
+                mailBox.expunge();
+            }
+            catch(FailedMailBoxUpdateException | InvalidMailBoxFileException ex)
+            {
+                Logger.getLogger(QuitCommand.class.getName()).log(
+                    Level.SEVERE,
+                    "Marked mails couldn't be deleted.",
+                    ex
+                );
+
+                updated = false;
+            }
+        }
+
+        // Build response
+        responseBuilder.append(updated ? Pop3Protocol.RESPONSE_OK : Pop3Protocol.RESPONSE_ERROR);
+        responseBuilder.append(" ");
+        responseBuilder.append(connection.getServer().getName());
+        responseBuilder.append(updated ? " POP3 server signing off" : " some deleted messages not removed");
+        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+        // Then, send it
+        try
+        {
+            connection.sendResponse(responseBuilder.toString());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(QuitCommand.class.getName()).log(
+                Level.SEVERE,
+                "Quit response couldn't be sent.",
+                ex
+            );
+        }
+
+        return false;
     }
 }
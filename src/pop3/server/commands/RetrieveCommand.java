@@ -1,12 +1,28 @@
 package pop3.server.commands;
 
+import common.mails.Mail;
+import common.mails.MailBox;
+import common.mails.MailPrefetcher;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.MarkedForDeletionException;
+import common.mails.exceptions.NonExistentMailException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
+import pop3.server.Pop3ResponseWriter;
 import pop3.server.Pop3State;
 
 /**
+ * Sends a whole mail, its body being streamed from where it is stored
+ * without ever being built as a string.
+ *
  * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
  * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
  * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.MailPrefetcher
  */
 public class RetrieveCommand extends AbstractPop3Command
 {
@@ -25,6 +41,142 @@ public class RetrieveCommand extends AbstractPop3Command
     @Override
     public boolean handle(Pop3Connection connection, String request)
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+        Mail mail = null;
+        InputStream bodyStream = null;
+        boolean keepLooping = true;
+
+        if(null != mailBox)
+        {
+            try
+            {
+                int index = Integer.parseInt(request.length() > 4 ? request.substring(5).trim() : "");
+
+                if(index > 0)
+                {
+                    try
+                    {
+                        // Try fetching the mail, the body is read while it is sent
+                        mail = mailBox.get(index - 1);
+                        bodyStream = mail.openBody();
+
+                        responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+                        responseBuilder.append(" ");
+                        responseBuilder.append(mail.getSize());
+                        responseBuilder.append(" octets");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+
+                        // The next mail is likely to be asked for right after this one
+                        for(int i = index, j = mailBox.getSize(); i < j; i++)
+                        {
+                            if(!mailBox.isDeleted(i))
+                            {
+                                MailPrefetcher.submit(mailBox.getAll().get(i));
+
+                                break;
+                            }
+                        }
+                    }
+                    catch(MarkedForDeletionException ex)
+                    {
+                        // Inform the user the mail has already been marked for deletion
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(" deleted");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(NonExistentMailException ex)
+                    {
+                        // Inform the user the mail doesn't exist
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" no such message");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(IOException | InvalidMailBoxFileException ex)
+                    {
+                        Logger.getLogger(RetrieveCommand.class.getName()).log(
+                            Level.SEVERE,
+                            "Mail's body couldn't be read.",
+                            ex
+                        );
+
+                        mail = null;
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" couldn't read message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                }
+                else
+                {
+                    // Inform the user the index is invalid
+                    responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                    responseBuilder.append(" invalid mail number");
+                    responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                }
+            }
+            catch(NumberFormatException ex)
+            {
+                // Inform the user the mail index couldn't be extracted
+                responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                responseBuilder.append(" couldn't extract mail index");
+                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+            }
+        }
+        else
+        {
+            // Build error response
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" no mailbox associated");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response, streaming the headers and the body
+        try
+        {
+            if(null != mail)
+            {
+                Pop3ResponseWriter responseWriter = connection.beginResponse(responseBuilder.toString());
+
+                AbstractPop3Command.writeHeaders(responseWriter, mail);
+                responseWriter.writeLine("");
+                responseWriter.writeLines(bodyStream, -1);
+                responseWriter.end();
+            }
+            else
+            {
+                connection.sendResponse(responseBuilder.toString());
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(RetrieveCommand.class.getName()).log(
+                Level.SEVERE,
+                "Retrieve response couldn't be sent.",
+                ex
+            );
+
+            // A response cut short can't be told from the next one
+            keepLooping = null == mail;
+        }
+        finally
+        {
+            if(null != bodyStream)
+            {
+                try
+                {
+                    bodyStream.close();
+                }
+                catch(IOException ex)
+                {
+                    Logger.getLogger(RetrieveCommand.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+
+        return keepLooping;
     }
 }
@@ -1,5 +1,10 @@
 package pop3.server.commands;
 
+import common.mails.MailBox;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
 import pop3.server.Pop3Connection;
 import pop3.server.Pop3State;
 
@@ -25,6 +30,42 @@ public class StatisticsCommand extends AbstractPop3Command
     @Override
     public boolean handle(Pop3Connection connection, String request)
     {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+
+        if(null != mailBox)
+        {
+            // The totals are kept by the mailbox, the mails aren't looked at
+            responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+            responseBuilder.append(" ");
+            responseBuilder.append(mailBox.getLiveNumber());
+            responseBuilder.append(" ");
+            responseBuilder.append(mailBox.getLiveSize());
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+        else
+        {
+            // Build error response
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" no mailbox associated");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response
+        try
+        {
+            connection.sendResponse(responseBuilder.toString());
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(StatisticsCommand.class.getName()).log(
+                Level.SEVERE,
+                "Statistics response couldn't be sent.",
+                ex
+            );
+        }
+
+        return true;
     }
 }
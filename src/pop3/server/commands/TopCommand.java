@@ -0,0 +1,179 @@
+package pop3.server.commands;
+
+import common.mails.Mail;
+import common.mails.MailBox;
+import common.mails.exceptions.InvalidMailBoxFileException;
+import common.mails.exceptions.MarkedForDeletionException;
+import common.mails.exceptions.NonExistentMailException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
+import pop3.server.Pop3Connection;
+import pop3.server.Pop3ResponseWriter;
+import pop3.server.Pop3State;
+
+/**
+ * Sends the headers of a mail and the first lines of its body, which are the
+ * only part of it read from the mailbox if it has been loaded lazily.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class TopCommand extends AbstractPop3Command
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(Pop3Connection connection)
+    {
+        return connection.getCurrentState().equals(Pop3State.TRANSACTION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean handle(Pop3Connection connection, String request)
+    {
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+        String[] arguments = request.trim().split("\\s+");
+        Mail mail = null;
+        InputStream bodyStream = null;
+        int linesNumber = 0;
+        boolean keepLooping = true;
+
+        if(null != mailBox)
+        {
+            try
+            {
+                if(3 != arguments.length)
+                {
+                    throw new NumberFormatException();
+                }
+
+                int index = Integer.parseInt(arguments[1]);
+                linesNumber = Integer.parseInt(arguments[2]);
+
+                if(index > 0 && linesNumber >= 0)
+                {
+                    try
+                    {
+                        // Try fetching the mail, the body is read while it is sent
+                        mail = mailBox.get(index - 1);
+                        bodyStream = linesNumber > 0 ? mail.openBody() : null;
+
+                        responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(MarkedForDeletionException ex)
+                    {
+                        // Inform the user the mail has already been marked for deletion
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(" deleted");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(NonExistentMailException ex)
+                    {
+                        // Inform the user the mail doesn't exist
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" no such message");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                    catch(IOException | InvalidMailBoxFileException ex)
+                    {
+                        Logger.getLogger(TopCommand.class.getName()).log(
+                            Level.SEVERE,
+                            "Mail's body couldn't be read.",
+                            ex
+                        );
+
+                        mail = null;
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" couldn't read message ");
+                        responseBuilder.append(index);
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                }
+                else
+                {
+                    // Inform the user the arguments are invalid
+                    responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                    responseBuilder.append(" invalid mail number or lines number");
+                    responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                }
+            }
+            catch(NumberFormatException ex)
+            {
+                // Inform the user the arguments couldn't be extracted
+                responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                responseBuilder.append(" couldn't extract mail index and lines number");
+                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+            }
+        }
+        else
+        {
+            // Build error response
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" no mailbox associated");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response, streaming the headers and the lines
+        try
+        {
+            if(null != mail)
+            {
+                Pop3ResponseWriter responseWriter = connection.beginResponse(responseBuilder.toString());
+
+                AbstractPop3Command.writeHeaders(responseWriter, mail);
+                responseWriter.writeLine("");
+
+                if(null != bodyStream)
+                {
+                    responseWriter.writeLines(bodyStream, linesNumber);
+                }
+
+                responseWriter.end();
+            }
+            else
+            {
+                connection.sendResponse(responseBuilder.toString());
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(TopCommand.class.getName()).log(
+                Level.SEVERE,
+                "Top response couldn't be sent.",
+                ex
+            );
+
+            // A response cut short can't be told from the next one
+            keepLooping = null == mail;
+        }
+        finally
+        {
+            if(null != bodyStream)
+            {
+                try
+                {
+                    bodyStream.close();
+                }
+                catch(IOException ex)
+                {
+                    Logger.getLogger(TopCommand.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+
+        return keepLooping;
+    }
+}
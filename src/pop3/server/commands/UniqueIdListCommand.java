@@ -0,0 +1,158 @@
+package pop3.server.commands;
+
+import common.mails.Mail;
+import common.mails.MailBox;
+import common.mails.MailIdentifier;
+import common.mails.exceptions.MarkedForDeletionException;
+import common.mails.exceptions.NonExistentMailException;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import pop3.Pop3Protocol;
+import pop3.server.Pop3Connection;
+import pop3.server.Pop3ResponseWriter;
+import pop3.server.Pop3State;
+
+/**
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ * @see common.mails.MailIdentifier
+ */
+public class UniqueIdListCommand extends AbstractPop3Command
+{
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isValid(Pop3Connection connection)
+    {
+        return connection.getCurrentState().equals(Pop3State.TRANSACTION);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean handle(Pop3Connection connection, String request)
+    {
+        // Initialize vars
+        StringBuilder responseBuilder = new StringBuilder();
+        MailBox mailBox = connection.getMailBox();
+        List<Mail> mailsList = null;
+
+        if(null != mailBox)
+        {
+            // Is there an argument?
+            if(request.length() > 4)
+            {
+                // A mail number has been provided
+                try
+                {
+                    int index = Integer.parseInt(request.substring(5).trim());
+
+                    if(index > 0)
+                    {
+                        try
+                        {
+                            // Make sure the mail exists and isn't deleted
+                            mailBox.get(index - 1);
+
+                            responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+                            responseBuilder.append(" ");
+                            responseBuilder.append(index);
+                            responseBuilder.append(" ");
+                            responseBuilder.append(MailIdentifier.get(mailBox.getAll(), index - 1));
+                            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                        }
+                        catch(MarkedForDeletionException ex)
+                        {
+                            // Inform the user the mail has already been marked for deletion
+                            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                            responseBuilder.append(" message ");
+                            responseBuilder.append(index);
+                            responseBuilder.append(" deleted");
+                            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                        }
+                        catch(NonExistentMailException ex)
+                        {
+                            // Inform the user the mail doesn't exist
+                            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                            responseBuilder.append(" no such message");
+                            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                        }
+                    }
+                    else
+                    {
+                        // Inform the user the index is invalid
+                        responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                        responseBuilder.append(" invalid mail number");
+                        responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                    }
+                }
+                catch(NumberFormatException ex)
+                {
+                    // Inform the user the mail index couldn't be extracted
+                    responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+                    responseBuilder.append(" couldn't extract mail index");
+                    responseBuilder.append(Pop3Protocol.END_OF_LINE);
+                }
+            }
+            else
+            {
+                // No mail number has been provided, list every mail which isn't deleted
+                mailsList = mailBox.getAll();
+
+                responseBuilder.append(Pop3Protocol.RESPONSE_OK);
+                responseBuilder.append(" unique-id listing follows");
+                responseBuilder.append(Pop3Protocol.END_OF_LINE);
+            }
+        }
+        else
+        {
+            // Build error response
+            responseBuilder.append(Pop3Protocol.RESPONSE_ERROR);
+            responseBuilder.append(" no mailbox associated");
+            responseBuilder.append(Pop3Protocol.END_OF_LINE);
+        }
+
+        // Then, send response, streaming the listing line by line
+        try
+        {
+            if(null != mailsList)
+            {
+                Pop3ResponseWriter responseWriter = connection.beginResponse(responseBuilder.toString());
+                String[] identifiers = MailIdentifier.getAll(mailsList);
+
+                for(int i = 0, j = mailsList.size(); i < j; i++)
+                {
+                    if(!mailBox.isDeleted(i))
+                    {
+                        responseBuilder.setLength(0);
+                        responseBuilder.append(i + 1);
+                        responseBuilder.append(" ");
+                        responseBuilder.append(identifiers[i]);
+                        responseWriter.writeLine(responseBuilder);
+                    }
+                }
+
+                responseWriter.end();
+            }
+            else
+            {
+                connection.sendResponse(responseBuilder.toString());
+            }
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(UniqueIdListCommand.class.getName()).log(
+                Level.SEVERE,
+                "Unique-id list response couldn't be sent.",
+                ex
+            );
+        }
+
+        return true;
+    }
+}
@@ -299,14 +299,14 @@ public class SmtpClient
      */
     public int sendMailBody(String body)
     {
-        // Add the end of data pattern to parse the mail if there are headers
-        if(!body.endsWith(SmtpProtocol.END_OF_DATA))
+        // Remove the end of data pattern, it is added back once the lines have been stuffed
+        if(body.endsWith(SmtpProtocol.END_OF_DATA))
         {
-            body += SmtpProtocol.END_OF_DATA;
+            body = body.substring(0, body.length() - SmtpProtocol.END_OF_DATA.length());
         }
         
-        // Build an email to facilitate the send
-        Mail mail = Mail.parse(body);
+        // Build an email to facilitate the send, the parser removing the dots it expects to be stuffed
+        Mail mail = Mail.parse(SmtpClient.stuff(body) + SmtpProtocol.END_OF_DATA);
         
         // Initialize vars to build fragments
         StringBuilder mailBuilder = new StringBuilder();
@@ -360,12 +360,11 @@ public class SmtpClient
                 bodyFragments
             )
         );
-        mailBuilder.append(SmtpProtocol.END_OF_DATA);
         
-        // Finally, send it
+        // Finally, send it with its lines stuffed so that none of them ends it early
         try
         {
-            this.sendRequest(mailBuilder.toString());
+            this.sendRequest(SmtpClient.stuff(mailBuilder.toString()) + SmtpProtocol.END_OF_DATA);
         }
         catch(IOException ex)
         {
@@ -375,6 +374,18 @@ public class SmtpClient
         return this.stateValidation(SmtpState.WaitForExitConfirm, this.readResponse());
     }
 
+    /**
+     * Doubles the dot at the beginning of every line starting with one, so
+     * that the server doesn't take it for the end of data marker.
+     *
+     * @param data The lines.
+     * @return The stuffed lines.
+     */
+    protected static String stuff(String data)
+    {
+        return (data.startsWith(".") ? "." : "") + data.replace("\r\n.", "\r\n..");
+    }
+
     /**
      * Closes the connection.
      *
@@ -1,5 +1,7 @@
 package smtp.server;
 
+import common.mails.MailParser;
+import common.mails.RawMail;
 import smtp.SmtpProtocol;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
@@ -62,9 +64,9 @@ public class SmtpConnection extends Thread
     protected Set<String> recipientsBuffer;
 
     /**
-     * The body buffer for transactions.
+     * The body buffer for transactions, as it has been received.
      */
-    protected String bodyBuffer;
+    protected byte[] bodyBuffer;
 
     /**
      * Creates a new SMTP connection.
@@ -352,27 +354,54 @@ public class SmtpConnection extends Thread
     public String readUntil(String pattern, Charset charset)
     {
         // Initialize vars
-        ByteArrayOutputStream dataStream;
-        DataOutputStream dataWriter = new DataOutputStream(dataStream = new ByteArrayOutputStream());
-        int readByte;
-        String currentData;
+        byte[] data = this.readBytesUntil(pattern.getBytes(charset));
+
+        return null != data ? new String(data, charset) : null;
+    }
+
+    /**
+     * Reads raw data from the client until a specific sequence of bytes is
+     * found.
+     * 
+     * Only the end of the data is compared with the sequence after each byte,
+     * so that the data is never decoded while it is being read.
+     * 
+     * @param pattern The sequence of bytes to look for.
+     * @return The data, ended by the sequence, or <code>null</code> if the
+     * client went away before sending it.
+     */
+    public byte[] readBytesUntil(byte[] pattern)
+    {
+        // Initialize vars
+        byte[] buffer = new byte[8192];
+        int length = 0, readByte;
+        boolean found = false;
 
         try
         {
-            do
+            while(!found && -1 != (readByte = this.socketReader.read()))
             {
-                // Append the next character to the buffer
-                readByte = this.socketReader.read();
+                // Append the next byte to the buffer
+                if(length == buffer.length)
+                {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
 
-                if(-1 != readByte)
+                buffer[length++] = (byte) readByte;
+
+                // Then, compare the end of the buffer with the pattern
+                found = length >= pattern.length;
+
+                for(int i = 1; found && i <= pattern.length; i++)
                 {
-                    dataWriter.writeByte(readByte);
+                    found = buffer[length - i] == pattern[pattern.length - i];
                 }
+            }
 
-                // Build a string with the current data
-                currentData = new String(dataStream.toByteArray(), charset);
+            if(!found)
+            {
+                return null;
             }
-            while(!currentData.endsWith(pattern));
 
             // Log if necessary
             if(this.server.isDebug())
@@ -382,12 +411,78 @@ public class SmtpConnection extends Thread
                     "<- {0}:{1} {2}",
                     new Object[]
                     {
-                        this.socket.getInetAddress(), this.socket.getPort(), currentData.trim()
+                        this.socket.getInetAddress(), this.socket.getPort(), new String(buffer, 0, length, StandardCharsets.UTF_8).trim()
+                    }
+                );
+            }
+
+            return Arrays.copyOf(buffer, length);
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(SmtpConnection.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't read data from client.",
+                ex
+            );
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads a mail from the client up to the end of data marker, parsing it
+     * as it arrives.
+     * 
+     * The data is read by chunks, and what follows the marker is left in the
+     * stream for the next command.
+     * 
+     * @param charset The charset to decode the mail with.
+     * @return The mail, or <code>null</code> if the client went away before
+     * sending the marker.
+     */
+    public RawMail readMail(Charset charset)
+    {
+        // Initialize vars
+        MailParser parser = new MailParser();
+        byte[] chunk = new byte[MailParser.DEFAULT_BUFFER_SIZE];
+        int readLength, consumedLength;
+
+        try
+        {
+            while(!parser.isComplete())
+            {
+                this.socketReader.mark(chunk.length);
+
+                if(-1 == (readLength = this.socketReader.read(chunk)))
+                {
+                    return null;
+                }
+
+                // Give back what comes after the marker
+                consumedLength = parser.update(chunk, 0, readLength);
+
+                if(consumedLength < readLength)
+                {
+                    this.socketReader.reset();
+                    this.socketReader.skip(consumedLength);
+                }
+            }
+
+            // Log if necessary
+            if(this.server.isDebug())
+            {
+                Logger.getLogger(SmtpConnection.class.getName()).log(
+                    Level.INFO,
+                    "<- {0}:{1} ({2} bytes of data)",
+                    new Object[]
+                    {
+                        this.socket.getInetAddress(), this.socket.getPort(), parser.getLength()
                     }
                 );
             }
 
-            return currentData;
+            return parser.getMail(charset);
         }
         catch(IOException ex)
         {
@@ -528,7 +623,7 @@ public class SmtpConnection extends Thread
      * 
      * @return The body buffer.
      */
-    public String getBodyBuffer()
+    public byte[] getBodyBuffer()
     {
         return this.bodyBuffer;
     }
@@ -538,7 +633,7 @@ public class SmtpConnection extends Thread
      * 
      * @param bodyBuffer The body buffer.
      */
-    public void setBodyBuffer(String bodyBuffer)
+    public void setBodyBuffer(byte[] bodyBuffer)
     {
         this.bodyBuffer = bodyBuffer;
     }
@@ -1,6 +1,13 @@
 package smtp.server;
 
+import common.mails.DeliveryJournal;
+import common.mails.MailBlobStore;
 import common.mails.MailBox;
+import common.mails.MailBoxCache;
+import common.mails.MailBoxIndex;
+import common.mails.MailBoxLocator;
+import common.mails.MailBoxLockManager;
+import common.mails.MailDir;
 import common.mails.exceptions.InvalidMailBoxFileException;
 import common.mails.exceptions.UnknownMailBoxException;
 import java.io.File;
@@ -48,6 +55,17 @@ public class SmtpServer
      */
     protected File mailBoxesPath;
     
+    /**
+     * The locator resolving users' mailboxes in the mailboxes' path.
+     */
+    protected MailBoxLocator mailBoxLocator;
+    
+    /**
+     * The journal deliveries are written into before being applied to the
+     * mailboxes.
+     */
+    protected DeliveryJournal journal;
+    
     /**
      * The server' supported commands.
      */
@@ -70,6 +88,60 @@ public class SmtpServer
         this.name = name;
         this.debug = debug;
         this.mailBoxesPath = mailBoxesPath;
+        this.mailBoxLocator = new MailBoxLocator(mailBoxesPath);
+        
+        // Bodies of mails with several recipients are stored only once
+        MailBlobStore.setInstance(new MailBlobStore(new File(mailBoxesPath, MailBlobStore.DIRECTORY_NAME)));
+        
+        // Mailboxes are also written by the POP3 server and the migrator
+        try
+        {
+            MailBoxLockManager.getInstance().share(mailBoxesPath);
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(SmtpServer.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't share mailboxes' locks.",
+                ex
+            );
+            
+            throw new SmtpServerInitializationException(ex);
+        }
+        
+        // Deliveries are journaled, then applied to the mailboxes in the background
+        this.journal = new DeliveryJournal(
+            new File(mailBoxesPath, DeliveryJournal.DIRECTORY_NAME),
+            this.mailBoxLocator
+        );
+        
+        try
+        {
+            int recoveredNumber = this.journal.open();
+            
+            if(recoveredNumber > 0)
+            {
+                Logger.getLogger(SmtpServer.class.getName()).log(
+                    Level.INFO,
+                    String.format(
+                        "Replaying %d deliveries left in the journal.",
+                        recoveredNumber
+                    )
+                );
+            }
+            
+            this.journal.start();
+        }
+        catch(IOException ex)
+        {
+            Logger.getLogger(SmtpServer.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't open delivery journal.",
+                ex
+            );
+            
+            throw new SmtpServerInitializationException(ex);
+        }
         
         // Register supported commands
         this.supportedCommands = new HashMap<>();
@@ -154,6 +226,16 @@ public class SmtpServer
         return this.name;
     }
     
+    /**
+     * Gets the journal deliveries are written into.
+     * 
+     * @return The journal.
+     */
+    public DeliveryJournal getJournal()
+    {
+        return this.journal;
+    }
+    
     /**
      * Checks if the server is in debug mode or not.
      * 
@@ -166,7 +248,75 @@ public class SmtpServer
     }
     
     /**
-     * Gets an existing mailbox.
+     * Gets the path of a user's mailbox file, whether it exists or not.
+     * 
+     * @param userName The associated username.
+     * @return The mailbox's path.
+     */
+    public File getMailBoxFile(String userName)
+    {
+        return this.mailBoxLocator.getMailBoxFile(userName);
+    }
+    
+    /**
+     * Tests if a user's mailbox exists and is valid, using the mailboxes'
+     * cache or its index rather than parsing the mails it contains.
+     * 
+     * @param userName The associated username.
+     * @return <code>true</code> if the mailbox exists, <code>false</code>
+     * otherwise.
+     */
+    public boolean hasMailBox(String userName)
+    {
+        // Initialize vars
+        File path = this.getMailBoxFile(userName);
+        
+        // Mailbox directories have no index to check
+        if(MailDir.isMailDir(this.mailBoxLocator.getMailDirPath(userName)))
+        {
+            return true;
+        }
+        else if(MailBoxCache.getInstance().contains(path))
+        {
+            return true;
+        }
+        else if(!path.isFile())
+        {
+            return false;
+        }
+        
+        try
+        {
+            MailBoxIndex.open(path);
+            
+            return true;
+        }
+        catch(IOException | InvalidMailBoxFileException ex)
+        {
+            Logger.getLogger(SmtpServer.class.getName()).log(
+                Level.SEVERE,
+                "Couldn't get mailbox index.",
+                ex
+            );
+            
+            return false;
+        }
+    }
+    
+    /**
+     * Gets a user's mailbox without loading it, as a mailbox directory if
+     * there is one, as a mailbox file otherwise.
+     * 
+     * @param userName The associated username.
+     * @return The mailbox, which may not exist.
+     */
+    public MailBox openMailBox(String userName)
+    {
+        return this.mailBoxLocator.open(userName);
+    }
+    
+    /**
+     * Gets an existing mailbox, whose mails' bodies are only read when needed.
      * 
      * @param userName The associated username.
      * @return The mailbox if it exists, <code>null</code> otherwise.
@@ -174,11 +324,11 @@ public class SmtpServer
     public MailBox getMailBox(String userName)
     {
         // Initialize vars
-        MailBox mailBox = new MailBox(new File(this.mailBoxesPath, userName + ".mbox"));
+        MailBox mailBox = this.openMailBox(userName);
         
         try
         {
-            mailBox.load();
+            mailBox = MailBoxCache.getInstance().load(mailBox);
             
             return mailBox;
         }
@@ -1,10 +1,13 @@
 package smtp.server.commands;
 
 import common.mails.Mail;
-import common.mails.MailBox;
-import common.mails.exceptions.FailedMailBoxUpdateException;
-import java.io.FileNotFoundException;
+import common.mails.MailBlobStore;
+import common.mails.MailCompressor;
+import common.mails.MailIdentifier;
+import common.mails.RawMail;
+import common.mails.SharedMail;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -64,17 +67,16 @@ public class DataCommand extends AbstractSmtpCommand
             if(connection.getCurrentState().equals(SmtpState.EXPECTING_BODY))
             {
                 // Try reading the body
-                String data = connection.readUntil(SmtpProtocol.END_OF_DATA);
+                RawMail data = connection.readMail(StandardCharsets.UTF_8);
                 
                 if(null != data)
                 {
                     // Body has been successfully read, save it
-                    connection.setBodyBuffer(data);
+                    connection.setBodyBuffer(data.getData());
                     
                     // Initialize some more vars
                     Set<String> recipientsBuffer = connection.getRecipientsBuffer();
-                    MailBox mailBox;
-                    Mail mail = Mail.parse(data);
+                    Mail mail = data;
                     boolean errorHappened = false;
                     
                     // Build the header from the previous commands
@@ -90,32 +92,62 @@ public class DataCommand extends AbstractSmtpCommand
                     
                     mail.addHeader("To", recipients.substring(0, recipients.length() - 2));
                     
-                    // Add the mail to every recipient
-                    for(String recipient : recipientsBuffer)
+                    // A client mustn't point its mail to another mail's body, nor mark it as compressed
+                    mail.removeHeader(MailBlobStore.HEADER);
+                    mail.removeHeader(MailCompressor.HEADER);
+                    
+                    // Nor choose its identifier, which is kept by every mailbox it is delivered to
+                    MailIdentifier.assign(mail);
+                    
+                    // Store the body only once if there are several recipients
+                    if(recipientsBuffer.size() > 1 && null != MailBlobStore.getInstance())
+                    {
+                        try
+                        {
+                            mail = MailBlobStore.getInstance().share(mail, recipientsBuffer.size());
+                        }
+                        catch(IOException ex)
+                        {
+                            Logger.getLogger(DataCommand.class.getName()).log(
+                                Level.WARNING,
+                                "Couldn't share body, it will be stored in every mailbox.",
+                                ex
+                            );
+                        }
+                    }
+                    
+                    // Journal the delivery, it is acknowledged once durable
+                    try
                     {
-                        mailBox = connection.getServer().getMailBox(recipient);
+                        connection.getServer().getJournal().deliver(mail, recipientsBuffer);
+                    }
+                    catch(IOException ex)
+                    {
+                        Logger.getLogger(DataCommand.class.getName()).log(
+                            Level.SEVERE,
+                            "Couldn't journal mail.",
+                            ex
+                        );
+                        
+                        errorHappened = true;
                         
-                        if(null != mailBox)
+                        // No record will point to the shared body
+                        if(mail instanceof SharedMail)
                         {
-                            mailBox.add(mail);
-                            
                             try
                             {
-                                mailBox.save();
+                                for(int i = 0; i < recipientsBuffer.size(); i++)
+                                {
+                                    MailBlobStore.getInstance().release(((SharedMail) mail).getHash());
+                                }
                             }
-                            catch(IllegalArgumentException | FailedMailBoxUpdateException ex)
+                            catch(IOException releaseEx)
                             {
                                 Logger.getLogger(DataCommand.class.getName()).log(
-                                    Level.SEVERE,
-                                    "Couldn't save mailbox.",
-                                    ex
+                                    Level.WARNING,
+                                    "Couldn't release shared body.",
+                                    releaseEx
                                 );
-                                
-                                errorHappened = true;
-                            }
-                            catch(FileNotFoundException ex)
-                            {
-                                // This exception isn't supposed to happen
                             }
                         }
                     }
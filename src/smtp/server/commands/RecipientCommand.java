@@ -64,7 +64,7 @@ public class RecipientCommand extends AbstractSmtpCommand
                     if(!recipientsBuffer.contains(recipient))
                     {
                         // This recipient hasn't already been added
-                        if(null != connection.getServer().getMailBox(recipient))
+                        if(connection.getServer().hasMailBox(recipient))
                         {
                             // This user exists, register them
                             recipientsBuffer.add(recipient);
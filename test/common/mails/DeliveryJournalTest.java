@@ -0,0 +1,424 @@
+package common.mails;
+
+import common.mails.exceptions.FailedMailBoxUpdateException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that replaying the journal after a crash delivers each mail once,
+ * and that a mail whose delivery has been refused is never replayed.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class DeliveryJournalTest
+{
+    /**
+     * The mailboxes' directory.
+     */
+    protected File directory;
+
+    /**
+     * The journal's directory.
+     */
+    protected File journalDirectory;
+
+    /**
+     * The locator of the recipients' mailboxes.
+     */
+    protected MailBoxLocator locator;
+
+    /**
+     * Creates the mailboxes of two recipients.
+     *
+     * @throws java.io.IOException If the mailboxes couldn't be created.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        this.directory = Files.createTempDirectory("journal").toFile();
+        this.journalDirectory = new File(this.directory, DeliveryJournal.DIRECTORY_NAME);
+        this.locator = new MailBoxLocator(this.directory);
+
+        for(String userName : new String[] {"alice", "bob"})
+        {
+            File path = this.locator.getMailBoxFile(userName);
+
+            assertTrue(path.getParentFile().isDirectory() || path.getParentFile().mkdirs());
+            assertTrue(path.createNewFile());
+        }
+    }
+
+    /**
+     * Deletes the directory and stops sharing bodies.
+     */
+    @After
+    public void tearDown()
+    {
+        MailBlobStore.setInstance(null);
+        MailBoxCache.getInstance().clear();
+        MailBoxTest.delete(this.directory);
+    }
+
+    /**
+     * A delivery applied before a crash but not checkpointed isn't applied
+     * twice when the journal is replayed.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testReplayIsIdempotent()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        DeliveryJournal.Delivery delivery;
+
+        assertEquals(0, journal.open());
+        journal.deliver(DeliveryJournalTest.createMail("once"), Arrays.asList("alice", "bob"));
+        journal.apply(journal.pendingDeliveries.poll());
+
+        // Crash before the checkpoint, then replay
+        journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        assertEquals(1, journal.open());
+
+        delivery = journal.pendingDeliveries.poll();
+        assertTrue(delivery.recovered);
+        journal.apply(delivery);
+
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals(1, this.load("bob").getSize());
+    }
+
+    /**
+     * A shared body keeps one reference per recipient when its delivery is
+     * replayed.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testReplayKeepsReferencesNumber()
+    throws IOException
+    {
+        // Initialize vars
+        MailBlobStore store = new MailBlobStore(new File(this.directory, MailBlobStore.DIRECTORY_NAME));
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        SharedMail mail;
+
+        MailBlobStore.setInstance(store);
+        journal.open();
+        mail = store.share(DeliveryJournalTest.createMail("shared"), 2);
+        journal.deliver(mail, Arrays.asList("alice", "bob"));
+        journal.apply(journal.pendingDeliveries.poll());
+
+        // Crash before the checkpoint, then replay
+        journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        journal.open();
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals(1, this.load("bob").getSize());
+        assertEquals(2, store.getReferencesNumber(mail.getHash()));
+    }
+
+    /**
+     * A mail whose body holds the end of data marker is replayed whole.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testReplayKeepsMarkerInBody()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        Mail mail = DeliveryJournalTest.createMail("marker");
+
+        mail.setBody("first\r\n.\r\nsecond");
+        journal.open();
+        journal.deliver(mail, Arrays.asList("alice"));
+
+        // Crash before applying it, then replay
+        journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        assertEquals(1, journal.open());
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals("first\r\n.\r\nsecond", this.load("alice").get(0).getBody());
+    }
+
+    /**
+     * A delivery whose commit has failed, which the sender has been told
+     * about, isn't delivered when the journal is opened again.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testFailedCommitIsVoided()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator)
+        {
+            /**
+             * Whether the next commit fails.
+             */
+            protected boolean failing = true;
+
+            @Override
+            protected void commit(long sequence)
+            throws IOException
+            {
+                if(this.failing)
+                {
+                    this.failing = false;
+
+                    throw new IOException("Disk failure.");
+                }
+
+                super.commit(sequence);
+            }
+        };
+
+        journal.open();
+
+        try
+        {
+            journal.deliver(DeliveryJournalTest.createMail("refused"), Arrays.asList("alice"));
+            fail("The delivery should have failed.");
+        }
+        catch(IOException ex)
+        {
+            assertNull(journal.pendingDeliveries.poll());
+        }
+
+        // The entries written after it in the same segment are still replayed
+        journal.deliver(DeliveryJournalTest.createMail("accepted"), Arrays.asList("alice"));
+        assertEquals(1, journal.segments.size());
+        assertEquals(1, journal.getPendingNumber());
+
+        journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        assertEquals(1, journal.open());
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals("accepted", this.load("alice").get(0).getHeader("Subject"));
+        assertFalse(journal.pendingDeliveries.iterator().hasNext());
+    }
+
+    /**
+     * A delivery whose rotation has failed, which the sender has been told
+     * about, isn't delivered when the journal is opened again, and the
+     * journal keeps accepting deliveries.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testFailedRotationIsVoided()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator)
+        {
+            /**
+             * Whether the next segment can't be created.
+             */
+            protected boolean failing = false;
+
+            @Override
+            protected Segment createSegment(long number)
+            throws IOException
+            {
+                if(this.failing)
+                {
+                    this.failing = false;
+
+                    throw new IOException("Disk failure.");
+                }
+
+                this.failing = true;
+
+                return super.createSegment(number);
+            }
+        };
+
+        journal.open();
+        journal.setSegmentLength(1);
+
+        try
+        {
+            journal.deliver(DeliveryJournalTest.createMail("refused"), Arrays.asList("alice"));
+            fail("The delivery should have failed.");
+        }
+        catch(IOException ex)
+        {
+            assertEquals(0, journal.getPendingNumber());
+            assertFalse(journal.isFull(journal.segments.getLast()));
+        }
+
+        journal.deliver(DeliveryJournalTest.createMail("accepted"), Arrays.asList("alice"));
+        assertEquals(2, journal.segments.size());
+        assertEquals(1, journal.getPendingNumber());
+
+        journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        assertEquals(1, journal.open());
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals("accepted", this.load("alice").get(0).getHeader("Subject"));
+    }
+
+    /**
+     * A delivery which couldn't be appended to a mailbox stays pending and
+     * is tried again for that recipient only.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testFailedAppendIsRetried()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator)
+        {
+            /**
+             * Whether the next append to bob's mailbox fails.
+             */
+            protected boolean failing = true;
+
+            @Override
+            protected void append(MailBox mailBox, String recipient, Mail mail)
+            throws FailedMailBoxUpdateException, FileNotFoundException
+            {
+                if(this.failing && "bob".equals(recipient))
+                {
+                    this.failing = false;
+
+                    throw new FailedMailBoxUpdateException("Disk full.");
+                }
+
+                super.append(mailBox, recipient, mail);
+            }
+        };
+        DeliveryJournal.Delivery delivery;
+
+        journal.open();
+        journal.deliver(DeliveryJournalTest.createMail("retried"), Arrays.asList("alice", "bob"));
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(1, journal.getPendingNumber());
+        assertEquals(1, journal.failedDeliveries.size());
+        assertEquals(0, this.load("bob").getSize());
+
+        // Try it again once its time has come
+        delivery = journal.failedDeliveries.get(0);
+        assertEquals(Arrays.asList("bob"), delivery.recipients);
+        delivery.retryTime = 0;
+        journal.retryFailedDeliveries();
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(0, journal.getPendingNumber());
+        assertEquals(1, this.load("alice").getSize());
+        assertEquals(1, this.load("bob").getSize());
+    }
+
+    /**
+     * A mail whose recipient has no mailbox is kept as a dead letter.
+     *
+     * @throws java.io.IOException If the journal couldn't be written or read.
+     */
+    @Test
+    public void testMissingMailBoxDeadLettered()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        MailBox deadLetters = new MailBox(new File(
+            new File(this.journalDirectory, DeliveryJournal.DEAD_LETTERS_DIRECTORY_NAME),
+            "carol" + MailBoxLocator.EXTENSION
+        ));
+
+        journal.open();
+        journal.deliver(DeliveryJournalTest.createMail("lost"), Arrays.asList("alice", "carol"));
+        journal.apply(journal.pendingDeliveries.poll());
+
+        assertEquals(0, journal.getPendingNumber());
+        assertEquals(1, this.load("alice").getSize());
+        deadLetters.load();
+        assertEquals(1, deadLetters.getSize());
+        assertEquals("lost", deadLetters.get(0).getHeader("Subject"));
+    }
+
+    /**
+     * A mail is appended to a mailbox moved into its subdirectory after it
+     * has been located, rather than being lost.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be moved or read.
+     */
+    @Test
+    public void testAppendFollowsMigratedMailBox()
+    throws IOException
+    {
+        // Initialize vars
+        DeliveryJournal journal = new DeliveryJournal(this.journalDirectory, this.locator);
+        File flatPath = new File(this.directory, "carol" + MailBoxLocator.EXTENSION);
+        MailBox mailBox;
+
+        assertTrue(flatPath.createNewFile());
+        mailBox = this.locator.open("carol");
+        assertEquals(flatPath, mailBox.getPath());
+
+        // The migrator moves it before the delivery acquires its lock
+        assertTrue(this.locator.migrate(flatPath));
+        journal.append(mailBox, "carol", DeliveryJournalTest.createMail("moved"));
+
+        assertFalse(flatPath.exists());
+        assertEquals(1, this.load("carol").getSize());
+        assertEquals("moved", this.load("carol").get(0).getHeader("Subject"));
+    }
+
+    /**
+     * Loads a recipient's mailbox.
+     *
+     * @param userName The recipient's name.
+     * @return The mailbox.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     */
+    protected MailBox load(String userName)
+    throws IOException
+    {
+        MailBox mailBox = this.locator.open(userName);
+        mailBox.load();
+
+        return mailBox;
+    }
+
+    /**
+     * Creates a mail with an identifier.
+     *
+     * @param subject The mail's subject.
+     * @return The mail.
+     */
+    protected static Mail createMail(String subject)
+    {
+        Mail mail = new Mail();
+        mail.addHeader("Subject", subject);
+        mail.setBody("Body of " + subject + ".");
+        MailIdentifier.assign(mail);
+
+        return mail;
+    }
+}
@@ -0,0 +1,106 @@
+package common.mails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a mailbox written while it was loaded isn't cached, without
+ * keeping the other mailboxes from being cached.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxCacheTest
+{
+    /**
+     * The directory the mailboxes are created in.
+     */
+    protected File directory;
+
+    /**
+     * The cache the tests work on.
+     */
+    protected MailBoxCache cache;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @throws java.io.IOException If the directory couldn't be created.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        this.directory = Files.createTempDirectory("cache").toFile();
+        this.cache = new MailBoxCache(MailBoxCache.DEFAULT_BUDGET);
+    }
+
+    /**
+     * Deletes the directory.
+     */
+    @After
+    public void tearDown()
+    {
+        MailBoxTest.delete(this.directory);
+    }
+
+    /**
+     * A mailbox loaded while another one is appended to is cached, whereas
+     * one loaded while it is appended to isn't.
+     *
+     * @throws java.io.IOException If the mailboxes couldn't be written.
+     */
+    @Test
+    public void testGrowthOnlyRejectsItsMailBox()
+    throws IOException
+    {
+        // Initialize vars
+        File loadedPath = this.createMailBox("alice");
+        File grownPath = this.createMailBox("bob");
+        long[] stamp = MailBoxCache.stamp(loadedPath);
+        long generation;
+
+        for(int i = 0; MailBoxCache.getStripe(grownPath) == MailBoxCache.getStripe(loadedPath); i++)
+        {
+            grownPath = this.createMailBox("bob" + i);
+        }
+
+        // Another mailbox grows while this one is loaded
+        generation = this.cache.generations[MailBoxCache.getStripe(loadedPath)];
+        this.cache.grow(grownPath);
+        this.cache.put(new MailBox(loadedPath), stamp, generation, 0);
+        assertTrue(this.cache.contains(loadedPath));
+
+        // Then, this one grows while it is loaded
+        generation = this.cache.generations[MailBoxCache.getStripe(loadedPath)];
+        this.cache.grow(loadedPath);
+        this.cache.put(new MailBox(loadedPath), stamp, generation, 0);
+        assertFalse(this.cache.contains(loadedPath));
+    }
+
+    /**
+     * Creates a mailbox holding a single mail.
+     *
+     * @param userName The mailbox's owner.
+     * @return The mailbox's path.
+     * @throws java.io.IOException If the mailbox couldn't be written.
+     */
+    protected File createMailBox(String userName)
+    throws IOException
+    {
+        // Initialize vars
+        File path = new File(this.directory, userName + MailBoxLocator.EXTENSION);
+
+        Files.write(path.toPath(), MailBoxIndexTest.record(0).getBytes(StandardCharsets.UTF_8));
+
+        return path;
+    }
+}
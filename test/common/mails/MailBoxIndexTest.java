@@ -0,0 +1,198 @@
+package common.mails;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a mailbox's index is rebuilt or brought up-to-date when needed,
+ * without losing its tombstones.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxIndexTest
+{
+    /**
+     * The directory the mailboxes are created in.
+     */
+    protected File directory;
+
+    /**
+     * The text mailbox the tests work on.
+     */
+    protected File path;
+
+    /**
+     * Creates a text mailbox holding three mails.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be created.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        this.directory = Files.createTempDirectory("index").toFile();
+        this.path = new File(this.directory, "user.mbox");
+
+        Files.write(
+            this.path.toPath(),
+            (MailBoxIndexTest.record(0) + MailBoxIndexTest.record(1) + MailBoxIndexTest.record(2))
+                .getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * Deletes the directory.
+     */
+    @After
+    public void tearDown()
+    {
+        MailBoxCache.getInstance().clear();
+        MailBoxTest.delete(this.directory);
+    }
+
+    /**
+     * A missing index is rebuilt from the records.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     */
+    @Test
+    public void testRebuildMissingIndex()
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxIndex index = MailBoxIndex.open(this.path);
+        List<MailBoxIndex.Entry> entries = index.getEntries();
+
+        assertTrue(MailBoxIndex.getIndexFile(this.path).isFile());
+        assertEquals(3, entries.size());
+        assertEquals(0, entries.get(0).getOffset());
+        assertEquals(MailBoxIndexTest.record(0).length(), entries.get(1).getOffset());
+        assertEquals(MailBoxIndexTest.record(0).length(), entries.get(0).getLength());
+
+        // Lose it, then open it again
+        assertTrue(MailBoxIndex.getIndexFile(this.path).delete());
+        index = MailBoxIndex.open(this.path);
+
+        assertEquals(3, index.getSize());
+
+        for(int i = 0; i < 3; i++)
+        {
+            assertEquals(entries.get(i).getOffset(), index.get(i).getOffset());
+            assertEquals(entries.get(i).getLength(), index.get(i).getLength());
+            assertEquals(entries.get(i).getSize(), index.get(i).getSize());
+        }
+    }
+
+    /**
+     * Records appended by another process are indexed without forgetting
+     * which mails have been deleted.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be read or written.
+     */
+    @Test
+    public void testUpdateKeepsTombstones()
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxIndex index = MailBoxIndex.open(this.path);
+        MailBox mailBox;
+
+        assertTrue(index.markDeleted(index.get(1).getOffset()));
+        assertFalse(index.markDeleted(index.get(1).getOffset()));
+
+        // Append a record behind the index's back
+        Files.write(
+            this.path.toPath(),
+            MailBoxIndexTest.record(3).getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND
+        );
+
+        index = new MailBoxIndex(this.path);
+        assertFalse(index.load());
+        assertTrue(index.update());
+        assertEquals(4, index.getSize());
+        assertTrue(index.get(1).isDeleted());
+        assertEquals(3, index.getLiveEntries().size());
+        assertEquals(MailBoxIndexTest.record(1).length(), index.getDeadSpace());
+
+        // The deleted mail stays out of the mailbox
+        mailBox = new MailBox(this.path);
+        mailBox.loadLazily();
+
+        assertEquals(3, mailBox.getSize());
+        assertEquals("mail 0", mailBox.get(0).getHeader("Subject"));
+        assertEquals("mail 2", mailBox.get(1).getHeader("Subject"));
+        assertEquals("mail 3", mailBox.get(2).getHeader("Subject"));
+    }
+
+    /**
+     * An index built for a file which has been rewritten since is rebuilt
+     * rather than trusted.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be read or written.
+     */
+    @Test
+    public void testRewrittenMailBox()
+    throws IOException
+    {
+        // Initialize vars
+        MailBoxIndex index = MailBoxIndex.open(this.path);
+        MailBox mailBox;
+
+        assertEquals(3, index.getSize());
+
+        // Replace the mails with a longer one
+        Files.write(
+            this.path.toPath(),
+            ("Subject: other\r\n\r\n" + new String(new char[1000]).replace('\0', 'x') + "\r\n.\r\n")
+                .getBytes(StandardCharsets.UTF_8)
+        );
+
+        index = MailBoxIndex.open(this.path);
+        assertEquals(1, index.getSize());
+        assertEquals(this.path.length(), index.get(0).getLength());
+
+        mailBox = new MailBox(this.path);
+        mailBox.load();
+        assertEquals("other", mailBox.get(0).getHeader("Subject"));
+    }
+
+    /**
+     * Saving an index leaves no temporary file behind.
+     *
+     * @throws java.io.IOException If the index couldn't be saved.
+     */
+    @Test
+    public void testSaveReplacesFile()
+    throws IOException
+    {
+        MailBoxIndex index = MailBoxIndex.open(this.path);
+        index.save();
+
+        assertEquals(2, this.directory.list().length);
+        assertTrue(new MailBoxIndex(this.path).load());
+    }
+
+    /**
+     * Builds a text record.
+     *
+     * @param number The mail's number.
+     * @return The record.
+     */
+    protected static String record(int number)
+    {
+        return "Subject: mail " + number + "\r\n\r\nbody " + number + "\r\n.\r\n";
+    }
+}
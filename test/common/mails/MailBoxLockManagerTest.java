@@ -0,0 +1,187 @@
+package common.mails;
+
+import common.mails.exceptions.InvalidMailBoxFileException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the locks shared through the mailboxes' directory keep out the
+ * other lock managers using it, as they would keep out other processes, from
+ * sessions, deliveries and compactions.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxLockManagerTest
+{
+    /**
+     * The mailboxes' directory.
+     */
+    protected File directory;
+
+    /**
+     * The lock manager of the server.
+     */
+    protected MailBoxLockManager serverManager;
+
+    /**
+     * The lock manager of the migrator.
+     */
+    protected MailBoxLockManager migratorManager;
+
+    /**
+     * Creates two lock managers sharing the same directory.
+     *
+     * @throws java.io.IOException If the lock file couldn't be opened.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        this.directory = Files.createTempDirectory("locks").toFile();
+        this.serverManager = new MailBoxLockManager(16);
+        this.serverManager.share(this.directory);
+        this.migratorManager = new MailBoxLockManager(16);
+        this.migratorManager.share(this.directory);
+    }
+
+    /**
+     * Closes the lock files and deletes the directory.
+     *
+     * @throws java.io.IOException If a lock file couldn't be closed.
+     */
+    @After
+    public void tearDown()
+    throws IOException
+    {
+        this.serverManager.lockChannel.close();
+        this.migratorManager.lockChannel.close();
+        MailBoxTest.delete(this.directory);
+    }
+
+    /**
+     * A mailbox locked by a session can't be locked by another session, and
+     * is seen as locked until the session ends.
+     */
+    @Test
+    public void testSessionLockShared()
+    {
+        // Initialize vars
+        File path = new File(this.directory, "bob" + MailBoxLocator.EXTENSION);
+
+        assertTrue(this.serverManager.tryLockSession(path));
+        assertTrue(this.migratorManager.isSessionLocked(path));
+        assertFalse(this.migratorManager.tryLockSession(path));
+
+        this.serverManager.unlockSession(path);
+        assertFalse(this.migratorManager.isSessionLocked(path));
+        assertTrue(this.migratorManager.tryLockSession(path));
+        assertTrue(this.serverManager.isSessionLocked(path));
+        this.migratorManager.unlockSession(path);
+    }
+
+    /**
+     * A mailbox locked exclusively can't be locked exclusively by another
+     * manager until it is released.
+     *
+     * @throws java.lang.InterruptedException If the test is interrupted.
+     */
+    @Test
+    public void testWriteLockShared()
+    throws InterruptedException
+    {
+        // Initialize vars
+        File path = new File(this.directory, "bob" + MailBoxLocator.EXTENSION);
+        CountDownLatch acquiredLatch = new CountDownLatch(1);
+        Lock lock = this.serverManager.lockWrite(path);
+        Thread thread = new Thread(() ->
+        {
+            this.migratorManager.lockWrite(path).unlock();
+            acquiredLatch.countDown();
+        });
+
+        // Reentrant acquisitions don't release it early
+        this.serverManager.lockWrite(path).unlock();
+
+        thread.start();
+        assertFalse(acquiredLatch.await(200, TimeUnit.MILLISECONDS));
+
+        lock.unlock();
+        assertTrue(acquiredLatch.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    /**
+     * A mailbox isn't compacted while another process appends to it, and
+     * the mail it has appended is kept.
+     *
+     * @throws java.lang.Exception If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testCompactionWaitsForAppend()
+    throws Exception
+    {
+        // Initialize vars
+        File path = new File(this.directory, "user" + MailBoxLocator.EXTENSION);
+        CountDownLatch compactedLatch = new CountDownLatch(1);
+        MailBoxIndex index;
+        MailBox mailBox;
+        Lock lock;
+        Thread thread;
+
+        Files.write(
+            path.toPath(),
+            (MailBoxIndexTest.record(0) + MailBoxIndexTest.record(1)).getBytes(StandardCharsets.UTF_8)
+        );
+        index = MailBoxIndex.open(path);
+        assertTrue(index.markDeleted(index.get(0).getOffset()));
+
+        // The compactor runs in this process, the delivery in another one
+        MailBoxLockManager.getInstance().share(this.directory);
+        lock = this.serverManager.lockWrite(path);
+        thread = new Thread(() ->
+        {
+            try
+            {
+                MailBoxCompactor.compact(path);
+                compactedLatch.countDown();
+            }
+            catch(IOException | InvalidMailBoxFileException ex)
+            {
+                // The latch is never counted down
+            }
+        });
+
+        thread.start();
+        assertFalse(compactedLatch.await(200, TimeUnit.MILLISECONDS));
+
+        Files.write(
+            path.toPath(),
+            MailBoxIndexTest.record(2).getBytes(StandardCharsets.UTF_8),
+            StandardOpenOption.APPEND
+        );
+        lock.unlock();
+        assertTrue(compactedLatch.await(5, TimeUnit.SECONDS));
+        thread.join();
+
+        mailBox = new MailBox(path);
+        mailBox.loadLazily();
+
+        assertEquals(2, mailBox.getSize());
+        assertEquals("mail 1", mailBox.get(0).getHeader("Subject"));
+        assertEquals("mail 2", mailBox.get(1).getHeader("Subject"));
+    }
+}
@@ -0,0 +1,305 @@
+package common.mails;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that a mail written into a mailbox reads back the same whether the
+ * mailbox is loaded as a whole, lazily or mapped.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailBoxTest
+{
+    /**
+     * Headers folded over several lines, as they are received.
+     */
+    protected static final String FOLDED_HEADERS =
+        "Received: from a.example\r\n\tby b.example\r\n"
+        + "Content-Type: multipart/mixed;\r\n boundary=\"abc\"\r\n"
+        + "Subject: folded\r\n";
+
+    /**
+     * The directory the mailboxes are created in.
+     */
+    protected File directory;
+
+    /**
+     * The compression threshold before the test.
+     */
+    protected int threshold;
+
+    /**
+     * Creates the directory and remembers the global settings.
+     *
+     * @throws java.io.IOException If the directory couldn't be created.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        this.directory = Files.createTempDirectory("mailbox").toFile();
+        this.threshold = MailCompressor.getThreshold();
+    }
+
+    /**
+     * Deletes the directory and restores the global settings.
+     */
+    @After
+    public void tearDown()
+    {
+        MailCompressor.setThreshold(this.threshold);
+        MailBoxCache.getInstance().clear();
+        MailBoxTest.delete(this.directory);
+    }
+
+    /**
+     * Folded headers are unfolded the same way by every way of reading a
+     * binary mailbox.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testFoldedHeadersInBinaryMailBox()
+    throws IOException
+    {
+        File path = this.createMailBox("binary.mbox");
+        new MailBox(path).append(MailBoxTest.parse(MailBoxTest.FOLDED_HEADERS + "\r\nbody\r\n.\r\n"));
+
+        this.checkReadAlike(path, "body");
+    }
+
+    /**
+     * Folded headers are unfolded the same way by every way of reading a
+     * text mailbox.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testFoldedHeadersInTextMailBox()
+    throws IOException
+    {
+        File path = new File(this.directory, "text.mbox");
+        Files.write(
+            path.toPath(),
+            (MailBoxTest.FOLDED_HEADERS + "\r\nbody\r\n.\r\n").getBytes(StandardCharsets.UTF_8)
+        );
+
+        this.checkReadAlike(path, "body");
+    }
+
+    /**
+     * A compression header sent along with a mail doesn't make its body be
+     * taken as compressed.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testForgedCompressionHeader()
+    throws IOException
+    {
+        File path = this.createMailBox("forged.mbox");
+        new MailBox(path).append(MailBoxTest.parse(
+            MailCompressor.HEADER + ": " + MailCompressor.getHeaderValue(99) + "\r\nSubject: forged\r\n\r\nhello\r\n.\r\n"
+        ));
+
+        this.checkReadAlike(path, "hello");
+    }
+
+    /**
+     * A compressed body reads back as it was written.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testCompressedBody()
+    throws IOException
+    {
+        // Initialize vars
+        File path = this.createMailBox("compressed.mbox");
+        StringBuilder bodyBuilder = new StringBuilder();
+
+        for(int i = 0; i < 100; i++)
+        {
+            bodyBuilder.append("line ").append(i).append("\r\n");
+        }
+
+        MailCompressor.setThreshold(64);
+        new MailBox(path).append(MailBoxTest.parse("Subject: compressed\r\n\r\n" + bodyBuilder + ".\r\n"));
+
+        this.checkReadAlike(path, bodyBuilder.toString().trim());
+        assertTrue(((LazyMail) MailBoxTest.loadLazily(path).get(0)).isCompressed());
+    }
+
+    /**
+     * The headers of a lazily read mail are sent as they are stored, and
+     * their length adds up to the mail's size, even once the mailbox has been
+     * rewritten.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be written or read.
+     */
+    @Test
+    public void testStoredHeadersMatchSize()
+    throws IOException
+    {
+        // Initialize vars
+        File path = this.createMailBox("size.mbox");
+        MailBox mailBox = new MailBox(path);
+        LazyMail mail;
+
+        mailBox.append(MailBoxTest.parse("Subject: first\r\n\r\nfirst\r\n.\r\n"));
+        mailBox.append(MailBoxTest.parse(MailBoxTest.FOLDED_HEADERS + "\r\nsecond\r\n.\r\n"));
+
+        mail = (LazyMail) MailBoxTest.loadLazily(path).get(1);
+        assertEquals(MailBoxTest.FOLDED_HEADERS, MailBoxTest.getRawHeaders(mail));
+        assertEquals(MailBoxTest.FOLDED_HEADERS.length() + 2 + "second".length(), mail.getSize());
+
+        // Rewrite the mailbox without the first mail
+        mailBox = new MailBox(path);
+        mailBox.loadLazily();
+        mailBox.delete(0);
+        mailBox.save();
+
+        mail = (LazyMail) MailBoxTest.loadLazily(path).get(0);
+        assertEquals(MailBoxTest.FOLDED_HEADERS, MailBoxTest.getRawHeaders(mail));
+        assertEquals(MailBoxTest.FOLDED_HEADERS.length() + 2 + "second".length(), mail.getSize());
+    }
+
+    /**
+     * Checks that a mailbox's single mail reads the same whether it is
+     * loaded, loaded lazily or mapped.
+     *
+     * @param path The mailbox's path.
+     * @param body The expected body.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     */
+    protected void checkReadAlike(File path, String body)
+    throws IOException
+    {
+        // Initialize vars
+        MailBox eagerMailBox = new MailBox(path);
+        Mail lazyMail = MailBoxTest.loadLazily(path).get(0);
+        Mail eagerMail, mappedMail;
+
+        eagerMailBox.load();
+        eagerMail = eagerMailBox.get(0);
+
+        try(MappedMailBox mappedMailBox = new MailBox(path).map())
+        {
+            mappedMail = mappedMailBox.getMail(0);
+        }
+
+        for(Mail mail : new Mail[] {eagerMail, lazyMail, mappedMail})
+        {
+            assertEquals(body, mail.getBody());
+            assertEquals(eagerMail.getHeaders(), mail.getHeaders());
+        }
+
+        // Headers are unfolded, not cut at their first line
+        for(Map.Entry<String, String> header : eagerMail.getHeaders().entrySet())
+        {
+            assertFalse(header.getKey().startsWith(" ") || header.getKey().startsWith("\t"));
+        }
+
+        if(eagerMail.getHeaders().containsKey("Content-Type"))
+        {
+            assertTrue(eagerMail.getHeader("Content-Type").contains("boundary=\"abc\""));
+        }
+    }
+
+    /**
+     * Creates an empty mailbox file, which is written in the binary format.
+     *
+     * @param name The file's name.
+     * @return The mailbox's path.
+     * @throws java.io.IOException If the file couldn't be created.
+     */
+    protected File createMailBox(String name)
+    throws IOException
+    {
+        File path = new File(this.directory, name);
+        assertTrue(path.createNewFile());
+
+        return path;
+    }
+
+    /**
+     * Loads a mailbox lazily.
+     *
+     * @param path The mailbox's path.
+     * @return The mailbox's mails.
+     * @throws java.io.IOException If the mailbox couldn't be read.
+     */
+    protected static List<Mail> loadLazily(File path)
+    throws IOException
+    {
+        MailBox mailBox = new MailBox(path);
+        mailBox.loadLazily();
+
+        return mailBox.getAll();
+    }
+
+    /**
+     * Parses a mail as it is received.
+     *
+     * @param data The mail, ended by the end of data marker.
+     * @return The mail.
+     */
+    protected static RawMail parse(String data)
+    {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+
+        return MailParser.parse(bytes, bytes.length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the header lines a lazy mail is sent with.
+     *
+     * @param mail The mail.
+     * @return The header lines.
+     * @throws java.io.IOException If they couldn't be written.
+     */
+    protected static String getRawHeaders(LazyMail mail)
+    throws IOException
+    {
+        ByteArrayOutputStream headersStream = new ByteArrayOutputStream();
+
+        assertTrue(mail.hasRawHeaders());
+        mail.writeRawHeaders(headersStream);
+
+        return new String(headersStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file The file.
+     */
+    protected static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        if(null != files)
+        {
+            for(File child : files)
+            {
+                MailBoxTest.delete(child);
+            }
+        }
+
+        file.delete();
+    }
+}
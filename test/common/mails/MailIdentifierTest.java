@@ -0,0 +1,75 @@
+package common.mails;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that no two mails of a mailbox share an identifier, even identical
+ * mails delivered before identifiers were assigned.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class MailIdentifierTest
+{
+    /**
+     * Identical legacy mails get distinct identifiers, the first one keeping
+     * the identifier derived from its content.
+     */
+    @Test
+    public void testIdenticalLegacyMails()
+    {
+        // Initialize vars
+        List<Mail> mails = Arrays.asList(
+            MailIdentifierTest.createMail("same"),
+            MailIdentifierTest.createMail("other"),
+            MailIdentifierTest.createMail("same"),
+            MailIdentifierTest.createMail("same")
+        );
+        String[] identifiers = MailIdentifier.getAll(mails);
+
+        assertEquals(4, new HashSet<>(Arrays.asList(identifiers)).size());
+        assertEquals(MailIdentifier.get(mails.get(0)), identifiers[0]);
+        assertEquals(MailIdentifier.get(mails.get(1)), identifiers[1]);
+
+        for(int i = 0; i < identifiers.length; i++)
+        {
+            assertEquals(identifiers[i], MailIdentifier.get(mails, i));
+        }
+    }
+
+    /**
+     * A stored identifier is used as it is.
+     */
+    @Test
+    public void testStoredIdentifier()
+    {
+        // Initialize vars
+        Mail mail = MailIdentifierTest.createMail("same");
+        List<Mail> mails = Arrays.asList(MailIdentifierTest.createMail("same"), mail);
+
+        MailIdentifier.assign(mail);
+
+        assertEquals(mail.getHeader(MailIdentifier.HEADER), MailIdentifier.get(mails, 1));
+        assertEquals(mail.getHeader(MailIdentifier.HEADER), MailIdentifier.getAll(mails)[1]);
+    }
+
+    /**
+     * Creates a mail without an identifier.
+     *
+     * @param subject The mail's subject.
+     * @return The mail.
+     */
+    protected static Mail createMail(String subject)
+    {
+        Mail mail = new Mail();
+        mail.addHeader("Subject", subject);
+        mail.setBody("Body of " + subject + ".");
+
+        return mail;
+    }
+}
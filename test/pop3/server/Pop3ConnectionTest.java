@@ -0,0 +1,437 @@
+package pop3.server;
+
+import common.mails.MailBlobStore;
+import common.mails.MailBox;
+import common.mails.MailBoxCache;
+import common.mails.MailBoxLockManager;
+import common.mails.MailParser;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pop3.Pop3Protocol;
+import pop3.server.commands.AbstractPop3Command;
+import pop3.server.commands.ListCommand;
+import pop3.server.commands.RetrieveCommand;
+
+/**
+ * Checks how a connection reads its requests, that it sends mails back as
+ * they have been received and that it always releases the maildrop it has
+ * locked.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class Pop3ConnectionTest
+{
+    /**
+     * The mailboxes' directory.
+     */
+    protected File directory;
+
+    /**
+     * The server the connections belong to.
+     */
+    protected Pop3Server server;
+
+    /**
+     * The socket the responses are written into.
+     */
+    protected MemorySocket socket;
+
+    /**
+     * Creates a server and the mailbox of a user.
+     *
+     * @throws java.io.IOException If the mailbox couldn't be created.
+     */
+    @Before
+    public void setUp()
+    throws IOException
+    {
+        // Initialize vars
+        File path;
+
+        this.directory = Files.createTempDirectory("pop3").toFile();
+        this.server = new Pop3Server("test", 0, false, this.directory, "secret");
+
+        path = this.server.getMailBoxFile("bob");
+        assertTrue(path.getParentFile().isDirectory() || path.getParentFile().mkdirs());
+        assertTrue(path.createNewFile());
+    }
+
+    /**
+     * Stops the server and deletes the directory.
+     *
+     * @throws java.io.IOException If the server's socket couldn't be closed.
+     */
+    @After
+    public void tearDown()
+    throws IOException
+    {
+        this.server.socket.close();
+        MailBlobStore.setInstance(null);
+        MailBoxCache.getInstance().clear();
+        Pop3ConnectionTest.delete(this.directory);
+    }
+
+    /**
+     * The maildrop is unlocked when a command fails unexpectedly.
+     *
+     * @throws java.lang.Exception If the connection couldn't be created.
+     */
+    @Test
+    public void testSessionLockReleased()
+    throws Exception
+    {
+        // Initialize vars
+        Pop3Connection connection = this.connect("BOOM\r\n");
+        File path = this.server.getMailBoxFile("bob");
+
+        this.server.supportedCommands.put(
+            "BOOM",
+            new AbstractPop3Command()
+            {
+                @Override
+                public boolean isValid(Pop3Connection connection)
+                {
+                    return true;
+                }
+
+                @Override
+                public boolean handle(Pop3Connection connection, String request)
+                {
+                    throw new IllegalStateException("Command failure.");
+                }
+            }
+        );
+
+        assertTrue(connection.openMailDrop("bob"));
+        assertTrue(MailBoxLockManager.getInstance().isSessionLocked(path));
+
+        try
+        {
+            connection.run();
+            fail("The command should have failed.");
+        }
+        catch(IllegalStateException ex)
+        {
+            assertFalse(MailBoxLockManager.getInstance().isSessionLocked(path));
+            assertTrue(this.socket.closed);
+        }
+
+        // Another session can now be opened
+        connection = this.connect("");
+        assertTrue(connection.openMailDrop("bob"));
+        connection.closeMailDrop();
+    }
+
+    /**
+     * A request line longer than allowed is refused as a whole instead of
+     * being handled truncated.
+     *
+     * @throws java.lang.Exception If the connection couldn't be created.
+     */
+    @Test
+    public void testOverlongRequestRefused()
+    throws Exception
+    {
+        // Initialize vars
+        StringBuilder requestBuilder = new StringBuilder("QUIT ");
+        String[] responses;
+
+        while(requestBuilder.length() < Pop3Protocol.MAX_REQUEST_LENGTH)
+        {
+            requestBuilder.append('x');
+        }
+
+        this.connect(requestBuilder + "\r\nNOOP\r\nQUIT\r\n").run();
+        responses = this.socket.getResponses();
+
+        assertEquals(4, responses.length);
+        assertTrue(responses[0].startsWith(Pop3Protocol.RESPONSE_OK));
+        assertEquals(Pop3Protocol.RESPONSE_ERROR + " line too long", responses[1]);
+        assertEquals(Pop3Protocol.RESPONSE_ERROR + " unknown command", responses[2]);
+        assertTrue(responses[3].startsWith(Pop3Protocol.RESPONSE_OK));
+    }
+
+    /**
+     * A request line as long as allowed is handled.
+     *
+     * @throws java.lang.Exception If the connection couldn't be created.
+     */
+    @Test
+    public void testLongestRequestAccepted()
+    throws Exception
+    {
+        // Initialize vars
+        StringBuilder requestBuilder = new StringBuilder("NOOP ");
+        String[] responses;
+
+        while(requestBuilder.length() < Pop3Protocol.MAX_REQUEST_LENGTH - 2)
+        {
+            requestBuilder.append('x');
+        }
+
+        this.connect(requestBuilder + "\r\nQUIT\r\n").run();
+        responses = this.socket.getResponses();
+
+        assertEquals(3, responses.length);
+        assertEquals(Pop3Protocol.RESPONSE_ERROR + " unknown command", responses[1]);
+    }
+
+    /**
+     * A mail received through SMTP with lines starting with a dot is stored
+     * without the client's dot-stuffing, and sent through POP3 stuffed once
+     * again, its size counting every line once.
+     *
+     * @throws java.lang.Exception If the mail couldn't be delivered or sent.
+     */
+    @Test
+    public void testDotStuffingRoundTrip()
+    throws Exception
+    {
+        // Initialize vars
+        String data = "Subject: dots\r\n\r\n..x\r\n..\r\n...\r\nlast\r\n.\r\n";
+        byte[] received = (data + "QUIT\r\n").getBytes(StandardCharsets.UTF_8);
+        MailParser parser = new MailParser(16);
+        Pop3Connection connection;
+        String[] responses;
+        int consumedLength = 0;
+
+        // Receive the mail one byte at a time, as the SMTP server would
+        while(!parser.isComplete())
+        {
+            consumedLength += parser.update(received, consumedLength, 1);
+        }
+
+        assertEquals(data.length(), consumedLength);
+        assertEquals(".x\r\n.\r\n..\r\nlast", parser.getMail(StandardCharsets.UTF_8).getBody());
+        new MailBox(this.server.getMailBoxFile("bob")).append(parser.getMail(StandardCharsets.UTF_8));
+
+        // Then, send it back
+        connection = this.connect("");
+        assertTrue(connection.openMailDrop("bob"));
+        new ListCommand().handle(connection, "LIST 1");
+        new RetrieveCommand().handle(connection, "RETR 1");
+        connection.closeMailDrop();
+        connection.responseWriter.flush();
+
+        assertEquals(
+            Pop3Protocol.RESPONSE_OK + " 1 " + "Subject: dots\r\n\r\n.x\r\n.\r\n..\r\nlast".length() + "\r\n"
+                + Pop3Protocol.RESPONSE_OK + " " + "Subject: dots\r\n\r\n.x\r\n.\r\n..\r\nlast".length() + " octets\r\n"
+                + data,
+            new String(this.socket.responsesStream.toByteArray(), StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * Opens a connection whose client sends the given requests.
+     *
+     * @param requests The requests.
+     * @return The connection.
+     * @throws java.lang.Exception If the connection couldn't be created.
+     */
+    protected Pop3Connection connect(String requests)
+    throws Exception
+    {
+        this.socket = new MemorySocket(requests.getBytes(StandardCharsets.UTF_8));
+
+        return new Pop3Connection(this.server, this.socket);
+    }
+
+    /**
+     * Deletes a file or a directory with its content.
+     *
+     * @param file The file.
+     */
+    protected static void delete(File file)
+    {
+        File[] files = file.listFiles();
+
+        if(null != files)
+        {
+            for(File child : files)
+            {
+                Pop3ConnectionTest.delete(child);
+            }
+        }
+
+        file.delete();
+    }
+
+    /**
+     * A socket reading the client's requests from memory and keeping the
+     * responses.
+     */
+    protected static class MemorySocket extends SSLSocket
+    {
+        /**
+         * The client's requests.
+         */
+        protected InputStream requestsStream;
+
+        /**
+         * The server's responses.
+         */
+        protected ByteArrayOutputStream responsesStream;
+
+        /**
+         * Whether the socket has been closed.
+         */
+        protected boolean closed;
+
+        /**
+         * Creates a socket.
+         *
+         * @param requests The client's requests.
+         */
+        public MemorySocket(byte[] requests)
+        {
+            this.requestsStream = new ByteArrayInputStream(requests);
+            this.responsesStream = new ByteArrayOutputStream();
+            this.closed = false;
+        }
+
+        /**
+         * Gets the responses sent so far, one per line.
+         *
+         * @return The responses.
+         */
+        public String[] getResponses()
+        {
+            return new String(this.responsesStream.toByteArray(), StandardCharsets.UTF_8).split("\r\n");
+        }
+
+        @Override
+        public InputStream getInputStream()
+        {
+            return this.requestsStream;
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+        {
+            return this.responsesStream;
+        }
+
+        @Override
+        public void close()
+        {
+            this.closed = true;
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites)
+        {
+        }
+
+        @Override
+        public String[] getSupportedProtocols()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public String[] getEnabledProtocols()
+        {
+            return new String[0];
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols)
+        {
+        }
+
+        @Override
+        public SSLSession getSession()
+        {
+            return null;
+        }
+
+        @Override
+        public void addHandshakeCompletedListener(HandshakeCompletedListener listener)
+        {
+        }
+
+        @Override
+        public void removeHandshakeCompletedListener(HandshakeCompletedListener listener)
+        {
+        }
+
+        @Override
+        public void startHandshake()
+        {
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode)
+        {
+        }
+
+        @Override
+        public boolean getUseClientMode()
+        {
+            return false;
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need)
+        {
+        }
+
+        @Override
+        public boolean getNeedClientAuth()
+        {
+            return false;
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want)
+        {
+        }
+
+        @Override
+        public boolean getWantClientAuth()
+        {
+            return false;
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag)
+        {
+        }
+
+        @Override
+        public boolean getEnableSessionCreation()
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package pop3.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Checks that multi-line responses are dot-stuffed wherever the lines fall
+ * relative to the buffers they are copied through.
+ *
+ * @author Bruno Buiret (bruno.buiret@etu.univ-lyon1.fr)
+ * @author Thomas Arnaud (thomas.arnaud@etu.univ-lyon1.fr)
+ * @author Alexis Rabilloud (alexis.rabilloud@etu.univ-lyon1.fr)
+ */
+public class Pop3ResponseWriterTest
+{
+    /**
+     * Lines starting with a dot right after a chunk or the buffer has been
+     * filled are still dot-stuffed.
+     *
+     * @throws java.io.IOException Never.
+     */
+    @Test
+    public void testDotStuffingAcrossBuffers()
+    throws IOException
+    {
+        // Each line shifts the following ones so that some start exactly at a boundary
+        for(int shift = -2; shift <= 2; shift++)
+        {
+            String body = Pop3ResponseWriterTest.createBody(Pop3ResponseWriter.BUFFER_SIZE + shift);
+
+            assertEquals(
+                Pop3ResponseWriterTest.stuff(body) + ".\r\n",
+                Pop3ResponseWriterTest.writeLines(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)), -1)
+            );
+        }
+    }
+
+    /**
+     * Lines are dot-stuffed when the stream returns them in pieces.
+     *
+     * @throws java.io.IOException Never.
+     */
+    @Test
+    public void testDotStuffingShortReads()
+    throws IOException
+    {
+        // Initialize vars
+        String body = Pop3ResponseWriterTest.createBody(100);
+        InputStream bodyStream = new FilterInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.US_ASCII)))
+        {
+            @Override
+            public int read(byte[] buffer, int offset, int length)
+            throws IOException
+            {
+                return super.read(buffer, offset, Math.min(length, 3));
+            }
+        };
+
+        assertEquals(Pop3ResponseWriterTest.stuff(body) + ".\r\n", Pop3ResponseWriterTest.writeLines(bodyStream, -1));
+    }
+
+    /**
+     * Only the lines asked for are copied, and the last one is ended.
+     *
+     * @throws java.io.IOException Never.
+     */
+    @Test
+    public void testLinesNumber()
+    throws IOException
+    {
+        assertEquals(
+            "first\r\n..second\r\n.\r\n",
+            Pop3ResponseWriterTest.writeLines(
+                new ByteArrayInputStream("first\r\n.second\r\nthird".getBytes(StandardCharsets.US_ASCII)),
+                2
+            )
+        );
+        assertEquals(
+            "no end\r\n.\r\n",
+            Pop3ResponseWriterTest.writeLines(
+                new ByteArrayInputStream("no end".getBytes(StandardCharsets.US_ASCII)),
+                -1
+            )
+        );
+    }
+
+    /**
+     * Builds a body whose lines start with a dot every other time, the first
+     * boundary falling right before one of them.
+     *
+     * @param boundary The length after which a line starting with a dot
+     * begins.
+     * @return The body.
+     */
+    protected static String createBody(int boundary)
+    {
+        // Initialize vars
+        StringBuilder bodyBuilder = new StringBuilder();
+        StringBuilder lineBuilder = new StringBuilder();
+
+        while(bodyBuilder.length() + 80 < boundary)
+        {
+            bodyBuilder.append("a line of text which doesn't start with a dot\r\n");
+        }
+
+        for(int i = boundary - bodyBuilder.length() - 2; i > 0; i--)
+        {
+            lineBuilder.append('x');
+        }
+
+        bodyBuilder.append(lineBuilder).append("\r\n");
+
+        for(int i = 0; bodyBuilder.length() < 3 * boundary; i++)
+        {
+            bodyBuilder.append(0 == i % 2 ? ".dotted line " : "line ").append(i).append("\r\n");
+        }
+
+        return bodyBuilder.append("..").toString();
+    }
+
+    /**
+     * Dot-stuffs a body the simplest way.
+     *
+     * @param body The body.
+     * @return The lines, each one ended.
+     */
+    protected static String stuff(String body)
+    {
+        // Initialize vars
+        StringBuilder stuffedBuilder = new StringBuilder();
+
+        for(String line : body.split("\r\n", -1))
+        {
+            stuffedBuilder.append(line.startsWith(".") ? "." : "").append(line).append("\r\n");
+        }
+
+        return stuffedBuilder.toString();
+    }
+
+    /**
+     * Copies lines into a multi-line response.
+     *
+     * @param dataStream The stream of lines.
+     * @param linesNumber The number of lines to copy.
+     * @return The response.
+     * @throws java.io.IOException Never.
+     */
+    protected static String writeLines(InputStream dataStream, int linesNumber)
+    throws IOException
+    {
+        // Initialize vars
+        ByteArrayOutputStream responseStream = new ByteArrayOutputStream();
+        Pop3ResponseWriter responseWriter = new Pop3ResponseWriter(responseStream);
+
+        responseWriter.writeLines(dataStream, linesNumber);
+        responseWriter.end();
+        responseWriter.flush();
+
+        return new String(responseStream.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}